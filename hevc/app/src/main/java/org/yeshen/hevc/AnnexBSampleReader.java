@@ -0,0 +1,145 @@
+package org.yeshen.hevc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Raw Annex-B files: NAL units are grouped into access units by their headers
+// (H.265 7.4.2.4.4), timestamps are made up from the frame rate.
+class AnnexBSampleReader extends SampleReader {
+
+    // how far a start code is searched for in one mapping
+    private static final int SEARCH_CHUNK = 1024 * 1024;
+
+    private final MappedFile file;
+    private final long frameDurationUs;
+    private long position;
+    private long frameIndex;
+
+    AnnexBSampleReader(MappedFile file, int frameRate) throws IOException {
+        this.file = file;
+        this.frameDurationUs = 1000000L / Math.max(1, frameRate);
+        this.position = nextStartCode(0);
+        readParameterSets();
+        if (position < 0) throw new IOException("no start code found");
+    }
+
+    private void readParameterSets() throws IOException {
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        long nal = position;
+        while (nal >= 0) {
+            long payload = payloadStart(nal);
+            long next = nextStartCode(payload);
+            int type = HevcNal.type((byte) file.readUnsignedByte(payload));
+            if (HevcNal.isVcl(type)) break;
+            if (HevcNal.isParameterSet(type)) {
+                int size = (int) ((next < 0 ? file.size() : next) - payload);
+                ByteBuffer bytes = file.slice(payload, size);
+                byte[] copy = new byte[size];
+                bytes.get(copy);
+                config.write(0);
+                config.write(0);
+                config.write(0);
+                config.write(1);
+                config.write(copy, 0, size);
+                if (type == HevcNal.SPS) {
+                    HevcSps sps = HevcSps.parse(ByteBuffer.wrap(copy), 0, size);
+                    width = sps.width;
+                    height = sps.height;
+                }
+            }
+            nal = next;
+        }
+        csd = config.toByteArray();
+        if (csd.length == 0 || width == 0) throw new IOException("no parameter sets before the first slice");
+    }
+
+    // offset of the first byte of the start code at or after from (four byte codes included), or -1
+    private long nextStartCode(long from) throws IOException {
+        long start = from;
+        while (start + 3 <= file.size()) {
+            int length = (int) Math.min(SEARCH_CHUNK, file.size() - start);
+            ByteBuffer chunk = file.slice(start, length);
+            int found = AnnexBScanner.findStartCode(chunk, chunk.position(), chunk.limit());
+            if (found >= 0) {
+                long at = start + found - chunk.position();
+                return at > from && file.readUnsignedByte(at - 1) == 0 ? at - 1 : at;
+            }
+            if (start + length >= file.size()) break;
+            // keep two bytes of overlap, a start code may straddle the chunks
+            start += length - 2;
+        }
+        return -1;
+    }
+
+    private long payloadStart(long startCode) throws IOException {
+        return file.readUnsignedByte(startCode + 2) == 1 ? startCode + 3 : startCode + 4;
+    }
+
+    @Override
+    boolean next(Sample sample) throws IOException {
+        if (position < 0) return false;
+        long start = position;
+        long nal = position;
+        boolean sawVcl = false;
+        boolean sync = false;
+        while (nal >= 0) {
+            long payload = payloadStart(nal);
+            if (payload + 3 > file.size()) {
+                nal = -1;
+                break;
+            }
+            int type = HevcNal.type((byte) file.readUnsignedByte(payload));
+            if (HevcNal.isVcl(type)) {
+                boolean firstSlice = (file.readUnsignedByte(payload + 2) & 0x80) != 0;
+                if (sawVcl && firstSlice) break;
+                sawVcl = true;
+                sync |= HevcNal.isIrap(type);
+            } else if (sawVcl && HevcNal.startsAccessUnit(type)) {
+                break;
+            }
+            nal = nextStartCode(payload);
+        }
+        if (!sawVcl) {
+            position = -1;
+            return false;
+        }
+        long end = nal < 0 ? file.size() : nal;
+        sample.offset = start;
+        sample.size = (int) (end - start);
+        sample.presentationTimeUs = frameIndex * frameDurationUs;
+        sample.flags = sync ? 1 : 0;
+        frameIndex++;
+        position = nal;
+        return true;
+    }
+
+    @Override
+    int annexBSize(Sample sample) {
+        return sample.size;
+    }
+
+    @Override
+    int read(Sample sample, ByteBuffer dst) throws IOException {
+        dst.put(file.slice(sample.offset, sample.size));
+        return sample.size;
+    }
+
+    @Override
+    void seek(long offset, long presentationTimeUs) throws IOException {
+        if (offset < 0 || offset >= file.size()) throw new IOException("seek beyond the file: " + offset);
+        position = offset;
+        frameIndex = presentationTimeUs / frameDurationUs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,127 @@
+package org.yeshen.hevc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Splits an Annex-B byte stream into NAL units without copying them.
+// Start codes are searched eight bytes at a time: a word without any zero byte
+// cannot hold the start of 00 00 01, so only words containing a zero are inspected.
+// Files are scanned through a sliding memory mapped window so memory stays constant.
+class AnnexBScanner {
+
+    interface Listener {
+        // buffer is only valid during the call; the NAL payload (header included, start code
+        // and trailing zero bytes excluded) is [offset, offset + size) of buffer, streamOffset
+        // is where the start code of this NAL begins in the whole stream
+        void onNal(ByteBuffer buffer, int offset, int size, int type, long streamOffset);
+    }
+
+    static final int DEFAULT_WINDOW = 64 * 1024 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final int window;
+
+    AnnexBScanner() {
+        this(DEFAULT_WINDOW);
+    }
+
+    AnnexBScanner(int window) {
+        this.window = window;
+    }
+
+    // position of the next 00 00 01 in [from, to), or -1
+    static int findStartCode(ByteBuffer buffer, int from, int to) {
+        ByteBuffer le = buffer.order() == ByteOrder.LITTLE_ENDIAN ? buffer : buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long word = le.getLong(i);
+            if (((word - ONES) & ~word & HIGHS) == 0) continue;
+            // a zero byte somewhere in this word, the pattern may run into the next one
+            for (int j = i; j < i + 8; j++) {
+                if (j + 2 < to && le.get(j) == 0 && le.get(j + 1) == 0 && le.get(j + 2) == 1) return j;
+            }
+        }
+        for (; i + 2 < to; i++) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) return i;
+        }
+        return -1;
+    }
+
+    // scans [buffer.position(), buffer.limit()), the last NAL runs to the limit;
+    // returns the number of NAL units found
+    long scan(ByteBuffer buffer, Listener listener) {
+        return scan(buffer, buffer.position(), buffer.limit(), 0, true, listener);
+    }
+
+    long scan(FileChannel channel, Listener listener) throws IOException {
+        long size = channel.size();
+        long base = 0;
+        long count = 0;
+        int length = window;
+        while (base < size) {
+            boolean last = size - base <= length;
+            int mapped = (int) Math.min(length, size - base);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, mapped);
+            int[] consumed = new int[1];
+            long found = scan(buffer, 0, mapped, base, last, listener, consumed);
+            count += found;
+            if (last) break;
+            if (consumed[0] == 0) {
+                // a single NAL bigger than the window, widen the window until it fits
+                if (length > Integer.MAX_VALUE / 2) throw new IOException("NAL unit larger than 1GB at " + base);
+                length *= 2;
+            } else {
+                base += consumed[0];
+                length = window;
+            }
+        }
+        return count;
+    }
+
+    private long scan(ByteBuffer buffer, int from, int to, long base, boolean last, Listener listener) {
+        return scan(buffer, from, to, base, last, listener, new int[1]);
+    }
+
+    // reports every NAL that is known to be complete; consumed receives the offset of the
+    // first unreported start code when last is false (the caller rescans from there)
+    private long scan(ByteBuffer buffer, int from, int to, long base, boolean last, Listener listener,
+                      int[] consumed) {
+        long count = 0;
+        int start = findStartCode(buffer, from, to);
+        consumed[0] = from;
+        while (start >= 0) {
+            int payload = start + 3;
+            int next = findStartCode(buffer, payload, to);
+            if (next < 0 && !last) {
+                consumed[0] = leadingZero(buffer, start, from);
+                return count;
+            }
+            int end = next < 0 ? to : next;
+            // trailing_zero_8bits, including the leading zero of a four byte start code
+            while (end > payload && buffer.get(end - 1) == 0) end--;
+            if (end - payload >= 2) {
+                int type = HevcNal.type(buffer.get(payload));
+                listener.onNal(buffer, payload, end - payload, type, base + leadingZero(buffer, start, from));
+                count++;
+            }
+            start = next;
+        }
+        consumed[0] = last ? to : from;
+        return count;
+    }
+
+    private static int leadingZero(ByteBuffer buffer, int start, int from) {
+        return start > from && buffer.get(start - 1) == 0 ? start - 1 : start;
+    }
+}
@@ -0,0 +1,232 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Drives the codec with Codec.setCallback on a dedicated HandlerThread,
+// no thread ever sleeps or polls waiting for the codec.
+class AsyncCodecDriver implements CodecDriver, Codec.Callback {
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Codec mCodec;
+    private final LinkedBlockingQueue<Integer> mInputs = new LinkedBlockingQueue<>();
+    private volatile Callback mCallback;
+    private volatile boolean mReleased;
+
+    AsyncCodecDriver(Codec.Factory factory, String name) throws IOException {
+        mThread = new HandlerThread(name, Process.THREAD_PRIORITY_VIDEO);
+        mThread.start();
+        // the codec is created on the handler thread, so that before M (where setCallback
+        // takes no handler) its callbacks are delivered there as well
+        mHandler = new Handler(mThread.getLooper());
+        mCodec = createOn(mHandler, factory);
+        mCodec.setCallback(this);
+    }
+
+    private static Codec createOn(Handler handler, final Codec.Factory factory) throws IOException {
+        final Codec[] codec = new Codec[1];
+        final IOException[] failure = new IOException[1];
+        final CountDownLatch created = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    codec[0] = factory.create();
+                } catch (IOException e) {
+                    failure[0] = e;
+                } finally {
+                    created.countDown();
+                }
+            }
+        });
+        try {
+            created.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while creating codec", e);
+        }
+        if (failure[0] != null) throw failure[0];
+        if (codec[0] == null) throw new IOException("codec factory returned null");
+        return codec[0];
+    }
+
+    @Override
+    public void configure(MediaFormat format, Surface surface, int flags) {
+        mCodec.configure(format, surface, flags);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start(Callback callback) {
+        mCallback = callback;
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueInput(long timeoutUs) {
+        try {
+            Integer index = timeoutUs < 0 ? mInputs.take() : mInputs.poll(timeoutUs, TimeUnit.MICROSECONDS);
+            return index == null ? -1 : index;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInput(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutput(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutput(int index, long renderTimestampNs) {
+        mCodec.releaseOutputBuffer(index, renderTimestampNs);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    // runs on the handler thread: callbacks posted before the flush are delivered before it,
+    // and the codec discards the ones it had not posted yet
+    @Override
+    public void flush() {
+        final RuntimeException[] failure = new RuntimeException[1];
+        final CountDownLatch flushed = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mInputs.clear();
+                    mCodec.flush();
+                    // callback mode needs a start after a flush, the free inputs come again
+                    mCodec.start();
+                } catch (RuntimeException e) {
+                    failure[0] = e;
+                } finally {
+                    flushed.countDown();
+                }
+            }
+        });
+        try {
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure[0] != null) throw failure[0];
+    }
+
+    // runs on the handler thread like flush(), so that no callback is using the codec
+    // while it goes; callbacks still queued behind it see mReleased and do nothing
+    @Override
+    public void release() {
+        mReleased = true;
+        final Runnable teardown = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mCodec.stop();
+                } catch (IllegalStateException e) {
+                    e.printStackTrace();
+                }
+                mCodec.release();
+            }
+        };
+        if (Looper.myLooper() == mThread.getLooper()) {
+            // from within a callback
+            teardown.run();
+        } else {
+            final CountDownLatch released = new CountDownLatch(1);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        teardown.run();
+                    } finally {
+                        released.countDown();
+                    }
+                }
+            });
+            // the codec must be gone before the caller goes on, e.g. to create the next one
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    released.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        mThread.quitSafely();
+        mInputs.clear();
+    }
+
+    @Override
+    public Codec codec() {
+        return mCodec;
+    }
+
+    @Override
+    public void onInputBufferAvailable(int index) {
+        if (!mReleased) mInputs.offer(index);
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+        Callback callback = mCallback;
+        if (mReleased || callback == null) return;
+        ByteBuffer buffer = mCodec.getOutputBuffer(index);
+        if (buffer != null) {
+            buffer.position(info.offset);
+            buffer.limit(info.offset + info.size);
+        }
+        callback.onOutputBuffer(index, buffer, info);
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+        Callback callback = mCallback;
+        if (!mReleased && callback != null) callback.onOutputFormatChanged(format);
+    }
+
+    @Override
+    public void onError(Exception e) {
+        Callback callback = mCallback;
+        if (!mReleased && callback != null) callback.onError(e);
+    }
+}
@@ -0,0 +1,65 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+class CameraFrameSource implements FrameSource {
+
+    // preview callbacks arrive on the UI thread, so never block the producer here
+    private static final int CAPACITY = 10;
+
+    private final FramePool framePool;
+    private final FrameChannel channel;
+
+    CameraFrameSource(final FramePool framePool) {
+        this(framePool, FrameChannel.DropPolicy.DROP_OLDEST, 0);
+    }
+
+    CameraFrameSource(final FramePool framePool, FrameChannel.DropPolicy policy, long blockTimeoutUs) {
+        this.framePool = framePool;
+        this.channel = new FrameChannel(CAPACITY, policy, blockTimeoutUs, new FrameChannel.OnDrop() {
+            @Override
+            public void onDrop(byte[] frame, long timestampNs) {
+                PipelineMetrics.count(PipelineMetrics.framesDroppedBeforeEncode);
+                framePool.release(frame);
+            }
+        });
+    }
+
+    // the preview callback time stands in for the capture time
+    void onFrame(byte[] data) {
+        PipelineMetrics.count(PipelineMetrics.framesCaptured);
+        channel.offer(data, System.nanoTime());
+    }
+
+    void clear() {
+        channel.clear();
+    }
+
+    FrameChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public byte[] poll(long timeoutUs) {
+        return channel.poll(timeoutUs);
+    }
+
+    @Override
+    public long captureTimeNs() {
+        return channel.polledTimestampNs();
+    }
+
+    @Override
+    public int pending() {
+        return channel.size();
+    }
+
+    @Override
+    public void recycle(byte[] frame) {
+        framePool.release(frame);
+    }
+}
@@ -0,0 +1,78 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// The subset of MediaCodec the pipelines use, so a fake can stand in for it on a plain JVM.
+// Semantics follow MediaCodec: indices, flags and INFO_* return codes are the same.
+interface Codec {
+
+    interface Factory {
+        Codec create() throws IOException;
+    }
+
+    interface Callback {
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+    }
+
+    String getName();
+
+    // whether setCallback is supported, otherwise only the dequeue methods can be used
+    boolean supportsCallback();
+
+    // must be called before configure, the dequeue methods may not be used afterwards
+    void setCallback(Callback callback);
+
+    void configure(MediaFormat format, Surface surface, int flags);
+
+    Surface createInputSurface();
+
+    void start();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    // the buffer is cleared and ready to be filled
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    // may be null for codecs rendering to a surface
+    ByteBuffer getOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    void releaseOutputBuffer(int index, long renderTimestampNs);
+
+    void signalEndOfInputStream();
+
+    // every buffer goes back to the codec; in callback mode start() must be called again
+    void flush();
+
+    // MediaCodec.PARAMETER_KEY_* changes while running, ignored before KITKAT
+    void setParameters(Bundle params);
+
+    void stop();
+
+    void release();
+}
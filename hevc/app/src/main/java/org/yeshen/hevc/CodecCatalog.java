@@ -0,0 +1,280 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// The HEVC codecs of the device as MediaCodecList reports them: name, color formats,
+// profile/level pairs and instance limit. Walking MediaCodecList loads every codec's
+// capabilities and takes hundreds of ms, so load() keeps the result in a small cache file
+// that holds until the next system update (Build.FINGERPRINT). Once loaded the catalog is
+// shared(): MediaCodecAdapter creates codecs by name from it, EncoderFarm takes its limits.
+class CodecCatalog {
+
+    static final String CACHE_FILE = "codecs.cat";
+    // "CCA" and a version, bumped whenever the layout or the meaning of a field changes
+    private static final int MAGIC = 0x43434102;
+    private static final String[] MIMES = {EncoderConfig.MIME};
+
+    static final class Entry {
+        final String name;
+        final String mime;
+        final boolean encoder;
+        final int[] colorFormats;
+        // MediaCodecInfo.CodecProfileLevel pairs
+        final int[] profiles;
+        final int[] levels;
+        final int maxInstances;
+
+        Entry(String name, String mime, boolean encoder, int[] colorFormats, int[] profiles, int[] levels,
+              int maxInstances) {
+            this.name = name;
+            this.mime = mime;
+            this.encoder = encoder;
+            this.colorFormats = colorFormats;
+            this.profiles = profiles;
+            this.levels = levels;
+            this.maxInstances = maxInstances;
+        }
+
+        // the platform's own software codecs, only picked if there is nothing else
+        boolean isSoftware() {
+            return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+        }
+
+        boolean supportsColorFormat(int colorFormat) {
+            for (int format : colorFormats) {
+                if (format == colorFormat) return true;
+            }
+            return false;
+        }
+
+        // level is a MediaCodecInfo.CodecProfileLevel constant, higher ones include the lower
+        boolean supports(int profile, int level) {
+            for (int i = 0; i < profiles.length; i++) {
+                if (profiles[i] == profile && levels[i] >= level) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s{%s %s, %d color formats, %d profile levels, max %d}",
+                    name, encoder ? "encoder" : "decoder", mime, colorFormats.length, profiles.length, maxInstances);
+        }
+    }
+
+    private static volatile CodecCatalog shared;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private boolean fromCache;
+    private long loadNs;
+
+    private CodecCatalog() {
+    }
+
+    // the catalog loaded last, null before any load()
+    static CodecCatalog shared() {
+        return shared;
+    }
+
+    // the cached catalog if it was written on this system build, otherwise a fresh probe,
+    // saved for next time; becomes shared()
+    static CodecCatalog load(File file) {
+        long startNs = System.nanoTime();
+        CodecCatalog catalog = null;
+        if (file.exists()) {
+            try {
+                catalog = read(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (catalog == null) {
+            catalog = probe();
+            try {
+                catalog.write(file);
+            } catch (IOException e) {
+                // the probe just isn't cached
+                e.printStackTrace();
+            }
+        } else {
+            catalog.fromCache = true;
+        }
+        catalog.loadNs = System.nanoTime() - startNs;
+        shared = catalog;
+        return catalog;
+    }
+
+    // walks MediaCodecList for the codecs of MIMES
+    static CodecCatalog probe() {
+        CodecCatalog catalog = new CodecCatalog();
+        MediaCodecInfo[] infos;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } else {
+            infos = new MediaCodecInfo[MediaCodecList.getCodecCount()];
+            for (int i = 0; i < infos.length; i++) {
+                infos[i] = MediaCodecList.getCodecInfoAt(i);
+            }
+        }
+        if (infos == null) return catalog;
+        for (MediaCodecInfo info : infos) {
+            for (String type : info.getSupportedTypes()) {
+                for (String mime : MIMES) {
+                    if (type.equalsIgnoreCase(mime)) catalog.entries.add(entry(info, type, mime));
+                }
+            }
+        }
+        return catalog;
+    }
+
+    private static Entry entry(MediaCodecInfo info, String type, String mime) {
+        MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(type);
+        MediaCodecInfo.CodecProfileLevel[] profileLevels = capabilities.profileLevels;
+        int[] profiles = new int[profileLevels.length];
+        int[] levels = new int[profileLevels.length];
+        for (int i = 0; i < profileLevels.length; i++) {
+            profiles[i] = profileLevels[i].profile;
+            levels[i] = profileLevels[i].level;
+        }
+        // getMaxSupportedInstances() needs MARSHMALLOW
+        int maxInstances = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                ? capabilities.getMaxSupportedInstances() : EncoderFarm.UNKNOWN_MAX_INSTANCES;
+        return new Entry(info.getName(), mime, info.isEncoder(), capabilities.colorFormats.clone(),
+                profiles, levels, maxInstances);
+    }
+
+    // null if the file was written on another system build
+    static CodecCatalog read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) return null;
+            if (!in.readUTF().equals(fingerprint())) return null;
+            CodecCatalog catalog = new CodecCatalog();
+            int count = in.readInt();
+            if (count < 0) throw new IOException("bad codec count " + count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                String mime = in.readUTF();
+                boolean encoder = in.readBoolean();
+                int[] colorFormats = readInts(in);
+                int[] profiles = readInts(in);
+                int[] levels = readInts(in);
+                if (levels.length != profiles.length) throw new IOException("bad profile levels of " + name);
+                catalog.entries.add(new Entry(name, mime, encoder, colorFormats, profiles, levels, in.readInt()));
+            }
+            return catalog;
+        } finally {
+            in.close();
+        }
+    }
+
+    // written aside and renamed, a reader never sees half a catalog
+    void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeUTF(fingerprint());
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.name);
+                out.writeUTF(entry.mime);
+                out.writeBoolean(entry.encoder);
+                writeInts(out, entry.colorFormats);
+                writeInts(out, entry.profiles);
+                writeInts(out, entry.levels);
+                out.writeInt(entry.maxInstances);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("can't rename " + temp + " to " + file);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) throw new IOException("bad array length " + count);
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static String fingerprint() {
+        return Build.FINGERPRINT != null ? Build.FINGERPRINT : "";
+    }
+
+    // the codec to use for mime: the first hardware one, else the first one, else null
+    Entry encoder(String mime) {
+        return choose(mime, true);
+    }
+
+    Entry decoder(String mime) {
+        return choose(mime, false);
+    }
+
+    private Entry choose(String mime, boolean encoder) {
+        Entry fallback = null;
+        for (Entry entry : entries) {
+            if (entry.encoder != encoder || !entry.mime.equalsIgnoreCase(mime)) continue;
+            if (!entry.isSoftware()) return entry;
+            if (fallback == null) fallback = entry;
+        }
+        return fallback;
+    }
+
+    List<Entry> entries() {
+        return new ArrayList<>(entries);
+    }
+
+    // whether load() found it in the cache file rather than probing
+    boolean isFromCache() {
+        return fromCache;
+    }
+
+    long loadNs() {
+        return loadNs;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "CodecCatalog{%d codecs, %s in %.1f ms}",
+                entries.size(), fromCache ? "cached" : "probed", loadNs / 1e6));
+        for (Entry entry : entries) {
+            sb.append("\n  ").append(entry);
+        }
+        return sb.toString();
+    }
+}
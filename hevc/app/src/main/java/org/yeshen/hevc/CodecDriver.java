@@ -0,0 +1,65 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Runs a Codec for a pipeline: input slots are pulled by the caller with dequeueInput,
+// encoded or decoded output is pushed to the Callback on the driver's own thread.
+// See CodecDrivers for how an implementation is picked.
+interface CodecDriver {
+
+    // how the workers get their codec, so they can be run over a FakeCodec off-device
+    interface Factory {
+        CodecDriver create(String name) throws IOException;
+    }
+
+    interface Callback {
+        // buffer is positioned on the sample (null for surface output) and info is only
+        // valid during the call; the index must be handed back through releaseOutput
+        void onOutputBuffer(int index, ByteBuffer buffer, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+    }
+
+    void configure(MediaFormat format, Surface surface, int flags);
+
+    // only between configure and start
+    Surface createInputSurface();
+
+    void start(Callback callback);
+
+    // index of a free input buffer, or -1 if none became free within timeoutUs
+    int dequeueInput(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInput(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    void releaseOutput(int index, boolean render);
+
+    void releaseOutput(int index, long renderTimestampNs);
+
+    void signalEndOfInputStream();
+
+    // drops queued input and undelivered output, e.g. for a seek. Output delivered before
+    // may still be released until flush is called, its indices are invalid afterwards.
+    // Not from the Callback; no output of earlier input is delivered once this returns.
+    void flush();
+
+    // stops and releases the codec, no callback is delivered afterwards
+    void release();
+
+    Codec codec();
+}
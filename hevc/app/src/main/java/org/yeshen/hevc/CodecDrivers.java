@@ -0,0 +1,47 @@
+package org.yeshen.hevc;
+
+import android.os.Build;
+
+import java.io.IOException;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+final class CodecDrivers {
+
+    private CodecDrivers() {
+    }
+
+    static CodecDriver create(Codec.Factory factory, String name) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new AsyncCodecDriver(factory, name);
+        }
+        return new PollingCodecDriver(factory.create(), name);
+    }
+
+    // for codecs that do not need a looper, e.g. FakeCodec on a plain JVM
+    static CodecDriver polling(Codec codec, String name) {
+        return new PollingCodecDriver(codec, name);
+    }
+
+    static CodecDriver.Factory factory(final Codec.Factory codecs) {
+        return new CodecDriver.Factory() {
+            @Override
+            public CodecDriver create(String name) throws IOException {
+                return CodecDrivers.create(codecs, name);
+            }
+        };
+    }
+
+    static CodecDriver.Factory pollingFactory(final Codec.Factory codecs) {
+        return new CodecDriver.Factory() {
+            @Override
+            public CodecDriver create(String name) throws IOException {
+                return polling(codecs.create(), name);
+            }
+        };
+    }
+}
@@ -0,0 +1,163 @@
+package org.yeshen.hevc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Gets the codecs ready before the pipeline asks for them, on a thread of its own instead
+// of the UI thread: loads the CodecCatalog, then creates one encoder and one decoder.
+// encoders() and decoders() hand the warm driver to the first create(), waiting for it
+// if warming is still under way, and create cold ones after that or if warming failed.
+// Configuring stays with the caller, only it knows the format.
+class CodecPrewarmer {
+
+    private final File catalogFile;
+    private final Slot encoder;
+    private final Slot decoder;
+    private final Thread thread;
+    private volatile CodecCatalog catalog;
+    private volatile long warmupNs;
+
+    // a driver created ahead, handed out once
+    private static final class Slot implements CodecDriver.Factory {
+        final String name;
+        final CodecDriver.Factory codecs;
+        final CountDownLatch ready = new CountDownLatch(1);
+        CodecDriver driver;
+        boolean taken;
+        boolean released;
+        volatile long createNs;
+        volatile long handedOut;
+
+        Slot(String name, CodecDriver.Factory codecs) {
+            this.name = name;
+            this.codecs = codecs;
+        }
+
+        void warm() {
+            long startNs = System.nanoTime();
+            try {
+                CodecDriver created = codecs.create(name);
+                synchronized (this) {
+                    if (released) {
+                        // released before it was ready
+                        created.release();
+                    } else {
+                        driver = created;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                createNs = System.nanoTime() - startNs;
+                ready.countDown();
+            }
+        }
+
+        @Override
+        public CodecDriver create(String name) throws IOException {
+            synchronized (this) {
+                boolean first = !taken;
+                taken = true;
+                if (!first) return codecs.create(name);
+            }
+            try {
+                ready.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while warming " + this.name, e);
+            }
+            synchronized (this) {
+                CodecDriver warm = driver;
+                driver = null;
+                if (warm == null) return codecs.create(name);
+                handedOut++;
+                return warm;
+            }
+        }
+
+        // the driver if nobody took it
+        void release() {
+            CodecDriver unused;
+            synchronized (this) {
+                taken = true;
+                released = true;
+                unused = driver;
+                driver = null;
+            }
+            if (unused != null) unused.release();
+        }
+    }
+
+    CodecPrewarmer(File catalogFile) {
+        this(catalogFile, CodecDrivers.factory(MediaCodecAdapter.encoderFactory(EncoderConfig.MIME)),
+                CodecDrivers.factory(MediaCodecAdapter.decoderFactory(EncoderConfig.MIME)));
+    }
+
+    // the catalog is cached in catalogFile; encoders and decoders e.g. over a FakeCodec to run off-device
+    CodecPrewarmer(File catalogFile, CodecDriver.Factory encoders, CodecDriver.Factory decoders) {
+        this.catalogFile = catalogFile;
+        this.encoder = new Slot("prewarmed-encoder", encoders);
+        this.decoder = new Slot("prewarmed-decoder", decoders);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warm();
+            }
+        }, "codec-prewarm");
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    private void warm() {
+        long startNs = System.nanoTime();
+        // first, so that the codecs below are already created by name
+        catalog = CodecCatalog.load(catalogFile);
+        encoder.warm();
+        decoder.warm();
+        warmupNs = System.nanoTime() - startNs;
+    }
+
+    CodecDriver.Factory encoders() {
+        return encoder;
+    }
+
+    CodecDriver.Factory decoders() {
+        return decoder;
+    }
+
+    // null until the catalog is loaded
+    CodecCatalog catalog() {
+        return catalog;
+    }
+
+    // releases the codecs nobody took
+    void release() {
+        encoder.release();
+        decoder.release();
+    }
+
+    // catalog and both codecs, 0 until done
+    long warmupNs() {
+        return warmupNs;
+    }
+
+    @Override
+    public String toString() {
+        CodecCatalog loaded = catalog;
+        return String.format(Locale.US, "CodecPrewarmer{catalog %s, encoder %.1f ms%s, decoder %.1f ms%s, total %.1f ms}",
+                loaded == null ? "pending" : (loaded.isFromCache() ? "cached " : "probed ")
+                        + String.format(Locale.US, "%.1f ms", loaded.loadNs() / 1e6),
+                encoder.createNs / 1e6, encoder.handedOut > 0 ? " (used)" : "",
+                decoder.createNs / 1e6, decoder.handedOut > 0 ? " (used)" : "", warmupNs / 1e6);
+    }
+}
@@ -0,0 +1,44 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.os.Bundle;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// RateControl through MediaCodec.setParameters, which needs KITKAT; below that
+// the bitrate stays at what the codec was configured with.
+class CodecRateControl implements RateControl {
+
+    private final Codec codec;
+    private volatile int bitrate;
+
+    CodecRateControl(Codec codec, int configuredBitrate) {
+        this.codec = codec;
+        this.bitrate = configuredBitrate;
+    }
+
+    @Override
+    public void setBitrate(int bitsPerSecond) {
+        if (bitsPerSecond <= 0) throw new IllegalArgumentException("bad bitrate " + bitsPerSecond);
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitsPerSecond);
+        codec.setParameters(params);
+        bitrate = bitsPerSecond;
+    }
+
+    @Override
+    public int bitrate() {
+        return bitrate;
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        codec.setParameters(params);
+    }
+}
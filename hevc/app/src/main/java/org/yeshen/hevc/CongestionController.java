@@ -0,0 +1,104 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// AIMD bitrate control from what the encoder side can observe: the bitrate actually
+// coming out of the codec, the frames backed up in front of or inside it, and how far
+// the consumer of the encoded frames lags behind. Time only enters through onTick's
+// nowMs, so the same observations always give the same decisions (see
+// RateControlSimulator).
+class CongestionController {
+
+    // congested when more frames than this are waiting ...
+    int backlogHighFrames = 3;
+    // ... or the consumer lags by more than this
+    long lagHighMs = 150;
+    // the consumer has most likely dropped data past this lag, resync with an IDR once clear
+    long resyncLagMs = 1000;
+    // ticks in a row that must look congested, so a single IDR burst does not count
+    int congestedTicks = 2;
+    float decreaseFactor = 0.7f;
+    // fraction of maxBps added per increase
+    float increaseStep = 0.05f;
+    // no increase for this long after a decrease
+    long holdMs = 2000;
+    // encoders dislike frequent changes
+    long changeIntervalMs = 500;
+    // only probe upwards if the encoder actually spends this share of the target
+    float utilizationToIncrease = 0.8f;
+
+    private final RateControl control;
+    private final int minBps;
+    private final int maxBps;
+    private int targetBps;
+    private long lastChangeMs = Long.MIN_VALUE / 2;
+    private long lastDecreaseMs = Long.MIN_VALUE / 2;
+    private boolean resyncPending;
+    private int congestedRun;
+
+    private long decreases;
+    private long increases;
+    private long syncRequests;
+
+    CongestionController(RateControl control, int minBps, int maxBps) {
+        if (minBps <= 0 || maxBps < minBps) throw new IllegalArgumentException("bad range " + minBps + ".." + maxBps);
+        this.control = control;
+        this.minBps = minBps;
+        this.maxBps = maxBps;
+        this.targetBps = Math.max(minBps, Math.min(maxBps, control.bitrate()));
+    }
+
+    // throughputBps is the encoded bitrate since the previous tick
+    void onTick(long nowMs, long throughputBps, int backlogFrames, long consumerLagMs) {
+        boolean congested = backlogFrames > backlogHighFrames || consumerLagMs > lagHighMs;
+        congestedRun = congested ? congestedRun + 1 : 0;
+        if (consumerLagMs > resyncLagMs) resyncPending = true;
+        int target = targetBps;
+        if (congested) {
+            if (congestedRun >= congestedTicks && nowMs - lastChangeMs >= changeIntervalMs) {
+                target = Math.max(minBps, (int) (targetBps * decreaseFactor));
+                lastDecreaseMs = nowMs;
+            }
+        } else {
+            if (resyncPending && backlogFrames == 0 && consumerLagMs < lagHighMs / 2) {
+                resyncPending = false;
+                syncRequests++;
+                control.requestSyncFrame();
+            }
+            if (nowMs - lastDecreaseMs >= holdMs && nowMs - lastChangeMs >= changeIntervalMs
+                    && throughputBps >= targetBps * utilizationToIncrease) {
+                target = Math.min(maxBps, targetBps + (int) (maxBps * increaseStep));
+            }
+        }
+        if (target != targetBps) {
+            if (target < targetBps) {
+                decreases++;
+            } else {
+                increases++;
+            }
+            targetBps = target;
+            lastChangeMs = nowMs;
+            control.setBitrate(target);
+        }
+    }
+
+    int targetBps() {
+        return targetBps;
+    }
+
+    long decreaseCount() {
+        return decreases;
+    }
+
+    long increaseCount() {
+        return increases;
+    }
+
+    long syncRequestCount() {
+        return syncRequests;
+    }
+}
@@ -0,0 +1,57 @@
+package org.yeshen.hevc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// A counter striped over cache lines by thread, like LongAdder (API 24): threads
+// that count the same event concurrently, e.g. the camera callback and the encoder,
+// mostly land on different cells and do not bounce a shared line. Reads sum the cells.
+class Counter {
+
+    // 8 longs = 64 bytes between cells
+    private static final int PADDING = 8;
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (stripes < cpus) stripes <<= 1;
+        STRIPES = stripes;
+    }
+
+    final String name;
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.addAndGet(stripe * PADDING, delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < STRIPES; i++) cells.set(i * PADDING, 0);
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + sum();
+    }
+}
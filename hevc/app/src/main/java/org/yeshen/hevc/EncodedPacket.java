@@ -0,0 +1,180 @@
+package org.yeshen.hevc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// One encoded access unit shared by several consumers without copying it. A keyframe
+// carries the codec's parameter sets as a separate header buffer; consumers write
+// header and data with one gathering write instead of concatenating them. The packet
+// carries the capture time of the frame it was encoded from, for end to end latency.
+// The packet starts with one reference held by whoever created it. A consumer that
+// keeps the packet past the call it got it in must retain() it and release() it
+// later; when the last reference goes the recycler gets it back (the codec output
+// buffer is released, or the pooled buffer returns to its EncodedPacketPool).
+class EncodedPacket {
+
+    interface Recycler {
+        void recycle(EncodedPacket packet);
+    }
+
+    // MediaCodec.BUFFER_FLAG_KEY_FRAME, spelled out so packets can be used off-device (see bench)
+    static final int FLAG_KEY_FRAME = 1;
+
+    // the header of packets without one in buffers()
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final AtomicInteger references = new AtomicInteger();
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private ByteBuffer header;
+    private ByteBuffer data;
+    // read-only views of the buffers reset() got last and a second one for buffers(), kept
+    // as long as reset() gets the same buffers (a pool's storage, a codec's output buffer)
+    private ByteBuffer headerSource;
+    private ByteBuffer headerView;
+    private ByteBuffer headerGather;
+    private ByteBuffer dataSource;
+    private ByteBuffer dataView;
+    private ByteBuffer dataGather;
+    private long presentationTimeUs;
+    private long captureTimeNs;
+    private int flags;
+    private Recycler recycler;
+    // a buffer of this packet's own, kept across reuse by a pool
+    ByteBuffer storage;
+
+    // data is [position, limit) of a buffer owned by whoever passes the recycler
+    static EncodedPacket wrap(ByteBuffer header, ByteBuffer data, long presentationTimeUs, int flags,
+                              Recycler recycler) {
+        EncodedPacket packet = new EncodedPacket();
+        packet.reset(header, data, presentationTimeUs, 0, flags, recycler);
+        return packet;
+    }
+
+    void reset(ByteBuffer header, ByteBuffer data, long presentationTimeUs, int flags, Recycler recycler) {
+        reset(header, data, presentationTimeUs, 0, flags, recycler);
+    }
+
+    // captureTimeNs on the System.nanoTime clock, 0 if unknown
+    void reset(ByteBuffer header, ByteBuffer data, long presentationTimeUs, long captureTimeNs, int flags,
+               Recycler recycler) {
+        if (header == null) {
+            this.header = null;
+        } else {
+            if (header != headerSource) {
+                headerSource = header;
+                headerView = header.asReadOnlyBuffer();
+                headerGather = headerView.duplicate();
+            }
+            this.header = bound(headerView, header);
+        }
+        if (data != dataSource) {
+            dataSource = data;
+            dataView = data.asReadOnlyBuffer();
+            dataGather = dataView.duplicate();
+        }
+        this.data = bound(dataView, data);
+        this.presentationTimeUs = presentationTimeUs;
+        this.captureTimeNs = captureTimeNs;
+        this.flags = flags;
+        this.recycler = recycler;
+        references.set(1);
+    }
+
+    // view gets the position and limit of source, both index the same memory
+    private static ByteBuffer bound(ByteBuffer view, ByteBuffer source) {
+        view.limit(source.limit());
+        view.position(source.position());
+        return view;
+    }
+
+    EncodedPacket retain() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) throw new IllegalStateException("packet already released");
+            if (references.compareAndSet(count, count + 1)) return this;
+        }
+    }
+
+    void release() {
+        int count = references.decrementAndGet();
+        if (count < 0) throw new IllegalStateException("packet released too often");
+        if (count == 0) {
+            header = null;
+            data = null;
+            Recycler target = recycler;
+            recycler = null;
+            if (target != null) target.recycle(this);
+        }
+    }
+
+    int references() {
+        return references.get();
+    }
+
+    long presentationTimeUs() {
+        return presentationTimeUs;
+    }
+
+    // System.nanoTime() when the frame was captured, 0 if unknown
+    long captureTimeNs() {
+        return captureTimeNs;
+    }
+
+    int flags() {
+        return flags;
+    }
+
+    boolean isKeyframe() {
+        return (flags & FLAG_KEY_FRAME) != 0;
+    }
+
+    // header plus data
+    int size() {
+        return (header == null ? 0 : header.remaining()) + data.remaining();
+    }
+
+    // null unless this is a keyframe with parameter sets in front
+    ByteBuffer header() {
+        return header == null ? null : header.duplicate();
+    }
+
+    ByteBuffer data() {
+        return data.duplicate();
+    }
+
+    // header and data for a gathering write; the array is reused, one caller at a time
+    ByteBuffer[] buffers() {
+        gather[0] = header == null ? EMPTY : bound(headerGather, header);
+        gather[1] = bound(dataGather, data);
+        return gather;
+    }
+
+    void writeTo(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] buffers = buffers();
+        long remaining = size();
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    // for consumers that need the access unit as one contiguous array
+    int copyTo(byte[] target, int offset) {
+        int position = offset;
+        if (header != null) {
+            int length = header.remaining();
+            header.duplicate().get(target, position, length);
+            position += length;
+        }
+        int length = data.remaining();
+        data.duplicate().get(target, position, length);
+        return position + length - offset;
+    }
+}
@@ -0,0 +1,96 @@
+package org.yeshen.hevc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Packets backed by reusable direct buffers, for consumers that hold on to encoded
+// frames (queues, network senders) so the codec gets its output buffers back at once.
+// A released packet keeps its buffer and waits in the free list; buffers only grow.
+class EncodedPacketPool implements EncodedPacket.Recycler {
+
+    static final int DEFAULT_DEPTH = 16;
+
+    private final int depth;
+    private final int initialCapacity;
+    private final ArrayBlockingQueue<EncodedPacket> free;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    EncodedPacketPool(int initialCapacity, int depth) {
+        if (depth <= 0) throw new IllegalArgumentException("depth must be positive: " + depth);
+        this.depth = depth;
+        this.initialCapacity = initialCapacity;
+        this.free = new ArrayBlockingQueue<>(depth);
+    }
+
+    // one copy of data into a pooled buffer; header is shared, not copied, it must not change
+    EncodedPacket copyOf(ByteBuffer header, ByteBuffer data, long presentationTimeUs, int flags) {
+        return copyOf(header, data, presentationTimeUs, 0, flags);
+    }
+
+    EncodedPacket copyOf(ByteBuffer header, ByteBuffer data, long presentationTimeUs, long captureTimeNs, int flags) {
+        EncodedPacket packet = free.poll();
+        if (packet == null) {
+            packet = new EncodedPacket();
+            allocated.incrementAndGet();
+        } else {
+            reused.incrementAndGet();
+        }
+        int size = data.remaining();
+        ByteBuffer storage = packet.storage;
+        if (storage == null || storage.capacity() < size) {
+            storage = ByteBuffer.allocateDirect(Math.max(initialCapacity, size + size / 4));
+            packet.storage = storage;
+        }
+        storage.clear();
+        storage.put(data.duplicate());
+        storage.flip();
+        outstanding.incrementAndGet();
+        packet.reset(header, storage, presentationTimeUs, captureTimeNs, flags, this);
+        return packet;
+    }
+
+    // keeps a packet that is only valid during a call, e.g. one wrapping a codec buffer
+    EncodedPacket copyOf(EncodedPacket packet) {
+        return copyOf(packet.header(), packet.data(), packet.presentationTimeUs(), packet.captureTimeNs(),
+                packet.flags());
+    }
+
+    @Override
+    public void recycle(EncodedPacket packet) {
+        outstanding.decrementAndGet();
+        // past depth the packet and its buffer are left to the GC
+        free.offer(packet);
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    int outstanding() {
+        return outstanding.get();
+    }
+
+    long allocationCount() {
+        return allocated.get();
+    }
+
+    long reuseCount() {
+        return reused.get();
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedPacketPool{depth=" + depth + ", outstanding=" + outstanding.get()
+                + ", allocated=" + allocated.get() + ", reused=" + reused.get() + "}";
+    }
+}
@@ -0,0 +1,58 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// What one encoder instance produces. Input is always NV21 of width x height,
+// converted to COLOR_FormatYUV420SemiPlanar on the way into the codec.
+final class EncoderConfig {
+
+    static final String MIME = "video/hevc";
+
+    final String name;
+    final int width;
+    final int height;
+    final int bitRate;
+    final int frameRate;
+    // seconds between IDR frames
+    final int iFrameInterval;
+
+    EncoderConfig(String name, int width, int height, int bitRate, int frameRate, int iFrameInterval) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("bad frame size " + width + "x" + height);
+        }
+        if (bitRate <= 0 || frameRate <= 0) {
+            throw new IllegalArgumentException("bad rate " + bitRate + "bps@" + frameRate + "fps");
+        }
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.bitRate = bitRate;
+        this.frameRate = frameRate;
+        this.iFrameInterval = iFrameInterval;
+    }
+
+    MediaFormat toFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        return format;
+    }
+
+    int frameSize() {
+        return YuvFormat.frameSize(width, height);
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + width + "x" + height + " " + bitRate / 1000 + "kbps@" + frameRate + "fps gop " + iFrameInterval + "s";
+    }
+}
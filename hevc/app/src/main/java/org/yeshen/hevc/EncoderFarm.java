@@ -0,0 +1,175 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Runs any number of EncoderSessions, each over its own CodecDriver. Encoded output is
+// delivered by the driver's callbacks, raw frames are fed by one farm thread per session
+// that waits on its source and on the codec's free inputs; nothing polls on a timer.
+// open() creates, configures and starts the codec on the calling thread, which must not
+// be the UI thread. Sessions beyond the codec's concurrent instance limit are refused;
+// when the limit is unknown every open is tried and a codec that can't be created fails it.
+class EncoderFarm {
+
+    // getMaxSupportedInstances() needs MARSHMALLOW, below it there is no limit to go by
+    static final int UNKNOWN_MAX_INSTANCES = -1;
+
+    private final CodecDriver.Factory drivers;
+    private final int maxInstances;
+    private final ExecutorService executor;
+    private final List<EncoderSession> sessions = new ArrayList<>();
+    // sessions between the instance check and being added, their codecs count as well
+    private int opening;
+
+    EncoderFarm() {
+        this(CodecDrivers.factory(MediaCodecAdapter.encoderFactory(EncoderConfig.MIME)), maxInstances(EncoderConfig.MIME));
+    }
+
+    EncoderFarm(CodecDriver.Factory drivers, int maxInstances) {
+        this.drivers = drivers;
+        this.maxInstances = maxInstances;
+        final AtomicInteger count = new AtomicInteger();
+        // grows with the sessions, each feed() holds its thread for as long as the session runs
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "encoder-farm-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    // the concurrent instance limit of the encoder for mime, from the CodecCatalog if one is loaded
+    static int maxInstances(String mime) {
+        CodecCatalog catalog = CodecCatalog.shared();
+        if (catalog != null) {
+            CodecCatalog.Entry entry = catalog.encoder(mime);
+            return entry != null ? entry.maxInstances : 0;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return UNKNOWN_MAX_INSTANCES;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder()) continue;
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    return info.getCapabilitiesForType(type).getMaxSupportedInstances();
+                }
+            }
+        }
+        return 0;
+    }
+
+    int maxInstances() {
+        return maxInstances;
+    }
+
+    // the codec is set up outside the farm's lock, other sessions go on meanwhile
+    EncoderSession open(EncoderConfig config, FrameSource source, EncoderSession.Sink sink) throws IOException {
+        synchronized (sessions) {
+            if (maxInstances != UNKNOWN_MAX_INSTANCES && sessions.size() + opening >= maxInstances) {
+                throw new IllegalStateException("codec instance limit " + maxInstances + " reached, can't open " + config);
+            }
+            opening++;
+        }
+        final EncoderSession session;
+        try {
+            session = create(config, source, sink);
+        } finally {
+            synchronized (sessions) {
+                opening--;
+            }
+        }
+        synchronized (sessions) {
+            sessions.add(session);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.feed();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    } finally {
+                        // closed already, or the codec failed
+                        close(session);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            close(session);
+            throw new IOException("farm is shut down, can't open " + config, e);
+        }
+        return session;
+    }
+
+    // e.g. when the device has fewer instances than it reports, or reports none
+    private EncoderSession create(EncoderConfig config, FrameSource source, EncoderSession.Sink sink)
+            throws IOException {
+        CodecDriver driver;
+        try {
+            driver = drivers.create("encoder-" + config.name);
+        } catch (RuntimeException e) {
+            throw new IOException("can't create an encoder for " + config, e);
+        }
+        try {
+            driver.configure(config.toFormat(), null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            EncoderSession session = new EncoderSession(config, driver, source, sink);
+            session.start();
+            return session;
+        } catch (RuntimeException e) {
+            driver.release();
+            throw new IOException("can't start an encoder for " + config, e);
+        }
+    }
+
+    void close(EncoderSession session) {
+        synchronized (sessions) {
+            sessions.remove(session);
+        }
+        session.close();
+    }
+
+    List<EncoderSession> sessions() {
+        synchronized (sessions) {
+            return new ArrayList<>(sessions);
+        }
+    }
+
+    // one line per session with fps and queue depths
+    String report() {
+        StringBuilder report = new StringBuilder();
+        for (EncoderSession session : sessions()) {
+            report.append(session).append('\n');
+        }
+        return report.toString();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+        for (EncoderSession session : sessions()) {
+            close(session);
+        }
+        try {
+            executor.awaitTermination(2 * EncoderSession.IDLE_WAIT_US, TimeUnit.MICROSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// One encoder owned by an EncoderFarm. Encoded output is pushed to onOutputBuffer on the
+// driver's thread; feed() hands the codec raw frames on a farm thread, waiting on the
+// source and on the codec instead of polling either.
+class EncoderSession implements CodecDriver.Callback {
+
+    interface Sink {
+        // buffer is valid during the call only
+        void onEncoded(EncoderSession session, ByteBuffer buffer, MediaCodec.BufferInfo info);
+    }
+
+    // how long feed() parks on the source or the codec before re-checking closed
+    static final long IDLE_WAIT_US = 100000;
+    private static final long FPS_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+
+    final EncoderConfig config;
+    private final CodecDriver driver;
+    private final FrameSource source;
+    private final Sink sink;
+    private final RateControl rateControl;
+    private volatile boolean closed;
+    private volatile boolean failed;
+    // the farm thread inside feed(), which close() waits for
+    private Thread feeder;
+    private int syncIntervalFrames;
+    private Bundle syncRequest;
+
+    private volatile long framesIn;
+    private volatile long framesOut;
+    private volatile float fps;
+    // only touched by the output callbacks, which arrive on one thread
+    private long windowStartNs;
+    private long windowFrames;
+
+    // driver is configured, start() hands it this session as its callback
+    EncoderSession(EncoderConfig config, CodecDriver driver, FrameSource source, Sink sink) {
+        this.config = config;
+        this.driver = driver;
+        this.source = source;
+        this.sink = sink;
+        this.rateControl = new CodecRateControl(driver.codec(), config.bitRate);
+        this.windowStartNs = System.nanoTime();
+    }
+
+    void start() {
+        driver.start(this);
+    }
+
+    Codec codec() {
+        return driver.codec();
+    }
+
+    RateControl rateControl() {
+        return rateControl;
+    }
+
+    // forces an IDR on every intervalFrames-th input frame, so that sessions fed
+    // the same frames switch GOPs on the same picture
+    synchronized void alignSyncFrames(int intervalFrames) {
+        syncIntervalFrames = intervalFrames;
+        if (syncRequest == null) {
+            syncRequest = new Bundle();
+            syncRequest.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        }
+    }
+
+    // converts frames into the codec until the session is closed or the codec failed;
+    // a frame waits here for a free input buffer, the codec is only touched under the lock
+    void feed() {
+        synchronized (this) {
+            if (closed) return;
+            feeder = Thread.currentThread();
+        }
+        byte[] frame = null;
+        try {
+            while (!closed && !failed) {
+                if (frame == null) frame = source.poll(IDLE_WAIT_US);
+                if (frame == null) continue;
+                int index = driver.dequeueInput(IDLE_WAIT_US);
+                if (index < 0) continue;
+                synchronized (this) {
+                    if (closed) break;
+                    if (syncIntervalFrames > 0 && framesIn % syncIntervalFrames == 0) {
+                        driver.codec().setParameters(syncRequest);
+                    }
+                    ByteBuffer input = driver.getInputBuffer(index);
+                    int size = YuvConverter.convert(ByteBuffer.wrap(frame), YuvFormat.NV21, input, YuvFormat.NV12,
+                            config.width, config.height);
+                    driver.queueInput(index, 0, size, framesIn * 1000000 / config.frameRate, 0);
+                    framesIn++;
+                }
+                source.recycle(frame);
+                frame = null;
+            }
+        } finally {
+            if (frame != null) source.recycle(frame);
+            synchronized (this) {
+                feeder = null;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void onOutputBuffer(int index, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        try {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) countOutput();
+            sink.onEncoded(this, buffer, info);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            driver.releaseOutput(index, false);
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+    }
+
+    // feed() gives up, and the farm closes the session once it has
+    @Override
+    public void onError(Exception e) {
+        e.printStackTrace();
+        failed = true;
+    }
+
+    private void countOutput() {
+        framesOut++;
+        windowFrames++;
+        long now = System.nanoTime();
+        long elapsed = now - windowStartNs;
+        if (elapsed >= FPS_WINDOW_NS) {
+            fps = windowFrames * 1e9f / elapsed;
+            windowStartNs = now;
+            windowFrames = 0;
+        }
+    }
+
+    // the codec goes only once feed() let go of it, which takes up to IDLE_WAIT_US
+    // while it is parked in dequeueInput
+    void close() {
+        boolean interrupted = false;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            while (feeder != null && feeder != Thread.currentThread()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        driver.release();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    boolean hasFailed() {
+        return failed;
+    }
+
+    // encoded frames per second over the last full second
+    float fps() {
+        return fps;
+    }
+
+    long framesIn() {
+        return framesIn;
+    }
+
+    long framesOut() {
+        return framesOut;
+    }
+
+    // raw frames waiting in the source
+    int queueDepth() {
+        return source.pending();
+    }
+
+    // frames inside the codec
+    long inFlight() {
+        return framesIn - framesOut;
+    }
+
+    @Override
+    public String toString() {
+        return config.name + " fps=" + fps + " queue=" + queueDepth() + " inFlight=" + inFlight() + " out=" + framesOut;
+    }
+}
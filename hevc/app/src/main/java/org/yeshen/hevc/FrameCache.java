@@ -0,0 +1,307 @@
+package org.yeshen.hevc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Decoded frames keyed by file and presentation time, in direct buffers outside the
+// Java heap. The frames held stay within budgetBytes, the least recently used go first.
+// Frames are reference counted like EncodedPacket: get() hands out a retained frame
+// that the caller releases, and an evicted frame's buffer is only reused once the last
+// holder released it; up to MAX_SPARE such buffers are kept for the next put().
+// moveTo() follows a scrubbing position, so a filler knows which way to prefetch.
+// Pure Java, nothing here touches a codec.
+class FrameCache {
+
+    static final int MAX_SPARE = 4;
+
+    static final class Frame {
+        final String file;
+        final long presentationTimeUs;
+        final int width;
+        final int height;
+        // bytes from one luma row to the next and luma rows before the chroma, as the
+        // decoder lays out its output; width and height for tightly packed frames
+        final int stride;
+        final int sliceHeight;
+        // MediaCodecInfo.CodecCapabilities.COLOR_Format*, 0 if unknown
+        final int colorFormat;
+        private final ByteBuffer buffer;
+        private final FrameCache cache;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Frame(FrameCache cache, String file, long presentationTimeUs, int width, int height, int stride,
+                      int sliceHeight, int colorFormat, ByteBuffer buffer) {
+            this.cache = cache;
+            this.file = file;
+            this.presentationTimeUs = presentationTimeUs;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.sliceHeight = sliceHeight;
+            this.colorFormat = colorFormat;
+            this.buffer = buffer;
+        }
+
+        // the YUV bytes, read only
+        ByteBuffer data() {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        int size() {
+            return buffer.limit();
+        }
+
+        Frame retain() {
+            while (true) {
+                int count = references.get();
+                if (count <= 0) throw new IllegalStateException("frame already released");
+                if (references.compareAndSet(count, count + 1)) return this;
+            }
+        }
+
+        void release() {
+            int count = references.decrementAndGet();
+            if (count < 0) throw new IllegalStateException("frame released too often");
+            if (count == 0) cache.recycle(buffer);
+        }
+    }
+
+    private final long budgetBytes;
+    // every cached frame in access order, eldest first
+    private final LinkedHashMap<Frame, Frame> lru = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, TreeMap<Long, Frame>> files = new HashMap<>();
+    private final ArrayDeque<ByteBuffer> spare = new ArrayDeque<>();
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long inserts;
+
+    // scrubbing position and the way it last moved, +1, -1 or 0 before it moved
+    private long positionUs = -1;
+    private int direction;
+
+    FrameCache(long budgetBytes) {
+        if (budgetBytes <= 0) throw new IllegalArgumentException("bad budget " + budgetBytes);
+        this.budgetBytes = budgetBytes;
+    }
+
+    // a tightly packed frame
+    boolean put(String file, long presentationTimeUs, ByteBuffer data, int width, int height, int colorFormat) {
+        return put(file, presentationTimeUs, data, width, height, width, height, colorFormat);
+    }
+
+    // copies [position, limit) of data in; false if it is larger than the whole budget.
+    // A frame already cached at that time is kept as it is.
+    boolean put(String file, long presentationTimeUs, ByteBuffer data, int width, int height, int stride,
+                int sliceHeight, int colorFormat) {
+        if (stride < width || sliceHeight < height) {
+            throw new IllegalArgumentException("bad layout " + stride + "x" + sliceHeight + " for " + width + "x" + height);
+        }
+        int size = data.remaining();
+        if (size > budgetBytes) return false;
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (find(file, presentationTimeUs) != null) return true;
+            buffer = takeSpare(size);
+        }
+        // the copy happens outside the lock, lookups go on meanwhile
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(size);
+        buffer.clear();
+        buffer.put(data.duplicate());
+        buffer.flip();
+        synchronized (this) {
+            if (find(file, presentationTimeUs) != null) {
+                recycle(buffer);
+                return true;
+            }
+            while (bytes + buffer.capacity() > budgetBytes && !lru.isEmpty()) {
+                evictEldest();
+            }
+            Frame frame = new Frame(this, file, presentationTimeUs, width, height, stride, sliceHeight, colorFormat,
+                    buffer);
+            lru.put(frame, frame);
+            TreeMap<Long, Frame> frames = files.get(file);
+            if (frames == null) {
+                frames = new TreeMap<>();
+                files.put(file, frames);
+            }
+            frames.put(presentationTimeUs, frame);
+            bytes += buffer.capacity();
+            inserts++;
+        }
+        return true;
+    }
+
+    // the frame presented at presentationTimeUs, retained, or null
+    Frame get(String file, long presentationTimeUs) {
+        return get(file, presentationTimeUs, 0);
+    }
+
+    // the last frame at or before presentationTimeUs, if it is at most toleranceUs earlier
+    // (e.g. a frame duration, to find the frame shown at an arbitrary scrub position)
+    synchronized Frame get(String file, long presentationTimeUs, long toleranceUs) {
+        TreeMap<Long, Frame> frames = files.get(file);
+        Map.Entry<Long, Frame> entry = frames == null ? null : frames.floorEntry(presentationTimeUs);
+        if (entry == null || entry.getKey() < presentationTimeUs - toleranceUs) {
+            misses++;
+            return null;
+        }
+        hits++;
+        Frame frame = entry.getValue();
+        // touches it in the access order
+        lru.get(frame);
+        return frame.retain();
+    }
+
+    synchronized boolean contains(String file, long presentationTimeUs) {
+        return find(file, presentationTimeUs) != null;
+    }
+
+    // the first time in [fromUs, toUs] where a frame of frameDurationUs is missing, -1 if none is
+    synchronized long firstMissing(String file, long fromUs, long toUs, long frameDurationUs) {
+        TreeMap<Long, Frame> frames = files.get(file);
+        if (frames == null) return fromUs;
+        // the frame shown at fromUs may start a little before it
+        Long first = frames.floorKey(fromUs);
+        long next = first != null && first > fromUs - frameDurationUs ? first + frameDurationUs : fromUs;
+        for (long time : frames.subMap(fromUs, false, toUs, true).keySet()) {
+            // half a frame of slack for rounded timestamps
+            if (time - next > frameDurationUs / 2) return next;
+            next = time + frameDurationUs;
+        }
+        return next <= toUs ? next : -1;
+    }
+
+    // drops every frame of file, e.g. when it is rewritten
+    synchronized void invalidate(String file) {
+        TreeMap<Long, Frame> frames = files.remove(file);
+        if (frames == null) return;
+        for (Frame frame : frames.values()) {
+            lru.remove(frame);
+            bytes -= frame.buffer.capacity();
+            frame.release();
+        }
+    }
+
+    synchronized void clear() {
+        for (Frame frame : lru.keySet()) {
+            frame.release();
+        }
+        lru.clear();
+        files.clear();
+        spare.clear();
+        bytes = 0;
+    }
+
+    // the scrubbing position moved to positionUs; standing still keeps the direction
+    synchronized void moveTo(long positionUs) {
+        if (this.positionUs >= 0 && positionUs != this.positionUs) {
+            direction = positionUs > this.positionUs ? 1 : -1;
+        }
+        this.positionUs = positionUs;
+    }
+
+    synchronized int direction() {
+        return direction;
+    }
+
+    // [from, to] worth decoding next: aheadUs past the position in the direction it moves,
+    // forward while it has not moved yet
+    synchronized long[] prefetchWindow(long aheadUs) {
+        long position = Math.max(0, positionUs);
+        if (direction < 0) return new long[]{Math.max(0, position - aheadUs), position};
+        return new long[]{position, position + aheadUs};
+    }
+
+    // under the lock
+    private Frame find(String file, long presentationTimeUs) {
+        TreeMap<Long, Frame> frames = files.get(file);
+        return frames == null ? null : frames.get(presentationTimeUs);
+    }
+
+    // under the lock
+    private void evictEldest() {
+        Iterator<Frame> eldest = lru.keySet().iterator();
+        Frame frame = eldest.next();
+        eldest.remove();
+        TreeMap<Long, Frame> frames = files.get(frame.file);
+        frames.remove(frame.presentationTimeUs);
+        if (frames.isEmpty()) files.remove(frame.file);
+        bytes -= frame.buffer.capacity();
+        evictions++;
+        frame.release();
+    }
+
+    // under the lock: the smallest spare buffer that fits
+    private ByteBuffer takeSpare(int size) {
+        ByteBuffer best = null;
+        for (ByteBuffer buffer : spare) {
+            if (buffer.capacity() >= size && (best == null || buffer.capacity() < best.capacity())) best = buffer;
+        }
+        if (best != null) spare.remove(best);
+        return best;
+    }
+
+    private synchronized void recycle(ByteBuffer buffer) {
+        if (spare.size() < MAX_SPARE) spare.add(buffer);
+    }
+
+    long budgetBytes() {
+        return budgetBytes;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized int size() {
+        return lru.size();
+    }
+
+    // released buffers waiting for the next put()
+    synchronized int spareCount() {
+        return spare.size();
+    }
+
+    synchronized long hitCount() {
+        return hits;
+    }
+
+    synchronized long missCount() {
+        return misses;
+    }
+
+    synchronized long evictionCount() {
+        return evictions;
+    }
+
+    synchronized long insertCount() {
+        return inserts;
+    }
+
+    synchronized double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "FrameCache{frames=%d, %d/%d KB, hits=%d, misses=%d (%.0f%%), evictions=%d}",
+                lru.size(), bytes / 1024, budgetBytes / 1024, hits, misses, hitRate() * 100, evictions);
+    }
+}
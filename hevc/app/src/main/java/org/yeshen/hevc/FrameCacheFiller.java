@@ -0,0 +1,292 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Keeps a FrameCache filled around a scrubbing position in one file. scrubTo() answers
+// from the cache, and whenever the prefetch window (aheadUs in the scrub direction) is
+// not cached yet, the filler's thread decodes it to buffers: from the keyframe before
+// the window to its end, every frame on the way goes into the cache. Only the latest
+// window is decoded, starting at its first frame not cached yet. A request only cuts the
+// window in progress short if its gap isn't in that window anyway, so a scrub that moves
+// along with the decoding doesn't restart it every step. The decoder is kept across
+// windows and flushed between them.
+class FrameCacheFiller implements Closeable {
+
+    static final long DEFAULT_AHEAD_US = 1000000;
+
+    // raw .h265/.hevc streams carry no timing
+    private static final int ANNEX_B_FRAME_RATE = 30;
+    private static final long TIMEOUT_US = 10000;
+    // samples fed past the window, so that frames reordered behind its end come out too
+    private static final int REORDER_MARGIN = 4;
+    // MediaFormat.KEY_STRIDE and KEY_SLICE_HEIGHT, public from M on but set by decoders before
+    private static final String KEY_STRIDE = "stride";
+    private static final String KEY_SLICE_HEIGHT = "slice-height";
+
+    private final File file;
+    private final String key;
+    private final FrameCache cache;
+    private final CodecDriver.Factory codecs;
+    private final long aheadUs;
+    private final Thread thread;
+    private final Object lock = new Object();
+    // the window to decode next, null when there is none
+    private long[] pending;
+    // the window being decoded
+    private volatile long[] decoding;
+    private volatile boolean running;
+    private volatile long frameDurationUs = 1000000 / ANNEX_B_FRAME_RATE;
+    // presentation time of the last frame, estimated from the keyframe index
+    private volatile long lastFrameUs = Long.MAX_VALUE;
+
+    // filler thread only
+    private CodecDriver decoder;
+    private MediaFormat outputFormat;
+    private volatile CountDownLatch windowDone;
+    private int width;
+    private int height;
+    // 0 until the output format tells, tightly packed then
+    private int stride;
+    private int sliceHeight;
+
+    private volatile long windowsDecoded;
+    private volatile long windowsCut;
+    private volatile long framesDecoded;
+    private volatile long decodeNs;
+
+    FrameCacheFiller(File file, FrameCache cache) {
+        this(file, cache, CodecDrivers.factory(MediaCodecAdapter.decoderFactory(EncoderConfig.MIME)), DEFAULT_AHEAD_US);
+    }
+
+    FrameCacheFiller(File file, FrameCache cache, CodecDriver.Factory codecs, long aheadUs) {
+        this.file = file;
+        this.key = file.getPath();
+        this.cache = cache;
+        this.codecs = codecs;
+        this.aheadUs = aheadUs;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fill();
+            }
+        }, "frame-cache-filler");
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    // from the UI: the frame shown at positionUs, retained (release it), or null while it
+    // is not decoded yet; asks for the window around it if that isn't cached
+    FrameCache.Frame scrubTo(long positionUs) {
+        cache.moveTo(positionUs);
+        long frameUs = frameDurationUs;
+        FrameCache.Frame frame = cache.get(key, positionUs, frameUs - 1);
+        long[] window = cache.prefetchWindow(aheadUs);
+        // past the end nothing would ever fill the window
+        long endUs = Math.min(window[1], lastFrameUs);
+        long missingUs = endUs < window[0] ? -1 : cache.firstMissing(key, window[0], endUs, frameUs);
+        long[] current = decoding;
+        if (missingUs >= 0 && (current == null || missingUs < current[0] || missingUs > current[1])) {
+            synchronized (lock) {
+                if (pending != null || current != null) windowsCut++;
+                pending = new long[]{missingUs, endUs};
+                lock.notifyAll();
+            }
+        }
+        return frame;
+    }
+
+    private void fill() {
+        SampleReader reader = null;
+        try {
+            KeyframeIndex index = KeyframeIndex.load(file, ANNEX_B_FRAME_RATE);
+            if (index.size() >= 2 && index.frame(index.size() - 1) > index.frame(0)) {
+                frameDurationUs = (index.presentationTimeUs(index.size() - 1) - index.presentationTimeUs(0))
+                        / (index.frame(index.size() - 1) - index.frame(0));
+            }
+            if (index.size() > 0) {
+                lastFrameUs = index.presentationTimeUs(0) + (index.frameCount() - 1 - index.frame(0)) * frameDurationUs;
+            }
+            reader = SampleReader.open(file, ANNEX_B_FRAME_RATE);
+            if (reader.csd == null || reader.width <= 0 || reader.height <= 0) {
+                throw new IOException("no HEVC video in " + file);
+            }
+            width = reader.width;
+            height = reader.height;
+            MediaFormat format = MediaFormat.createVideoFormat(EncoderConfig.MIME, width, height);
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(reader.csd));
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, YuvFormat.frameSize(width, height));
+            decoder = codecs.create("frame-cache-decoder");
+            decoder.configure(format, null, 0);
+            decoder.start(output);
+            while (running) {
+                long[] window;
+                synchronized (lock) {
+                    while (running && pending == null) lock.wait();
+                    window = pending;
+                    pending = null;
+                }
+                if (!running) break;
+                long startNs = System.nanoTime();
+                decoding = window;
+                try {
+                    decode(reader, index, window[0], window[1]);
+                } finally {
+                    decoding = null;
+                }
+                decodeNs += System.nanoTime() - startNs;
+                windowsDecoded++;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (decoder != null) decoder.release();
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void decode(SampleReader reader, KeyframeIndex index, long fromUs, long toUs)
+            throws IOException, InterruptedException {
+        int keyframe = Math.max(0, index.floorTime(fromUs));
+        if (keyframe >= index.size()) return;
+        reader.seek(index.offset(keyframe), index.presentationTimeUs(keyframe));
+        windowDone = new CountDownLatch(1);
+        SampleReader.Sample sample = new SampleReader.Sample();
+        int past = 0;
+        while (running && reader.next(sample)) {
+            if (sample.presentationTimeUs > toUs && ++past > REORDER_MARGIN) break;
+            int input = dequeueInput();
+            if (input < 0) return;
+            ByteBuffer buffer = decoder.getInputBuffer(input);
+            buffer.clear();
+            int size = reader.read(sample, buffer);
+            decoder.queueInput(input, 0, size, sample.presentationTimeUs, 0);
+            if (hasPending()) {
+                // overtaken, what came out so far is cached all the same
+                break;
+            }
+        }
+        int input = dequeueInput();
+        if (input < 0) return;
+        decoder.queueInput(input, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        windowDone.await();
+        // ready for the next window, which starts at a keyframe again
+        decoder.flush();
+    }
+
+    private int dequeueInput() {
+        while (running) {
+            int input = decoder.dequeueInput(TIMEOUT_US);
+            if (input >= 0) return input;
+        }
+        return -1;
+    }
+
+    private boolean hasPending() {
+        synchronized (lock) {
+            return pending != null;
+        }
+    }
+
+    private final CodecDriver.Callback output = new CodecDriver.Callback() {
+        @Override
+        public void onOutputBuffer(int index, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            try {
+                if (info.size > 0 && buffer != null) {
+                    MediaFormat format = outputFormat;
+                    int colorFormat = format != null && format.containsKey(MediaFormat.KEY_COLOR_FORMAT)
+                            ? format.getInteger(MediaFormat.KEY_COLOR_FORMAT) : 0;
+                    cache.put(key, info.presentationTimeUs, buffer, width, height, Math.max(width, stride),
+                            Math.max(height, sliceHeight), colorFormat);
+                    framesDecoded++;
+                }
+            } finally {
+                decoder.releaseOutput(index, false);
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) windowDone.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            outputFormat = format;
+            if (format.containsKey(MediaFormat.KEY_WIDTH)) width = format.getInteger(MediaFormat.KEY_WIDTH);
+            if (format.containsKey(MediaFormat.KEY_HEIGHT)) height = format.getInteger(MediaFormat.KEY_HEIGHT);
+            // hardware decoders pad rows and planes to their alignment
+            stride = format.containsKey(KEY_STRIDE) ? format.getInteger(KEY_STRIDE) : 0;
+            sliceHeight = format.containsKey(KEY_SLICE_HEIGHT) ? format.getInteger(KEY_SLICE_HEIGHT) : 0;
+        }
+
+        @Override
+        public void onError(Exception e) {
+            e.printStackTrace();
+            synchronized (lock) {
+                running = false;
+                lock.notifyAll();
+            }
+            CountDownLatch done = windowDone;
+            if (done != null) done.countDown();
+        }
+    };
+
+    long windowsDecoded() {
+        return windowsDecoded;
+    }
+
+    // windows replaced by a newer request before they were done
+    long windowsCut() {
+        return windowsCut;
+    }
+
+    long framesDecoded() {
+        return framesDecoded;
+    }
+
+    long frameDurationUs() {
+        return frameDurationUs;
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "FrameCacheFiller{%s, windows=%d, cut=%d, frames=%d, decode %d ms}",
+                file.getName(), windowsDecoded, windowsCut, framesDecoded, decodeNs / 1000000);
+    }
+}
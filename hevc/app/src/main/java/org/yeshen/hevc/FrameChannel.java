@@ -0,0 +1,189 @@
+package org.yeshen.hevc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Bounded single-producer/single-consumer hand-off of raw frames.
+// The consumer parks while the channel is empty; what happens to the producer
+// when it is full is decided by the DropPolicy. Every dropped frame is passed
+// to OnDrop (so it can be recycled) together with the time it was dropped.
+class FrameChannel {
+
+    enum DropPolicy {
+        // evict the oldest pending frame to make room, keeps latency lowest
+        DROP_OLDEST,
+        // reject the incoming frame
+        DROP_NEWEST,
+        // wait for room up to the block timeout, then reject the incoming frame
+        BLOCK
+    }
+
+    interface OnDrop {
+        void onDrop(byte[] frame, long timestampNs);
+    }
+
+    private final byte[][] ring;
+    // System.nanoTime() each frame was offered at
+    private final long[] timestamps;
+    private final DropPolicy policy;
+    private final long blockTimeoutUs;
+    private final OnDrop onDrop;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head;
+    private int count;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private volatile long lastDropNs;
+    // consumer side only
+    private long polledTimestampNs;
+
+    FrameChannel(int capacity, DropPolicy policy, long blockTimeoutUs, OnDrop onDrop) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.ring = new byte[capacity][];
+        this.timestamps = new long[capacity];
+        this.policy = policy;
+        this.blockTimeoutUs = blockTimeoutUs;
+        this.onDrop = onDrop;
+    }
+
+    // returns false if the frame itself was dropped
+    boolean offer(byte[] frame) {
+        return offer(frame, System.nanoTime());
+    }
+
+    // timestampNs travels with the frame, see polledTimestampNs()
+    boolean offer(byte[] frame, long timestampNs) {
+        offered.incrementAndGet();
+        byte[] evicted = null;
+        boolean accepted = true;
+        lock.lock();
+        try {
+            if (count == ring.length) {
+                if (policy == DropPolicy.DROP_OLDEST) {
+                    evicted = take();
+                } else if (policy == DropPolicy.BLOCK) {
+                    long waitNs = TimeUnit.MICROSECONDS.toNanos(blockTimeoutUs);
+                    while (count == ring.length && waitNs > 0) {
+                        waitNs = notFull.awaitNanos(waitNs);
+                    }
+                    accepted = count < ring.length;
+                } else {
+                    accepted = false;
+                }
+            }
+            if (accepted) {
+                int slot = (head + count) % ring.length;
+                ring[slot] = frame;
+                timestamps[slot] = timestampNs;
+                count++;
+                notEmpty.signal();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        } finally {
+            lock.unlock();
+        }
+        // drop callbacks run outside of the lock, they usually hand buffers back to the camera
+        if (evicted != null) drop(evicted, droppedOldest);
+        if (!accepted) drop(frame, droppedNewest);
+        return accepted;
+    }
+
+    // waits up to timeoutUs for a frame, returns null on timeout or interrupt
+    byte[] poll(long timeoutUs) {
+        lock.lock();
+        try {
+            long waitNs = TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+            while (count == 0) {
+                if (waitNs <= 0) return null;
+                waitNs = notEmpty.awaitNanos(waitNs);
+            }
+            polledTimestampNs = timestamps[head];
+            return take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // discards every pending frame through OnDrop without counting it as a drop
+    void clear() {
+        while (true) {
+            byte[] frame;
+            lock.lock();
+            try {
+                if (count == 0) return;
+                frame = take();
+            } finally {
+                lock.unlock();
+            }
+            if (onDrop != null) onDrop.onDrop(frame, System.nanoTime());
+        }
+    }
+
+    private byte[] take() {
+        byte[] frame = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        notFull.signal();
+        return frame;
+    }
+
+    private void drop(byte[] frame, AtomicLong counter) {
+        long now = System.nanoTime();
+        counter.incrementAndGet();
+        lastDropNs = now;
+        if (onDrop != null) onDrop.onDrop(frame, now);
+    }
+
+    // the timestamp the frame last returned by poll was offered with; for the polling thread
+    long polledTimestampNs() {
+        return polledTimestampNs;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    DropPolicy policy() {
+        return policy;
+    }
+
+    long offeredCount() {
+        return offered.get();
+    }
+
+    long droppedOldestCount() {
+        return droppedOldest.get();
+    }
+
+    long droppedNewestCount() {
+        return droppedNewest.get();
+    }
+
+    // System.nanoTime() of the most recent drop, 0 if nothing was dropped yet
+    long lastDropNs() {
+        return lastDropNs;
+    }
+}
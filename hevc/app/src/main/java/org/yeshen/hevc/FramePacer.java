@@ -0,0 +1,124 @@
+package org.yeshen.hevc;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Paces a render loop at a fixed frame rate on the monotonic clock. Frame n is due at
+// start + n * interval, so the rate does not drift with draw or sleep jitter; a slot
+// that already passed while the previous frame was drawing is skipped, not drawn late,
+// so a slow frame costs frames instead of building up a queue in front of the encoder.
+// One render thread at a time; the counters may be read from anywhere.
+class FramePacer {
+
+    interface Sleeper {
+        void sleep(long ns) throws InterruptedException;
+    }
+
+    static final Sleeper SYSTEM_SLEEPER = new Sleeper() {
+        @Override
+        public void sleep(long ns) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(ns);
+        }
+    };
+
+    private final MediaClock.TimeSource time;
+    private final Sleeper sleeper;
+    private final int frameRate;
+    private final long intervalNs;
+    private final Histogram drawUs = new Histogram("draw", "us");
+
+    private long startNs;
+    private long nextFrame;
+    private long drawStartNs;
+    private volatile long firstFrameNs;
+    private volatile long lastFrameNs;
+    private volatile long framesDrawn;
+    private volatile long framesSkipped;
+
+    FramePacer(int frameRate) {
+        this(frameRate, MediaClock.SYSTEM, SYSTEM_SLEEPER);
+    }
+
+    FramePacer(int frameRate, MediaClock.TimeSource time) {
+        this(frameRate, time, SYSTEM_SLEEPER);
+    }
+
+    // waits go to sleeper, e.g. one that moves a fake time source along to test without sleeping
+    FramePacer(int frameRate, MediaClock.TimeSource time, Sleeper sleeper) {
+        if (frameRate <= 0) throw new IllegalArgumentException("bad frame rate " + frameRate);
+        this.time = time;
+        this.sleeper = sleeper;
+        this.frameRate = frameRate;
+        this.intervalNs = TimeUnit.SECONDS.toNanos(1) / frameRate;
+    }
+
+    // sleeps until the next slot and returns its due time on the System.nanoTime base,
+    // the presentation time of the frame about to be drawn
+    long awaitFrame() throws InterruptedException {
+        long now = time.nanoTime();
+        if (startNs == 0) startNs = now;
+        long dueNs = startNs + nextFrame * intervalNs;
+        if (now - dueNs >= intervalNs) {
+            long missed = (now - dueNs) / intervalNs;
+            framesSkipped += missed;
+            nextFrame += missed;
+            dueNs += missed * intervalNs;
+        }
+        if (dueNs > now) {
+            sleeper.sleep(dueNs - now);
+        }
+        nextFrame++;
+        drawStartNs = time.nanoTime();
+        return dueNs;
+    }
+
+    // after the frame from awaitFrame() was posted
+    void frameDrawn() {
+        long now = time.nanoTime();
+        drawUs.record((now - drawStartNs) / 1000);
+        if (firstFrameNs == 0) firstFrameNs = drawStartNs;
+        lastFrameNs = now;
+        framesDrawn++;
+    }
+
+    // drawing starts over at the next awaitFrame(), e.g. after a pause
+    void restart() {
+        startNs = 0;
+        nextFrame = 0;
+    }
+
+    int targetFps() {
+        return frameRate;
+    }
+
+    double actualFps() {
+        long frames = framesDrawn;
+        long elapsed = lastFrameNs - firstFrameNs;
+        return frames < 2 || elapsed <= 0 ? 0 : (frames - 1) * 1e9 / elapsed;
+    }
+
+    long framesDrawn() {
+        return framesDrawn;
+    }
+
+    long framesSkipped() {
+        return framesSkipped;
+    }
+
+    // draw and swap of one frame
+    Histogram drawTime() {
+        return drawUs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "FramePacer{target=%d fps, actual=%.1f fps, drawn=%d, skipped=%d, draw %s}",
+                frameRate, actualFps(), framesDrawn, framesSkipped, drawUs);
+    }
+}
@@ -0,0 +1,146 @@
+package org.yeshen.hevc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// A bounded set of pre-sized frame buffers shared between the camera and the encoder.
+// Buffers are checked out when the camera fills them and released once the encoder
+// has copied them into a codec input buffer, so no frame memory is allocated per frame.
+// clear() starts over with new buffers; an old buffer released after that is dropped,
+// so late releases can't push the pool past depth.
+class FramePool {
+
+    interface Recycler {
+        void recycle(byte[] buffer);
+    }
+
+    static final int DEFAULT_DEPTH = 4;
+
+    private final int frameSize;
+    private final int depth;
+    private final ArrayBlockingQueue<byte[]> free;
+    // the buffers allocated since the last clear(), by allocation order
+    private final AtomicReferenceArray<byte[]> owned;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger checkedOut = new AtomicInteger();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private volatile Recycler recycler;
+
+    FramePool(int frameSize, int depth) {
+        if (depth <= 0) throw new IllegalArgumentException("depth must be positive: " + depth);
+        this.frameSize = frameSize;
+        this.depth = depth;
+        this.free = new ArrayBlockingQueue<>(depth);
+        this.owned = new AtomicReferenceArray<>(depth);
+    }
+
+    // when set, released buffers are handed straight back to the producer
+    // (e.g. Camera.addCallbackBuffer) instead of waiting in the free list
+    void setRecycler(Recycler recycler) {
+        this.recycler = recycler;
+    }
+
+    int frameSize() {
+        return frameSize;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    // returns a free buffer, allocating lazily up to depth, or null if the pool is exhausted
+    byte[] acquire() {
+        byte[] buffer = free.poll();
+        if (buffer != null) {
+            reused.incrementAndGet();
+            return buffer;
+        }
+        buffer = allocate();
+        if (buffer == null) exhausted.incrementAndGet();
+        return buffer;
+    }
+
+    // for handing the producer its buffers up front, depth() calls at most; running out
+    // here is expected and not counted as exhaustion
+    byte[] prefill() {
+        byte[] buffer = free.poll();
+        return buffer != null ? buffer : allocate();
+    }
+
+    // at most depth times per clear(), so a lock is fine
+    private synchronized byte[] allocate() {
+        int count = allocated.get();
+        if (count >= depth) return null;
+        byte[] buffer = new byte[frameSize];
+        owned.set(count, buffer);
+        allocated.set(count + 1);
+        return buffer;
+    }
+
+    private boolean owns(byte[] buffer) {
+        for (int i = 0; i < depth; i++) {
+            if (owned.get(i) == buffer) return true;
+        }
+        return false;
+    }
+
+    // the producer filled a buffer and passed it on; once every buffer is checked out
+    // the camera has nothing left to fill and will silently drop frames
+    void checkout(byte[] buffer) {
+        if (buffer == null || buffer.length != frameSize) return;
+        if (checkedOut.incrementAndGet() >= allocated.get()) {
+            exhausted.incrementAndGet();
+        }
+    }
+
+    void release(byte[] buffer) {
+        // also one from before the last clear()
+        if (buffer == null || !owns(buffer)) return;
+        if (checkedOut.get() > 0) checkedOut.decrementAndGet();
+        Recycler target = recycler;
+        if (target != null) {
+            reused.incrementAndGet();
+            target.recycle(buffer);
+        } else {
+            free.offer(buffer);
+        }
+    }
+
+    // forgets every buffer, also those still out, e.g. with a camera that was released
+    synchronized void clear() {
+        recycler = null;
+        for (int i = 0; i < depth; i++) {
+            owned.set(i, null);
+        }
+        free.clear();
+        allocated.set(0);
+        checkedOut.set(0);
+    }
+
+    int checkedOut() {
+        return checkedOut.get();
+    }
+
+    long reuseCount() {
+        return reused.get();
+    }
+
+    long exhaustionCount() {
+        return exhausted.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FramePool{depth=" + depth + ", allocated=" + allocated.get() + ", checkedOut=" + checkedOut.get()
+                + ", reused=" + reused.get() + ", exhausted=" + exhausted.get() + "}";
+    }
+}
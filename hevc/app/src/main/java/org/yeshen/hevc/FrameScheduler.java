@@ -0,0 +1,308 @@
+package org.yeshen.hevc;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Releases decoded frames against a MediaClock from its own thread, so the codec
+// callback only enqueues and never waits. A frame is handed to Output leadNs before
+// it is due together with its due time (the timestamped releaseOutputBuffer on API 21+
+// lets the compositor hit the exact vsync); with leadNs == 0 it is handed over at the
+// due time itself. Frames later than lateDropUs are dropped, but never more than
+// maxConsecutiveDrops in a row so that the picture keeps moving.
+class FrameScheduler {
+
+    interface Output {
+        void render(int index, long renderTimeNs);
+
+        void drop(int index);
+    }
+
+    static final long DEFAULT_LEAD_NS = TimeUnit.MILLISECONDS.toNanos(30);
+    static final long DEFAULT_LATE_DROP_US = 40000;
+    static final int DEFAULT_MAX_CONSECUTIVE_DROPS = 4;
+
+    private static final class Pending {
+        final int index;
+        final long presentationTimeUs;
+
+        Pending(int index, long presentationTimeUs) {
+            this.index = index;
+            this.presentationTimeUs = presentationTimeUs;
+        }
+    }
+
+    private final MediaClock clock;
+    private final Output output;
+    private final long leadNs;
+    private final long lateDropNs;
+    private final int maxConsecutiveDrops;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final Thread thread;
+    private boolean running;
+    private boolean releasing;
+    private int consecutiveDrops;
+
+    // written by the scheduler thread only, read under lock
+    private long rendered;
+    private long dropped;
+    private long jitterSumNs;
+    private long jitterSquareSumUs;
+    private long jitterMaxNs;
+
+    FrameScheduler(MediaClock clock, Output output) {
+        this(clock, output, DEFAULT_LEAD_NS, DEFAULT_LATE_DROP_US, DEFAULT_MAX_CONSECUTIVE_DROPS);
+    }
+
+    FrameScheduler(MediaClock clock, Output output, long leadNs, long lateDropUs, int maxConsecutiveDrops) {
+        if (leadNs < 0) throw new IllegalArgumentException("lead must not be negative: " + leadNs);
+        this.clock = clock;
+        this.output = output;
+        this.leadNs = leadNs;
+        this.lateDropNs = TimeUnit.MICROSECONDS.toNanos(lateDropUs);
+        this.maxConsecutiveDrops = maxConsecutiveDrops;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "frame-scheduler");
+    }
+
+    MediaClock clock() {
+        return clock;
+    }
+
+    void start() {
+        lock.lock();
+        try {
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+        thread.start();
+    }
+
+    // frames must be submitted in presentation order; the first one starts the clock
+    void submit(int index, long presentationTimeUs) {
+        lock.lock();
+        try {
+            if (!clock.isStarted()) clock.start(presentationTimeUs, clock.nowNs() + leadNs);
+            pending.addLast(new Pending(index, presentationTimeUs));
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setRate(float rate) {
+        clock.setRate(rate);
+        signal();
+    }
+
+    void pause() {
+        clock.pause();
+        signal();
+    }
+
+    void resume() {
+        clock.resume();
+        signal();
+    }
+
+    // drops every pending frame, e.g. before a seek
+    void flush() {
+        ArrayDeque<Pending> flushed;
+        lock.lock();
+        try {
+            flushed = new ArrayDeque<>(pending);
+            pending.clear();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Pending frame : flushed) {
+            output.drop(frame.index);
+        }
+    }
+
+    // waits until every submitted frame has been released, false on timeout
+    boolean awaitDrained(long timeoutMs) throws InterruptedException {
+        long waitNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            while (!pending.isEmpty() || releasing) {
+                if (waitNs <= 0) return false;
+                waitNs = drained.awaitNanos(waitNs);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // pending frames are dropped, no Output call happens after this returns
+    void stop() {
+        lock.lock();
+        try {
+            running = false;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            Pending frame;
+            long dueNs;
+            long nowNs;
+            lock.lock();
+            try {
+                while (true) {
+                    if (!running) return;
+                    frame = pending.peekFirst();
+                    if (frame == null) {
+                        changed.awaitUninterruptibly();
+                        continue;
+                    }
+                    dueNs = clock.nanoTimeOf(frame.presentationTimeUs);
+                    nowNs = clock.nowNs();
+                    if (dueNs == Long.MAX_VALUE) {
+                        // paused
+                        changed.awaitUninterruptibly();
+                    } else if (nowNs < dueNs - leadNs) {
+                        try {
+                            changed.awaitNanos(dueNs - leadNs - nowNs);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    } else {
+                        break;
+                    }
+                }
+                pending.pollFirst();
+                releasing = true;
+            } finally {
+                lock.unlock();
+            }
+            release(frame, dueNs, nowNs);
+            lock.lock();
+            try {
+                releasing = false;
+                if (pending.isEmpty()) drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void release(Pending frame, long dueNs, long nowNs) {
+        long lateNs = nowNs - dueNs;
+        if (lateNs > lateDropNs && consecutiveDrops < maxConsecutiveDrops) {
+            consecutiveDrops++;
+            output.drop(frame.index);
+            lock.lock();
+            try {
+                dropped++;
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        consecutiveDrops = 0;
+        output.render(frame.index, Math.max(dueNs, nowNs));
+        // how far the hand-over missed its slot
+        long jitterNs = Math.abs(nowNs - (dueNs - leadNs));
+        lock.lock();
+        try {
+            rendered++;
+            jitterSumNs += jitterNs;
+            jitterSquareSumUs += (jitterNs / 1000) * (jitterNs / 1000);
+            if (jitterNs > jitterMaxNs) jitterMaxNs = jitterNs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int pendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long renderedCount() {
+        lock.lock();
+        try {
+            return rendered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long droppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long meanJitterUs() {
+        lock.lock();
+        try {
+            return rendered == 0 ? 0 : jitterSumNs / rendered / 1000;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long maxJitterUs() {
+        lock.lock();
+        try {
+            return jitterMaxNs / 1000;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long jitterStdDevUs() {
+        lock.lock();
+        try {
+            if (rendered == 0) return 0;
+            double mean = jitterSumNs / 1000.0 / rendered;
+            return (long) Math.sqrt(Math.max(0, (double) jitterSquareSumUs / rendered - mean * mean));
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Where the encoder pulls raw NV21 frames from. Frames are borrowed: the encoder
+// converts a frame straight into a codec input buffer and then recycles it.
+interface FrameSource {
+
+    // next pending frame, waiting up to timeoutUs for one; null if there is none
+    byte[] poll(long timeoutUs);
+
+    // System.nanoTime() the frame last returned by poll was captured at, 0 if unknown
+    long captureTimeNs();
+
+    // frames that can be polled right now without waiting
+    int pending();
+
+    // the frame has been consumed and may be refilled by the producer
+    void recycle(byte[] frame);
+}
@@ -2,12 +2,13 @@ package org.yeshen.hevc;
 
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
-import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 import android.view.Surface;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -26,11 +27,79 @@ public class HevcDecodeThread extends Thread {
 
     private static final String SAMPLE = Environment.getExternalStorageDirectory() + "/Download/hevc.mp4";
     private static final String TAG = HevcDecodeThread.class.getSimpleName();
-    private MediaCodec decoder;
+    // raw .h265/.hevc streams carry no timing
+    private static final int ANNEX_B_FRAME_RATE = 30;
+    private static final long NO_SEEK = -1;
+    private final File sample;
+    private final CodecDriver.Factory codecs;
+    private CodecDriver decoder;
     private Surface surface;
+    private volatile float playbackRate = 1;
+    private volatile FrameScheduler scheduler;
+    // when each sample went into the decoder
+    private final TimestampRing queuedAt = new TimestampRing(64);
+
+    // the latest seekTo() not yet taken by the decode thread; also notified when the output
+    // ends or the codec fails, which is all the decode thread waits for after its input EOS
+    private final Object seekLock = new Object();
+    private long pendingSeekUs = NO_SEEK;
+    private long pendingSeekNs;
+    // decode thread only, loaded from the sidecar (or built) on the first seek
+    private KeyframeIndex keyframes;
+    // while set, outputs of the old position are released unseen; the codec callback
+    // checks it and submits under flushLock so nothing reaches the scheduler mid-seek
+    private final Object flushLock = new Object();
+    private volatile boolean seeking;
+    // frames before the seek target are decoded, as the target depends on them, but not shown
+    private volatile long discardBeforeUs = NO_SEEK;
+    private volatile long seekStartNs;
+    private volatile boolean outputEnded;
+    private volatile boolean failed;
 
     HevcDecodeThread(Surface surface) {
+        this(surface, CodecDrivers.factory(MediaCodecAdapter.decoderFactory("video/hevc")));
+    }
+
+    // codecs e.g. from a CodecPrewarmer
+    HevcDecodeThread(Surface surface, CodecDriver.Factory codecs) {
+        this(surface, new File(SAMPLE), codecs);
+    }
+
+    // plays sample through codecs, e.g. a FakeCodec to run off-device
+    HevcDecodeThread(Surface surface, File sample, CodecDriver.Factory codecs) {
         this.surface = surface;
+        this.sample = sample;
+        this.codecs = codecs;
+    }
+
+    // 1 is normal speed
+    void setPlaybackRate(float rate) {
+        playbackRate = rate;
+        FrameScheduler current = scheduler;
+        if (current != null) current.setRate(rate);
+    }
+
+    // from any thread: playback continues at the frame presented at presentationTimeUs, decoded
+    // from the keyframe before it; if several come in quick succession only the last is done
+    void seekTo(long presentationTimeUs) {
+        if (presentationTimeUs < 0) throw new IllegalArgumentException("bad seek target " + presentationTimeUs);
+        synchronized (seekLock) {
+            pendingSeekUs = presentationTimeUs;
+            pendingSeekNs = System.nanoTime();
+            seekLock.notifyAll();
+        }
+    }
+
+    // media time of the playback clock, a base for relative seeks; 0 before the first frame
+    long positionUs() {
+        FrameScheduler current = scheduler;
+        return current == null ? 0 : current.clock().mediaTimeUs();
+    }
+
+    private void wakeUp() {
+        synchronized (seekLock) {
+            seekLock.notifyAll();
+        }
     }
 
     @Override
@@ -43,94 +112,205 @@ public class HevcDecodeThread extends Thread {
     }
 
     private void inner() throws IOException {
-        MediaExtractor extractor = new MediaExtractor();
-        extractor.setDataSource(SAMPLE);
-
-        for (int i = 0; i < extractor.getTrackCount(); i++) {
-            MediaFormat format = extractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            Log.d(TAG, mime);
-            if (mime.startsWith("video/")) {
-                extractor.selectTrack(i);
-                decoder = MediaCodec.createDecoderByType(mime);
-                decoder.configure(format, surface, null, 0);
-                break;
-            }
-        }
-
-        if (decoder == null) {
+        ReadAheadSource source = new ReadAheadSource(SampleReader.open(sample, ANNEX_B_FRAME_RATE),
+                ReadAheadSource.DEFAULT_DEPTH);
+        SampleReader reader = source.reader();
+        if (reader.csd == null || reader.width <= 0 || reader.height <= 0) {
             Log.e(TAG, "Can't find video info!");
+            source.close();
             return;
         }
 
-        decoder.start();
+        MediaFormat format = MediaFormat.createVideoFormat("video/hevc", reader.width, reader.height);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(reader.csd));
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, YuvFormat.frameSize(reader.width, reader.height));
+        Log.d(TAG, format.toString());
+        decoder = codecs.create("hevc-decoder");
+        decoder.configure(format, surface, 0);
+        // demux runs ahead on its own thread from here on
+        source.start();
 
-        ByteBuffer[] inputBuffers = decoder.getInputBuffers();
-        ByteBuffer[] outputBuffers = decoder.getOutputBuffers();
-        BufferInfo info = new BufferInfo();
-        boolean isEOS = false;
-        long startMs = System.currentTimeMillis();
-
-        while (!Thread.interrupted()) {
-            if (!isEOS) {
-                int inIndex = decoder.dequeueInputBuffer(10000);
-                if (inIndex >= 0) {
-                    ByteBuffer buffer = inputBuffers[inIndex];
-                    int sampleSize = extractor.readSampleData(buffer, 0);
-                    if (sampleSize < 0) {
-                        // We shouldn't stop the playback at this point, just pass the EOS
-                        // flag to decoder, we will get it again from the
-                        // dequeueOutputBuffer
-                        Log.d(TAG, "InputBuffer BUFFER_FLAG_END_OF_STREAM");
-                        decoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        isEOS = true;
+        // frames are released from the scheduler thread, the callback never waits
+        MediaClock clock = new MediaClock();
+        clock.setRate(playbackRate);
+        scheduler = new FrameScheduler(clock, new FrameScheduler.Output() {
+            @Override
+            public void render(int index, long renderTimeNs) {
+                decoder.releaseOutput(index, renderTimeNs);
+                PipelineMetrics.count(PipelineMetrics.framesRendered);
+            }
+
+            @Override
+            public void drop(int index) {
+                decoder.releaseOutput(index, false);
+                // a seek flushes the scheduler, those frames weren't late
+                if (!seeking) PipelineMetrics.count(PipelineMetrics.framesDroppedLate);
+            }
+        }, Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? FrameScheduler.DEFAULT_LEAD_NS : 0,
+                FrameScheduler.DEFAULT_LATE_DROP_US, FrameScheduler.DEFAULT_MAX_CONSECUTIVE_DROPS);
+        scheduler.start();
+        decoder.start(new CodecDriver.Callback() {
+            @Override
+            public void onOutputBuffer(int index, ByteBuffer buffer, BufferInfo info) {
+                synchronized (flushLock) {
+                    if (seeking) {
+                        decoder.releaseOutput(index, false);
+                        return;
+                    }
+                    if (info.size > 0) {
+                        PipelineMetrics.since(PipelineMetrics.decodeUs, queuedAt.take(info.presentationTimeUs));
+                        PipelineMetrics.count(PipelineMetrics.framesDecoded);
+                        if (info.presentationTimeUs < discardBeforeUs) {
+                            decoder.releaseOutput(index, false);
+                            PipelineMetrics.count(PipelineMetrics.framesDiscardedSeeking);
+                        } else {
+                            if (seekStartNs != 0) {
+                                PipelineMetrics.since(PipelineMetrics.seekUs, seekStartNs);
+                                seekStartNs = 0;
+                            }
+                            scheduler.submit(index, info.presentationTimeUs);
+                        }
                     } else {
-                        decoder.queueInputBuffer(inIndex, 0, sampleSize, extractor.getSampleTime(), 0);
-                        extractor.advance();
+                        decoder.releaseOutput(index, false);
                     }
                 }
+
+                // All decoded frames have been queued, we can stop playing once they are shown
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    Log.d(TAG, "OutputBuffer BUFFER_FLAG_END_OF_STREAM");
+                    outputEnded = true;
+                    wakeUp();
+                }
             }
 
-            int outIndex = decoder.dequeueOutputBuffer(info, 10000);
-            switch (outIndex) {
-                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                    Log.d(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
-                    outputBuffers = decoder.getOutputBuffers();
-                    break;
-                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                    Log.d(TAG, "New format " + decoder.getOutputFormat());
-                    break;
-                case MediaCodec.INFO_TRY_AGAIN_LATER:
-                    Log.d(TAG, "dequeueOutputBuffer timed out!");
+            @Override
+            public void onOutputFormatChanged(MediaFormat format) {
+                Log.d(TAG, "New format " + format);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "decoder error", e);
+                failed = true;
+                wakeUp();
+            }
+        });
+
+        boolean isEOS = false;
+        ReadAheadSource.Unit unit = null;
+        while (!failed) {
+            if (Thread.interrupted()) {
+                break;
+            }
+            long seekUs;
+            long seekNs;
+            synchronized (seekLock) {
+                seekUs = pendingSeekUs;
+                seekNs = pendingSeekNs;
+                pendingSeekUs = NO_SEEK;
+            }
+            if (seekUs != NO_SEEK) {
+                if (unit != null) source.recycle(unit);
+                unit = null;
+                if (seek(source, seekUs, seekNs)) {
+                    isEOS = false;
+                    outputEnded = false;
+                }
+                continue;
+            }
+            if (isEOS) {
+                // a seek may still come until the last frame is out
+                if (outputEnded) {
+                    try {
+                        scheduler.awaitDrained(1000);
+                    } catch (InterruptedException e) {
+                        Log.d(TAG, "interrupted before EOS");
+                    }
                     break;
-                default:
-                    ByteBuffer buffer = outputBuffers[outIndex];
-                    Log.v(TAG, "We can't use this buffer but render it due to the API limit, " + buffer);
-
-                    // We use a very simple clock to keep the video FPS, or the video
-                    // playback will be too fast
-                    while (info.presentationTimeUs / 1000 > System.currentTimeMillis() - startMs) {
-                        try {
-                            sleep(10);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                            break;
-                        }
+                }
+                try {
+                    synchronized (seekLock) {
+                        while (pendingSeekUs == NO_SEEK && !outputEnded && !failed) seekLock.wait();
                     }
-                    decoder.releaseOutputBuffer(outIndex, true);
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "interrupted before EOS");
                     break;
+                }
+                continue;
             }
-
-            // All decoded frames have been rendered, we can stop playing now
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                Log.d(TAG, "OutputBuffer BUFFER_FLAG_END_OF_STREAM");
-                break;
+            if (unit == null) {
+                long pollStartNs = System.nanoTime();
+                unit = source.poll(10000);
+                PipelineMetrics.since(PipelineMetrics.demuxWaitUs, pollStartNs);
+                if (unit == null) continue;
+            }
+            long waitStartNs = System.nanoTime();
+            int inIndex = decoder.dequeueInput(10000);
+            PipelineMetrics.since(PipelineMetrics.decoderInputWaitUs, waitStartNs);
+            if (inIndex >= 0) {
+                ByteBuffer buffer = decoder.getInputBuffer(inIndex);
+                if (unit.endOfStream) {
+                    // We shouldn't stop the playback at this point, just pass the EOS
+                    // flag to decoder, we will get it again from the output callback
+                    Log.d(TAG, "InputBuffer BUFFER_FLAG_END_OF_STREAM");
+                    decoder.queueInput(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    isEOS = true;
+                } else {
+                    int sampleSize = unit.data.remaining();
+                    buffer.clear();
+                    buffer.put(unit.data);
+                    queuedAt.put(unit.presentationTimeUs, System.nanoTime());
+                    decoder.queueInput(inIndex, 0, sampleSize, unit.presentationTimeUs, 0);
+                }
+                source.recycle(unit);
+                unit = null;
             }
         }
 
-        decoder.stop();
+        scheduler.stop();
+        Log.d(TAG, "rendered=" + scheduler.renderedCount() + " dropped=" + scheduler.droppedCount()
+                + " jitterUs mean=" + scheduler.meanJitterUs() + " max=" + scheduler.maxJitterUs()
+                + " sd=" + scheduler.jitterStdDevUs());
+
+        Log.d(TAG, "read-ahead units=" + source.unitsRead() + " maxDepth=" + source.maxDepth()
+                + " stallMs=" + source.consumerStallNs() / 1000000 + " aheadMs=" + source.producerWaitNs() / 1000000);
+        Log.d(TAG, "metrics " + PipelineMetrics.toJson());
         decoder.release();
-        extractor.release();
+        source.close();
+    }
+
+    // false if the file has no keyframe to start from, playback then carries on as it was
+    private boolean seek(ReadAheadSource source, long targetUs, long requestedNs) throws IOException {
+        if (keyframes == null) {
+            long loadStartNs = System.nanoTime();
+            keyframes = KeyframeIndex.load(sample, ANNEX_B_FRAME_RATE);
+            Log.d(TAG, "keyframe index of " + keyframes.size() + " keyframes in "
+                    + (System.nanoTime() - loadStartNs) / 1000 + "us");
+        }
+        int keyframe = Math.max(0, keyframes.floorTime(targetUs));
+        if (keyframe >= keyframes.size()) {
+            Log.e(TAG, "no keyframe to seek to in " + sample);
+            return false;
+        }
+        synchronized (flushLock) {
+            seeking = true;
+        }
+        // pending frames are released while their indices are still valid, then the codec drops the rest
+        scheduler.flush();
+        try {
+            scheduler.awaitDrained(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        decoder.flush();
+        scheduler.clock().reset();
+        source.seek(keyframes.offset(keyframe), keyframes.presentationTimeUs(keyframe));
+        discardBeforeUs = targetUs;
+        seekStartNs = requestedNs;
+        synchronized (flushLock) {
+            seeking = false;
+        }
+        return true;
     }
 
 }
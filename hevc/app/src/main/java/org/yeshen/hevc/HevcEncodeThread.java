@@ -1,16 +1,14 @@
 package org.yeshen.hevc;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Environment;
+import android.os.SystemClock;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Arrays;
 
 /*********************************************************************
  * This file is part of hevc project
@@ -18,146 +16,308 @@ import java.util.concurrent.ArrayBlockingQueue;
  * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
  *********************************************************************/
 
-class HevcEncodeThread extends Thread {
+class HevcEncodeThread extends Thread implements CodecDriver.Callback {
 
     public interface OnCodeFrame {
-        void onCodeFrame(byte[] data);
+        // the packet wraps the codec's output buffer and is only valid during the call;
+        // retain() it to keep it (the codec waits for that buffer) or copy it into an EncodedPacketPool
+        void onCodeFrame(EncodedPacket packet);
     }
 
-    private static String path = Environment.getExternalStorageDirectory().getAbsolutePath() + "/Download/h265.mp4";
+    public interface ConsumerLag {
+        // how far the slowest consumer is behind the encoder's output, e.g. a PacketBus
+        long consumerLagMs();
+    }
+
+    // how long the encoder parks waiting for a frame before re-checking isRunning
+    private static final long IDLE_WAIT_US = 100000;
+    // the recorder's ring on the bus; it only hands packets on to the writer's own queue
+    private static final int RECORDER_RING = 16;
+
+    // how often output feedback is handed to the congestion controller
+    private static final long CONTROL_TICK_MS = 200;
+
+    private static File directory = new File(Environment.getExternalStorageDirectory(), "Download");
+    // one file per minute of recording
+    private static final long SEGMENT_DURATION_US = 60 * 1000000L;
 
     private volatile boolean isRunning = false;
-    private MediaCodec mediaCodec;
-    private BufferedOutputStream outputStream;
-    private byte[] configByte;
-    private ArrayBlockingQueue<byte[]> YUVQueue = new ArrayBlockingQueue<>(10);
+    private final CodecDriver.Factory codecs;
+    private final File recordingDirectory;
+    // set up by run(), off the thread that constructs this
+    private CodecDriver mediaCodec;
+    private RecordingWriter recorder;
+    // every packet is copied into the bus once, the recorder and the other consumers share it
+    private PacketBus bus;
+    private boolean ownBus;
+    private PacketBus.Subscriber recorderSubscription;
+    // parameter sets, shared as the header of every keyframe packet
+    private ByteBuffer configBuffer;
+    // one reusable packet per codec output buffer index
+    private EncodedPacket[] outputPackets = new EncodedPacket[0];
+    private OutputRecycler[] outputRecyclers = new OutputRecycler[0];
     private OnCodeFrame delegate = null;
+    private volatile ConsumerLag consumerLag = null;
+    private final FrameSource frameSource;
+    private final EncoderConfig config;
+    private volatile RateControl rateControl;
+    private volatile CongestionController controller;
+    private volatile long framesQueued;
+    private long framesOut;
+    private long tickBytes;
+    private long tickStartMs;
+    // per frame in flight: when it went into the codec and when it was captured
+    private final TimestampRing queuedAt = new TimestampRing(64);
+    private final TimestampRing capturedAt = new TimestampRing(64);
+    // when the constructor began, until the first frame came out
+    private volatile long setupStartNs;
 
 
-    HevcEncodeThread() {
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/hevc", MainActivity.WIDTH, MainActivity.HEIGHT);
-        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, MainActivity.WIDTH * MainActivity.HEIGHT * 5);
-        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, MainActivity.FRAME_RATE);
-        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+    HevcEncodeThread(FrameSource frameSource, EncoderConfig config) {
+        this(frameSource, config, CodecDrivers.factory(MediaCodecAdapter.encoderFactory(EncoderConfig.MIME)));
+    }
+
+    // codecs e.g. from a CodecPrewarmer
+    HevcEncodeThread(FrameSource frameSource, EncoderConfig config, CodecDriver.Factory codecs) {
+        this(frameSource, config, codecs, directory);
+    }
+
+    // codecs e.g. over a FakeCodec to run off-device, recordings go to recordingDirectory
+    // the codec is only created once the thread runs, constructing this does not block
+    HevcEncodeThread(FrameSource frameSource, EncoderConfig config, CodecDriver.Factory codecs, File recordingDirectory) {
+        setupStartNs = System.nanoTime();
+        this.frameSource = frameSource;
+        this.config = config;
+        this.codecs = codecs;
+        this.recordingDirectory = recordingDirectory;
+    }
+
+    // on the encoder thread: creating a codec can wait for a CodecPrewarmer, configuring
+    // and starting it takes a while too, none of which belongs on the UI thread
+    private boolean setUp() {
+        long createStartNs = System.nanoTime();
         try {
-            mediaCodec = MediaCodec.createEncoderByType("video/hevc");
+            mediaCodec = codecs.create("hevc-encoder");
         } catch (IOException e) {
+            // also when stopThread() interrupted the wait for a prewarmed codec
             e.printStackTrace();
+            return false;
         }
-        mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mediaCodec.start();
-        File file = new File(path);
-        if (file.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            file.delete();
-        }
-        try {
-            outputStream = new BufferedOutputStream(new FileOutputStream(file));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    void onFrame(byte[] data) {
-        if (YUVQueue.size() >= 10) {
-            YUVQueue.poll();
+        PipelineMetrics.since(PipelineMetrics.codecCreateUs, createStartNs);
+        long configureStartNs = System.nanoTime();
+        mediaCodec.configure(config.toFormat(), null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        rateControl = new CodecRateControl(mediaCodec.codec(), config.bitRate);
+        controller = new CongestionController(rateControl, config.bitRate / 8, config.bitRate);
+        // one fragment per GOP, written on the recorder's own thread
+        int gopFrames = config.frameRate * Math.max(1, config.iFrameInterval);
+        recorder = new RecordingWriter(recordingDirectory, "h265", config.width, config.height, config.frameRate, gopFrames,
+                RecordingWriter.DEFAULT_QUEUE_DEPTH);
+        recorder.segmentDurationUs = SEGMENT_DURATION_US;
+        recorder.start();
+        if (bus == null) {
+            bus = new PacketBus(new EncodedPacketPool(config.frameSize() / 4, poolDepth()));
+            ownBus = true;
         }
-        YUVQueue.add(data);
+        recorderSubscription = bus.subscribe("recorder", RECORDER_RING, PacketBus.LagPolicy.SKIP_TO_KEYFRAME, recorder);
+        // encoded output is delivered to onOutputBuffer on the driver's thread
+        mediaCodec.start(this);
+        PipelineMetrics.since(PipelineMetrics.codecStartUs, configureStartNs);
+        return true;
     }
 
+    // called with the codec's own buffer, for consumers that copy what they need at once
     void setOnCode(OnCodeFrame callback) {
         delegate = callback;
     }
 
+    // before start(): packets are published to bus, which the recorder subscribes to as well;
+    // without one the encoder uses a bus of its own. Its pool should be as deep as
+    // poolDepth(), or packets past it are allocated afresh while the writer lags
+    void setPacketBus(PacketBus bus) {
+        this.bus = bus;
+    }
+
+    static int poolDepth() {
+        return RecordingWriter.DEFAULT_QUEUE_DEPTH + RECORDER_RING;
+    }
+
+    // fed to the congestion controller; without one consumers are taken to keep up
+    void setConsumerLag(ConsumerLag lag) {
+        consumerLag = lag;
+    }
+
+    // for setting the bitrate or asking for an IDR by hand, e.g. when a viewer joins;
+    // both null until the thread has set up the codec
+    RateControl rateControl() {
+        return rateControl;
+    }
+
+    CongestionController congestionController() {
+        return controller;
+    }
+
+    @Override
+    public synchronized void start() {
+        // before the thread runs, so that a stopThread() right after start() is not lost
+        isRunning = true;
+        super.start();
+    }
+
     void stopThread() {
         isRunning = false;
-        try {
-            mediaCodec.stop();
-            mediaCodec.release();
-        } catch (Exception e) {
-            e.printStackTrace();
+        this.interrupt();
+        // the codec goes only once run() let go of it, it may be in the middle of queueing a frame
+        if (Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        try {
-            outputStream.flush();
-            outputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (mediaCodec != null) {
+            try {
+                mediaCodec.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
-        this.interrupt();
+        // no more packets are published, the recorder gets the ones still on the bus
+        if (recorderSubscription != null) bus.finish(recorderSubscription);
+        if (ownBus) bus.close();
+        if (recorder != null) recorder.stop();
     }
 
     @Override
     public void run() {
-        isRunning = true;
+        if (!setUp()) return;
 
-        byte[] input = null;
         long generateIndex = 0;
 
         while (isRunning) {
-            if (YUVQueue.size() > 0) {
-                input = YUVQueue.poll();
-                byte[] yuv420sp = new byte[MainActivity.WIDTH * MainActivity.HEIGHT * 3 / 2];
-                NV21ToNV12(input, yuv420sp);
-                input = yuv420sp;
-            }
-            if (input == null || !isRunning) continue;
+            byte[] frame = frameSource.poll(IDLE_WAIT_US);
+            if (frame == null) continue;
+            long captureNs = frameSource.captureTimeNs();
+            // each stage ends with the one clock read that starts the next
+            long waitStartNs = PipelineMetrics.since(PipelineMetrics.cameraQueueWaitUs, captureNs);
             try {
-                ByteBuffer[] inputBuffers = mediaCodec.getInputBuffers();
-                ByteBuffer[] outputBuffers = mediaCodec.getOutputBuffers();
-                int inputBufferIndex = mediaCodec.dequeueInputBuffer(-1);
+                int inputBufferIndex = -1;
+                while (isRunning && inputBufferIndex < 0) {
+                    inputBufferIndex = mediaCodec.dequeueInput(MainActivity.TIMEOUT_US);
+                }
+                long convertStartNs = PipelineMetrics.since(PipelineMetrics.encoderInputWaitUs, waitStartNs);
                 if (inputBufferIndex >= 0) {
                     //computePresentationTime
-                    long pts = 132 + generateIndex * 1000000 / MainActivity.FRAME_RATE;
-                    ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-                    inputBuffer.clear();
-                    inputBuffer.put(input);
-                    mediaCodec.queueInputBuffer(inputBufferIndex, 0, input.length, pts, 0);
+                    long pts = 132 + generateIndex * 1000000 / config.frameRate;
+                    ByteBuffer inputBuffer = mediaCodec.getInputBuffer(inputBufferIndex);
+                    // convert straight into the codec's buffer, no intermediate NV12 copy
+                    int size = YuvConverter.convert(ByteBuffer.wrap(frame), YuvFormat.NV21,
+                            inputBuffer, YuvFormat.NV12, config.width, config.height);
+                    queuedAt.put(pts, PipelineMetrics.since(PipelineMetrics.convertUs, convertStartNs));
+                    capturedAt.put(pts, captureNs);
+                    mediaCodec.queueInput(inputBufferIndex, 0, size, pts, 0);
                     generateIndex += 1;
+                    framesQueued = generateIndex;
                 }
-
-                MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-                int outputBufferIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, MainActivity.TIMEOUT_US);
-                while (outputBufferIndex >= 0) {
-                    ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
-                    byte[] outData = new byte[bufferInfo.size];
-                    outputBuffer.get(outData);
-                    if (bufferInfo.flags == 2) {
-                        configByte = new byte[bufferInfo.size];
-                        configByte = outData;
-                    } else if (bufferInfo.flags == 1) {
-                        byte[] keyframe = new byte[bufferInfo.size + configByte.length];
-                        System.arraycopy(configByte, 0, keyframe, 0, configByte.length);
-                        System.arraycopy(outData, 0, keyframe, configByte.length, outData.length);
-                        outputStream.write(keyframe, 0, keyframe.length);
-                        if (delegate != null) delegate.onCodeFrame(keyframe);
-                    } else {
-                        outputStream.write(outData, 0, outData.length);
-                        if (delegate != null) delegate.onCodeFrame(outData);
-                    }
-                    mediaCodec.releaseOutputBuffer(outputBufferIndex, false);
-                    outputBufferIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, MainActivity.TIMEOUT_US);
-                }
-
             } catch (Throwable t) {
                 t.printStackTrace();
+            } finally {
+                frameSource.recycle(frame);
+            }
+        }
+    }
+
+    @Override
+    public void onOutputBuffer(int index, ByteBuffer outputBuffer, MediaCodec.BufferInfo bufferInfo) {
+        EncodedPacket packet = null;
+        try {
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                recorder.setConfig(outputBuffer);
+                ByteBuffer copy = ByteBuffer.allocateDirect(bufferInfo.size);
+                copy.put(outputBuffer);
+                copy.flip();
+                configBuffer = copy;
+            } else if (bufferInfo.size > 0) {
+                // a frame, keyframe or not; also one that comes with BUFFER_FLAG_END_OF_STREAM
+                long outputNs = PipelineMetrics.since(PipelineMetrics.encodeUs, queuedAt.take(bufferInfo.presentationTimeUs));
+                PipelineMetrics.count(PipelineMetrics.framesEncoded);
+                if (setupStartNs != 0) {
+                    PipelineMetrics.between(PipelineMetrics.timeToFirstFrameUs, setupStartNs, outputNs);
+                    setupStartNs = 0;
+                }
+                PipelineMetrics.count(PipelineMetrics.bytesEncoded, bufferInfo.size);
+                long captureNs = capturedAt.take(bufferInfo.presentationTimeUs);
+                packet = outputPacket(index, outputBuffer, bufferInfo, captureNs);
+                bus.publish(packet);
+                if (delegate != null) delegate.onCodeFrame(packet);
+                long doneNs = PipelineMetrics.since(PipelineMetrics.consumerUs, outputNs);
+                PipelineMetrics.between(PipelineMetrics.captureToOutputUs, captureNs, doneNs);
+                onFeedback(bufferInfo.size);
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+        } finally {
+            if (packet != null) {
+                // the codec gets the buffer back once every consumer let go of it
+                packet.release();
+            } else {
+                mediaCodec.releaseOutput(index, false);
             }
         }
     }
 
-    private void NV21ToNV12(byte[] nv21, byte[] nv12) {
-        if (nv21 == null || nv12 == null) return;
-        int frameSize = MainActivity.WIDTH * MainActivity.HEIGHT;
-        int i, j;
-        System.arraycopy(nv21, 0, nv12, 0, frameSize);
-        for (i = 0; i < frameSize; i++) {
-            nv12[i] = nv21[i];
+    private EncodedPacket outputPacket(int index, ByteBuffer outputBuffer, MediaCodec.BufferInfo info, long captureNs) {
+        if (index >= outputPackets.length) {
+            outputPackets = Arrays.copyOf(outputPackets, index + 1);
+            outputRecyclers = Arrays.copyOf(outputRecyclers, index + 1);
         }
-        for (j = 0; j < frameSize / 2; j += 2) {
-            nv12[frameSize + j - 1] = nv21[j + frameSize];
+        EncodedPacket packet = outputPackets[index];
+        if (packet == null || packet.references() > 0) {
+            // still held by a consumer from a previous round, which the codec should not allow
+            packet = new EncodedPacket();
+            outputPackets[index] = packet;
         }
-        for (j = 0; j < frameSize / 2; j += 2) {
-            nv12[frameSize + j] = nv21[j + frameSize - 1];
+        if (outputRecyclers[index] == null) outputRecyclers[index] = new OutputRecycler(index);
+        outputBuffer.limit(info.offset + info.size).position(info.offset);
+        boolean key = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        packet.reset(key ? configBuffer : null, outputBuffer, info.presentationTimeUs, captureNs, info.flags,
+                outputRecyclers[index]);
+        return packet;
+    }
+
+    private class OutputRecycler implements EncodedPacket.Recycler {
+        private final int index;
+
+        OutputRecycler(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void recycle(EncodedPacket packet) {
+            mediaCodec.releaseOutput(index, false);
         }
     }
+
+    // output callbacks arrive on one thread, no locking needed
+    private void onFeedback(int size) {
+        framesOut++;
+        tickBytes += size;
+        long now = SystemClock.elapsedRealtime();
+        if (tickStartMs == 0) tickStartMs = now;
+        long elapsed = now - tickStartMs;
+        if (elapsed < CONTROL_TICK_MS) return;
+        int backlog = frameSource.pending() + (int) (framesQueued - framesOut);
+        ConsumerLag lag = consumerLag;
+        controller.onTick(now, tickBytes * 8000 / elapsed, backlog, lag != null ? lag.consumerLagMs() : 0);
+        tickBytes = 0;
+        tickStartMs = now;
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+    }
+
+    @Override
+    public void onError(Exception e) {
+        e.printStackTrace();
+    }
 }
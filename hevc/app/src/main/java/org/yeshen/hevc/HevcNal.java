@@ -0,0 +1,93 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// HEVC nal_unit_type values (ITU-T H.265 table 7-1) and header helpers
+final class HevcNal {
+
+    static final int TRAIL_N = 0;
+    static final int TRAIL_R = 1;
+    static final int RASL_R = 9;
+    static final int BLA_W_LP = 16;
+    static final int BLA_N_LP = 18;
+    static final int IDR_W_RADL = 19;
+    static final int IDR_N_LP = 20;
+    static final int CRA_NUT = 21;
+    static final int RSV_IRAP_23 = 23;
+    static final int VPS = 32;
+    static final int SPS = 33;
+    static final int PPS = 34;
+    static final int AUD = 35;
+    static final int EOS = 36;
+    static final int EOB = 37;
+    static final int FD = 38;
+    static final int SEI_PREFIX = 39;
+    static final int SEI_SUFFIX = 40;
+    // RFC 7798 payload types, never seen in a bitstream
+    static final int AP = 48;
+    static final int FU = 49;
+
+    private HevcNal() {
+    }
+
+    // type from the first byte of the two byte nal_unit_header
+    static int type(byte header0) {
+        return (header0 >> 1) & 0x3F;
+    }
+
+    static boolean isVcl(int type) {
+        return type < VPS;
+    }
+
+    static boolean isIrap(int type) {
+        return type >= BLA_W_LP && type <= RSV_IRAP_23;
+    }
+
+    static boolean isIdr(int type) {
+        return type == IDR_W_RADL || type == IDR_N_LP;
+    }
+
+    static boolean isParameterSet(int type) {
+        return type == VPS || type == SPS || type == PPS;
+    }
+
+    // NALs that may precede the first slice of an access unit
+    static boolean startsAccessUnit(int type) {
+        return type == AUD || isParameterSet(type) || type == SEI_PREFIX || (type >= 41 && type <= 44);
+    }
+
+    static String name(int type) {
+        switch (type) {
+            case TRAIL_N:
+                return "TRAIL_N";
+            case TRAIL_R:
+                return "TRAIL_R";
+            case IDR_W_RADL:
+                return "IDR_W_RADL";
+            case IDR_N_LP:
+                return "IDR_N_LP";
+            case CRA_NUT:
+                return "CRA";
+            case VPS:
+                return "VPS";
+            case SPS:
+                return "SPS";
+            case PPS:
+                return "PPS";
+            case AUD:
+                return "AUD";
+            case SEI_PREFIX:
+                return "SEI_PREFIX";
+            case SEI_SUFFIX:
+                return "SEI_SUFFIX";
+            default:
+                if (isIrap(type)) return "IRAP_" + type;
+                if (isVcl(type)) return "VCL_" + type;
+                return "NAL_" + type;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.yeshen.hevc;
+
+import java.nio.ByteBuffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// The leading fields of a sequence parameter set, as far as containers need them
+// (profile_tier_level, chroma format, picture size and bit depth).
+class HevcSps {
+
+    int maxSubLayersMinus1;
+    boolean temporalIdNesting;
+    int generalProfileSpace;
+    int generalTierFlag;
+    int generalProfileIdc;
+    long generalProfileCompatibilityFlags;
+    long generalConstraintIndicatorFlags;
+    int generalLevelIdc;
+    int chromaFormatIdc;
+    int width;
+    int height;
+    int bitDepthLumaMinus8;
+    int bitDepthChromaMinus8;
+
+    // nal covers the SPS NAL unit starting with its two byte header, without start code
+    static HevcSps parse(ByteBuffer buffer, int offset, int size) {
+        BitReader reader = new BitReader(buffer, offset + 2, size - 2);
+        HevcSps sps = new HevcSps();
+        reader.skip(4); // sps_video_parameter_set_id
+        sps.maxSubLayersMinus1 = reader.read(3);
+        sps.temporalIdNesting = reader.read(1) == 1;
+
+        sps.generalProfileSpace = reader.read(2);
+        sps.generalTierFlag = reader.read(1);
+        sps.generalProfileIdc = reader.read(5);
+        sps.generalProfileCompatibilityFlags = reader.readLong(32);
+        sps.generalConstraintIndicatorFlags = reader.readLong(48);
+        sps.generalLevelIdc = reader.read(8);
+        boolean[] profilePresent = new boolean[sps.maxSubLayersMinus1];
+        boolean[] levelPresent = new boolean[sps.maxSubLayersMinus1];
+        for (int i = 0; i < sps.maxSubLayersMinus1; i++) {
+            profilePresent[i] = reader.read(1) == 1;
+            levelPresent[i] = reader.read(1) == 1;
+        }
+        if (sps.maxSubLayersMinus1 > 0) {
+            reader.skip(2 * (8 - sps.maxSubLayersMinus1));
+        }
+        for (int i = 0; i < sps.maxSubLayersMinus1; i++) {
+            if (profilePresent[i]) reader.skip(88);
+            if (levelPresent[i]) reader.skip(8);
+        }
+
+        reader.readUe(); // sps_seq_parameter_set_id
+        sps.chromaFormatIdc = reader.readUe();
+        if (sps.chromaFormatIdc == 3) reader.skip(1); // separate_colour_plane_flag
+        sps.width = reader.readUe();
+        sps.height = reader.readUe();
+        if (reader.read(1) == 1) {
+            int subWidth = sps.chromaFormatIdc == 1 || sps.chromaFormatIdc == 2 ? 2 : 1;
+            int subHeight = sps.chromaFormatIdc == 1 ? 2 : 1;
+            int left = reader.readUe();
+            int right = reader.readUe();
+            int top = reader.readUe();
+            int bottom = reader.readUe();
+            sps.width -= subWidth * (left + right);
+            sps.height -= subHeight * (top + bottom);
+        }
+        sps.bitDepthLumaMinus8 = reader.readUe();
+        sps.bitDepthChromaMinus8 = reader.readUe();
+        return sps;
+    }
+
+    // reads RBSP bits, dropping emulation prevention bytes (00 00 03)
+    static final class BitReader {
+        private final ByteBuffer buffer;
+        private final int end;
+        private int position;
+        private int zeros;
+        private int current;
+        private int bitsLeft;
+
+        BitReader(ByteBuffer buffer, int offset, int size) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + size;
+        }
+
+        private int nextByte() {
+            if (position >= end) throw new IllegalArgumentException("truncated parameter set");
+            int value = buffer.get(position++) & 0xFF;
+            if (zeros >= 2 && value == 3) {
+                zeros = 0;
+                if (position >= end) throw new IllegalArgumentException("truncated parameter set");
+                value = buffer.get(position++) & 0xFF;
+            }
+            zeros = value == 0 ? zeros + 1 : 0;
+            return value;
+        }
+
+        int read(int bits) {
+            int value = 0;
+            for (int i = 0; i < bits; i++) {
+                if (bitsLeft == 0) {
+                    current = nextByte();
+                    bitsLeft = 8;
+                }
+                bitsLeft--;
+                value = (value << 1) | ((current >> bitsLeft) & 1);
+            }
+            return value;
+        }
+
+        long readLong(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i += 16) {
+                int chunk = Math.min(16, bits - i);
+                value = (value << chunk) | read(chunk);
+            }
+            return value;
+        }
+
+        void skip(int bits) {
+            for (; bits > 16; bits -= 16) read(16);
+            read(bits);
+        }
+
+        int readUe() {
+            int leadingZeros = 0;
+            while (read(1) == 0) {
+                if (++leadingZeros > 31) throw new IllegalArgumentException("bad exp-golomb code");
+            }
+            return leadingZeros == 0 ? 0 : (1 << leadingZeros) - 1 + read(leadingZeros);
+        }
+    }
+}
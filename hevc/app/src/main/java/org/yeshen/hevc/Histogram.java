@@ -0,0 +1,102 @@
+package org.yeshen.hevc;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Lock-free histogram of non-negative values in fixed log-linear buckets, the layout
+// of HdrHistogram with 3 significant bits: values below 8 get a bucket each, every
+// power of two above that is split into 8 equal buckets. Percentiles are reported as
+// the upper bound of their bucket, so they are at most 12.5% high. Recording does not
+// allocate and costs two uncontended atomic adds.
+class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // the highest bit of a positive long is bit 62
+    private static final int BUCKETS = (62 - SUB_BITS + 2) * SUB_BUCKETS;
+
+    final String name;
+    final String unit;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(index(value));
+        sum.addAndGet(value);
+        while (true) {
+            long current = max.get();
+            if (value <= current || max.compareAndSet(current, value)) break;
+        }
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // largest value that falls into bucket i
+    private static long upperBound(int i) {
+        if (i < SUB_BUCKETS) return i;
+        int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+        long width = 1L << (exponent - SUB_BITS);
+        long lower = (SUB_BUCKETS + i % SUB_BUCKETS) * width;
+        return lower + width - 1;
+    }
+
+    // summed up on demand, so that recording has one atomic add less
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += buckets.get(i);
+        return count;
+    }
+
+    long mean() {
+        long n = count();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    // upper bound of the bucket holding the given percentile, 0..100
+    long percentile(double percentile) {
+        long n = count();
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, rank)) return Math.min(max.get(), upperBound(i));
+        }
+        return max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s{n=%d mean=%d p50=%d p99=%d max=%d %s}", name, count(), mean(),
+                percentile(50), percentile(99), max(), unit);
+    }
+}
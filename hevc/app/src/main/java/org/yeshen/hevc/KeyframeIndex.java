@@ -0,0 +1,196 @@
+package org.yeshen.hevc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Offsets of the random access points of an Annex-B stream, filled by AnnexBScanner.
+// A keyframe offset points at the first NAL of its access unit (usually the VPS),
+// so decoding can start right there; frame is the access unit number of the keyframe.
+// build() makes the same table from any SampleReader, with presentation times and
+// offsets that SampleReader.seek() takes; load() keeps it next to the file as a
+// sidecar, so a recording is only walked once.
+class KeyframeIndex implements AnnexBScanner.Listener {
+
+    static final String SIDECAR_SUFFIX = ".kfi";
+    // "KFI" and a version, bumped whenever the layout changes
+    private static final int MAGIC = 0x4b464901;
+    private static final long UNKNOWN_TIME = -1;
+
+    private long[] offsets = new long[64];
+    private long[] frames = new long[64];
+    private long[] times = new long[64];
+    private int count;
+    private long frameCount;
+    private long auStart = -1;
+    private boolean sawVcl;
+
+    @Override
+    public void onNal(ByteBuffer buffer, int offset, int size, int type, long streamOffset) {
+        if (HevcNal.isVcl(type)) {
+            // first_slice_segment_in_pic_flag is the top bit after the nal header
+            boolean firstSlice = size > 2 && (buffer.get(offset + 2) & 0x80) != 0;
+            if (firstSlice) {
+                if (HevcNal.isIrap(type)) add(auStart >= 0 ? auStart : streamOffset, frameCount);
+                frameCount++;
+            }
+            sawVcl = true;
+            auStart = -1;
+        } else if (HevcNal.startsAccessUnit(type)) {
+            if (auStart < 0 || sawVcl) auStart = streamOffset;
+            sawVcl = false;
+        }
+    }
+
+    void add(long offset, long frame) {
+        add(offset, frame, UNKNOWN_TIME);
+    }
+
+    void add(long offset, long frame, long presentationTimeUs) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            frames = Arrays.copyOf(frames, count * 2);
+            times = Arrays.copyOf(times, count * 2);
+        }
+        offsets[count] = offset;
+        frames[count] = frame;
+        times[count] = presentationTimeUs;
+        count++;
+    }
+
+    // walks the rest of reader, the caller seeks it back if it still needs it
+    static KeyframeIndex build(SampleReader reader) throws IOException {
+        KeyframeIndex index = new KeyframeIndex();
+        SampleReader.Sample sample = new SampleReader.Sample();
+        while (reader.next(sample)) {
+            if (sample.flags != 0) index.add(sample.offset, index.frameCount, sample.presentationTimeUs);
+            index.frameCount++;
+        }
+        return index;
+    }
+
+    // the sidecar of file if it is still current, otherwise a fresh index, saved for next time
+    static KeyframeIndex load(File file, int annexBFrameRate) throws IOException {
+        File sidecar = sidecar(file);
+        if (sidecar.exists()) {
+            try {
+                KeyframeIndex index = read(sidecar, file);
+                if (index != null) return index;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        KeyframeIndex index;
+        SampleReader reader = SampleReader.open(file, annexBFrameRate);
+        try {
+            index = build(reader);
+        } finally {
+            reader.close();
+        }
+        try {
+            index.write(sidecar, file);
+        } catch (IOException e) {
+            // e.g. a read-only directory, the index just isn't cached
+            e.printStackTrace();
+        }
+        return index;
+    }
+
+    static File sidecar(File file) {
+        return new File(file.getPath() + SIDECAR_SUFFIX);
+    }
+
+    // null if the sidecar was written for another version of source
+    static KeyframeIndex read(File sidecar, File source) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+        try {
+            if (in.readInt() != MAGIC) return null;
+            if (in.readLong() != source.length() || in.readLong() != source.lastModified()) return null;
+            KeyframeIndex index = new KeyframeIndex();
+            index.frameCount = in.readLong();
+            int count = in.readInt();
+            if (count < 0) throw new IOException("bad keyframe count " + count);
+            for (int i = 0; i < count; i++) {
+                index.add(in.readLong(), in.readLong(), in.readLong());
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    // written aside and renamed, a reader never sees half an index
+    void write(File sidecar, File source) throws IOException {
+        File temp = new File(sidecar.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeLong(frameCount);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(offsets[i]);
+                out.writeLong(frames[i]);
+                out.writeLong(times[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(sidecar)) {
+            temp.delete();
+            throw new IOException("can't rename " + temp + " to " + sidecar);
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    long offset(int i) {
+        return offsets[i];
+    }
+
+    long frame(int i) {
+        return frames[i];
+    }
+
+    // -1 for keyframes found by the scanner, which sees no timestamps
+    long presentationTimeUs(int i) {
+        return times[i];
+    }
+
+    // access units seen so far, keyframes included
+    long frameCount() {
+        return frameCount;
+    }
+
+    // index of the last keyframe at or before frame, or -1
+    int floor(long frame) {
+        int i = Arrays.binarySearch(frames, 0, count, frame);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    // index of the last keyframe presented at or before presentationTimeUs, or -1;
+    // keyframes are in presentation order, nothing is reordered across one
+    int floorTime(long presentationTimeUs) {
+        int i = Arrays.binarySearch(times, 0, count, presentationTimeUs);
+        if (i < 0) return -i - 2;
+        // the last of equal timestamps
+        while (i + 1 < count && times[i + 1] == presentationTimeUs) i++;
+        return i;
+    }
+}
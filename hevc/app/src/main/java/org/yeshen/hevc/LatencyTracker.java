@@ -0,0 +1,65 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Glass-to-glass latency: the capture time of each received frame is remembered by
+// presentation time until the decoder renders that frame. Both ends must share the
+// System.nanoTime clock, so this is only meaningful on loopback or the same device.
+class LatencyTracker {
+
+    // frames between arrival and render, more than any decoder holds
+    private static final int CAPACITY = 64;
+
+    private final long[] presentationTimesUs = new long[CAPACITY];
+    private final long[] captureTimesNs = new long[CAPACITY];
+    private int next;
+
+    private long count;
+    private long sumNs;
+    private long maxNs;
+    private long lastNs;
+
+    synchronized void onReceived(long presentationTimeUs, long captureTimeNs) {
+        if (captureTimeNs == 0) return;
+        presentationTimesUs[next] = presentationTimeUs;
+        captureTimesNs[next] = captureTimeNs;
+        next = (next + 1) % CAPACITY;
+    }
+
+    synchronized void onRendered(long presentationTimeUs) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (captureTimesNs[i] != 0 && presentationTimesUs[i] == presentationTimeUs) {
+                record(System.nanoTime() - captureTimesNs[i]);
+                captureTimesNs[i] = 0;
+                return;
+            }
+        }
+    }
+
+    synchronized void record(long latencyNs) {
+        count++;
+        sumNs += latencyNs;
+        maxNs = Math.max(maxNs, latencyNs);
+        lastNs = latencyNs;
+    }
+
+    synchronized long count() {
+        return count;
+    }
+
+    synchronized long meanUs() {
+        return count == 0 ? 0 : sumNs / count / 1000;
+    }
+
+    synchronized long maxUs() {
+        return maxNs / 1000;
+    }
+
+    synchronized long lastUs() {
+        return lastNs / 1000;
+    }
+}
@@ -5,9 +5,21 @@ import android.hardware.Camera;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PreviewCallback;
 import android.os.Bundle;
+import android.os.Environment;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /*********************************************************************
@@ -18,15 +30,42 @@ import android.view.SurfaceView;
 
 public class MainActivity extends AppCompatActivity {
 
+    private static final String TAG = "MainActivity";
+
     private Camera camera;
 
     public static final int WIDTH = 1280;
     public static final int HEIGHT = 720;
     public static final int FRAME_RATE = 30;
     public static final int TIMEOUT_US = 12000;
+    private static final int BIT_RATE = WIDTH * HEIGHT * 5;
+    // record the 720p/480p/240p ladder of SimulcastLadder instead of a single stream
+    private static final boolean SIMULCAST = false;
+    // a tap on the left half of the echo view jumps back this far, on the right half forward
+    private static final long SEEK_STEP_US = 10000000;
+    // also stream the camera encoding over RTP to this address (a literal, it is not looked
+    // up off the UI thread), null to only record
+    private static final String STREAM_HOST = null;
+    private static final int STREAM_PORT = 5004;
+    private static final int STREAM_RING = 64;
 
+    private final FramePool framePool = new FramePool(WIDTH * HEIGHT * 3 / 2, FramePool.DEFAULT_DEPTH);
+    private final CameraFrameSource frameSource = new CameraFrameSource(framePool);
     private HevcEncodeThread avcEncode;
+    // consumers of the encoded stream (recorder, network sender) subscribe here and share
+    // one pooled copy of every packet
+    private final PacketBus packetBus = new PacketBus(
+            new EncodedPacketPool(WIDTH * HEIGHT / 4, HevcEncodeThread.poolDepth() + STREAM_RING));
+    private RtpSender rtpSender;
+    private EncoderFarm encoderFarm;
+    private SimulcastLadder ladder;
+    private RungRecorder rungRecorder;
+    private ExecutorService scalerPool;
+    // starts and stops the ladder, creating its encoders takes too long for the UI thread
+    private final ExecutorService ladderThread = Executors.newSingleThreadExecutor();
     private HevcDecodeThread avcDecode;
+    // creates the codecs while the camera opens
+    private CodecPrewarmer prewarmer;
     private SurfaceView mPreview;
     private SurfaceView mEchoView;
 
@@ -36,23 +75,45 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
         mPreview = findViewById(R.id.preview);
         mEchoView = findViewById(R.id.echo_view);
+        prewarmer = new CodecPrewarmer(new File(getCacheDir(), CodecCatalog.CACHE_FILE));
+        prewarmer.start();
 
         handleCameraPreview();
         handleEchoView();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        prewarmer.release();
+        ladderThread.shutdown();
+    }
+
     private void handleCameraPreview() {
         mPreview.getHolder().addCallback(new SurfaceHolder.Callback() {
             @Override
             public void surfaceCreated(SurfaceHolder holder) {
                 try {
                     camera = Camera.open(0);
-                    camera.setPreviewCallback(new PreviewCallback() {
+                    camera.setPreviewCallbackWithBuffer(new PreviewCallback() {
                         @Override
                         public void onPreviewFrame(byte[] data, Camera camera) {
-                            if (avcEncode != null) avcEncode.onFrame(data);
+                            framePool.checkout(data);
+                            frameSource.onFrame(data);
+                        }
+                    });
+                    final Camera target = camera;
+                    framePool.setRecycler(new FramePool.Recycler() {
+                        @Override
+                        public void recycle(byte[] buffer) {
+                            target.addCallbackBuffer(buffer);
                         }
                     });
+                    for (int i = 0; i < framePool.depth(); i++) {
+                        byte[] buffer = framePool.prefill();
+                        if (buffer == null) break;
+                        camera.addCallbackBuffer(buffer);
+                    }
                     camera.setDisplayOrientation(90);
                     Parameters parameters = camera.getParameters();
                     parameters.setPreviewFormat(ImageFormat.NV21);
@@ -63,8 +124,17 @@ public class MainActivity extends AppCompatActivity {
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
-                avcEncode = new HevcEncodeThread();
-                avcEncode.start();
+                if (SIMULCAST) {
+                    startLadder();
+                } else {
+                    avcEncode = new HevcEncodeThread(frameSource,
+                            new EncoderConfig("camera", WIDTH, HEIGHT, BIT_RATE, FRAME_RATE, 1),
+                            prewarmer.encoders());
+                    if (STREAM_HOST != null) startStreaming();
+                    avcEncode.setPacketBus(packetBus);
+                    avcEncode.setConsumerLag(packetBus);
+                    avcEncode.start();
+                }
             }
 
             @Override
@@ -75,16 +145,92 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void surfaceDestroyed(SurfaceHolder holder) {
                 if (null != camera) {
-                    camera.setPreviewCallback(null);
+                    camera.setPreviewCallbackWithBuffer(null);
                     camera.stopPreview();
+                    // frames still in flight or queued go back to the pool from here on,
+                    // a released camera throws on addCallbackBuffer
+                    framePool.setRecycler(null);
+                    if (avcEncode != null) avcEncode.stopThread();
+                    stopLadder();
+                    frameSource.clear();
                     camera.release();
                     camera = null;
-                    avcEncode.stopThread();
+                    packetBus.close();
+                    if (rtpSender != null) {
+                        Log.i(TAG, "sent packets=" + rtpSender.packetsSent() + " framesDropped=" + rtpSender.framesDropped());
+                        rtpSender.close();
+                        rtpSender = null;
+                    }
+                    Log.i(TAG, "metrics " + PipelineMetrics.toJson());
+                    Log.i(TAG, prewarmer.toString());
+                    framePool.clear();
+                }
+            }
+        });
+    }
+
+    private void startStreaming() {
+        try {
+            rtpSender = new RtpSender(new InetSocketAddress(STREAM_HOST, STREAM_PORT), (int) System.nanoTime(),
+                    RtpPacketizer.DEFAULT_MTU, BIT_RATE * 4);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        packetBus.subscribe("rtp", STREAM_RING, PacketBus.LagPolicy.SKIP_TO_KEYFRAME, rtpSender);
+    }
+
+    private void startLadder() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        encoderFarm = new EncoderFarm();
+        scalerPool = Executors.newFixedThreadPool(Math.max(1, cores - 1));
+        ladder = new SimulcastLadder(frameSource, WIDTH, HEIGHT, SimulcastLadder.defaultLadder(FRAME_RATE, 1),
+                encoderFarm, new YuvScaler(scalerPool, cores, 240));
+        rungRecorder = new RungRecorder(new File(Environment.getExternalStorageDirectory(), "Download"), "h265");
+        final SimulcastLadder starting = ladder;
+        final RungRecorder recorder = rungRecorder;
+        ladderThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    starting.start(recorder);
+                } catch (Exception e) {
+                    // not even one encoder; the rest goes with stopLadder()
+                    e.printStackTrace();
                 }
             }
         });
     }
 
+    // behind a start still in progress on ladderThread, and done once this returns
+    private void stopLadder() {
+        final SimulcastLadder stopping = ladder;
+        final EncoderFarm farm = encoderFarm;
+        final RungRecorder recorder = rungRecorder;
+        final ExecutorService scalers = scalerPool;
+        ladder = null;
+        encoderFarm = null;
+        rungRecorder = null;
+        scalerPool = null;
+        if (stopping == null) return;
+        Future<?> stopped = ladderThread.submit(new Runnable() {
+            @Override
+            public void run() {
+                stopping.stop();
+                farm.shutdown();
+                recorder.close();
+                scalers.shutdown();
+            }
+        });
+        try {
+            stopped.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void handleEchoView() {
         mEchoView.getHolder().addCallback(new SurfaceHolder.Callback() {
             @Override
@@ -95,7 +241,7 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
                 if (avcDecode == null) {
-                    avcDecode = new HevcDecodeThread(holder.getSurface());
+                    avcDecode = new HevcDecodeThread(holder.getSurface(), prewarmer.decoders());
                     avcDecode.start();
                     mEchoView.bringToFront();
                 }
@@ -108,5 +254,17 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         });
+        mEchoView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                if (event.getAction() != MotionEvent.ACTION_UP) return true;
+                v.performClick();
+                if (avcDecode != null) {
+                    long step = event.getX() < v.getWidth() / 2 ? -SEEK_STEP_US : SEEK_STEP_US;
+                    avcDecode.seekTo(Math.max(0, avcDecode.positionUs() + step));
+                }
+                return true;
+            }
+        });
     }
 }
@@ -0,0 +1,81 @@
+package org.yeshen.hevc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Read-only random access to a file of any size through one sliding memory mapped window.
+class MappedFile implements Closeable {
+
+    static final int DEFAULT_WINDOW = 64 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final int window;
+    private MappedByteBuffer mapped;
+    private long base;
+
+    MappedFile(File path) throws IOException {
+        this(path, DEFAULT_WINDOW);
+    }
+
+    MappedFile(File path, int window) throws IOException {
+        this.file = new RandomAccessFile(path, "r");
+        this.channel = file.getChannel();
+        this.size = channel.size();
+        this.window = window;
+    }
+
+    long size() {
+        return size;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    // a view of [offset, offset + length); valid until the next call
+    ByteBuffer slice(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IOException("read of " + length + " bytes at " + offset + " beyond " + size);
+        }
+        if (mapped == null || offset < base || offset + length > base + mapped.capacity()) {
+            int mapLength = (int) Math.min(Math.max(window, length), size - offset);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapLength);
+            base = offset;
+        }
+        ByteBuffer view = mapped.duplicate();
+        int start = (int) (offset - base);
+        view.limit(start + length).position(start);
+        return view;
+    }
+
+    int readInt(long offset) throws IOException {
+        return slice(offset, 4).getInt();
+    }
+
+    long readLong(long offset) throws IOException {
+        return slice(offset, 8).getLong();
+    }
+
+    int readUnsignedByte(long offset) throws IOException {
+        return slice(offset, 1).get() & 0xFF;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped = null;
+        file.close();
+    }
+}
@@ -0,0 +1,106 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Maps media time to the monotonic System.nanoTime base: media time advances
+// at rate times real time from an anchor, and is re-anchored on every rate or
+// pause change so that it never jumps.
+class MediaClock {
+
+    interface TimeSource {
+        long nanoTime();
+    }
+
+    static final TimeSource SYSTEM = new TimeSource() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final TimeSource time;
+    private long anchorNs;
+    private long anchorMediaUs;
+    private float rate = 1f;
+    private boolean started;
+    private boolean paused;
+
+    MediaClock() {
+        this(SYSTEM);
+    }
+
+    MediaClock(TimeSource time) {
+        this.time = time;
+    }
+
+    long nowNs() {
+        return time.nanoTime();
+    }
+
+    // media time mediaUs is presented at nanoTime atNs
+    synchronized void start(long mediaUs, long atNs) {
+        anchorMediaUs = mediaUs;
+        anchorNs = atNs;
+        started = true;
+    }
+
+    // back to not started, the next start() anchors it anew, e.g. after a seek
+    synchronized void reset() {
+        started = false;
+    }
+
+    synchronized boolean isStarted() {
+        return started;
+    }
+
+    synchronized boolean isPaused() {
+        return paused;
+    }
+
+    synchronized float rate() {
+        return rate;
+    }
+
+    synchronized void setRate(float rate) {
+        if (rate <= 0) throw new IllegalArgumentException("rate must be positive: " + rate);
+        reanchor();
+        this.rate = rate;
+    }
+
+    synchronized void pause() {
+        if (paused) return;
+        reanchor();
+        paused = true;
+    }
+
+    synchronized void resume() {
+        if (!paused) return;
+        anchorNs = time.nanoTime();
+        paused = false;
+    }
+
+    synchronized long mediaTimeUs() {
+        return mediaTimeUs(time.nanoTime());
+    }
+
+    synchronized long mediaTimeUs(long nowNs) {
+        if (!started || paused) return anchorMediaUs;
+        return anchorMediaUs + (long) ((nowNs - anchorNs) * rate / 1000);
+    }
+
+    // nanoTime at which mediaUs is due, Long.MAX_VALUE while stopped or paused
+    synchronized long nanoTimeOf(long mediaUs) {
+        if (!started || paused) return Long.MAX_VALUE;
+        return anchorNs + (long) ((mediaUs - anchorMediaUs) * 1000 / rate);
+    }
+
+    private void reanchor() {
+        long now = time.nanoTime();
+        anchorMediaUs = mediaTimeUs(now);
+        if (started) anchorNs = now;
+    }
+}
@@ -0,0 +1,204 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Codec backed by a real MediaCodec, hiding the pre-LOLLIPOP buffer arrays.
+class MediaCodecAdapter implements Codec {
+
+    private final MediaCodec mCodec;
+    private final Looper mLooper;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    MediaCodecAdapter(MediaCodec codec) {
+        mCodec = codec;
+        // before M the callback is delivered on the looper of the thread creating the codec
+        mLooper = Looper.myLooper();
+    }
+
+    // by name once a CodecCatalog is loaded, which spares MediaCodec its own lookup
+    static Codec.Factory encoderFactory(final String mime) {
+        return new Codec.Factory() {
+            @Override
+            public Codec create() throws IOException {
+                CodecCatalog catalog = CodecCatalog.shared();
+                CodecCatalog.Entry entry = catalog != null ? catalog.encoder(mime) : null;
+                return new MediaCodecAdapter(entry != null
+                        ? MediaCodec.createByCodecName(entry.name) : MediaCodec.createEncoderByType(mime));
+            }
+        };
+    }
+
+    static Codec.Factory decoderFactory(final String mime) {
+        return new Codec.Factory() {
+            @Override
+            public Codec create() throws IOException {
+                CodecCatalog catalog = CodecCatalog.shared();
+                CodecCatalog.Entry entry = catalog != null ? catalog.decoder(mime) : null;
+                return new MediaCodecAdapter(entry != null
+                        ? MediaCodec.createByCodecName(entry.name) : MediaCodec.createDecoderByType(mime));
+            }
+        };
+    }
+
+    MediaCodec mediaCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public String getName() {
+        return mCodec.getName();
+    }
+
+    @Override
+    public boolean supportsCallback() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        MediaCodec.Callback bridge = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mLooper != null) {
+            mCodec.setCallback(bridge, new Handler(mLooper));
+        } else {
+            mCodec.setCallback(bridge);
+        }
+    }
+
+    @Override
+    public void configure(MediaFormat format, Surface surface, int flags) {
+        mCodec.configure(format, surface, null, flags);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mInputBuffers = mCodec.getInputBuffers();
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            ByteBuffer buffer = mInputBuffers[index];
+            buffer.clear();
+            return buffer;
+        }
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        int index = mCodec.dequeueOutputBuffer(info, timeoutUs);
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED && Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return mOutputBuffers[index];
+        }
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mCodec.releaseOutputBuffer(index, renderTimestampNs);
+        } else {
+            mCodec.releaseOutputBuffer(index, true);
+        }
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mCodec.setParameters(params);
+        }
+    }
+
+    @Override
+    public void flush() {
+        mCodec.flush();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+}
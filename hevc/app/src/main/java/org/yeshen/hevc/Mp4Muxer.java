@@ -0,0 +1,423 @@
+package org.yeshen.hevc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Writes encoder output as fragmented MP4 (ISO/IEC 14496-12 and 14496-15):
+// ftyp + moov once the codec config is known, then a moof + mdat pair every
+// fragmentFrames samples. Annex-B start codes are rewritten to 4 byte NAL lengths
+// while samples are staged in a direct buffer, which is written out together with
+// the box headers in one gathering write. The file is playable after every fragment.
+class Mp4Muxer implements Closeable {
+
+    static final int TIMESCALE = 90000;
+
+    private static final int TRACK_ID = 1;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int STAGING_SIZE = 2 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final int fragmentFrames;
+    private final boolean inBandParameterSets;
+    private final long defaultDuration;
+    private final BoxWriter boxes = new BoxWriter(4096);
+    private final ByteBuffer mdatHeader = ByteBuffer.allocate(8);
+    private final ByteBuffer[] gather = new ByteBuffer[4];
+    private ByteBuffer padding = ByteBuffer.allocate(0);
+    private int alignment;
+    private final AnnexBScanner scanner = new AnnexBScanner();
+    private final AnnexBScanner.Listener stager = new AnnexBScanner.Listener() {
+        @Override
+        public void onNal(ByteBuffer buffer, int offset, int size, int type, long streamOffset) {
+            if (type == HevcNal.AUD || (!inBandParameterSets && HevcNal.isParameterSet(type))) return;
+            ByteBuffer nal = buffer.duplicate();
+            nal.limit(offset + size).position(offset);
+            staging.putInt(size);
+            staging.put(nal);
+        }
+    };
+
+    private ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+    private long[] times = new long[64];
+    private int[] sizes = new int[64];
+    private boolean[] syncs = new boolean[64];
+    private int sampleCount;
+    private int sequence = 1;
+    private long firstTime = -1;
+    private long lastDuration;
+    private boolean headerWritten;
+    private HevcSps sps;
+
+    // a fragment is cut at every sync sample and after at most fragmentFrames samples;
+    // with inBandParameterSets the track is hev1 and VPS/SPS/PPS stay in the samples
+    Mp4Muxer(FileChannel channel, int fragmentFrames, int frameRate, boolean inBandParameterSets) {
+        this.channel = channel;
+        this.fragmentFrames = fragmentFrames;
+        this.inBandParameterSets = inBandParameterSets;
+        this.defaultDuration = TIMESCALE / Math.max(1, frameRate);
+        this.lastDuration = defaultDuration;
+    }
+
+    // pads every fragment with a free box so that each fragment write ends on a multiple
+    // of alignment bytes (e.g. the 4K flash page), 0 turns it off
+    void setWriteAlignment(int alignment) {
+        if (alignment < 0) throw new IllegalArgumentException("bad alignment " + alignment);
+        this.alignment = alignment;
+        this.padding = ByteBuffer.allocate(alignment == 0 ? 0 : alignment + 8);
+    }
+
+    boolean isStarted() {
+        return headerWritten;
+    }
+
+    HevcSps sps() {
+        return sps;
+    }
+
+    // the BUFFER_FLAG_CODEC_CONFIG output: VPS, SPS and PPS in Annex-B;
+    // width and height are only used if the SPS carries no usable size
+    void writeConfig(ByteBuffer config, int width, int height) throws IOException {
+        if (headerWritten) return;
+        final List<byte[]> vps = new ArrayList<>();
+        final List<byte[]> spss = new ArrayList<>();
+        final List<byte[]> pps = new ArrayList<>();
+        scanner.scan(config.duplicate(), new AnnexBScanner.Listener() {
+            @Override
+            public void onNal(ByteBuffer buffer, int offset, int size, int type, long streamOffset) {
+                byte[] nal = new byte[size];
+                ByteBuffer src = buffer.duplicate();
+                src.limit(offset + size).position(offset);
+                src.get(nal);
+                if (type == HevcNal.VPS) vps.add(nal);
+                else if (type == HevcNal.SPS) spss.add(nal);
+                else if (type == HevcNal.PPS) pps.add(nal);
+            }
+        });
+        if (vps.isEmpty() || spss.isEmpty() || pps.isEmpty()) {
+            throw new IOException("codec config lacks VPS/SPS/PPS");
+        }
+        byte[] first = spss.get(0);
+        sps = HevcSps.parse(ByteBuffer.wrap(first), 0, first.length);
+        if (sps.width > 0 && sps.height > 0) {
+            width = sps.width;
+            height = sps.height;
+        }
+
+        BoxWriter w = boxes.reset();
+        int ftyp = w.begin("ftyp");
+        w.fourcc("iso5").putInt(512).fourcc("iso5").fourcc("iso6").fourcc("mp41");
+        w.end(ftyp);
+
+        int moov = w.begin("moov");
+        int mvhd = w.beginFull("mvhd", 0, 0);
+        w.putInt(0).putInt(0).putInt(1000).putInt(0);
+        w.putInt(0x00010000).putShort(0x0100).zeros(10).matrix().zeros(24).putInt(TRACK_ID + 1);
+        w.end(mvhd);
+
+        int trak = w.begin("trak");
+        int tkhd = w.beginFull("tkhd", 0, 3);
+        w.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0).zeros(8);
+        w.putShort(0).putShort(0).putShort(0).putShort(0).matrix();
+        w.putInt(width << 16).putInt(height << 16);
+        w.end(tkhd);
+        int mdia = w.begin("mdia");
+        int mdhd = w.beginFull("mdhd", 0, 0);
+        w.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putShort(0x55C4).putShort(0);
+        w.end(mdhd);
+        int hdlr = w.beginFull("hdlr", 0, 0);
+        w.putInt(0).fourcc("vide").zeros(12).ascii("VideoHandler").put((byte) 0);
+        w.end(hdlr);
+        int minf = w.begin("minf");
+        int vmhd = w.beginFull("vmhd", 0, 1);
+        w.zeros(8);
+        w.end(vmhd);
+        int dinf = w.begin("dinf");
+        int dref = w.beginFull("dref", 0, 0);
+        w.putInt(1);
+        int url = w.beginFull("url ", 0, 1);
+        w.end(url);
+        w.end(dref);
+        w.end(dinf);
+        int stbl = w.begin("stbl");
+        int stsd = w.beginFull("stsd", 0, 0);
+        w.putInt(1);
+        int entry = w.begin(inBandParameterSets ? "hev1" : "hvc1");
+        w.zeros(6).putShort(1).zeros(16).putShort(width).putShort(height);
+        w.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort(1).zeros(32).putShort(0x18).putShort(0xFFFF);
+        writeHvcC(w, sps, vps, spss, pps);
+        w.end(entry);
+        w.end(stsd);
+        for (String empty : new String[]{"stts", "stsc", "stco"}) {
+            int box = w.beginFull(empty, 0, 0);
+            w.putInt(0);
+            w.end(box);
+        }
+        int stsz = w.beginFull("stsz", 0, 0);
+        w.putInt(0).putInt(0);
+        w.end(stsz);
+        w.end(stbl);
+        w.end(minf);
+        w.end(mdia);
+        w.end(trak);
+
+        int mvex = w.begin("mvex");
+        int trex = w.beginFull("trex", 0, 0);
+        w.putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0);
+        w.end(trex);
+        w.end(mvex);
+        w.end(moov);
+
+        writeFully(w.flip());
+        headerWritten = true;
+    }
+
+    private static void writeHvcC(BoxWriter w, HevcSps sps, List<byte[]> vps, List<byte[]> spss, List<byte[]> pps) {
+        int hvcC = w.begin("hvcC");
+        w.put((byte) 1);
+        w.put((byte) ((sps.generalProfileSpace << 6) | (sps.generalTierFlag << 5) | sps.generalProfileIdc));
+        w.putInt((int) sps.generalProfileCompatibilityFlags);
+        w.putShort((int) (sps.generalConstraintIndicatorFlags >>> 32)).putInt((int) sps.generalConstraintIndicatorFlags);
+        w.put((byte) sps.generalLevelIdc);
+        w.putShort(0xF000);                                 // min_spatial_segmentation_idc
+        w.put((byte) 0xFC);                                 // parallelismType unknown
+        w.put((byte) (0xFC | sps.chromaFormatIdc));
+        w.put((byte) (0xF8 | sps.bitDepthLumaMinus8));
+        w.put((byte) (0xF8 | sps.bitDepthChromaMinus8));
+        w.putShort(0);                                      // avgFrameRate unspecified
+        w.put((byte) (((sps.maxSubLayersMinus1 + 1) << 3) | ((sps.temporalIdNesting ? 1 : 0) << 2) | 3));
+        w.put((byte) 3);
+        writeArray(w, HevcNal.VPS, vps);
+        writeArray(w, HevcNal.SPS, spss);
+        writeArray(w, HevcNal.PPS, pps);
+        w.end(hvcC);
+    }
+
+    private static void writeArray(BoxWriter w, int type, List<byte[]> nals) {
+        w.put((byte) (0x80 | type)).putShort(nals.size());
+        for (byte[] nal : nals) {
+            w.putShort(nal.length).put(nal);
+        }
+    }
+
+    // data covers one encoded access unit in Annex-B
+    void writeSample(ByteBuffer data, long presentationTimeUs, boolean sync) throws IOException {
+        if (!headerWritten) throw new IllegalStateException("writeConfig must come first");
+        int worstCase = data.remaining() + data.remaining() / 3 + 16;
+        if (sampleCount >= fragmentFrames || (sampleCount > 0 && sync) || staging.remaining() < worstCase) {
+            flush();
+        }
+        if (staging.capacity() < worstCase) {
+            staging = ByteBuffer.allocateDirect(worstCase);
+        }
+        int before = staging.position();
+        scanner.scan(data.duplicate(), stager);
+        if (sampleCount == times.length) {
+            times = Arrays.copyOf(times, sampleCount * 2);
+            sizes = Arrays.copyOf(sizes, sampleCount * 2);
+            syncs = Arrays.copyOf(syncs, sampleCount * 2);
+        }
+        long time = presentationTimeUs * TIMESCALE / 1000000;
+        if (firstTime < 0) firstTime = time;
+        times[sampleCount] = time - firstTime;
+        sizes[sampleCount] = staging.position() - before;
+        syncs[sampleCount] = sync;
+        sampleCount++;
+    }
+
+    // writes the pending samples as one moof + mdat fragment
+    void flush() throws IOException {
+        if (sampleCount == 0) return;
+        BoxWriter w = boxes.reset();
+        int moof = w.begin("moof");
+        int mfhd = w.beginFull("mfhd", 0, 0);
+        w.putInt(sequence++);
+        w.end(mfhd);
+        int traf = w.begin("traf");
+        int tfhd = w.beginFull("tfhd", 0, 0x020000);         // default-base-is-moof
+        w.putInt(TRACK_ID);
+        w.end(tfhd);
+        int tfdt = w.beginFull("tfdt", 1, 0);
+        w.putLong(times[0]);
+        w.end(tfdt);
+        int trun = w.beginFull("trun", 0, 0x000701);         // data offset, duration, size, flags
+        w.putInt(sampleCount);
+        int dataOffset = w.position();
+        w.putInt(0);
+        for (int i = 0; i < sampleCount; i++) {
+            // MediaCodec encoders emit in presentation order here, so durations follow the pts
+            long duration = i + 1 < sampleCount ? times[i + 1] - times[i] : lastDuration;
+            if (duration <= 0) duration = defaultDuration;
+            if (i + 1 == sampleCount) lastDuration = duration;
+            w.putInt((int) duration).putInt(sizes[i]).putInt(syncs[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        w.end(trun);
+        w.end(traf);
+        w.end(moof);
+        w.patchInt(dataOffset, w.position() + 8);
+
+        staging.flip();
+        mdatHeader.clear();
+        mdatHeader.putInt(8 + staging.remaining()).put((byte) 'm').put((byte) 'd').put((byte) 'a').put((byte) 't');
+        mdatHeader.flip();
+        gather[0] = w.flip();
+        gather[1] = mdatHeader;
+        gather[2] = staging;
+        long total = gather[0].remaining() + 8 + staging.remaining();
+        gather[3] = pad(channel.position() + total);
+        total += gather[3].remaining();
+        while (total > 0) {
+            total -= channel.write(gather);
+        }
+        staging.clear();
+        sampleCount = 0;
+    }
+
+    // a free box taking the write from end up to the next alignment boundary
+    private ByteBuffer pad(long end) {
+        padding.clear();
+        if (alignment == 0) return (ByteBuffer) padding.limit(0);
+        int size = (int) ((alignment - end % alignment) % alignment);
+        if (size == 0) return (ByteBuffer) padding.limit(0);
+        // a box needs at least its 8 byte header
+        if (size < 8) size += alignment;
+        padding.putInt(size).put((byte) 'f').put((byte) 'r').put((byte) 'e').put((byte) 'e');
+        padding.position(0).limit(size);
+        return padding;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // big endian box serializer over a growable heap buffer, for headers only
+    static final class BoxWriter {
+        private ByteBuffer buffer;
+
+        BoxWriter(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        BoxWriter reset() {
+            buffer.clear();
+            return this;
+        }
+
+        ByteBuffer flip() {
+            buffer.flip();
+            return buffer;
+        }
+
+        int position() {
+            return buffer.position();
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+
+        int begin(String type) {
+            int start = buffer.position();
+            putInt(0).fourcc(type);
+            return start;
+        }
+
+        int beginFull(String type, int version, int flags) {
+            int start = begin(type);
+            putInt((version << 24) | flags);
+            return start;
+        }
+
+        void end(int start) {
+            buffer.putInt(start, buffer.position() - start);
+        }
+
+        void patchInt(int position, int value) {
+            buffer.putInt(position, value);
+        }
+
+        BoxWriter fourcc(String type) {
+            return ascii(type);
+        }
+
+        BoxWriter ascii(String text) {
+            ensure(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                buffer.put((byte) text.charAt(i));
+            }
+            return this;
+        }
+
+        BoxWriter put(byte value) {
+            ensure(1);
+            buffer.put(value);
+            return this;
+        }
+
+        BoxWriter put(byte[] value) {
+            ensure(value.length);
+            buffer.put(value);
+            return this;
+        }
+
+        BoxWriter putShort(int value) {
+            ensure(2);
+            buffer.putShort((short) value);
+            return this;
+        }
+
+        BoxWriter putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        BoxWriter putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        BoxWriter zeros(int count) {
+            ensure(count);
+            for (int i = 0; i < count; i++) {
+                buffer.put((byte) 0);
+            }
+            return this;
+        }
+
+        // unity transformation matrix
+        BoxWriter matrix() {
+            return putInt(0x00010000).putInt(0).putInt(0)
+                    .putInt(0).putInt(0x00010000).putInt(0)
+                    .putInt(0).putInt(0).putInt(0x40000000);
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package org.yeshen.hevc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// The first hvc1/hev1 track of an ISO-BMFF file, either progressive (sample tables in moov)
+// or fragmented (moof/trun, as written by Mp4Muxer). Only box headers and tables are parsed,
+// sample data stays in the mapped file until read() rewrites NAL lengths to start codes.
+class Mp4SampleReader extends SampleReader {
+
+    static final int FTYP = fourcc("ftyp");
+    private static final int MOOV = fourcc("moov");
+    private static final int MOOF = fourcc("moof");
+    private static final int TRAK = fourcc("trak");
+    private static final int TRAF = fourcc("traf");
+
+    private final MappedFile file;
+    private int trackId;
+    private long timescale = 1;
+    private int lengthSize = 4;
+    private long moovEnd;
+
+    // samples of the moov tables, or of the current fragment
+    private long[] offsets = new long[0];
+    private int[] sizes = new int[0];
+    private long[] times = new long[0];
+    private boolean[] syncs = new boolean[0];
+    private int count;
+    private int cursor;
+
+    // fragment state
+    private int defaultDuration;
+    private int defaultSize;
+    private int defaultFlags;
+    private long nextBox;
+    private long nextDecodeTime;
+
+    Mp4SampleReader(MappedFile file) throws IOException {
+        this.file = file;
+        long moov = findBox(0, file.size(), MOOV);
+        if (moov < 0) throw new IOException("no moov box");
+        moovEnd = moov + boxSize(moov);
+        parseMoov(moov);
+        nextBox = moovEnd;
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private long boxSize(long box) throws IOException {
+        long size = file.readInt(box) & 0xFFFFFFFFL;
+        if (size == 1) return file.readLong(box + 8);
+        if (size == 0) return file.size() - box;
+        return size;
+    }
+
+    private long headerSize(long box) throws IOException {
+        return (file.readInt(box) & 0xFFFFFFFFL) == 1 ? 16 : 8;
+    }
+
+    // first box of type within [start, end), -1 if there is none
+    private long findBox(long start, long end, int type) throws IOException {
+        long box = start;
+        while (box + 8 <= end) {
+            long size = boxSize(box);
+            if (size < 8) throw new IOException("bad box size " + size + " at " + box);
+            if (file.readInt(box + 4) == type) return box;
+            box += size;
+        }
+        return -1;
+    }
+
+    private long child(long box, String path) throws IOException {
+        long current = box;
+        for (String type : path.split("/")) {
+            long start = current + headerSize(current);
+            current = findBox(start, current + boxSize(current), fourcc(type));
+            if (current < 0) return -1;
+        }
+        return current;
+    }
+
+    private void parseMoov(long moov) throws IOException {
+        long trak = findBox(moov + 8, moovEnd, TRAK);
+        while (trak >= 0) {
+            long stsd = child(trak, "mdia/minf/stbl/stsd");
+            if (stsd >= 0) {
+                long entry = stsd + 16;
+                int format = file.readInt(entry + 4);
+                if (format == fourcc("hvc1") || format == fourcc("hev1")) {
+                    parseTrack(moov, trak, entry);
+                    return;
+                }
+            }
+            trak = findBox(trak + boxSize(trak), moovEnd, TRAK);
+        }
+        throw new IOException("no HEVC track");
+    }
+
+    private void parseTrack(long moov, long trak, long entry) throws IOException {
+        long tkhd = child(trak, "tkhd");
+        trackId = file.readInt(tkhd + (file.readUnsignedByte(tkhd + 8) == 1 ? 28 : 20));
+        long mdhd = child(trak, "mdia/mdhd");
+        boolean v1 = file.readUnsignedByte(mdhd + 8) == 1;
+        timescale = file.readInt(mdhd + (v1 ? 28 : 20)) & 0xFFFFFFFFL;
+        long duration = v1 ? file.readLong(mdhd + 32) : file.readInt(mdhd + 24) & 0xFFFFFFFFL;
+        durationUs = duration * 1000000 / timescale;
+
+        width = file.slice(entry + 32, 2).getShort() & 0xFFFF;
+        height = file.slice(entry + 34, 2).getShort() & 0xFFFF;
+        long hvcC = findBox(entry + 8 + 78, entry + boxSize(entry), fourcc("hvcC"));
+        if (hvcC < 0) throw new IOException("no hvcC box");
+        parseHvcC(hvcC + 8);
+
+        long stbl = child(trak, "mdia/minf/stbl");
+        parseSampleTables(stbl);
+
+        long trex = findTrex(moov);
+        if (trex >= 0) {
+            defaultDuration = file.readInt(trex + 20);
+            defaultSize = file.readInt(trex + 24);
+            defaultFlags = file.readInt(trex + 28);
+        }
+    }
+
+    private long findTrex(long moov) throws IOException {
+        long mvex = child(moov, "mvex");
+        if (mvex < 0) return -1;
+        long end = mvex + boxSize(mvex);
+        long trex = findBox(mvex + 8, end, fourcc("trex"));
+        while (trex >= 0 && file.readInt(trex + 12) != trackId) {
+            trex = findBox(trex + boxSize(trex), end, fourcc("trex"));
+        }
+        return trex;
+    }
+
+    private void parseHvcC(long record) throws IOException {
+        lengthSize = (file.readUnsignedByte(record + 21) & 3) + 1;
+        int arrays = file.readUnsignedByte(record + 22);
+        long position = record + 23;
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        for (int i = 0; i < arrays; i++) {
+            int nals = file.slice(position + 1, 2).getShort() & 0xFFFF;
+            position += 3;
+            for (int j = 0; j < nals; j++) {
+                int length = file.slice(position, 2).getShort() & 0xFFFF;
+                byte[] nal = new byte[length];
+                file.slice(position + 2, length).get(nal);
+                config.write(0);
+                config.write(0);
+                config.write(0);
+                config.write(1);
+                config.write(nal, 0, length);
+                position += 2 + length;
+            }
+        }
+        csd = config.toByteArray();
+    }
+
+    private void parseSampleTables(long stbl) throws IOException {
+        long stsz = child(stbl, "stsz");
+        int sampleCount = stsz < 0 ? 0 : file.readInt(stsz + 16);
+        ensure(sampleCount);
+        count = sampleCount;
+        if (sampleCount == 0) return;
+
+        int fixedSize = file.readInt(stsz + 12);
+        for (int i = 0; i < sampleCount; i++) {
+            sizes[i] = fixedSize != 0 ? fixedSize : file.readInt(stsz + 20 + 4L * i);
+        }
+
+        long stco = child(stbl, "stco");
+        boolean co64 = stco < 0;
+        if (co64) stco = child(stbl, "co64");
+        int chunks = file.readInt(stco + 12);
+        long stsc = child(stbl, "stsc");
+        int entries = file.readInt(stsc + 12);
+        int sample = 0;
+        for (int e = 0; e < entries && sample < sampleCount; e++) {
+            int firstChunk = file.readInt(stsc + 16 + 12L * e);
+            int perChunk = file.readInt(stsc + 20 + 12L * e);
+            int lastChunk = e + 1 < entries ? file.readInt(stsc + 16 + 12L * (e + 1)) - 1 : chunks;
+            for (int chunk = firstChunk; chunk <= lastChunk && sample < sampleCount; chunk++) {
+                long offset = co64 ? file.readLong(stco + 16 + 8L * (chunk - 1))
+                        : file.readInt(stco + 16 + 4L * (chunk - 1)) & 0xFFFFFFFFL;
+                for (int k = 0; k < perChunk && sample < sampleCount; k++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+
+        long stts = child(stbl, "stts");
+        long decodeTime = 0;
+        sample = 0;
+        int sttsEntries = file.readInt(stts + 12);
+        for (int e = 0; e < sttsEntries; e++) {
+            int runs = file.readInt(stts + 16 + 8L * e);
+            int delta = file.readInt(stts + 20 + 8L * e);
+            for (int k = 0; k < runs && sample < sampleCount; k++) {
+                times[sample++] = decodeTime;
+                decodeTime += delta;
+            }
+        }
+        long ctts = child(stbl, "ctts");
+        if (ctts >= 0) {
+            sample = 0;
+            int cttsEntries = file.readInt(ctts + 12);
+            boolean signed = file.readUnsignedByte(ctts + 8) == 1;
+            for (int e = 0; e < cttsEntries; e++) {
+                int runs = file.readInt(ctts + 16 + 8L * e);
+                int offset = file.readInt(ctts + 20 + 8L * e);
+                long shift = signed ? offset : offset & 0xFFFFFFFFL;
+                for (int k = 0; k < runs && sample < sampleCount; k++) {
+                    times[sample++] += shift;
+                }
+            }
+        }
+
+        long stss = child(stbl, "stss");
+        if (stss < 0) {
+            Arrays.fill(syncs, 0, sampleCount, true);
+        } else {
+            int syncCount = file.readInt(stss + 12);
+            for (int e = 0; e < syncCount; e++) {
+                int number = file.readInt(stss + 16 + 4L * e);
+                if (number >= 1 && number <= sampleCount) syncs[number - 1] = true;
+            }
+        }
+        nextDecodeTime = decodeTime;
+    }
+
+    private void ensure(int capacity) {
+        if (offsets.length < capacity) {
+            offsets = new long[capacity];
+            sizes = new int[capacity];
+            times = new long[capacity];
+            syncs = new boolean[capacity];
+        } else {
+            Arrays.fill(syncs, false);
+        }
+    }
+
+    // loads the samples of our track from the next moof, false when there is none
+    private boolean nextFragment() throws IOException {
+        long moof = findBox(nextBox, file.size(), MOOF);
+        while (moof >= 0) {
+            nextBox = moof + boxSize(moof);
+            if (parseMoof(moof)) return true;
+            moof = findBox(nextBox, file.size(), MOOF);
+        }
+        nextBox = file.size();
+        return false;
+    }
+
+    private boolean parseMoof(long moof) throws IOException {
+        long end = moof + boxSize(moof);
+        long traf = findBox(moof + 8, end, TRAF);
+        while (traf >= 0) {
+            long trafEnd = traf + boxSize(traf);
+            long tfhd = findBox(traf + 8, trafEnd, fourcc("tfhd"));
+            if (tfhd >= 0 && file.readInt(tfhd + 12) == trackId) {
+                parseTraf(moof, traf, trafEnd, tfhd);
+                return count > 0;
+            }
+            traf = findBox(trafEnd, end, TRAF);
+        }
+        return false;
+    }
+
+    private void parseTraf(long moof, long traf, long trafEnd, long tfhd) throws IOException {
+        int tfhdFlags = file.readInt(tfhd + 8) & 0xFFFFFF;
+        long field = tfhd + 16;
+        long base = moof;
+        if ((tfhdFlags & 0x1) != 0) {
+            base = file.readLong(field);
+            field += 8;
+        }
+        if ((tfhdFlags & 0x2) != 0) field += 4;
+        int duration = defaultDuration;
+        int size = defaultSize;
+        int flags = defaultFlags;
+        if ((tfhdFlags & 0x8) != 0) {
+            duration = file.readInt(field);
+            field += 4;
+        }
+        if ((tfhdFlags & 0x10) != 0) {
+            size = file.readInt(field);
+            field += 4;
+        }
+        if ((tfhdFlags & 0x20) != 0) flags = file.readInt(field);
+
+        long tfdt = findBox(traf + 8, trafEnd, fourcc("tfdt"));
+        if (tfdt >= 0) {
+            nextDecodeTime = file.readUnsignedByte(tfdt + 8) == 1 ? file.readLong(tfdt + 12)
+                    : file.readInt(tfdt + 12) & 0xFFFFFFFFL;
+        }
+
+        count = 0;
+        cursor = 0;
+        long dataEnd = base;
+        long trun = findBox(traf + 8, trafEnd, fourcc("trun"));
+        while (trun >= 0) {
+            int version = file.readUnsignedByte(trun + 8);
+            int trunFlags = file.readInt(trun + 8) & 0xFFFFFF;
+            int samples = file.readInt(trun + 12);
+            long position = trun + 16;
+            long data = dataEnd;
+            if ((trunFlags & 0x1) != 0) {
+                data = base + file.readInt(position);
+                position += 4;
+            }
+            int firstFlags = flags;
+            boolean hasFirstFlags = (trunFlags & 0x4) != 0;
+            if (hasFirstFlags) {
+                firstFlags = file.readInt(position);
+                position += 4;
+            }
+            grow(count + samples);
+            for (int i = 0; i < samples; i++) {
+                int sampleDuration = duration;
+                int sampleSize = size;
+                int sampleFlags = i == 0 && hasFirstFlags ? firstFlags : flags;
+                long compositionOffset = 0;
+                if ((trunFlags & 0x100) != 0) {
+                    sampleDuration = file.readInt(position);
+                    position += 4;
+                }
+                if ((trunFlags & 0x200) != 0) {
+                    sampleSize = file.readInt(position);
+                    position += 4;
+                }
+                if ((trunFlags & 0x400) != 0) {
+                    sampleFlags = file.readInt(position);
+                    position += 4;
+                }
+                if ((trunFlags & 0x800) != 0) {
+                    int value = file.readInt(position);
+                    compositionOffset = version == 1 ? value : value & 0xFFFFFFFFL;
+                    position += 4;
+                }
+                offsets[count] = data;
+                sizes[count] = sampleSize;
+                times[count] = nextDecodeTime + compositionOffset;
+                // sample_is_non_sync_sample
+                syncs[count] = (sampleFlags & 0x10000) == 0;
+                count++;
+                data += sampleSize;
+                nextDecodeTime += sampleDuration;
+            }
+            dataEnd = data;
+            trun = findBox(trun + boxSize(trun), trafEnd, fourcc("trun"));
+        }
+    }
+
+    private void grow(int capacity) {
+        if (offsets.length < capacity) {
+            int length = Math.max(capacity, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, length);
+            sizes = Arrays.copyOf(sizes, length);
+            times = Arrays.copyOf(times, length);
+            syncs = Arrays.copyOf(syncs, length);
+        }
+    }
+
+    @Override
+    boolean next(Sample sample) throws IOException {
+        while (cursor >= count) {
+            if (!nextFragment()) return false;
+        }
+        sample.offset = offsets[cursor];
+        sample.size = sizes[cursor];
+        sample.presentationTimeUs = times[cursor] * 1000000 / timescale;
+        sample.flags = syncs[cursor] ? 1 : 0;
+        cursor++;
+        return true;
+    }
+
+    @Override
+    int annexBSize(Sample sample) {
+        // a NAL takes at least lengthSize + 2 bytes, each grows by 4 - lengthSize
+        return lengthSize == 4 ? sample.size : sample.size * 2 + 4;
+    }
+
+    @Override
+    int read(Sample sample, ByteBuffer dst) throws IOException {
+        ByteBuffer src = file.slice(sample.offset, sample.size);
+        int written = 0;
+        while (src.remaining() > lengthSize) {
+            int length = 0;
+            for (int i = 0; i < lengthSize; i++) {
+                length = (length << 8) | (src.get() & 0xFF);
+            }
+            if (length > src.remaining()) throw new IOException("NAL length " + length + " overruns sample");
+            dst.putInt(1);
+            int limit = src.limit();
+            src.limit(src.position() + length);
+            dst.put(src);
+            src.limit(limit);
+            written += 4 + length;
+        }
+        return written;
+    }
+
+    @Override
+    void seek(long offset, long presentationTimeUs) throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (offsets[i] == offset) {
+                cursor = i;
+                return;
+            }
+        }
+        // restart the fragment walk, only moof headers are read on the way
+        nextBox = moovEnd;
+        count = 0;
+        cursor = 0;
+        while (nextFragment()) {
+            for (int i = 0; i < count; i++) {
+                if (offsets[i] == offset) {
+                    cursor = i;
+                    return;
+                }
+            }
+        }
+        throw new IOException("no sample at " + offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,319 @@
+package org.yeshen.hevc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Fans the packets of one encoder out to any number of consumers (disk writer, network
+// sender, preview decoder), each on its own thread behind its own bounded ring.
+// A published packet is copied once into the pool, so the codec gets its buffer back
+// at once, and that copy is shared by reference between all subscribers.
+// A slow subscriber only loses its own packets: with SKIP_TO_KEYFRAME it is handed
+// nothing from the first packet that does not fit until the next keyframe, so what it
+// does get stays decodable; with BLOCK the publisher waits for it up to a timeout.
+class PacketBus implements HevcEncodeThread.OnCodeFrame, HevcEncodeThread.ConsumerLag {
+
+    enum LagPolicy {
+        // drop from the first packet that does not fit up to the next keyframe
+        SKIP_TO_KEYFRAME,
+        // wait for room up to the block timeout, then skip to the next keyframe;
+        // stalls the publisher and with it every other subscriber, for lossless consumers only
+        BLOCK
+    }
+
+    interface Listener {
+        // runs on the subscriber's thread; retain() the packet to keep it past the call
+        void onPacket(EncodedPacket packet);
+    }
+
+    static final long DEFAULT_BLOCK_TIMEOUT_US = 100000;
+
+    // how long an idle subscriber thread parks before re-checking that it is still subscribed
+    private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final EncodedPacketPool pool;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private volatile long newestPresentationTimeUs;
+    private final AtomicLong published = new AtomicLong();
+
+    PacketBus(EncodedPacketPool pool) {
+        this.pool = pool;
+    }
+
+    Subscriber subscribe(String name, int capacity, LagPolicy policy, Listener listener) {
+        Subscriber subscriber = new Subscriber(name, capacity, policy, DEFAULT_BLOCK_TIMEOUT_US, listener);
+        subscribers.add(subscriber);
+        subscriber.thread.start();
+        return subscriber;
+    }
+
+    // stops the subscriber's thread; packets it had not taken yet are released unseen
+    void unsubscribe(Subscriber subscriber) {
+        if (!subscribers.remove(subscriber)) return;
+        subscriber.stop();
+    }
+
+    // like unsubscribe, but the subscriber is handed every packet queued for it first,
+    // e.g. the recorder once the encoder stopped publishing
+    void finish(Subscriber subscriber) {
+        if (!subscribers.remove(subscriber)) return;
+        subscriber.finish();
+    }
+
+    // called from one publishing thread only, the encoder's output thread
+    @Override
+    public void onCodeFrame(EncodedPacket packet) {
+        publish(packet);
+    }
+
+    void publish(EncodedPacket packet) {
+        published.incrementAndGet();
+        newestPresentationTimeUs = packet.presentationTimeUs();
+        if (subscribers.isEmpty()) return;
+        EncodedPacket shared = pool.copyOf(packet);
+        try {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.offer(shared);
+            }
+        } finally {
+            shared.release();
+        }
+    }
+
+    // the slowest subscriber's lagUs(), for the encoder's CongestionController
+    @Override
+    public long consumerLagMs() {
+        long lagUs = 0;
+        for (Subscriber subscriber : subscribers) {
+            lagUs = Math.max(lagUs, subscriber.lagUs());
+        }
+        return TimeUnit.MICROSECONDS.toMillis(lagUs);
+    }
+
+    List<Subscriber> subscribers() {
+        return new ArrayList<>(subscribers);
+    }
+
+    long publishedCount() {
+        return published.get();
+    }
+
+    String report() {
+        StringBuilder report = new StringBuilder();
+        for (Subscriber subscriber : subscribers) {
+            report.append(subscriber).append('\n');
+        }
+        return report.toString();
+    }
+
+    void close() {
+        for (Subscriber subscriber : subscribers) {
+            unsubscribe(subscriber);
+        }
+    }
+
+    // single-producer/single-consumer ring: the publisher only moves tail, the
+    // subscriber's thread only moves head, so neither side takes a lock. Whoever
+    // empties a slot (the subscriber, drain() or a publisher that lost the race
+    // with stop()) releases the packet in it, so each is released exactly once.
+    final class Subscriber {
+
+        final String name;
+        private final AtomicReferenceArray<EncodedPacket> ring;
+        private final LagPolicy policy;
+        private final long blockTimeoutNs;
+        private final Listener listener;
+        private final Thread thread;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        private volatile boolean running = true;
+        private volatile boolean finishing;
+        private volatile boolean consumerParked;
+        private volatile Thread blockedPublisher;
+        // publisher side only; a subscriber joining mid-stream starts at the next keyframe
+        private boolean skipping = true;
+
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong skips = new AtomicLong();
+        private final AtomicLong blockedNs = new AtomicLong();
+        private volatile int maxLagPackets;
+        private volatile long lastTakenPresentationTimeUs;
+
+        Subscriber(String name, int capacity, LagPolicy policy, long blockTimeoutUs, Listener listener) {
+            if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+            this.name = name;
+            this.ring = new AtomicReferenceArray<>(capacity);
+            this.policy = policy;
+            this.blockTimeoutNs = TimeUnit.MICROSECONDS.toNanos(blockTimeoutUs);
+            this.listener = listener;
+            this.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    consume();
+                }
+            }, "bus-" + name);
+        }
+
+        private void offer(EncodedPacket packet) {
+            if (!running) return;
+            if (skipping) {
+                // after a gap only a keyframe can restart the stream
+                if (!packet.isKeyframe()) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+            long t = tail.get();
+            if (t - head.get() == ring.length() && !(policy == LagPolicy.BLOCK && awaitRoom(t))) {
+                if (!skipping) skips.incrementAndGet();
+                skipping = true;
+                dropped.incrementAndGet();
+                return;
+            }
+            skipping = false;
+            int slot = (int) (t % ring.length());
+            ring.set(slot, packet.retain());
+            tail.set(t + 1);
+            // stop() may have come in since the check above and drained before this slot was
+            // filled; if the slot is still full nobody else will release it
+            if (!running) {
+                if (ring.compareAndSet(slot, packet, null)) packet.release();
+                return;
+            }
+            int lag = (int) (t + 1 - head.get());
+            if (lag > maxLagPackets) maxLagPackets = lag;
+            if (consumerParked) LockSupport.unpark(thread);
+        }
+
+        private boolean awaitRoom(long t) {
+            long start = System.nanoTime();
+            long deadline = start + blockTimeoutNs;
+            blockedPublisher = Thread.currentThread();
+            try {
+                while (t - head.get() == ring.length()) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0 || !running) return false;
+                    LockSupport.parkNanos(left);
+                }
+                return true;
+            } finally {
+                blockedPublisher = null;
+                blockedNs.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        private void consume() {
+            while (running) {
+                long h = head.get();
+                if (h == tail.get()) {
+                    if (finishing) break;
+                    consumerParked = true;
+                    // re-check after announcing, the publisher may have missed the flag
+                    if (h == tail.get() && running && !finishing) LockSupport.parkNanos(IDLE_PARK_NS);
+                    consumerParked = false;
+                    continue;
+                }
+                EncodedPacket packet = ring.getAndSet((int) (h % ring.length()), null);
+                head.set(h + 1);
+                Thread publisher = blockedPublisher;
+                if (publisher != null) LockSupport.unpark(publisher);
+                // taken back by a publisher that saw stop()
+                if (packet == null) continue;
+                lastTakenPresentationTimeUs = packet.presentationTimeUs();
+                try {
+                    listener.onPacket(packet);
+                    delivered.incrementAndGet();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                } finally {
+                    packet.release();
+                }
+            }
+            drain();
+        }
+
+        private void drain() {
+            long h = head.get();
+            long t = tail.get();
+            for (; h < t; h++) {
+                EncodedPacket packet = ring.getAndSet((int) (h % ring.length()), null);
+                if (packet != null) packet.release();
+            }
+            head.set(h);
+        }
+
+        private void stop() {
+            running = false;
+            LockSupport.unpark(thread);
+            Thread publisher = blockedPublisher;
+            if (publisher != null) LockSupport.unpark(publisher);
+            try {
+                thread.join();
+            } catch (InterruptedException ignore) {
+            }
+        }
+
+        private void finish() {
+            finishing = true;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException ignore) {
+            }
+            // a publisher that still had this subscriber in hand may queue one more, which
+            // it takes back itself once it sees running is off, or drain() gets it
+            running = false;
+            drain();
+        }
+
+        // packets waiting in the ring
+        int lagPackets() {
+            return (int) (tail.get() - head.get());
+        }
+
+        int maxLagPackets() {
+            return maxLagPackets;
+        }
+
+        // how far behind the newest published packet the subscriber is, in media time
+        long lagUs() {
+            if (lagPackets() == 0) return 0;
+            return Math.max(0, newestPresentationTimeUs - lastTakenPresentationTimeUs);
+        }
+
+        long deliveredCount() {
+            return delivered.get();
+        }
+
+        long droppedCount() {
+            return dropped.get();
+        }
+
+        // times the subscriber fell behind and had to wait for a keyframe
+        long skipCount() {
+            return skips.get();
+        }
+
+        long blockedUs() {
+            return TimeUnit.NANOSECONDS.toMicros(blockedNs.get());
+        }
+
+        @Override
+        public String toString() {
+            return "Subscriber{" + name + ", policy=" + policy + ", lag=" + lagPackets() + ", maxLag=" + maxLagPackets
+                    + ", lagUs=" + lagUs() + ", delivered=" + delivered.get() + ", dropped=" + dropped.get()
+                    + ", skips=" + skips.get() + ", blockedUs=" + blockedUs() + "}";
+        }
+    }
+}
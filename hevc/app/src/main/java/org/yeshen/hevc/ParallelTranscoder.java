@@ -0,0 +1,344 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Offline re-encode of a long recording on several codec instances at once. The file is
+// cut at keyframes from its KeyframeIndex into segments that decode on their own; every
+// worker thread takes the next segment and runs it through a Transcoder of its own into
+// a part file, and once all are done the parts are stitched into the target in order,
+// each one's timestamps moved to where its segment starts in the source. There are a
+// few segments per worker so that the last ones finish about together.
+// Every segment starts with an IDR and its own rate control; parts whose parameter sets
+// differ (e.g. from different encoders) go into an hev1 track with them in-band.
+// Cuts at CRA keyframes lose the leading pictures that reference the previous segment.
+class ParallelTranscoder {
+
+    static final int SEGMENTS_PER_WORKER = 4;
+
+    // raw .h265/.hevc streams carry no timing
+    private static final int ANNEX_B_FRAME_RATE = 30;
+
+    private static final class Segment {
+        final long offset;
+        final long startUs;
+        // -1 for the end of the file
+        final long endUs;
+        final File part;
+        volatile Transcoder transcoder;
+
+        Segment(long offset, long startUs, long endUs, File part) {
+            this.offset = offset;
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.part = part;
+        }
+    }
+
+    private final File source;
+    private final File target;
+    private final int bitRate;
+    private final int width;
+    private final int height;
+    private final int workers;
+    private final CodecDriver.Factory decoders;
+    private final CodecDriver.Factory encoders;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final AtomicInteger nextSegment = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile Exception failure;
+
+    private final long[] busyNs;
+    private final int[] segmentsDone;
+    private volatile long framesTotal;
+    private volatile long framesStitched;
+    private volatile long startNs;
+    private volatile long encodedNs;
+    private volatile long endNs;
+    private volatile long stitchNs;
+
+    ParallelTranscoder(File source, File target, int bitRate) {
+        this(source, target, bitRate, 0, 0, defaultWorkers(),
+                CodecDrivers.factory(MediaCodecAdapter.decoderFactory(EncoderConfig.MIME)),
+                CodecDrivers.factory(MediaCodecAdapter.encoderFactory(EncoderConfig.MIME)));
+    }
+
+    // width and height 0 keep the source size, see Transcoder
+    ParallelTranscoder(File source, File target, int bitRate, int width, int height, int workers,
+                       CodecDriver.Factory decoders, CodecDriver.Factory encoders) {
+        if (bitRate <= 0) throw new IllegalArgumentException("bad bitrate " + bitRate);
+        if (workers <= 0) throw new IllegalArgumentException("workers must be positive: " + workers);
+        this.source = source;
+        this.target = target;
+        this.bitRate = bitRate;
+        this.width = width;
+        this.height = height;
+        this.workers = workers;
+        this.decoders = decoders;
+        this.encoders = encoders;
+        this.busyNs = new long[workers];
+        this.segmentsDone = new int[workers];
+    }
+
+    // an encoder and a decoder per worker; the instance limit codecs report is often above
+    // what the hardware runs at full speed, so it is capped at the number of cores as well.
+    // An unknown limit gets a single worker, a second one failing to start fails the job
+    static int defaultWorkers() {
+        int instances = EncoderFarm.maxInstances(EncoderConfig.MIME);
+        if (instances == EncoderFarm.UNKNOWN_MAX_INSTANCES) return 1;
+        return Math.max(1, Math.min(instances, Runtime.getRuntime().availableProcessors()));
+    }
+
+    // blocks until the target is written; the part files are removed either way
+    void transcode() throws IOException {
+        startNs = System.nanoTime();
+        try {
+            plan();
+            Thread[] threads = new Thread[Math.min(workers, segments.size())];
+            for (int i = 0; i < threads.length; i++) {
+                final int worker = i;
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work(worker);
+                    }
+                }, "segment-" + (i + 1));
+                threads[i].start();
+            }
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", e);
+            }
+            encodedNs = System.nanoTime();
+            if (cancelled) throw new IOException("cancelled");
+            if (failure != null) throw new IOException("segment failed", failure);
+            long stitchStart = System.nanoTime();
+            stitch();
+            stitchNs = System.nanoTime() - stitchStart;
+        } finally {
+            for (Segment segment : segments) {
+                segment.part.delete();
+            }
+            endNs = System.nanoTime();
+        }
+    }
+
+    // stops the running segments, transcode() throws
+    void cancel() {
+        cancelled = true;
+        for (Segment segment : segments()) {
+            Transcoder transcoder = segment.transcoder;
+            if (transcoder != null) transcoder.cancel();
+        }
+    }
+
+    private void plan() throws IOException {
+        KeyframeIndex index = KeyframeIndex.load(source, ANNEX_B_FRAME_RATE);
+        if (index.size() == 0) throw new IOException("no keyframes in " + source);
+        framesTotal = index.frameCount() - index.frame(0);
+        int[] cuts = ThumbnailExtractor.pick(index, workers * SEGMENTS_PER_WORKER);
+        synchronized (segments) {
+            for (int i = 0; i < cuts.length; i++) {
+                long endUs = i + 1 < cuts.length ? index.presentationTimeUs(cuts[i + 1]) : -1;
+                File part = new File(target.getPath() + ".part" + i);
+                segments.add(new Segment(index.offset(cuts[i]), index.presentationTimeUs(cuts[i]), endUs, part));
+            }
+        }
+    }
+
+    private List<Segment> segments() {
+        synchronized (segments) {
+            return new ArrayList<>(segments);
+        }
+    }
+
+    private void work(int worker) {
+        List<Segment> plan = segments();
+        while (!cancelled && failure == null) {
+            int next = nextSegment.getAndIncrement();
+            if (next >= plan.size()) return;
+            Segment segment = plan.get(next);
+            long segmentStart = System.nanoTime();
+            Transcoder transcoder = new Transcoder(source, segment.part, bitRate, width, height, decoders, encoders,
+                    new Transcoder.Listener() {
+                        @Override
+                        public void onProgress(Transcoder transcoder) {
+                        }
+
+                        @Override
+                        public void onFinished(Transcoder transcoder, Exception error) {
+                            if (error != null && failure == null) failure = error;
+                        }
+                    });
+            transcoder.setRange(segment.offset, segment.startUs, segment.endUs);
+            segment.transcoder = transcoder;
+            if (cancelled) transcoder.cancel();
+            transcoder.run();
+            synchronized (busyNs) {
+                busyNs[worker] += System.nanoTime() - segmentStart;
+                segmentsDone[worker]++;
+            }
+        }
+    }
+
+    // copies the parts into the target one after another, rewriting their timestamps
+    private void stitch() throws IOException {
+        List<SampleReader> parts = new ArrayList<>();
+        Mp4Muxer muxer = null;
+        try {
+            for (Segment segment : segments) {
+                SampleReader reader = SampleReader.open(segment.part, ANNEX_B_FRAME_RATE);
+                parts.add(reader);
+                if (reader.csd == null) throw new IOException("no codec config in " + segment.part);
+            }
+            byte[] csd = parts.get(0).csd;
+            boolean inBand = false;
+            for (SampleReader reader : parts) {
+                if (!Arrays.equals(reader.csd, csd)) inBand = true;
+            }
+            RandomAccessFile file = new RandomAccessFile(target, "rw");
+            file.setLength(0);
+            muxer = new Mp4Muxer(file.getChannel(), Transcoder.FRAME_RATE * Transcoder.I_FRAME_INTERVAL,
+                    Transcoder.FRAME_RATE, inBand);
+            muxer.writeConfig(ByteBuffer.wrap(csd), parts.get(0).width, parts.get(0).height);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            SampleReader.Sample sample = new SampleReader.Sample();
+            for (int i = 0; i < parts.size(); i++) {
+                SampleReader reader = parts.get(i);
+                long shiftUs = 0;
+                boolean first = true;
+                while (!cancelled && reader.next(sample)) {
+                    int capacity = reader.annexBSize(sample) + (inBand ? reader.csd.length : 0);
+                    if (buffer.capacity() < capacity) buffer = ByteBuffer.allocateDirect(capacity);
+                    buffer.clear();
+                    if (first) {
+                        // the part's own timeline starts at its first frame
+                        shiftUs = segments.get(i).startUs - sample.presentationTimeUs;
+                        if (inBand) buffer.put(reader.csd);
+                    }
+                    reader.read(sample, buffer);
+                    buffer.flip();
+                    muxer.writeSample(buffer, sample.presentationTimeUs + shiftUs,
+                            first || (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    framesStitched++;
+                    first = false;
+                }
+            }
+            if (cancelled) throw new IOException("cancelled");
+        } finally {
+            IOException error = null;
+            try {
+                if (muxer != null) muxer.close();
+            } catch (IOException e) {
+                error = e;
+            }
+            for (SampleReader reader : parts) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    if (error == null) error = e;
+                }
+            }
+            if (error != null) throw error;
+        }
+    }
+
+    int segmentCount() {
+        synchronized (segments) {
+            return segments.size();
+        }
+    }
+
+    long framesEncoded() {
+        long frames = 0;
+        for (Segment segment : segments()) {
+            Transcoder transcoder = segment.transcoder;
+            if (transcoder != null) frames += transcoder.framesEncoded();
+        }
+        return frames;
+    }
+
+    long framesStitched() {
+        return framesStitched;
+    }
+
+    // 0 to 1 by frames encoded, the stitching is not counted
+    float progressFraction() {
+        long total = framesTotal;
+        return total <= 0 ? 0 : Math.min(1f, (float) framesEncoded() / total);
+    }
+
+    // encoded frames per second of wall time, stitching included
+    double framesPerSecond() {
+        long start = startNs;
+        if (start == 0) return 0;
+        long end = endNs != 0 ? endNs : System.nanoTime();
+        return end <= start ? 0 : framesEncoded() * 1e9 / (end - start);
+    }
+
+    // share of the encoding phase worker spent transcoding segments
+    double utilization(int worker) {
+        long start = startNs;
+        if (start == 0) return 0;
+        long end = encodedNs != 0 ? encodedNs : System.nanoTime();
+        synchronized (busyNs) {
+            return end <= start ? 0 : Math.min(1.0, (double) busyNs[worker] / (end - start));
+        }
+    }
+
+    long stitchNs() {
+        return stitchNs;
+    }
+
+    int workers() {
+        return workers;
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(this).append('\n');
+        for (int i = 0; i < workers; i++) {
+            int done;
+            long busy;
+            synchronized (busyNs) {
+                done = segmentsDone[i];
+                busy = busyNs[i];
+            }
+            sb.append(String.format(Locale.US, "  worker %d: %d segments, busy %d ms, %.0f%%\n",
+                    i + 1, done, busy / 1000000, utilization(i) * 100));
+        }
+        long total = (endNs != 0 ? endNs : System.nanoTime()) - startNs;
+        sb.append(String.format(Locale.US, "  stitch: %d frames in %d ms, %.1f%% of %d ms\n",
+                framesStitched, stitchNs / 1000000, total <= 0 ? 0 : stitchNs * 100.0 / total, total / 1000000));
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "ParallelTranscoder{%s -> %s, %d segments on %d workers, %.0f%%, encoded=%d/%d, %.1f fps}",
+                source.getName(), target.getName(), segmentCount(), workers, progressFraction() * 100,
+                framesEncoded(), framesTotal, framesPerSecond());
+    }
+}
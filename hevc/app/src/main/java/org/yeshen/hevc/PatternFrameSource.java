@@ -0,0 +1,72 @@
+package org.yeshen.hevc;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Synthetic NV21 frames (a moving luma gradient on grey chroma) for running
+// the encode path without a camera, e.g. on a plain JVM.
+class PatternFrameSource implements FrameSource {
+
+    private final int width;
+    private final int height;
+    private final ArrayBlockingQueue<byte[]> free;
+    private long frameIndex;
+    private long captureTimeNs;
+
+    PatternFrameSource(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.free = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            free.add(new byte[YuvFormat.frameSize(width, height)]);
+        }
+    }
+
+    @Override
+    public byte[] poll(long timeoutUs) {
+        byte[] frame;
+        try {
+            frame = free.poll(timeoutUs, TimeUnit.MICROSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (frame == null) return null;
+        int shift = (int) (frameIndex++ % width);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                frame[row + x] = (byte) (x + y + shift);
+            }
+        }
+        Arrays.fill(frame, width * height, frame.length, (byte) 128);
+        captureTimeNs = System.nanoTime();
+        return frame;
+    }
+
+    @Override
+    public long captureTimeNs() {
+        return captureTimeNs;
+    }
+
+    @Override
+    public int pending() {
+        return free.size();
+    }
+
+    @Override
+    public void recycle(byte[] frame) {
+        if (frame != null) free.offer(frame);
+    }
+
+    long frameCount() {
+        return frameIndex;
+    }
+}
@@ -0,0 +1,116 @@
+package org.yeshen.hevc;
+
+import java.util.Locale;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Per-stage latencies and event counts of the whole pipeline, shared by every stage.
+// The encode path, for every camera frame:
+//   camera callback -> cameraQueueWait -> convert -> encoderInputWait -> encode -> consumer
+// with captureToOutput covering everything from the callback to the consumer being done.
+// The decode path:
+//   demux read-ahead -> decoderInputWait -> decode -> render
+// and seek from the request to the target frame going to render, frames decoded on the
+// way from the keyframe are counted as framesDiscardedSeeking.
+// Startup: codecCreate and codecStart (configure + start) per codec, and timeToFirstFrame
+// from the encoder being set up to its first encoded frame.
+// Recording is allocation free and a few atomic adds; times are in microseconds.
+// The budget is under 100 ns per event, clock read included: since() reads System.nanoTime()
+// once and hands that reading back, so a stage that starts where the previous one ended
+// costs no second clock read, and between() reads no clock at all.
+final class PipelineMetrics {
+
+    static volatile boolean enabled = true;
+
+    // encode side
+    static final Histogram cameraQueueWaitUs = new Histogram("cameraQueueWait", "us");
+    static final Histogram convertUs = new Histogram("convert", "us");
+    static final Histogram encoderInputWaitUs = new Histogram("encoderInputWait", "us");
+    static final Histogram encodeUs = new Histogram("encode", "us");
+    static final Histogram consumerUs = new Histogram("consumer", "us");
+    static final Histogram captureToOutputUs = new Histogram("captureToOutput", "us");
+    static final Counter framesCaptured = new Counter("framesCaptured");
+    static final Counter framesDroppedBeforeEncode = new Counter("framesDroppedBeforeEncode");
+    static final Counter framesEncoded = new Counter("framesEncoded");
+    static final Counter bytesEncoded = new Counter("bytesEncoded");
+
+    // decode side
+    static final Histogram demuxWaitUs = new Histogram("demuxWait", "us");
+    static final Histogram decoderInputWaitUs = new Histogram("decoderInputWait", "us");
+    static final Histogram decodeUs = new Histogram("decode", "us");
+    static final Counter framesDecoded = new Counter("framesDecoded");
+    static final Counter framesRendered = new Counter("framesRendered");
+    static final Counter framesDroppedLate = new Counter("framesDroppedLate");
+    static final Histogram seekUs = new Histogram("seek", "us");
+    static final Counter framesDiscardedSeeking = new Counter("framesDiscardedSeeking");
+
+    // startup
+    static final Histogram codecCreateUs = new Histogram("codecCreate", "us");
+    static final Histogram codecStartUs = new Histogram("codecStart", "us");
+    static final Histogram timeToFirstFrameUs = new Histogram("timeToFirstFrame", "us");
+
+    private static final Histogram[] HISTOGRAMS = {
+            cameraQueueWaitUs, convertUs, encoderInputWaitUs, encodeUs, consumerUs, captureToOutputUs,
+            demuxWaitUs, decoderInputWaitUs, decodeUs, seekUs,
+            codecCreateUs, codecStartUs, timeToFirstFrameUs
+    };
+    private static final Counter[] COUNTERS = {
+            framesCaptured, framesDroppedBeforeEncode, framesEncoded, bytesEncoded,
+            framesDecoded, framesRendered, framesDroppedLate, framesDiscardedSeeking
+    };
+
+    private PipelineMetrics() {
+    }
+
+    // records the time since startNs, a System.nanoTime() taken by the caller, and returns
+    // the System.nanoTime() it read, the start of whatever comes next; 0 while disabled
+    static long since(Histogram histogram, long startNs) {
+        if (!enabled) return 0;
+        long now = System.nanoTime();
+        if (startNs != 0) histogram.record((now - startNs) / 1000);
+        return now;
+    }
+
+    // records endNs - startNs, both read by the caller
+    static void between(Histogram histogram, long startNs, long endNs) {
+        if (enabled && startNs != 0 && endNs != 0) histogram.record((endNs - startNs) / 1000);
+    }
+
+    static void count(Counter counter) {
+        if (enabled) counter.increment();
+    }
+
+    static void count(Counter counter, long delta) {
+        if (enabled) counter.add(delta);
+    }
+
+    static void reset() {
+        for (Histogram histogram : HISTOGRAMS) histogram.reset();
+        for (Counter counter : COUNTERS) counter.reset();
+    }
+
+    // {"histograms":{"convert":{"unit":"us","count":..,"mean":..,"p50":..,"p90":..,"p99":..,"max":..},..},
+    //  "counters":{"framesCaptured":..,..}}
+    static String toJson() {
+        StringBuilder json = new StringBuilder(2048);
+        json.append("{\"histograms\":{");
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            Histogram h = HISTOGRAMS[i];
+            if (i > 0) json.append(',');
+            json.append(String.format(Locale.US,
+                    "\"%s\":{\"unit\":\"%s\",\"count\":%d,\"mean\":%d,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"max\":%d}",
+                    h.name, h.unit, h.count(), h.mean(), h.percentile(50), h.percentile(90), h.percentile(99),
+                    h.max()));
+        }
+        json.append("},\"counters\":{");
+        for (int i = 0; i < COUNTERS.length; i++) {
+            if (i > 0) json.append(',');
+            json.append('"').append(COUNTERS[i].name).append("\":").append(COUNTERS[i].sum());
+        }
+        return json.append("}}").toString();
+    }
+}
@@ -0,0 +1,147 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Fallback for codecs without callback support (MediaCodec before LOLLIPOP):
+// a drain thread blocks in dequeueOutputBuffer and dispatches to the Callback.
+class PollingCodecDriver implements CodecDriver {
+
+    private static final long DRAIN_TIMEOUT_US = 10000;
+
+    private final Codec mCodec;
+    private final String mName;
+    private volatile boolean mRunning;
+    private Thread mDrainThread;
+    private Callback mCallback;
+
+    PollingCodecDriver(Codec codec, String name) {
+        mCodec = codec;
+        mName = name;
+    }
+
+    @Override
+    public void configure(MediaFormat format, Surface surface, int flags) {
+        mCodec.configure(format, surface, flags);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start(Callback callback) {
+        mCallback = callback;
+        mCodec.start();
+        startDrain();
+    }
+
+    private void startDrain() {
+        final Callback callback = mCallback;
+        mRunning = true;
+        mDrainThread = new Thread(mName) {
+            @Override
+            public void run() {
+                drain(callback);
+            }
+        };
+        mDrainThread.start();
+    }
+
+    private void stopDrain() {
+        mRunning = false;
+        if (mDrainThread != null && mDrainThread != Thread.currentThread()) {
+            try {
+                mDrainThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void drain(Callback callback) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            while (mRunning) {
+                int index = mCodec.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+                if (index >= 0) {
+                    ByteBuffer buffer = mCodec.getOutputBuffer(index);
+                    if (buffer != null) {
+                        buffer.position(info.offset);
+                        buffer.limit(info.offset + info.size);
+                    }
+                    callback.onOutputBuffer(index, buffer, info);
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    callback.onOutputFormatChanged(mCodec.getOutputFormat());
+                }
+            }
+        } catch (Exception e) {
+            if (mRunning) callback.onError(e);
+        }
+    }
+
+    @Override
+    public int dequeueInput(long timeoutUs) {
+        int index = mCodec.dequeueInputBuffer(timeoutUs);
+        return index >= 0 ? index : -1;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInput(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutput(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutput(int index, long renderTimestampNs) {
+        mCodec.releaseOutputBuffer(index, renderTimestampNs);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void flush() {
+        // the drain thread must not be inside dequeueOutputBuffer or the callback meanwhile
+        stopDrain();
+        mCodec.flush();
+        startDrain();
+    }
+
+    @Override
+    public void release() {
+        stopDrain();
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        mCodec.release();
+    }
+
+    @Override
+    public Codec codec() {
+        return mCodec;
+    }
+}
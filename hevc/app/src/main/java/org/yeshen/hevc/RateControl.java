@@ -0,0 +1,19 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Runtime knobs of a running encoder.
+interface RateControl {
+
+    // target bits per second from the next frames on
+    void setBitrate(int bitsPerSecond);
+
+    int bitrate();
+
+    // the next frame is encoded as an IDR
+    void requestSyncFrame();
+}
@@ -0,0 +1,206 @@
+package org.yeshen.hevc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Demuxes a SampleReader on its own thread, keeping up to depth access units
+// ready in a ring of direct buffers. The consumer takes filled units with poll()
+// and hands them back with recycle(); the last unit returned is flagged endOfStream.
+// seek() restarts the demux at a sample of the reader, even after the end of stream;
+// units read ahead before it are never returned by poll() afterwards.
+class ReadAheadSource implements Closeable {
+
+    static final int DEFAULT_DEPTH = 8;
+    private static final int MIN_UNIT_CAPACITY = 256 * 1024;
+
+    static final class Unit {
+        // Annex-B bytes in [0, limit)
+        ByteBuffer data;
+        long presentationTimeUs;
+        int flags;
+        boolean endOfStream;
+        // the seek this unit was read after
+        int generation;
+    }
+
+    private final SampleReader reader;
+    private final ArrayBlockingQueue<Unit> free;
+    private final ArrayBlockingQueue<Unit> filled;
+    private final Thread thread;
+    private volatile boolean running;
+    private volatile IOException failure;
+
+    // the seek requested last; generation counts seeks, the demux thread takes them in order
+    private final Object seekLock = new Object();
+    private int generation;
+    private boolean seekPending;
+    private long seekOffset;
+    private long seekTimeUs;
+
+    private final AtomicLong unitsRead = new AtomicLong();
+    private final AtomicLong consumerStallNs = new AtomicLong();
+    private final AtomicLong producerWaitNs = new AtomicLong();
+    private volatile int maxDepth;
+
+    ReadAheadSource(SampleReader reader, int depth) {
+        if (depth <= 0) throw new IllegalArgumentException("depth must be positive: " + depth);
+        this.reader = reader;
+        this.free = new ArrayBlockingQueue<>(depth);
+        this.filled = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            free.add(new Unit());
+        }
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                demux();
+            }
+        }, "read-ahead");
+    }
+
+    SampleReader reader() {
+        return reader;
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    private void demux() {
+        SampleReader.Sample sample = new SampleReader.Sample();
+        try {
+            while (running) {
+                long waitStart = System.nanoTime();
+                Unit unit = free.take();
+                producerWaitNs.addAndGet(System.nanoTime() - waitStart);
+                synchronized (seekLock) {
+                    if (seekPending) {
+                        reader.seek(seekOffset, seekTimeUs);
+                        seekPending = false;
+                    }
+                    unit.generation = generation;
+                }
+                if (!reader.next(sample)) {
+                    unit.endOfStream = true;
+                    if (unit.data != null) unit.data.clear().limit(0);
+                    filled.put(unit);
+                    // nothing more to read unless a seek comes
+                    synchronized (seekLock) {
+                        while (running && !seekPending) seekLock.wait();
+                    }
+                    continue;
+                }
+                int capacity = reader.annexBSize(sample);
+                if (unit.data == null || unit.data.capacity() < capacity) {
+                    unit.data = ByteBuffer.allocateDirect(Math.max(capacity, MIN_UNIT_CAPACITY));
+                }
+                unit.data.clear();
+                reader.read(sample, unit.data);
+                unit.data.flip();
+                unit.presentationTimeUs = sample.presentationTimeUs;
+                unit.flags = sample.flags;
+                unit.endOfStream = false;
+                filled.put(unit);
+                unitsRead.incrementAndGet();
+                int depth = filled.size();
+                if (depth > maxDepth) maxDepth = depth;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    // the next unit, or null if none arrived within timeoutUs
+    Unit poll(long timeoutUs) throws IOException {
+        Unit unit = filled.poll();
+        while (unit != null && stale(unit)) {
+            free.offer(unit);
+            unit = filled.poll();
+        }
+        if (unit != null) return unit;
+        if (failure != null) throw failure;
+        long stallStart = System.nanoTime();
+        try {
+            unit = filled.poll(timeoutUs, TimeUnit.MICROSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        consumerStallNs.addAndGet(System.nanoTime() - stallStart);
+        if (unit != null && stale(unit)) {
+            // read before the last seek, the caller polls again
+            free.offer(unit);
+            return null;
+        }
+        if (unit == null && failure != null) throw failure;
+        return unit;
+    }
+
+    private boolean stale(Unit unit) {
+        synchronized (seekLock) {
+            return unit.generation != generation;
+        }
+    }
+
+    // continues at the sample at offset, a keyframe of a KeyframeIndex built from the same reader
+    void seek(long offset, long presentationTimeUs) {
+        synchronized (seekLock) {
+            generation++;
+            seekPending = true;
+            seekOffset = offset;
+            seekTimeUs = presentationTimeUs;
+            seekLock.notifyAll();
+        }
+    }
+
+    void recycle(Unit unit) {
+        free.offer(unit);
+    }
+
+    // units decoded ahead of the consumer right now
+    int depth() {
+        return filled.size();
+    }
+
+    int maxDepth() {
+        return maxDepth;
+    }
+
+    long unitsRead() {
+        return unitsRead.get();
+    }
+
+    // time the consumer spent waiting on an empty ring
+    long consumerStallNs() {
+        return consumerStallNs.get();
+    }
+
+    // time the demux thread spent waiting for a free slot, i.e. running ahead
+    long producerWaitNs() {
+        return producerWaitNs.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reader.close();
+    }
+}
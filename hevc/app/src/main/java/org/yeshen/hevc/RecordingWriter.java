@@ -0,0 +1,414 @@
+package org.yeshen.hevc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Records encoded packets to fragmented MP4 segments on a thread of its own, so a slow
+// flash write stalls this thread instead of the encoder. Packets are copied into the
+// pool and queued, or, subscribed to a PacketBus, the bus's pooled copy is queued as it
+// is; the writer takes whatever is queued in one go and Mp4Muxer turns
+// each GOP (or flushInterval worth of frames) into one large, optionally aligned write.
+// Segments are rotated at the first keyframe past segmentBytes or segmentDurationUs.
+// A segment is written as <name>.part and only renamed to <name> after its last
+// fragment was forced to storage, so finished segments are always complete. A killed
+// process leaves at most the current .part behind, which still plays up to its last
+// fragment; fsyncInterval bounds how much of that can be lost.
+// Numbering continues after the highest segment of the prefix already in the directory,
+// .part files included, so a restarted recording never overwrites an earlier one.
+class RecordingWriter implements PacketBus.Listener {
+
+    static final int DEFAULT_QUEUE_DEPTH = 120;
+    static final int DEFAULT_ALIGNMENT = 4096;
+
+    // rotation, 0 disables the limit
+    long segmentBytes = 0;
+    long segmentDurationUs = 0;
+    // fragments are normally cut at keyframes, this cuts one sooner when GOPs are long
+    long flushIntervalMs = 1000;
+    long fsyncIntervalMs = 2000;
+    int alignment = DEFAULT_ALIGNMENT;
+
+    private final File directory;
+    private final String prefix;
+    private final int width;
+    private final int height;
+    private final int frameRate;
+    private final int fragmentFrames;
+    private final EncodedPacketPool pool;
+
+    // bounded queue in front of the writer, FrameChannel style: no allocation per packet
+    private final EncodedPacket[] queue;
+    private final long[] enqueuedNs;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int head;
+    private int count;
+    private volatile boolean running;
+    private Thread thread;
+
+    // parameter sets, copied once; the writer starts every segment with them
+    private volatile ByteBuffer config;
+    // offering thread only
+    private boolean skipping;
+
+    // writer thread only
+    private final EncodedPacket[] batch;
+    private int segmentIndex;
+    private File segmentFile;
+    private FileChannel segmentChannel;
+    private Mp4Muxer muxer;
+    private long segmentStartUs;
+    private long lastFlushMs;
+    private long lastSyncMs;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong segments = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    final Histogram queueWaitUs = new Histogram("queueWait", "us");
+    final Histogram writeUs = new Histogram("write", "us");
+    // per write, how fast the bytes went out
+    final Histogram throughputKBps = new Histogram("throughput", "KB/s");
+    final Histogram batchPackets = new Histogram("batch", "packets");
+
+    // fed from a PacketBus only, see onPacket
+    RecordingWriter(File directory, String prefix, int width, int height, int frameRate, int gopFrames,
+                    int queueDepth) {
+        this(directory, prefix, width, height, frameRate, gopFrames, null, queueDepth);
+    }
+
+    // one fragment per GOP of gopFrames; offer() copies into pool
+    RecordingWriter(File directory, String prefix, int width, int height, int frameRate, int gopFrames,
+                    EncodedPacketPool pool, int queueDepth) {
+        if (queueDepth <= 0) throw new IllegalArgumentException("queue depth must be positive: " + queueDepth);
+        this.directory = directory;
+        this.prefix = prefix;
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.fragmentFrames = gopFrames;
+        this.pool = pool;
+        this.queue = new EncodedPacket[queueDepth];
+        this.enqueuedNs = new long[queueDepth];
+        this.batch = new EncodedPacket[queueDepth];
+    }
+
+    void start() {
+        if (thread != null) return;
+        segmentIndex = Math.max(segmentIndex, nextSegmentIndex(directory, prefix));
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "recording-writer");
+        thread.start();
+    }
+
+    // the BUFFER_FLAG_CODEC_CONFIG output
+    void setConfig(ByteBuffer parameterSets) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(parameterSets.remaining());
+        copy.put(parameterSets.duplicate());
+        copy.flip();
+        config = copy;
+    }
+
+    // called from the encoder's thread; returns false if the queue was full and the packet dropped.
+    // Once a packet is dropped the queue stays closed to everything but a keyframe, so the file
+    // skips a whole GOP instead of holding frames that reference a missing one.
+    boolean offer(EncodedPacket packet) {
+        if (pool == null) throw new IllegalStateException("no pool to copy into, subscribe to a PacketBus");
+        if (!accepts(packet)) return false;
+        // copied outside the lock, the writer only waits for the slot bookkeeping
+        return enqueue(pool.copyOf(packet));
+    }
+
+    // on the bus's subscriber thread; the packet is already a pooled copy and is kept as it is,
+    // with the same dropping as offer()
+    @Override
+    public void onPacket(EncodedPacket packet) {
+        if (accepts(packet)) enqueue(packet.retain());
+    }
+
+    private boolean accepts(EncodedPacket packet) {
+        if (!running) return false;
+        if (skipping && !packet.isKeyframe()) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // takes over the reference to packet
+    private boolean enqueue(EncodedPacket packet) {
+        lock.lock();
+        try {
+            if (count == queue.length) {
+                skipping = true;
+                dropped.incrementAndGet();
+                packet.release();
+                return false;
+            }
+            skipping = false;
+            int slot = (head + count) % queue.length;
+            queue[slot] = packet;
+            enqueuedNs[slot] = System.nanoTime();
+            count++;
+            queued.incrementAndGet();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write() {
+        long[] times = new long[batch.length];
+        while (true) {
+            int taken = 0;
+            lock.lock();
+            try {
+                long waitNs = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs));
+                while (count == 0 && running && waitNs > 0) {
+                    waitNs = notEmpty.awaitNanos(waitNs);
+                }
+                if (count == 0 && !running) break;
+                // everything queued goes out in one batch
+                while (count > 0) {
+                    batch[taken] = queue[head];
+                    times[taken] = enqueuedNs[head];
+                    queue[head] = null;
+                    head = (head + 1) % queue.length;
+                    count--;
+                    taken++;
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+            long now = System.nanoTime();
+            if (taken > 0) batchPackets.record(taken);
+            for (int i = 0; i < taken; i++) {
+                queueWaitUs.record(TimeUnit.NANOSECONDS.toMicros(now - times[i]));
+                EncodedPacket packet = batch[i];
+                batch[i] = null;
+                try {
+                    writePacket(packet);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    e.printStackTrace();
+                    abandonSegment();
+                } finally {
+                    packet.release();
+                }
+            }
+            try {
+                cadence();
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                e.printStackTrace();
+                abandonSegment();
+            }
+        }
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            e.printStackTrace();
+        }
+    }
+
+    private void writePacket(EncodedPacket packet) throws IOException {
+        boolean key = packet.isKeyframe();
+        long pts = packet.presentationTimeUs();
+        if (muxer == null) {
+            // segments must start with a keyframe
+            if (!key || config == null) return;
+            openSegment(pts);
+        } else if (key && rotationDue(pts)) {
+            closeSegment();
+            openSegment(pts);
+        }
+        long before = segmentChannel.position();
+        long start = System.nanoTime();
+        muxer.writeSample(packet.data(), pts, key);
+        account(before, start);
+    }
+
+    private boolean rotationDue(long pts) {
+        try {
+            if (segmentBytes > 0 && segmentChannel.position() >= segmentBytes) return true;
+        } catch (IOException e) {
+            return true;
+        }
+        return segmentDurationUs > 0 && pts - segmentStartUs >= segmentDurationUs;
+    }
+
+    private void cadence() throws IOException {
+        if (muxer == null) return;
+        long nowMs = System.nanoTime() / 1000000;
+        if (nowMs - lastFlushMs >= flushIntervalMs) {
+            long before = segmentChannel.position();
+            long start = System.nanoTime();
+            muxer.flush();
+            account(before, start);
+            lastFlushMs = nowMs;
+        }
+        if (fsyncIntervalMs > 0 && nowMs - lastSyncMs >= fsyncIntervalMs) {
+            segmentChannel.force(false);
+            lastSyncMs = nowMs;
+        }
+    }
+
+    // records a write if the muxer actually wrote anything since before
+    private void account(long before, long startNs) throws IOException {
+        long written = segmentChannel.position() - before;
+        if (written <= 0) return;
+        long us = Math.max(1, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNs));
+        bytesWritten.addAndGet(written);
+        writeUs.record(us);
+        throughputKBps.record(written * 1000 / us);
+    }
+
+    private void openSegment(long pts) throws IOException {
+        String name = String.format(Locale.US, "%s-%03d.mp4", prefix, segmentIndex++);
+        segmentFile = new File(directory, name);
+        File part = partFile(segmentFile);
+        RandomAccessFile file = new RandomAccessFile(part, "rw");
+        file.setLength(0);
+        segmentChannel = file.getChannel();
+        muxer = new Mp4Muxer(segmentChannel, fragmentFrames, frameRate, false);
+        muxer.setWriteAlignment(alignment);
+        muxer.writeConfig(config.duplicate(), width, height);
+        segmentStartUs = pts;
+        long nowMs = System.nanoTime() / 1000000;
+        lastFlushMs = nowMs;
+        lastSyncMs = nowMs;
+        segments.incrementAndGet();
+    }
+
+    // the last fragment reaches storage before the segment gets its final name
+    private void closeSegment() throws IOException {
+        if (muxer == null) return;
+        Mp4Muxer closing = muxer;
+        muxer = null;
+        try {
+            long before = segmentChannel.position();
+            long start = System.nanoTime();
+            closing.flush();
+            account(before, start);
+            segmentChannel.force(true);
+        } finally {
+            closing.close();
+        }
+        if (!partFile(segmentFile).renameTo(segmentFile)) {
+            throw new IOException("can't rename " + partFile(segmentFile));
+        }
+    }
+
+    // after a failed write the segment is left as .part and a new one starts at the next keyframe
+    private void abandonSegment() {
+        if (muxer == null) return;
+        muxer = null;
+        try {
+            segmentChannel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static File partFile(File segment) {
+        return new File(segment.getPath() + ".part");
+    }
+
+    // one past the highest <prefix>-<n>.mp4 or .mp4.part in directory, 0 if there is none
+    static int nextSegmentIndex(File directory, String prefix) {
+        String[] names = directory.list();
+        if (names == null) return 0;
+        int next = 0;
+        for (String name : names) {
+            if (!name.startsWith(prefix + "-")) continue;
+            int end = name.endsWith(".mp4") ? name.length() - 4
+                    : name.endsWith(".mp4.part") ? name.length() - 9 : -1;
+            int start = prefix.length() + 1;
+            if (end <= start) continue;
+            String number = name.substring(start, end);
+            boolean digits = true;
+            for (int i = 0; i < number.length(); i++) {
+                if (!Character.isDigit(number.charAt(i))) digits = false;
+            }
+            // beyond int, the name is not one of ours
+            if (!digits || number.length() > 9) continue;
+            next = Math.max(next, Integer.parseInt(number) + 1);
+        }
+        return next;
+    }
+
+    // writes out what is queued, finishes the current segment and stops the thread
+    void stop() {
+        if (thread == null) return;
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ignore) {
+        }
+        thread = null;
+    }
+
+    int queueDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long queuedCount() {
+        return queued.get();
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    long bytesWritten() {
+        return bytesWritten.get();
+    }
+
+    long segmentCount() {
+        return segments.get();
+    }
+
+    long errorCount() {
+        return errors.get();
+    }
+
+    String report() {
+        return "RecordingWriter{queued=" + queued.get() + ", dropped=" + dropped.get() + ", bytes=" + bytesWritten.get()
+                + ", segments=" + segments.get() + ", errors=" + errors.get() + "}\n"
+                + queueWaitUs + "\n" + writeUs + "\n" + throughputKBps + "\n" + batchPackets;
+    }
+}
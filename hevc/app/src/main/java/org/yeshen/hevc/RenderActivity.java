@@ -1,17 +1,33 @@
 package org.yeshen.hevc;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.media.MediaCodec;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
 import android.os.Bundle;
 import android.text.TextPaint;
+import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -28,9 +44,17 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
     static int VIDEO_I_FRAME_INTERVAL = 2;
     static int VIDEO_BITRATE = 3000 * 1000;
 
+    // send the echo through RTP over loopback UDP instead of handing samples over directly
+    static final boolean STREAM_LOOPBACK = false;
+    static final String TAG = "RenderActivity";
+
     VideoEncoder mEncoder;
     VideoDecoder mDecoder;
+    CodecPrewarmer mPrewarmer;
     SurfaceView mPreview, mEchoView;
+    volatile RtpSender mSender;
+    RtpReceiver mReceiver;
+    final LatencyTracker mLatency = new LatencyTracker();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -41,8 +65,43 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
         mEchoView = findViewById(R.id.echo_view);
         mPreview.getHolder().addCallback(this);
 
-        mEncoder = new MyEncoder();
-        mDecoder = new VideoDecoder();
+        mPrewarmer = new CodecPrewarmer(new File(getCacheDir(), CodecCatalog.CACHE_FILE));
+        mPrewarmer.start();
+        mEncoder = new MyEncoder(mPrewarmer.encoders());
+        mDecoder = new VideoDecoder(mPrewarmer.decoders()) {
+            @Override
+            protected void onFrameRendered(long presentationTimeUs) {
+                mLatency.onRendered(presentationTimeUs);
+            }
+        };
+    }
+
+    void startStreaming() {
+        try {
+            mReceiver = new RtpReceiver(0, new EchoReceiver());
+            mSender = new RtpSender(new InetSocketAddress("127.0.0.1", mReceiver.localPort()),
+                    (int) System.nanoTime(), RtpPacketizer.DEFAULT_MTU, VIDEO_BITRATE * 4);
+        } catch (IOException e) {
+            e.printStackTrace();
+            stopStreaming();
+        }
+    }
+
+    void stopStreaming() {
+        if (mSender != null) {
+            Log.d(TAG, "sent packets=" + mSender.packetsSent() + " packets/s=" + (int) mSender.packetsPerSecond()
+                    + " framesDropped=" + mSender.framesDropped());
+            mSender.close();
+            mSender = null;
+        }
+        if (mReceiver != null) {
+            Log.d(TAG, "received packets=" + mReceiver.packetCount() + " lost=" + mReceiver.lostCount()
+                    + " late=" + mReceiver.lateCount()
+                    + " discarded=" + mReceiver.discardedCount() + " latency mean=" + mLatency.meanUs()
+                    + "us max=" + mLatency.maxUs() + "us");
+            mReceiver.close();
+            mReceiver = null;
+        }
     }
 
     @Override
@@ -54,23 +113,57 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         // surface is fully initialized on the activity
         mDecoder.start();
+        if (STREAM_LOOPBACK) startStreaming();
         mEncoder.start();
     }
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
         mEncoder.stop();
+        stopStreaming();
         mDecoder.stop();
+        Log.d(TAG, mPrewarmer.toString());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPrewarmer.release();
+    }
+
+    // runs on the receiver's thread
+    class EchoReceiver implements RtpDepacketizer.Listener {
+
+        boolean mConfigured;
+
+        @Override
+        public void onAccessUnit(byte[] data, int size, long presentationTimeUs, long captureTimeNs, boolean keyframe) {
+            if (!keyframe && HevcNal.isParameterSet(HevcNal.type(data[4]))) {
+                // the encoder's config sample, sent on its own
+                if (!mConfigured) {
+                    mDecoder.configure(mEchoView.getHolder().getSurface(),
+                            OUTPUT_WIDTH,
+                            OUTPUT_HEIGHT,
+                            Arrays.copyOf(data, size),
+                            0,
+                            size);
+                    mConfigured = true;
+                }
+                return;
+            }
+            if (!mConfigured) return;
+            mLatency.onReceived(presentationTimeUs, captureTimeNs);
+            mDecoder.decodeSample(data, 0, size, presentationTimeUs, keyframe ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
     }
 
 
     class MyEncoder extends VideoEncoder {
 
         SurfaceRenderer mRenderer;
-        byte[] mBuffer = new byte[0];
 
-        MyEncoder() {
-            super(OUTPUT_WIDTH, OUTPUT_HEIGHT);
+        MyEncoder(CodecDriver.Factory codecs) {
+            super(OUTPUT_WIDTH, OUTPUT_HEIGHT, codecs);
         }
 
         // Both of onSurfaceCreated and onSurfaceDestroyed are called from codec's thread,
@@ -78,7 +171,7 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
 
         @Override
         protected void onSurfaceCreated(Surface surface) {
-            // surface is created and codec is ready to accept input (Canvas)
+            // surface is created and codec is ready to accept input (EGL)
             mRenderer = new MyRenderer(surface);
             mRenderer.start();
         }
@@ -88,19 +181,24 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
             // need to make sure to block this thread to fully complete drawing cycle
             // otherwise unpredictable exceptions will be thrown (aka IllegalStateException)
             mRenderer.stopAndWait();
+            Log.d(TAG, "renderer " + mRenderer.pacer());
             mRenderer = null;
         }
 
         @Override
         protected void onEncodedSample(MediaCodec.BufferInfo info, ByteBuffer data) {
-            // Here we could have just used ByteBuffer, but in real life case we might need to
-            // send sample over network, etc. This requires byte[]
-            if (mBuffer.length < info.size) {
-                mBuffer = new byte[info.size];
-            }
+            // the sample is handed on straight from the codec's buffer, everybody downstream
+            // copies what it needs before this returns
             data.position(info.offset);
             data.limit(info.offset + info.size);
-            data.get(mBuffer, 0, info.size);
+
+            RtpSender sender = mSender;
+            if (sender != null) {
+                // input surface timestamps are taken from System.nanoTime
+                boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                sender.sendFrame(data, info.presentationTimeUs, config ? 0 : info.presentationTimeUs * 1000);
+                return;
+            }
 
             if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
                 // this is the first and only config sample, which contains information about codec
@@ -108,14 +206,10 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
                 mDecoder.configure(mEchoView.getHolder().getSurface(),
                         OUTPUT_WIDTH,
                         OUTPUT_HEIGHT,
-                        mBuffer,
-                        0,
-                        info.size);
+                        data);
             } else {
-                // pass byte[] to decoder's queue to render asap
-                mDecoder.decodeSample(mBuffer,
-                        0,
-                        info.size,
+                // pass the sample to decoder's queue to render asap
+                mDecoder.decodeSample(data,
                         info.presentationTimeUs,
                         info.flags);
             }
@@ -127,21 +221,42 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
     // it will be automatically encoded into H.264 stream
     class MyRenderer extends SurfaceRenderer {
 
+        // the clock is drawn by a Canvas into a small bitmap, which is uploaded every frame
+        // and blended over the middle of the picture
+        static final int TEXT_WIDTH = 256;
+        static final int TEXT_HEIGHT = 64;
+
+        static final String VERTEX_SHADER = ""
+                + "attribute vec4 aPosition;\n"
+                + "varying vec2 vTexCoord;\n"
+                + "void main() {\n"
+                + "    gl_Position = vec4(aPosition.xy, 0.0, 1.0);\n"
+                + "    vTexCoord = aPosition.zw;\n"
+                + "}\n";
+        static final String FRAGMENT_SHADER = ""
+                + "precision mediump float;\n"
+                + "varying vec2 vTexCoord;\n"
+                + "uniform sampler2D sTexture;\n"
+                + "void main() {\n"
+                + "    gl_FragColor = texture2D(sTexture, vTexCoord);\n"
+                + "}\n";
+
         TextPaint mPaint;
-        long mTimeStart;
+        Bitmap mText;
+        Canvas mTextCanvas;
+        FloatBuffer mQuad;
+        int mProgram;
+        int mPosition;
+        final int[] mTexture = new int[1];
+        long mTimeStartNs;
 
         MyRenderer(Surface surface) {
-            super(surface);
+            super(surface, VIDEO_FRAME_PER_SECOND);
         }
 
-        @Override
-        public void start() {
-            super.start();
-            mTimeStart = System.currentTimeMillis();
-        }
-
-        String formatTime() {
-            int now = (int) (System.currentTimeMillis() - mTimeStart);
+        String formatTime(long presentationTimeNs) {
+            if (mTimeStartNs == 0) mTimeStartNs = presentationTimeNs;
+            int now = (int) ((presentationTimeNs - mTimeStartNs) / 1000000);
             int minutes = now / 1000 / 60;
             int seconds = now / 1000 % 60;
             int millis = now % 1000;
@@ -149,35 +264,137 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
         }
 
         @Override
-        protected void onDraw(Canvas canvas) {
-            // non-UI thread
-            canvas.drawColor(Color.BLACK);
+        protected void onCreated(int width, int height) {
+            GLES20.glViewport(0, 0, width, height);
 
             // setting some text paint
-            if (mPaint == null) {
-                mPaint = new TextPaint();
-                mPaint.setAntiAlias(true);
-                mPaint.setColor(Color.WHITE);
-                mPaint.setTextSize(30f * getResources().getConfiguration().fontScale);
-                mPaint.setTextAlign(Paint.Align.CENTER);
-            }
+            mPaint = new TextPaint();
+            mPaint.setAntiAlias(true);
+            mPaint.setColor(Color.WHITE);
+            mPaint.setTextSize(30f * getResources().getConfiguration().fontScale);
+            mPaint.setTextAlign(Paint.Align.CENTER);
+            mText = Bitmap.createBitmap(TEXT_WIDTH, TEXT_HEIGHT, Bitmap.Config.ARGB_8888);
+            mTextCanvas = new Canvas(mText);
+
+            mProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+            mPosition = GLES20.glGetAttribLocation(mProgram, "aPosition");
+            GLES20.glGenTextures(1, mTexture, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mText, 0);
+
+            // x, y in clip space, then s, t; the bitmap's first row is t = 0
+            float x = (float) TEXT_WIDTH / width;
+            float y = (float) TEXT_HEIGHT / height;
+            float[] quad = {
+                    -x, -y, 0f, 1f,
+                    x, -y, 1f, 1f,
+                    -x, y, 0f, 0f,
+                    x, y, 1f, 0f,
+            };
+            mQuad = ByteBuffer.allocateDirect(quad.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mQuad.put(quad).flip();
+        }
+
+        @Override
+        protected void onDraw(long presentationTimeNs) {
+            // non-UI thread
+            GLES20.glClearColor(0f, 0f, 0f, 1f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+            // the clock shows the frame's own time, which is also the time the encoder gets
+            mText.eraseColor(Color.TRANSPARENT);
+            mTextCanvas.drawText(formatTime(presentationTimeNs), TEXT_WIDTH / 2, TEXT_HEIGHT * 2 / 3, mPaint);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, mText);
+
+            GLES20.glUseProgram(mProgram);
+            // bitmaps hold premultiplied alpha
+            GLES20.glEnable(GLES20.GL_BLEND);
+            GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+            GLES20.glEnableVertexAttribArray(mPosition);
+            GLES20.glVertexAttribPointer(mPosition, 4, GLES20.GL_FLOAT, false, 0, mQuad);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        }
 
-            canvas.drawText(formatTime(),
-                    OUTPUT_WIDTH / 2,
-                    OUTPUT_HEIGHT / 2,
-                    mPaint);
+        @Override
+        protected void onReleased() {
+            GLES20.glDeleteTextures(1, mTexture, 0);
+            GLES20.glDeleteProgram(mProgram);
+            mText.recycle();
         }
     }
 
+    static int createProgram(String vertexSource, String fragmentSource) {
+        int program = GLES20.glCreateProgram();
+        int vertex = compileShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragment = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        GLES20.glAttachShader(program, vertex);
+        GLES20.glAttachShader(program, fragment);
+        GLES20.glLinkProgram(program);
+        // flagged for deletion, they go with the program
+        GLES20.glDeleteShader(vertex);
+        GLES20.glDeleteShader(fragment);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IllegalStateException("link failed: " + log);
+        }
+        return program;
+    }
+
+    static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("compile failed: " + log);
+        }
+        return shader;
+    }
+
+    // Draws into the encoder's input surface through EGL at frameRate, paced by a FramePacer:
+    // a frame that took too long makes the next slots skip instead of queueing up in the
+    // encoder. Every frame is stamped with its slot by eglPresentationTimeANDROID, so the
+    // encoder sees evenly spaced timestamps however long drawing took.
     public static class SurfaceRenderer {
         Surface mSurface;
         Renderer mRenderer;
+        final FramePacer mPacer;
 
         SurfaceRenderer(Surface surface) {
+            this(surface, VIDEO_FRAME_PER_SECOND);
+        }
+
+        SurfaceRenderer(Surface surface, int frameRate) {
             mSurface = surface;
+            mPacer = new FramePacer(frameRate);
+        }
+
+        // on the render thread with the context current, before the first frame
+        protected void onCreated(int width, int height) {
+        }
+
+        // presentationTimeNs is the frame's slot on the System.nanoTime base, it becomes
+        // the timestamp of the buffer the encoder gets
+        protected void onDraw(long presentationTimeNs) {
+        }
+
+        // on the render thread with the context still current, after the last frame
+        protected void onReleased() {
         }
 
-        protected void onDraw(Canvas canvas) {
+        FramePacer pacer() {
+            return mPacer;
         }
 
         public void start() {
@@ -192,8 +409,8 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
             if (mRenderer != null) {
                 mRenderer.setRunning(false);
                 // we want to make sure complete drawing cycle, otherwise
-                // unlockCanvasAndPost() will be the one who may or may not throw
-                // IllegalStateException
+                // eglSwapBuffers() will be the one who may or may not fail
+                // on a surface the codec already released
                 try {
                     mRenderer.join();
                 } catch (InterruptedException ignore) {
@@ -205,6 +422,9 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
         class Renderer extends Thread {
 
             volatile boolean mRunning;
+            EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+            EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+            EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
 
             void setRunning(boolean running) {
                 mRunning = running;
@@ -212,15 +432,82 @@ public class RenderActivity extends Activity implements SurfaceHolder.Callback {
 
             @Override
             public void run() {
-                while (mRunning) {
-                    Canvas canvas = mSurface.lockCanvas(null);
-                    try {
-                        onDraw(canvas);
-                    } finally {
-                        mSurface.unlockCanvasAndPost(canvas);
+                try {
+                    eglSetUp();
+                    int[] size = new int[2];
+                    EGL14.eglQuerySurface(mDisplay, mEglSurface, EGL14.EGL_WIDTH, size, 0);
+                    EGL14.eglQuerySurface(mDisplay, mEglSurface, EGL14.EGL_HEIGHT, size, 1);
+                    onCreated(size[0], size[1]);
+                    while (mRunning) {
+                        long presentationTimeNs;
+                        try {
+                            presentationTimeNs = mPacer.awaitFrame();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                        onDraw(presentationTimeNs);
+                        EGLExt.eglPresentationTimeANDROID(mDisplay, mEglSurface, presentationTimeNs);
+                        if (!EGL14.eglSwapBuffers(mDisplay, mEglSurface)) {
+                            Log.w(TAG, "eglSwapBuffers failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+                            break;
+                        }
+                        mPacer.frameDrawn();
                     }
+                    onReleased();
+                } catch (IllegalStateException e) {
+                    e.printStackTrace();
+                } finally {
+                    eglRelease();
                 }
             }
+
+            // a GLES 2 context on a window surface over the encoder's input surface
+            void eglSetUp() {
+                mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+                int[] version = new int[2];
+                if (mDisplay == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+                    throw new IllegalStateException("no EGL display: 0x" + Integer.toHexString(EGL14.eglGetError()));
+                }
+                int[] attributes = {
+                        EGL14.EGL_RED_SIZE, 8,
+                        EGL14.EGL_GREEN_SIZE, 8,
+                        EGL14.EGL_BLUE_SIZE, 8,
+                        EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                        // the encoder has to be able to take the buffers
+                        EGLExt.EGL_RECORDABLE_ANDROID, 1,
+                        EGL14.EGL_NONE
+                };
+                EGLConfig[] configs = new EGLConfig[1];
+                int[] count = new int[1];
+                if (!EGL14.eglChooseConfig(mDisplay, attributes, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+                    throw new IllegalStateException("no recordable EGL config");
+                }
+                int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+                mContext = EGL14.eglCreateContext(mDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+                if (mContext == null || mContext == EGL14.EGL_NO_CONTEXT) {
+                    throw new IllegalStateException("eglCreateContext: 0x" + Integer.toHexString(EGL14.eglGetError()));
+                }
+                int[] surfaceAttributes = {EGL14.EGL_NONE};
+                mEglSurface = EGL14.eglCreateWindowSurface(mDisplay, configs[0], mSurface, surfaceAttributes, 0);
+                if (mEglSurface == null || mEglSurface == EGL14.EGL_NO_SURFACE) {
+                    throw new IllegalStateException("eglCreateWindowSurface: 0x" + Integer.toHexString(EGL14.eglGetError()));
+                }
+                if (!EGL14.eglMakeCurrent(mDisplay, mEglSurface, mEglSurface, mContext)) {
+                    throw new IllegalStateException("eglMakeCurrent: 0x" + Integer.toHexString(EGL14.eglGetError()));
+                }
+            }
+
+            void eglRelease() {
+                if (mDisplay == EGL14.EGL_NO_DISPLAY) return;
+                EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+                if (mEglSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(mDisplay, mEglSurface);
+                if (mContext != EGL14.EGL_NO_CONTEXT) EGL14.eglDestroyContext(mDisplay, mContext);
+                EGL14.eglReleaseThread();
+                EGL14.eglTerminate(mDisplay);
+                mDisplay = EGL14.EGL_NO_DISPLAY;
+                mContext = EGL14.EGL_NO_CONTEXT;
+                mEglSurface = EGL14.EGL_NO_SURFACE;
+            }
         }
     }
 }
@@ -0,0 +1,225 @@
+package org.yeshen.hevc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Reassembles the access units of an RtpPacketizer stream into Annex-B. An access
+// unit ends at the marker bit, or at a timestamp change if the marker got lost.
+// After any sequence gap the damaged unit is discarded and so is everything up to
+// the next unit holding an IRAP picture, since the decoder could not use it anyway.
+// There is no jitter buffer: a packet arriving after a later one is counted as late
+// and dropped, the gap it left has already damaged its unit.
+// Units without any slice (parameter sets sent on their own) always get through.
+class RtpDepacketizer {
+
+    interface Listener {
+        // data is only valid during the call
+        void onAccessUnit(byte[] data, int size, long presentationTimeUs, long captureTimeNs, boolean keyframe);
+    }
+
+    private final Listener listener;
+    private byte[] unit = new byte[64 * 1024];
+    private int size;
+    private boolean started;
+    private int timestamp;
+    private long captureTimeNs;
+    private boolean keyframe;
+    private boolean vcl;
+    private boolean damaged;
+    private boolean waitForKeyframe = true;
+    private boolean inFragment;
+    private int expectedSequence = -1;
+
+    private long packets;
+    private long lost;
+    private long late;
+    private long units;
+    private long discarded;
+
+    RtpDepacketizer(Listener listener) {
+        this.listener = listener;
+    }
+
+    void onPacket(ByteBuffer packet) {
+        int start = packet.position();
+        int end = packet.limit();
+        if (end - start < RtpPacketizer.HEADER_SIZE) return;
+        int first = packet.get(start) & 0xFF;
+        if ((first >> 6) != 2) return;
+        packets++;
+        boolean marker = (packet.get(start + 1) & 0x80) != 0;
+        int sequence = packet.getShort(start + 2) & 0xFFFF;
+        int packetTimestamp = packet.getInt(start + 4);
+        int position = start + RtpPacketizer.HEADER_SIZE + 4 * (first & 0x0F);
+        if ((first & 0x20) != 0) end -= packet.get(end - 1) & 0xFF;
+        long packetCaptureNs = 0;
+        if ((first & 0x10) != 0) {
+            if (position + 4 > end) return;
+            int profile = packet.getShort(position) & 0xFFFF;
+            int length = 4 * (packet.getShort(position + 2) & 0xFFFF);
+            int element = position + 4;
+            position = element + length;
+            if (profile == 0xBEDE) packetCaptureNs = captureTime(packet, element, Math.min(position, end));
+        }
+        if (position + 2 > end) return;
+
+        if (expectedSequence >= 0 && sequence != expectedSequence) {
+            int gap = (sequence - expectedSequence) & 0xFFFF;
+            if (gap >= 0x8000) {
+                // behind the expected sequence, reordered or duplicated
+                late++;
+                return;
+            }
+            lost += gap;
+            damaged = true;
+            inFragment = false;
+        }
+        expectedSequence = (sequence + 1) & 0xFFFF;
+
+        if (started && packetTimestamp != timestamp) finish();
+        if (!started) {
+            started = true;
+            timestamp = packetTimestamp;
+            captureTimeNs = packetCaptureNs;
+        }
+        payload(packet, position, end);
+        if (marker) finish();
+    }
+
+    private static long captureTime(ByteBuffer packet, int position, int end) {
+        while (position < end) {
+            int header = packet.get(position) & 0xFF;
+            if (header == 0) {
+                position++;
+                continue;
+            }
+            int id = header >> 4;
+            int length = (header & 0x0F) + 1;
+            if (id == 15) break;
+            if (id == RtpPacketizer.CAPTURE_TIME_EXTENSION_ID && length == 8 && position + 9 <= end) {
+                return packet.getLong(position + 1);
+            }
+            position += 1 + length;
+        }
+        return 0;
+    }
+
+    private void payload(ByteBuffer packet, int position, int end) {
+        int header0 = packet.get(position) & 0xFF;
+        int header1 = packet.get(position + 1) & 0xFF;
+        int type = (header0 >> 1) & 0x3F;
+        if (type == HevcNal.AP) {
+            position += 2;
+            while (position + 2 <= end) {
+                int length = packet.getShort(position) & 0xFFFF;
+                position += 2;
+                if (position + length > end) {
+                    damaged = true;
+                    return;
+                }
+                nal(packet, position, length);
+                position += length;
+            }
+        } else if (type == HevcNal.FU) {
+            if (position + 3 > end) return;
+            int fuHeader = packet.get(position + 2) & 0xFF;
+            boolean startBit = (fuHeader & 0x80) != 0;
+            if (startBit) {
+                int fuType = fuHeader & 0x3F;
+                ensure(4 + 2);
+                startCode();
+                unit[size++] = (byte) ((header0 & 0x81) | (fuType << 1));
+                unit[size++] = (byte) header1;
+                keyframe |= HevcNal.isIrap(fuType);
+                vcl |= HevcNal.isVcl(fuType);
+                inFragment = true;
+            } else if (!inFragment) {
+                // the start of this NAL unit never arrived
+                damaged = true;
+                return;
+            }
+            copy(packet, position + 3, end - position - 3);
+            if ((fuHeader & 0x40) != 0) inFragment = false;
+        } else {
+            nal(packet, position, end - position);
+        }
+    }
+
+    private void nal(ByteBuffer packet, int position, int length) {
+        if (length < 2) return;
+        int type = HevcNal.type(packet.get(position));
+        keyframe |= HevcNal.isIrap(type);
+        vcl |= HevcNal.isVcl(type);
+        ensure(4);
+        startCode();
+        copy(packet, position, length);
+    }
+
+    private void startCode() {
+        unit[size++] = 0;
+        unit[size++] = 0;
+        unit[size++] = 0;
+        unit[size++] = 1;
+    }
+
+    private void copy(ByteBuffer packet, int position, int length) {
+        ensure(length);
+        ByteBuffer view = packet.duplicate();
+        view.limit(position + length).position(position);
+        view.get(unit, size, length);
+        size += length;
+    }
+
+    private void ensure(int more) {
+        if (size + more > unit.length) unit = Arrays.copyOf(unit, Math.max(unit.length * 2, size + more));
+    }
+
+    private void finish() {
+        if (damaged || inFragment) {
+            waitForKeyframe = true;
+        } else if (keyframe) {
+            waitForKeyframe = false;
+        }
+        if (size == 0 || (waitForKeyframe && (vcl || damaged || inFragment))) {
+            discarded++;
+        } else {
+            units++;
+            long presentationTimeUs = (timestamp & 0xFFFFFFFFL) * 1000000 / RtpPacketizer.CLOCK_RATE;
+            listener.onAccessUnit(unit, size, presentationTimeUs, captureTimeNs, keyframe);
+        }
+        size = 0;
+        started = false;
+        keyframe = false;
+        vcl = false;
+        damaged = false;
+        inFragment = false;
+    }
+
+    long packetCount() {
+        return packets;
+    }
+
+    long lostCount() {
+        return lost;
+    }
+
+    // packets that arrived after a later one and were dropped
+    long lateCount() {
+        return late;
+    }
+
+    long unitCount() {
+        return units;
+    }
+
+    // access units dropped because they or an earlier unit were damaged
+    long discardedCount() {
+        return discarded;
+    }
+}
@@ -0,0 +1,209 @@
+package org.yeshen.hevc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// RFC 7798 packetization of Annex-B access units: NAL units that fit are sent as
+// single NAL unit packets, or several small ones (parameter sets, SEI) together in an
+// aggregation packet; larger ones are split into fragmentation units. The marker bit
+// is set on the last packet of an access unit. Every packet carries the capture time
+// of its access unit in a one-byte header extension (RFC 8285) so that the receiver
+// can measure latency against the same clock on loopback.
+class RtpPacketizer implements AnnexBScanner.Listener {
+
+    interface Output {
+        // packet is only valid during the call
+        void onPacket(ByteBuffer packet);
+    }
+
+    static final int DEFAULT_MTU = 1200;
+    static final int PAYLOAD_TYPE = 96;
+    static final int CLOCK_RATE = 90000;
+    static final int CAPTURE_TIME_EXTENSION_ID = 1;
+    static final int HEADER_SIZE = 12;
+    // 0xBEDE profile, length, id/len byte, 8 bytes of time, 3 bytes padding
+    static final int EXTENSION_SIZE = 16;
+
+    private final int ssrc;
+    private final int mtu;
+    private final ByteBuffer packet;
+    private final AnnexBScanner scanner = new AnnexBScanner();
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private int sequence;
+
+    // NAL units of the access unit being packetized, possibly spread over several buffers
+    private ByteBuffer[] nalBuffers = new ByteBuffer[16];
+    private int[] nalOffsets = new int[16];
+    private int[] nalSizes = new int[16];
+    private int nalCount;
+    private ByteBuffer scanning;
+
+    private int timestamp;
+    private long captureTimeNs;
+    private Output output;
+    private long packets;
+
+    RtpPacketizer(int ssrc, int mtu) {
+        if (mtu < HEADER_SIZE + EXTENSION_SIZE + 3 + 16) throw new IllegalArgumentException("mtu too small: " + mtu);
+        this.ssrc = ssrc;
+        this.mtu = mtu;
+        this.packet = ByteBuffer.allocate(mtu);
+    }
+
+    private int maxPayload() {
+        return mtu - HEADER_SIZE - EXTENSION_SIZE;
+    }
+
+    void packetize(byte[] data, int offset, int size, long presentationTimeUs, long captureTimeNs, Output output) {
+        packetize(ByteBuffer.wrap(data, offset, size), presentationTimeUs, captureTimeNs, output);
+    }
+
+    // the access unit is [position, limit) of data, which is left untouched
+    void packetize(ByteBuffer data, long presentationTimeUs, long captureTimeNs, Output output) {
+        single[0] = data;
+        try {
+            packetize(single, presentationTimeUs, captureTimeNs, output);
+        } finally {
+            single[0] = null;
+        }
+    }
+
+    // one access unit gathered from several Annex-B buffers, e.g. parameter sets and a keyframe
+    void packetize(ByteBuffer[] parts, long presentationTimeUs, long captureTimeNs, Output output) {
+        this.timestamp = (int) (presentationTimeUs * CLOCK_RATE / 1000000);
+        this.captureTimeNs = captureTimeNs;
+        this.output = output;
+        nalCount = 0;
+        for (ByteBuffer part : parts) {
+            if (part == null) continue;
+            scanning = part;
+            scanner.scan(part.duplicate(), this);
+        }
+        scanning = null;
+        int maxPayload = maxPayload();
+        int first = 0;
+        // 2 bytes of AP header, then 2 bytes of size in front of every NAL unit
+        int aggregated = 2;
+        for (int i = 0; i < nalCount; i++) {
+            int nalSize = nalSizes[i];
+            if (nalSize > maxPayload) {
+                flush(first, i, false);
+                fragment(i, i == nalCount - 1);
+                first = i + 1;
+                aggregated = 2;
+            } else if (aggregated + 2 + nalSize > maxPayload && i > first) {
+                flush(first, i, false);
+                first = i;
+                aggregated = 2 + 2 + nalSize;
+            } else {
+                aggregated += 2 + nalSize;
+            }
+        }
+        flush(first, nalCount, true);
+        Arrays.fill(nalBuffers, 0, nalCount, null);
+        this.output = null;
+    }
+
+    @Override
+    public void onNal(ByteBuffer buffer, int offset, int size, int type, long streamOffset) {
+        if (size < 2) return;
+        if (nalCount == nalOffsets.length) {
+            nalBuffers = Arrays.copyOf(nalBuffers, nalCount * 2);
+            nalOffsets = Arrays.copyOf(nalOffsets, nalCount * 2);
+            nalSizes = Arrays.copyOf(nalSizes, nalCount * 2);
+        }
+        nalBuffers[nalCount] = scanning;
+        nalOffsets[nalCount] = offset;
+        nalSizes[nalCount] = size;
+        nalCount++;
+    }
+
+    // NAL units [from, to) as one single NAL unit packet or one aggregation packet
+    private void flush(int from, int to, boolean last) {
+        if (to <= from) return;
+        if (to - from == 1) {
+            begin(last);
+            put(from, nalOffsets[from], nalSizes[from]);
+            send();
+            return;
+        }
+        // F is the OR, LayerId and TID the lowest of the aggregated units
+        int forbidden = 0;
+        int layerId = 63;
+        int tid = 7;
+        for (int i = from; i < to; i++) {
+            int header = nalBuffers[i].getShort(nalOffsets[i]) & 0xFFFF;
+            forbidden |= header & 0x8000;
+            layerId = Math.min(layerId, (header >> 3) & 0x3F);
+            tid = Math.min(tid, header & 0x7);
+        }
+        begin(last);
+        packet.putShort((short) (forbidden | (HevcNal.AP << 9) | (layerId << 3) | tid));
+        for (int i = from; i < to; i++) {
+            packet.putShort((short) nalSizes[i]);
+            put(i, nalOffsets[i], nalSizes[i]);
+        }
+        send();
+    }
+
+    private void fragment(int nal, boolean last) {
+        ByteBuffer data = nalBuffers[nal];
+        int offset = nalOffsets[nal];
+        int header0 = data.get(offset) & 0xFF;
+        int header1 = data.get(offset + 1) & 0xFF;
+        int type = (header0 >> 1) & 0x3F;
+        int position = offset + 2;
+        int end = offset + nalSizes[nal];
+        int chunk = maxPayload() - 3;
+        boolean start = true;
+        while (position < end) {
+            int length = Math.min(chunk, end - position);
+            boolean finish = position + length == end;
+            begin(last && finish);
+            packet.put((byte) ((header0 & 0x81) | (HevcNal.FU << 1)));
+            packet.put((byte) header1);
+            packet.put((byte) ((start ? 0x80 : 0) | (finish ? 0x40 : 0) | type));
+            put(nal, position, length);
+            send();
+            position += length;
+            start = false;
+        }
+    }
+
+    private void put(int nal, int position, int length) {
+        ByteBuffer view = nalBuffers[nal].duplicate();
+        view.limit(position + length).position(position);
+        packet.put(view);
+    }
+    private void begin(boolean marker) {
+        packet.clear();
+        // V=2, no padding, header extension, no CSRC
+        packet.put((byte) 0x90);
+        packet.put((byte) ((marker ? 0x80 : 0) | PAYLOAD_TYPE));
+        packet.putShort((short) sequence);
+        packet.putInt(timestamp);
+        packet.putInt(ssrc);
+        packet.putShort((short) 0xBEDE);
+        packet.putShort((short) 3);
+        packet.put((byte) ((CAPTURE_TIME_EXTENSION_ID << 4) | 7));
+        packet.putLong(captureTimeNs);
+        packet.put((byte) 0).put((byte) 0).put((byte) 0);
+        sequence = (sequence + 1) & 0xFFFF;
+    }
+
+    private void send() {
+        packet.flip();
+        packets++;
+        output.onPacket(packet);
+    }
+
+    long packetCount() {
+        return packets;
+    }
+}
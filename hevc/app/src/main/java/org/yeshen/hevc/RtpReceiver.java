@@ -0,0 +1,116 @@
+package org.yeshen.hevc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Receives an RtpSender stream on its own thread and hands the reassembled access
+// units to the listener, which runs on that thread too. Every datagram waiting on
+// the socket is drained per wakeup so a burst does not overflow the socket buffer.
+class RtpReceiver {
+
+    // how long select blocks before re-checking running
+    private static final long SELECT_TIMEOUT_MS = 100;
+    private static final int MAX_DATAGRAM = 64 * 1024;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final RtpDepacketizer depacketizer;
+    private final ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // port 0 picks a free one, see localPort()
+    RtpReceiver(int port, RtpDepacketizer.Listener listener) throws IOException {
+        depacketizer = new RtpDepacketizer(listener);
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(new InetSocketAddress(port));
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "rtp-receiver");
+        thread.start();
+    }
+
+    int localPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    private void receive() {
+        try {
+            while (running) {
+                if (selector.select(SELECT_TIMEOUT_MS) == 0) continue;
+                selector.selectedKeys().clear();
+                while (running) {
+                    datagram.clear();
+                    if (channel.receive(datagram) == null) break;
+                    datagram.flip();
+                    synchronized (depacketizer) {
+                        depacketizer.onPacket(datagram);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) e.printStackTrace();
+        }
+    }
+
+    long packetCount() {
+        synchronized (depacketizer) {
+            return depacketizer.packetCount();
+        }
+    }
+
+    long lostCount() {
+        synchronized (depacketizer) {
+            return depacketizer.lostCount();
+        }
+    }
+
+    long lateCount() {
+        synchronized (depacketizer) {
+            return depacketizer.lateCount();
+        }
+    }
+
+    long unitCount() {
+        synchronized (depacketizer) {
+            return depacketizer.unitCount();
+        }
+    }
+
+    long discardedCount() {
+        synchronized (depacketizer) {
+            return depacketizer.discardedCount();
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException ignore) {
+        }
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
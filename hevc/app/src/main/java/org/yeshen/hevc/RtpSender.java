@@ -0,0 +1,235 @@
+package org.yeshen.hevc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Sends encoded frames as RTP over a non-blocking, connected DatagramChannel.
+// Packets are copied into a ring of preallocated buffers by the encoder's thread and
+// written by a pacing thread through a token bucket, so a large IDR leaves as a
+// steady stream instead of one burst the network or the receiver's socket buffer
+// drops. When the ring is full the whole frame is dropped rather than a part of it;
+// the receiver then waits for the next keyframe.
+class RtpSender implements HevcEncodeThread.OnCodeFrame, PacketBus.Listener {
+
+    static final int DEFAULT_RING_PACKETS = 512;
+    // how much may leave back to back, in bytes
+    static final int DEFAULT_BURST_BYTES = 16 * 1024;
+
+    // backoff while the socket buffer is full
+    private static final long SOCKET_FULL_PARK_NS = 200000;
+
+    private final DatagramChannel channel;
+    private final RtpPacketizer packetizer;
+    private final ByteBuffer[] ring;
+    private final long bytesPerSecond;
+    private final long burstBytes;
+    private final Object lock = new Object();
+    private int head;
+    private int count;
+    private final Thread pacer;
+    private volatile boolean running = true;
+
+    // frame being packetized, written by the one thread frames come from
+    private final ByteBuffer[] frame;
+    private int framePackets;
+    private boolean frameOverflow;
+    private final RtpPacketizer.Output collector = new RtpPacketizer.Output() {
+        @Override
+        public void onPacket(ByteBuffer packet) {
+            if (framePackets == frame.length) {
+                frameOverflow = true;
+                return;
+            }
+            ByteBuffer slot = frame[framePackets++];
+            slot.clear();
+            slot.put(packet);
+            slot.flip();
+        }
+    };
+    private final long startNs = System.nanoTime();
+
+    private volatile long packetsSent;
+    private volatile long bytesSent;
+    private volatile long framesSent;
+    private volatile long framesDropped;
+    private volatile long socketFullWaits;
+
+    // bitsPerSecond is the pacing rate, well above the encoder bitrate so frames do not queue
+    RtpSender(InetSocketAddress target, int ssrc, int mtu, int bitsPerSecond) throws IOException {
+        this(target, ssrc, mtu, bitsPerSecond, DEFAULT_RING_PACKETS);
+    }
+
+    RtpSender(InetSocketAddress target, int ssrc, int mtu, int bitsPerSecond, int ringPackets) throws IOException {
+        if (bitsPerSecond <= 0) throw new IllegalArgumentException("bad rate " + bitsPerSecond);
+        this.packetizer = new RtpPacketizer(ssrc, mtu);
+        this.bytesPerSecond = bitsPerSecond / 8;
+        this.burstBytes = Math.max(DEFAULT_BURST_BYTES, mtu);
+        this.ring = new ByteBuffer[ringPackets];
+        this.frame = new ByteBuffer[ringPackets];
+        for (int i = 0; i < ringPackets; i++) {
+            ring[i] = ByteBuffer.allocateDirect(mtu);
+            frame[i] = ByteBuffer.allocateDirect(mtu);
+        }
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(target);
+        pacer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pace();
+            }
+        }, "rtp-pacer");
+        pacer.start();
+    }
+
+    // the packet's capture time, or the arrival time for a packet that has none
+    @Override
+    public void onCodeFrame(EncodedPacket packet) {
+        long captureTimeNs = packet.captureTimeNs();
+        sendFrame(packet.buffers(), packet.presentationTimeUs(), captureTimeNs != 0 ? captureTimeNs : System.nanoTime());
+    }
+
+    // subscribed to a PacketBus, frames come from the bus's thread instead of the encoder's
+    @Override
+    public void onPacket(EncodedPacket packet) {
+        onCodeFrame(packet);
+    }
+
+    // captureTimeNs on the System.nanoTime clock, travels with every packet of the frame
+    void sendFrame(byte[] data, int offset, int size, long presentationTimeUs, long captureTimeNs) {
+        sendFrame(ByteBuffer.wrap(data, offset, size), presentationTimeUs, captureTimeNs);
+    }
+
+    void sendFrame(ByteBuffer data, long presentationTimeUs, long captureTimeNs) {
+        framePackets = 0;
+        frameOverflow = false;
+        packetizer.packetize(data, presentationTimeUs, captureTimeNs, collector);
+        enqueueFrame();
+    }
+
+    // one access unit gathered from several buffers, nothing is concatenated
+    void sendFrame(ByteBuffer[] parts, long presentationTimeUs, long captureTimeNs) {
+        framePackets = 0;
+        frameOverflow = false;
+        packetizer.packetize(parts, presentationTimeUs, captureTimeNs, collector);
+        enqueueFrame();
+    }
+
+    private void enqueueFrame() {
+        synchronized (lock) {
+            if (frameOverflow || count + framePackets > ring.length) {
+                framesDropped++;
+                return;
+            }
+            for (int i = 0; i < framePackets; i++) {
+                ByteBuffer slot = ring[(head + count + i) % ring.length];
+                slot.clear();
+                slot.put(frame[i]);
+                slot.flip();
+            }
+            count += framePackets;
+            framesSent++;
+            lock.notify();
+        }
+    }
+
+    private void pace() {
+        long tokens = burstBytes;
+        long lastNs = System.nanoTime();
+        while (running) {
+            ByteBuffer packet;
+            synchronized (lock) {
+                while (running && count == 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) return;
+                packet = ring[head];
+            }
+            int size = packet.remaining();
+            long now = System.nanoTime();
+            tokens = Math.min(burstBytes, tokens + (now - lastNs) * bytesPerSecond / 1000000000L);
+            lastNs = now;
+            if (tokens < size) {
+                LockSupport.parkNanos((size - tokens) * 1000000000L / bytesPerSecond);
+                continue;
+            }
+            try {
+                while (running && channel.write(packet) == 0) {
+                    socketFullWaits++;
+                    LockSupport.parkNanos(SOCKET_FULL_PARK_NS);
+                }
+            } catch (IOException e) {
+                // nobody listening yet (ICMP port unreachable) or the network is gone, the packet is lost
+                packet.position(packet.limit());
+            }
+            tokens -= size;
+            packetsSent++;
+            bytesSent += size;
+            synchronized (lock) {
+                head = (head + 1) % ring.length;
+                count--;
+            }
+        }
+    }
+
+    int queueDepth() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    long packetsSent() {
+        return packetsSent;
+    }
+
+    long bytesSent() {
+        return bytesSent;
+    }
+
+    long framesSent() {
+        return framesSent;
+    }
+
+    long framesDropped() {
+        return framesDropped;
+    }
+
+    long socketFullWaits() {
+        return socketFullWaits;
+    }
+
+    double packetsPerSecond() {
+        long elapsedNs = System.nanoTime() - startNs;
+        return elapsedNs <= 0 ? 0 : packetsSent * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNs;
+    }
+
+    void close() {
+        running = false;
+        synchronized (lock) {
+            lock.notify();
+        }
+        try {
+            pacer.join();
+        } catch (InterruptedException ignore) {
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
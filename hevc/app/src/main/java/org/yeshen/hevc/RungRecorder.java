@@ -0,0 +1,91 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Records every session it is attached to into <prefix>-<config name>-000.mp4, one
+// fragment per GOP. Each rung gets a RecordingWriter of its own, so the farm's threads
+// only copy the sample into the writer's queue and a slow write stalls that rung's
+// writer instead of every encoder. Samples before a rung's parameter sets are skipped.
+class RungRecorder implements EncoderSession.Sink {
+
+    // one per session; used from the session's pump, one call at a time
+    private static final class Rung {
+        final RecordingWriter writer;
+        // wraps the codec buffer for the duration of offer(), which copies it
+        final EncodedPacket packet = new EncodedPacket();
+        boolean configured;
+
+        Rung(RecordingWriter writer) {
+            this.writer = writer;
+        }
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final HashMap<EncoderSession, Rung> rungs = new HashMap<>();
+    private boolean closed;
+
+    RungRecorder(File directory, String prefix) {
+        this.directory = directory;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public void onEncoded(EncoderSession session, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        Rung rung = rung(session);
+        if (rung == null) return;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            rung.writer.setConfig(buffer);
+            rung.configured = true;
+        } else if (info.size > 0 && rung.configured) {
+            rung.packet.reset(null, buffer, info.presentationTimeUs, info.flags, null);
+            rung.writer.offer(rung.packet);
+            rung.packet.release();
+        }
+    }
+
+    // the lock only covers the lookup, the writer is started on a session's first output
+    private Rung rung(EncoderSession session) {
+        synchronized (rungs) {
+            if (closed) return null;
+            Rung rung = rungs.get(session);
+            if (rung == null) {
+                EncoderConfig config = session.config;
+                int gopFrames = config.frameRate * Math.max(1, config.iFrameInterval);
+                RecordingWriter writer = new RecordingWriter(directory, prefix + "-" + config.name,
+                        config.width, config.height, config.frameRate, gopFrames,
+                        new EncodedPacketPool(config.frameSize() / 4, RecordingWriter.DEFAULT_QUEUE_DEPTH),
+                        RecordingWriter.DEFAULT_QUEUE_DEPTH);
+                writer.start();
+                rung = new Rung(writer);
+                rungs.put(session, rung);
+            }
+            return rung;
+        }
+    }
+
+    // writes out what is queued and finishes every file
+    void close() {
+        List<Rung> closing;
+        synchronized (rungs) {
+            closed = true;
+            closing = new ArrayList<>(rungs.values());
+            rungs.clear();
+        }
+        for (Rung rung : closing) {
+            rung.writer.stop();
+        }
+    }
+}
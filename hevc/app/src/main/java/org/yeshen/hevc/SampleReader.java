@@ -0,0 +1,57 @@
+package org.yeshen.hevc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Access units of the HEVC track of a file, in decode order, framed as Annex-B
+// the way MediaCodec decoders take them.
+abstract class SampleReader implements Closeable {
+
+    static final class Sample {
+        // where the unit is stored in the file and how many bytes it takes there
+        long offset;
+        int size;
+        long presentationTimeUs;
+        // MediaCodec.BUFFER_FLAG_SYNC_FRAME for random access points
+        int flags;
+    }
+
+    int width;
+    int height;
+    // VPS, SPS and PPS with start codes, for the csd-0 of the decoder format
+    byte[] csd;
+    long durationUs;
+
+    static SampleReader open(File file, int annexBFrameRate) throws IOException {
+        MappedFile mapped = new MappedFile(file);
+        try {
+            if (mapped.size() >= 8 && mapped.readInt(4) == Mp4SampleReader.FTYP) {
+                return new Mp4SampleReader(mapped);
+            }
+            return new AnnexBSampleReader(mapped, annexBFrameRate);
+        } catch (IOException e) {
+            mapped.close();
+            throw e;
+        }
+    }
+
+    // fills in the next access unit, false at the end of the track
+    abstract boolean next(Sample sample) throws IOException;
+
+    // upper bound of what read() writes for this sample
+    abstract int annexBSize(Sample sample);
+
+    // copies the sample into dst as Annex-B, returns the number of bytes written
+    abstract int read(Sample sample, ByteBuffer dst) throws IOException;
+
+    // makes next() continue with a sample returned earlier, given its offset and timestamp
+    abstract void seek(long offset, long presentationTimeUs) throws IOException;
+}
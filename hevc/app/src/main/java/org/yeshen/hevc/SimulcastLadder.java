@@ -0,0 +1,228 @@
+package org.yeshen.hevc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Encodes one NV21 capture into several renditions at once. A fan-out thread scales
+// every captured frame once per rung into that rung's own FramePool, and each rung is
+// an EncoderSession of the given farm. A frame goes to every rung or to none (when some
+// rung still holds all its buffers), so all encoders see the same frame sequence and
+// their forced IDRs land on the same captured pictures.
+class SimulcastLadder {
+
+    static final int RUNG_DEPTH = 3;
+    // how long the fan-out thread parks waiting for a capture frame before re-checking running
+    private static final long IDLE_WAIT_US = 100000;
+
+    private static final class Rung implements FrameSource {
+        final EncoderConfig config;
+        final FramePool pool;
+        final FrameChannel channel;
+        EncoderSession session;
+
+        Rung(EncoderConfig config) {
+            this.config = config;
+            this.pool = new FramePool(config.frameSize(), RUNG_DEPTH);
+            // never full: the pool hands out at most RUNG_DEPTH buffers
+            this.channel = new FrameChannel(RUNG_DEPTH, FrameChannel.DropPolicy.DROP_OLDEST, 0, new FrameChannel.OnDrop() {
+                @Override
+                public void onDrop(byte[] frame, long timestampNs) {
+                    pool.release(frame);
+                }
+            });
+        }
+
+        @Override
+        public byte[] poll(long timeoutUs) {
+            return channel.poll(timeoutUs);
+        }
+
+        @Override
+        public long captureTimeNs() {
+            return channel.polledTimestampNs();
+        }
+
+        @Override
+        public int pending() {
+            return channel.size();
+        }
+
+        @Override
+        public void recycle(byte[] frame) {
+            pool.release(frame);
+        }
+    }
+
+    private final FrameSource capture;
+    private final int captureWidth;
+    private final int captureHeight;
+    // trimmed by start() to the rungs that got an encoder
+    private volatile Rung[] rungs;
+    private final EncoderFarm farm;
+    private final YuvScaler scaler;
+    private final AtomicLong fannedOut = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile boolean running;
+    private Thread thread;
+
+    SimulcastLadder(FrameSource capture, int captureWidth, int captureHeight, List<EncoderConfig> configs,
+                    EncoderFarm farm, YuvScaler scaler) {
+        if (configs.isEmpty()) throw new IllegalArgumentException("no rungs");
+        EncoderConfig first = configs.get(0);
+        this.rungs = new Rung[configs.size()];
+        for (int i = 0; i < rungs.length; i++) {
+            EncoderConfig config = configs.get(i);
+            if (config.frameRate != first.frameRate || config.iFrameInterval != first.iFrameInterval) {
+                throw new IllegalArgumentException("rungs need the same frame rate and GOP: " + config + " vs " + first);
+            }
+            if (config.width > captureWidth || config.height > captureHeight) {
+                throw new IllegalArgumentException("rung " + config + " is larger than the capture");
+            }
+            rungs[i] = new Rung(config);
+        }
+        this.capture = capture;
+        this.captureWidth = captureWidth;
+        this.captureHeight = captureHeight;
+        this.farm = farm;
+        this.scaler = scaler;
+    }
+
+    // 720p/480p/240p at roughly 0.09 bits per pixel
+    static List<EncoderConfig> defaultLadder(int frameRate, int iFrameInterval) {
+        return Arrays.asList(
+                new EncoderConfig("720p", 1280, 720, 2500000, frameRate, iFrameInterval),
+                new EncoderConfig("480p", 848, 480, 1100000, frameRate, iFrameInterval),
+                new EncoderConfig("240p", 424, 240, 300000, frameRate, iFrameInterval));
+    }
+
+    // opens the rungs from the top; when the codec runs out of instances (the limit is not
+    // known before M) the ladder goes on with the rungs opened so far, if any. Codecs are
+    // created here, so not from the UI thread
+    void start(EncoderSession.Sink sink) throws IOException {
+        int opened = 0;
+        try {
+            for (Rung rung : rungs) {
+                rung.session = farm.open(rung.config, rung, sink);
+                rung.session.alignSyncFrames(rung.config.frameRate * Math.max(1, rung.config.iFrameInterval));
+                opened++;
+            }
+        } catch (IOException | IllegalStateException e) {
+            if (opened == 0) throw e;
+            e.printStackTrace();
+            rungs = Arrays.copyOf(rungs, opened);
+        } catch (RuntimeException e) {
+            closeSessions();
+            throw e;
+        }
+        running = true;
+        thread = new Thread("simulcast-fan-out") {
+            @Override
+            public void run() {
+                fanOut();
+            }
+        };
+        thread.start();
+    }
+
+    private void fanOut() {
+        byte[][] targets = new byte[rungs.length][];
+        while (running) {
+            byte[] frame = capture.poll(IDLE_WAIT_US);
+            if (frame == null) continue;
+            long captureTimeNs = capture.captureTimeNs();
+            try {
+                if (!acquire(targets)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                for (int i = 0; i < rungs.length; i++) {
+                    EncoderConfig config = rungs[i].config;
+                    if (config.width == captureWidth && config.height == captureHeight) {
+                        System.arraycopy(frame, 0, targets[i], 0, config.frameSize());
+                    } else {
+                        scaler.scale(frame, captureWidth, captureHeight, targets[i], config.width, config.height);
+                    }
+                }
+                for (int i = 0; i < rungs.length; i++) {
+                    rungs[i].channel.offer(targets[i], captureTimeNs != 0 ? captureTimeNs : System.nanoTime());
+                    targets[i] = null;
+                }
+                fannedOut.incrementAndGet();
+            } catch (Throwable t) {
+                t.printStackTrace();
+                release(targets);
+            } finally {
+                capture.recycle(frame);
+            }
+        }
+    }
+
+    // one buffer from every rung, or none at all
+    private boolean acquire(byte[][] targets) {
+        for (int i = 0; i < rungs.length; i++) {
+            targets[i] = rungs[i].pool.acquire();
+            if (targets[i] == null) {
+                release(targets);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void release(byte[][] targets) {
+        for (int i = 0; i < rungs.length; i++) {
+            if (targets[i] != null) rungs[i].pool.release(targets[i]);
+            targets[i] = null;
+        }
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeSessions();
+        for (Rung rung : rungs) {
+            rung.channel.clear();
+            rung.pool.clear();
+        }
+    }
+
+    private void closeSessions() {
+        for (Rung rung : rungs) {
+            if (rung.session != null) farm.close(rung.session);
+            rung.session = null;
+        }
+    }
+
+    List<EncoderSession> sessions() {
+        List<EncoderSession> sessions = new ArrayList<>();
+        for (Rung rung : rungs) {
+            if (rung.session != null) sessions.add(rung.session);
+        }
+        return sessions;
+    }
+
+    // capture frames handed to every rung
+    long fannedOutCount() {
+        return fannedOut.get();
+    }
+
+    // capture frames skipped because some rung was still busy with all its buffers
+    long skippedCount() {
+        return skipped.get();
+    }
+}
@@ -0,0 +1,144 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Thumbnails of a file at count evenly spaced keyframes, found with its KeyframeIndex.
+// Only those keyframes are read and decoded: they go into the decoder back to back as
+// if they were the whole stream, each one decodes on its own, so no flush is needed
+// between them and every output frame is a thumbnail.
+class ThumbnailExtractor {
+
+    interface Listener {
+        // frame is the decoder's output in the color format of format (null off-device),
+        // valid during the call only; thumbnails come in file order
+        void onThumbnail(int number, long presentationTimeUs, ByteBuffer frame, MediaFormat format);
+    }
+
+    // raw .h265/.hevc streams carry no timing
+    private static final int ANNEX_B_FRAME_RATE = 30;
+    private static final long INPUT_TIMEOUT_US = 10000;
+
+    private final CodecDriver.Factory codecs;
+
+    ThumbnailExtractor() {
+        this(CodecDrivers.factory(MediaCodecAdapter.decoderFactory(EncoderConfig.MIME)));
+    }
+
+    ThumbnailExtractor(CodecDriver.Factory codecs) {
+        this.codecs = codecs;
+    }
+
+    // indices into index of up to count keyframes spread evenly over the frames of the file
+    static int[] pick(KeyframeIndex index, int count) {
+        int n = Math.min(count, index.size());
+        int[] picked = new int[Math.max(0, n)];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            int keyframe = Math.max(0, index.floor(index.frameCount() * i / n));
+            // long GOPs can map two positions to the same keyframe
+            if (size == 0 || picked[size - 1] != keyframe) picked[size++] = keyframe;
+        }
+        int[] result = new int[size];
+        System.arraycopy(picked, 0, result, 0, size);
+        return result;
+    }
+
+    // the number of thumbnails delivered, fewer than count if the file has fewer keyframes
+    int extract(File file, int count, final Listener listener, long timeoutMs) throws IOException {
+        if (count <= 0) throw new IllegalArgumentException("bad thumbnail count " + count);
+        KeyframeIndex index = KeyframeIndex.load(file, ANNEX_B_FRAME_RATE);
+        int[] picked = pick(index, count);
+        SampleReader reader = SampleReader.open(file, ANNEX_B_FRAME_RATE);
+        final CodecDriver decoder;
+        try {
+            if (reader.csd == null || reader.width <= 0 || reader.height <= 0) {
+                throw new IOException("no HEVC video in " + file);
+            }
+            decoder = codecs.create("thumbnail-decoder");
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] delivered = new int[1];
+        final MediaFormat[] outputFormat = new MediaFormat[1];
+        final Exception[] failure = new Exception[1];
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(EncoderConfig.MIME, reader.width, reader.height);
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(reader.csd));
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, YuvFormat.frameSize(reader.width, reader.height));
+            decoder.configure(format, null, 0);
+            decoder.start(new CodecDriver.Callback() {
+                @Override
+                public void onOutputBuffer(int index, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+                    try {
+                        if (info.size > 0) {
+                            listener.onThumbnail(delivered[0]++, info.presentationTimeUs, buffer, outputFormat[0]);
+                        }
+                    } finally {
+                        decoder.releaseOutput(index, false);
+                    }
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) done.countDown();
+                }
+
+                @Override
+                public void onOutputFormatChanged(MediaFormat format) {
+                    outputFormat[0] = format;
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    failure[0] = e;
+                    done.countDown();
+                }
+            });
+
+            long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            SampleReader.Sample sample = new SampleReader.Sample();
+            for (int i = 0; i <= picked.length; i++) {
+                int input;
+                while ((input = decoder.dequeueInput(INPUT_TIMEOUT_US)) < 0) {
+                    if (System.nanoTime() > deadlineNs || done.getCount() == 0) {
+                        throw new IOException("decoder took no input, " + failure[0]);
+                    }
+                }
+                if (i == picked.length) {
+                    decoder.queueInput(input, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    break;
+                }
+                reader.seek(index.offset(picked[i]), index.presentationTimeUs(picked[i]));
+                if (!reader.next(sample)) throw new IOException("no keyframe at " + index.offset(picked[i]));
+                ByteBuffer buffer = decoder.getInputBuffer(input);
+                buffer.clear();
+                int size = reader.read(sample, buffer);
+                decoder.queueInput(input, 0, size, sample.presentationTimeUs, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+            }
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (!done.await(Math.max(0, remainingNs), TimeUnit.NANOSECONDS)) {
+                throw new IOException("timed out after " + delivered[0] + " of " + picked.length + " thumbnails");
+            }
+            if (failure[0] != null) throw new IOException("decoder failed", failure[0]);
+            return delivered[0];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } finally {
+            decoder.release();
+            reader.close();
+        }
+    }
+}
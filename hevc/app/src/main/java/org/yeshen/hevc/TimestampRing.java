@@ -0,0 +1,42 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Carries a time per frame across a codec, keyed by presentation time: put when the
+// frame goes in, take when the codec hands it back. Fixed size, no allocation; a
+// frame the codec never returns is simply overwritten later.
+class TimestampRing {
+
+    private final long[] presentationTimesUs;
+    private final long[] timesNs;
+    private int next;
+
+    TimestampRing(int capacity) {
+        presentationTimesUs = new long[capacity];
+        timesNs = new long[capacity];
+    }
+
+    synchronized void put(long presentationTimeUs, long timeNs) {
+        presentationTimesUs[next] = presentationTimeUs;
+        timesNs[next] = timeNs;
+        next = (next + 1) % timesNs.length;
+    }
+
+    // the time stored for presentationTimeUs, 0 if there is none
+    synchronized long take(long presentationTimeUs) {
+        // codecs return frames about in the order they got them, start at the oldest entry
+        for (int i = 0; i < timesNs.length; i++) {
+            int slot = (next + i) % timesNs.length;
+            if (timesNs[slot] != 0 && presentationTimesUs[slot] == presentationTimeUs) {
+                long time = timesNs[slot];
+                timesNs[slot] = 0;
+                return time;
+            }
+        }
+        return 0;
+    }
+}
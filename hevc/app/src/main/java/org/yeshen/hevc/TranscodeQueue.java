@@ -0,0 +1,93 @@
+package org.yeshen.hevc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Transcodes a batch of files, concurrent of them at a time. Each Transcoder already
+// overlaps demux, decode, encode and mux of its own file; running a few files side by
+// side keeps the hardware codecs busy while another file is opening, draining or
+// waiting on storage. concurrent should stay within the codec's instance limit.
+class TranscodeQueue {
+
+    private final CodecDriver.Factory decoders;
+    private final CodecDriver.Factory encoders;
+    private final ExecutorService executor;
+    private final List<Transcoder> jobs = new ArrayList<>();
+
+    TranscodeQueue() {
+        this(Math.max(1, Math.min(2, EncoderFarm.maxInstances(EncoderConfig.MIME))),
+                CodecDrivers.factory(MediaCodecAdapter.decoderFactory(EncoderConfig.MIME)),
+                CodecDrivers.factory(MediaCodecAdapter.encoderFactory(EncoderConfig.MIME)));
+    }
+
+    TranscodeQueue(int concurrent, CodecDriver.Factory decoders, CodecDriver.Factory encoders) {
+        if (concurrent <= 0) throw new IllegalArgumentException("concurrent must be positive: " + concurrent);
+        this.decoders = decoders;
+        this.encoders = encoders;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(concurrent, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "transcode-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    // width and height 0 keep the source size, see Transcoder
+    Transcoder submit(File source, File target, int bitRate, int width, int height, Transcoder.Listener listener) {
+        Transcoder job = new Transcoder(source, target, bitRate, width, height, decoders, encoders, listener);
+        synchronized (jobs) {
+            jobs.add(job);
+        }
+        executor.execute(job);
+        return job;
+    }
+
+    List<Transcoder> jobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs);
+        }
+    }
+
+    // encoded frames per second over all running jobs
+    double framesPerSecond() {
+        double fps = 0;
+        for (Transcoder job : jobs()) {
+            if (!job.isFinished()) fps += job.framesPerSecond();
+        }
+        return fps;
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Transcoder job : jobs()) {
+            sb.append(job).append('\n');
+        }
+        return sb.toString();
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    // cancels what is running and drops what has not started
+    void shutdown() {
+        executor.shutdownNow();
+        for (Transcoder job : jobs()) {
+            job.cancel();
+        }
+    }
+}
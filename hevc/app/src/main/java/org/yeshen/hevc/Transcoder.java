@@ -0,0 +1,409 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Re-encodes one HEVC file (MP4 or Annex-B) into a fragmented MP4. The decoder renders
+// straight into the encoder's input surface, so pixels never reach the Java heap, and
+// demux, decode, encode and mux all run at the same time on their own threads.
+// The decoder would render as fast as it decodes; a decoded frame is only sent to the
+// surface while fewer than maxInFlight frames wait in the encoder, otherwise it stays
+// in its output buffer, which in turn holds the decoder back.
+// Without GL the frame size can't change on the way: width and height 0 keep the
+// source size, anything else relies on the encoder's input surface scaling, which
+// many devices do but none has to.
+// setRange() limits it to the samples between two keyframes, see ParallelTranscoder.
+class Transcoder implements Runnable {
+
+    interface Listener {
+        // about every PROGRESS_INTERVAL_MS, from the transcoding thread
+        void onProgress(Transcoder transcoder);
+
+        // error is null on success
+        void onFinished(Transcoder transcoder, Exception error);
+    }
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    static final int FRAME_RATE = 30;
+    static final int I_FRAME_INTERVAL = 1;
+
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+    // how long the feeding thread parks on the source or the decoder before re-checking cancelled
+    private static final long IDLE_WAIT_US = 100000;
+    // encoders keep a few frames for lookahead and only output once more arrive; if nothing
+    // came out for this long the next frame is rendered regardless of maxInFlight
+    private static final long STALL_TIMEOUT_MS = 100;
+
+    final File source;
+    final File target;
+    private final int bitRate;
+    private final int width;
+    private final int height;
+    private final CodecDriver.Factory decoders;
+    private final CodecDriver.Factory encoders;
+    private final Listener listener;
+    int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    // the keyframe to start at and the presentation time of the keyframe to stop before,
+    // -1 for the whole file
+    private long rangeOffset = -1;
+    private long rangeStartUs;
+    private long rangeEndUs = -1;
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean cancelled;
+    private volatile Exception failure;
+    private CodecDriver decoder;
+    private CodecDriver encoder;
+    private Mp4Muxer muxer;
+    private int outWidth;
+    private int outHeight;
+
+    // decoded frames not yet sent to the surface, in decode output order; the end of
+    // stream is queued here too so that it reaches the encoder after the last frame
+    private final Object flow = new Object();
+    private final ArrayDeque<long[]> held = new ArrayDeque<>();
+    private long rendered;
+    private long lastEncodedMs;
+    private boolean endOfStreamHeld;
+    // set before the codecs are released, a late callback must not render into them then
+    private boolean stopped;
+
+    private volatile long durationUs;
+    private volatile long sourceBytes;
+    private volatile long bytesFed;
+    private volatile long framesDecoded;
+    private volatile long framesEncoded;
+    private volatile long bytesEncoded;
+    private volatile long lastPresentationTimeUs;
+    private volatile long startNs;
+    private volatile long endNs;
+
+    Transcoder(File source, File target, int bitRate, int width, int height,
+               CodecDriver.Factory decoders, CodecDriver.Factory encoders, Listener listener) {
+        if (bitRate <= 0) throw new IllegalArgumentException("bad bitrate " + bitRate);
+        this.source = source;
+        this.target = target;
+        this.bitRate = bitRate;
+        this.width = width;
+        this.height = height;
+        this.decoders = decoders;
+        this.encoders = encoders;
+        this.listener = listener;
+    }
+
+    // from the keyframe at offset, presented at startUs, up to but not including the
+    // keyframe presented at endUs, -1 for the end of the file; before run()
+    void setRange(long offset, long startUs, long endUs) {
+        if (endUs >= 0 && endUs <= startUs) throw new IllegalArgumentException("empty range " + startUs + ".." + endUs);
+        rangeOffset = offset;
+        rangeStartUs = startUs;
+        rangeEndUs = endUs;
+    }
+
+    // stops at the next sample, the target is left incomplete
+    void cancel() {
+        cancelled = true;
+        finish();
+    }
+
+    @Override
+    public void run() {
+        startNs = System.nanoTime();
+        Exception error = null;
+        ReadAheadSource samples = null;
+        Surface surface = null;
+        try {
+            samples = new ReadAheadSource(SampleReader.open(source, FRAME_RATE), ReadAheadSource.DEFAULT_DEPTH);
+            SampleReader reader = samples.reader();
+            if (reader.csd == null || reader.width <= 0 || reader.height <= 0) {
+                throw new IOException("no HEVC video in " + source);
+            }
+            durationUs = reader.durationUs;
+            sourceBytes = source.length();
+            if (rangeOffset >= 0) {
+                samples.seek(rangeOffset, rangeStartUs);
+                long endUs = rangeEndUs >= 0 ? rangeEndUs : reader.durationUs;
+                durationUs = endUs > 0 ? endUs - rangeStartUs : 0;
+            }
+            outWidth = width > 0 ? width : reader.width;
+            outHeight = height > 0 ? height : reader.height;
+
+            RandomAccessFile file = new RandomAccessFile(target, "rw");
+            file.setLength(0);
+            muxer = new Mp4Muxer(file.getChannel(), FRAME_RATE * I_FRAME_INTERVAL, FRAME_RATE, false);
+
+            encoder = encoders.create("transcode-encoder");
+            MediaFormat encoderFormat = new EncoderConfig(target.getName(), outWidth, outHeight, bitRate,
+                    FRAME_RATE, I_FRAME_INTERVAL).toFormat();
+            encoderFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            encoder.configure(encoderFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = encoder.createInputSurface();
+
+            decoder = decoders.create("transcode-decoder");
+            MediaFormat decoderFormat = MediaFormat.createVideoFormat(EncoderConfig.MIME, reader.width, reader.height);
+            decoderFormat.setByteBuffer("csd-0", ByteBuffer.wrap(reader.csd));
+            decoderFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, YuvFormat.frameSize(reader.width, reader.height));
+            decoder.configure(decoderFormat, surface, 0);
+
+            encoder.start(encoded);
+            decoder.start(decoded);
+            samples.start();
+            feed(samples);
+            awaitFinished();
+            if (cancelled) throw new IOException("cancelled");
+            error = failure;
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            synchronized (flow) {
+                stopped = true;
+                held.clear();
+            }
+            if (decoder != null) decoder.release();
+            if (encoder != null) encoder.release();
+            if (surface != null) surface.release();
+            try {
+                if (muxer != null) muxer.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+            try {
+                if (samples != null) samples.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+            endNs = System.nanoTime();
+        }
+        if (listener != null) listener.onFinished(this, error);
+    }
+
+    private void feed(ReadAheadSource samples) throws IOException {
+        ReadAheadSource.Unit unit = null;
+        while (!cancelled && failure == null) {
+            release(false);
+            progress();
+            long waitUs = Math.min(IDLE_WAIT_US, untilDueMs() * 1000);
+            if (unit == null) {
+                unit = samples.poll(waitUs);
+                if (unit == null) continue;
+            }
+            int index = decoder.dequeueInput(waitUs);
+            if (index < 0) continue;
+            if (unit.endOfStream || pastRange(unit)) {
+                decoder.queueInput(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                samples.recycle(unit);
+                return;
+            }
+            ByteBuffer buffer = decoder.getInputBuffer(index);
+            int size = unit.data.remaining();
+            buffer.clear();
+            buffer.put(unit.data);
+            decoder.queueInput(index, 0, size, unit.presentationTimeUs, 0);
+            bytesFed += size;
+            samples.recycle(unit);
+            unit = null;
+        }
+        if (unit != null) samples.recycle(unit);
+    }
+
+    // the rest arrives on the codecs' threads; this thread only wakes up when a stall check
+    // or a progress report is due, when a frame is held back or when the job is over
+    private void awaitFinished() throws InterruptedException {
+        while (!isFinished()) {
+            synchronized (flow) {
+                long waitMs = untilDueMs();
+                if (waitMs > 0 && !isFinished()) flow.wait(waitMs);
+            }
+            release(false);
+            progress();
+        }
+    }
+
+    // until the held frames count as stalled or the next progress report, whichever is first
+    private long untilDueMs() {
+        long nowMs = System.nanoTime() / 1000000;
+        long dueMs = lastProgressMs + PROGRESS_INTERVAL_MS;
+        synchronized (flow) {
+            if (!held.isEmpty()) dueMs = Math.min(dueMs, lastEncodedMs + STALL_TIMEOUT_MS);
+        }
+        return Math.max(0, dueMs - nowMs);
+    }
+
+    // the keyframe the range stops before
+    private boolean pastRange(ReadAheadSource.Unit unit) {
+        return rangeEndUs >= 0 && (unit.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
+                && unit.presentationTimeUs >= rangeEndUs;
+    }
+
+    private final CodecDriver.Callback decoded = new CodecDriver.Callback() {
+        @Override
+        public void onOutputBuffer(int index, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            if (info.size > 0) framesDecoded++;
+            synchronized (flow) {
+                if (stopped) return;
+                if (info.size > 0) {
+                    held.add(new long[]{index, info.presentationTimeUs});
+                } else {
+                    decoder.releaseOutput(index, false);
+                }
+                if (endOfStream) endOfStreamHeld = true;
+                // awaitFinished() has a stall to look out for now
+                flow.notifyAll();
+            }
+            release(false);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            fail(e);
+        }
+    };
+
+    private final CodecDriver.Callback encoded = new CodecDriver.Callback() {
+        @Override
+        public void onOutputBuffer(int index, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            try {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    muxer.writeConfig(buffer, outWidth, outHeight);
+                } else if (info.size > 0) {
+                    // a blocking write on the codec's thread is what holds a fast encoder back
+                    muxer.writeSample(buffer, info.presentationTimeUs,
+                            (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    framesEncoded++;
+                    bytesEncoded += info.size;
+                    lastPresentationTimeUs = info.presentationTimeUs;
+                    synchronized (flow) {
+                        lastEncodedMs = System.nanoTime() / 1000000;
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                encoder.releaseOutput(index, false);
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                finish();
+            } else {
+                release(false);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            fail(e);
+        }
+    };
+
+    // renders held frames while the encoder has room; force renders one even if it has not
+    private void release(boolean force) {
+        boolean signalEndOfStream = false;
+        synchronized (flow) {
+            if (stopped) return;
+            long nowMs = System.nanoTime() / 1000000;
+            if (lastEncodedMs == 0) lastEncodedMs = nowMs;
+            boolean stalled = force || nowMs - lastEncodedMs >= STALL_TIMEOUT_MS;
+            while (!held.isEmpty() && (rendered - framesEncoded < maxInFlight || stalled)) {
+                long[] frame = held.poll();
+                // the frame keeps its timestamp on the way through the surface
+                decoder.releaseOutput((int) frame[0], frame[1] * 1000);
+                rendered++;
+                stalled = false;
+                lastEncodedMs = nowMs;
+            }
+            if (held.isEmpty() && endOfStreamHeld) {
+                endOfStreamHeld = false;
+                signalEndOfStream = true;
+            }
+        }
+        if (signalEndOfStream) encoder.signalEndOfInputStream();
+    }
+
+    private long lastProgressMs;
+
+    private void progress() {
+        long nowMs = System.nanoTime() / 1000000;
+        if (nowMs - lastProgressMs < PROGRESS_INTERVAL_MS) return;
+        lastProgressMs = nowMs;
+        if (listener != null) listener.onProgress(this);
+    }
+
+    private void fail(Exception e) {
+        if (failure == null) failure = e;
+        finish();
+    }
+
+    private void finish() {
+        finished.countDown();
+        synchronized (flow) {
+            flow.notifyAll();
+        }
+    }
+
+    // 0 to 1 by media time; fragmented files have no duration up front, for those it is
+    // by the bytes fed to the decoder, a little ahead of what was encoded
+    float progressFraction() {
+        if (isFinished() && failure == null && !cancelled) return 1f;
+        long duration = durationUs;
+        if (duration > 0) return Math.max(0f, Math.min(1f, (float) (lastPresentationTimeUs - rangeStartUs) / duration));
+        long size = sourceBytes;
+        return size <= 0 ? 0 : Math.min(1f, (float) bytesFed / size);
+    }
+
+    long framesDecoded() {
+        return framesDecoded;
+    }
+
+    long framesEncoded() {
+        return framesEncoded;
+    }
+
+    long bytesEncoded() {
+        return bytesEncoded;
+    }
+
+    // encoded frames per second of wall time so far
+    double framesPerSecond() {
+        long start = startNs;
+        if (start == 0) return 0;
+        long end = endNs != 0 ? endNs : System.nanoTime();
+        return end <= start ? 0 : framesEncoded * 1e9 / (end - start);
+    }
+
+    boolean isFinished() {
+        return finished.getCount() == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "Transcoder{%s -> %s, %.0f%%, decoded=%d, encoded=%d, %.1f fps, %d KB}",
+                source.getName(), target.getName(), progressFraction() * 100, framesDecoded, framesEncoded,
+                framesPerSecond(), bytesEncoded / 1024);
+    }
+}
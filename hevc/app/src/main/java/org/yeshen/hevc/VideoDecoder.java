@@ -3,11 +3,11 @@ package org.yeshen.hevc;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.os.Build;
 import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
 
 import static org.yeshen.hevc.RenderActivity.VIDEO_FORMAT;
 
@@ -17,6 +17,15 @@ import static org.yeshen.hevc.RenderActivity.VIDEO_FORMAT;
 class VideoDecoder {
 
     private Worker mWorker;
+    private final CodecDriver.Factory mCodecs;
+
+    VideoDecoder() {
+        this(CodecDrivers.factory(MediaCodecAdapter.decoderFactory(VIDEO_FORMAT)));
+    }
+
+    VideoDecoder(CodecDriver.Factory codecs) {
+        mCodecs = codecs;
+    }
 
     void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
         if (mWorker != null) {
@@ -24,9 +33,20 @@ class VideoDecoder {
         }
     }
 
+    // sample is [position, limit), it is copied straight into the codec's input buffer
+    void decodeSample(ByteBuffer sample, long presentationTimeUs, int flags) {
+        if (mWorker != null) {
+            mWorker.decodeSample(sample, presentationTimeUs, flags);
+        }
+    }
+
     void configure(Surface surface, int width, int height, byte[] csd0, int offset, int size) {
+        configure(surface, width, height, ByteBuffer.wrap(csd0, offset, size));
+    }
+
+    void configure(Surface surface, int width, int height, ByteBuffer csd0) {
         if (mWorker != null) {
-            mWorker.configure(surface, width, height, ByteBuffer.wrap(csd0, offset, size));
+            mWorker.configure(surface, width, height, csd0);
         }
     }
 
@@ -45,19 +65,26 @@ class VideoDecoder {
         }
     }
 
-    class Worker extends Thread {
+    // called from codec's thread once a frame was sent to the Surface
+    protected void onFrameRendered(long presentationTimeUs) {
+    }
+
+    class Worker extends Thread implements CodecDriver.Callback {
 
         volatile boolean mRunning;
-        MediaCodec mCodec;
+        CodecDriver mCodec;
         volatile boolean mConfigured;
         long mTimeoutUs;
+        final CountDownLatch mStopped;
 
         Worker() {
             mTimeoutUs = 10000l;
+            mStopped = new CountDownLatch(1);
         }
 
         void setRunning(boolean running) {
             mRunning = running;
+            if (!running) mStopped.countDown();
         }
 
         void configure(Surface surface, int width, int height, ByteBuffer csd0) {
@@ -68,61 +95,74 @@ class VideoDecoder {
             // little tricky here, csd-0 is required in order to configure the codec properly
             // it is basically the first sample from encoder with flag: BUFFER_FLAG_CODEC_CONFIG
             format.setByteBuffer("csd-0", csd0);
+            long createStartNs = System.nanoTime();
             try {
-                mCodec = MediaCodec.createDecoderByType(VIDEO_FORMAT);
+                mCodec = mCodecs.create("video-decoder");
             } catch (IOException e) {
                 throw new RuntimeException("Failed to create codec", e);
             }
-            mCodec.configure(format, surface, null, 0);
-            mCodec.start();
+            PipelineMetrics.since(PipelineMetrics.codecCreateUs, createStartNs);
+            long configureStartNs = System.nanoTime();
+            mCodec.configure(format, surface, 0);
+            mCodec.start(this);
+            PipelineMetrics.since(PipelineMetrics.codecStartUs, configureStartNs);
             mConfigured = true;
         }
 
         void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
             if (mConfigured && mRunning) {
-                int index = mCodec.dequeueInputBuffer(mTimeoutUs);
+                int index = mCodec.dequeueInput(mTimeoutUs);
                 if (index >= 0) {
-                    ByteBuffer buffer;
-                    // since API 21 we have new API to use
-                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                        buffer = mCodec.getInputBuffers()[index];
-                        buffer.clear();
-                    } else {
-                        buffer = mCodec.getInputBuffer(index);
-                    }
+                    ByteBuffer buffer = mCodec.getInputBuffer(index);
                     if (buffer != null) {
                         buffer.put(data, offset, size);
-                        mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+                        mCodec.queueInput(index, 0, size, presentationTimeUs, flags);
                     }
                 }
             }
         }
 
+        void decodeSample(ByteBuffer sample, long presentationTimeUs, int flags) {
+            if (mConfigured && mRunning) {
+                int index = mCodec.dequeueInput(mTimeoutUs);
+                if (index >= 0) {
+                    ByteBuffer buffer = mCodec.getInputBuffer(index);
+                    if (buffer != null) {
+                        int size = sample.remaining();
+                        buffer.put(sample.duplicate());
+                        mCodec.queueInput(index, 0, size, presentationTimeUs, flags);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onOutputBuffer(int index, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            // setting true is telling system to render frame onto Surface
+            mCodec.releaseOutput(index, true);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) onFrameRendered(info.presentationTimeUs);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
+                setRunning(false);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            e.printStackTrace();
+        }
+
         @Override
         public void run() {
             try {
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                while (mRunning) {
-                    if (mConfigured) {
-                        int index = mCodec.dequeueOutputBuffer(info, mTimeoutUs);
-                        if (index >= 0) {
-                            // setting true is telling system to render frame onto Surface
-                            mCodec.releaseOutputBuffer(index, true);
-                            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
-                                break;
-                            }
-                        }
-                    } else {
-                        // just waiting to be configured, then decode and render
-                        try {
-                            Thread.sleep(10);
-                        } catch (InterruptedException ignore) {
-                        }
-                    }
-                }
+                // decoded frames are rendered from the driver's thread, just wait to be stopped
+                mStopped.await();
+            } catch (InterruptedException ignore) {
             } finally {
                 if (mConfigured) {
-                    mCodec.stop();
                     mCodec.release();
                 }
             }
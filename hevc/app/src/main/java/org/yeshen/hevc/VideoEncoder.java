@@ -3,11 +3,12 @@ package org.yeshen.hevc;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.os.Build;
 import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.yeshen.hevc.RenderActivity.VIDEO_BITRATE;
 import static org.yeshen.hevc.RenderActivity.VIDEO_FORMAT;
@@ -21,10 +22,16 @@ public class VideoEncoder {
 
     private Worker mWorker;
     private int mWidth, mHeight;
+    private final CodecDriver.Factory mCodecs;
 
     VideoEncoder(int width, int height) {
+        this(width, height, CodecDrivers.factory(MediaCodecAdapter.encoderFactory(VIDEO_FORMAT)));
+    }
+
+    VideoEncoder(int width, int height, CodecDriver.Factory codecs) {
         mWidth = width;
         mHeight = height;
+        mCodecs = codecs;
     }
 
     protected void onSurfaceCreated(Surface surface) {
@@ -44,6 +51,12 @@ public class VideoEncoder {
         }
     }
 
+    // null until the codec is running
+    RateControl rateControl() {
+        Worker worker = mWorker;
+        return worker != null ? worker.mRateControl : null;
+    }
+
     void stop() {
         if (mWorker != null) {
             mWorker.setRunning(false);
@@ -51,84 +64,68 @@ public class VideoEncoder {
         }
     }
 
-    class Worker extends Thread {
+    class Worker extends Thread implements CodecDriver.Callback {
 
-        MediaCodec.BufferInfo mBufferInfo;
-        MediaCodec mCodec;
+        CodecDriver mCodec;
+        volatile RateControl mRateControl;
         volatile boolean mRunning;
         Surface mSurface;
-        final long mTimeoutUsec;
+        final long mTimeoutMs;
+        final CountDownLatch mStopped;
+        final CountDownLatch mEndOfStream;
+        // when prepare() began, until the first sample came out
+        volatile long mSetupStartNs;
 
         Worker() {
-            mBufferInfo = new MediaCodec.BufferInfo();
-            mTimeoutUsec = 10000l;
+            mTimeoutMs = 1000l;
+            mStopped = new CountDownLatch(1);
+            mEndOfStream = new CountDownLatch(1);
         }
 
         void setRunning(boolean running) {
             mRunning = running;
+            if (!running) mStopped.countDown();
         }
 
         @Override
         public void run() {
             prepare();
             try {
-                while (mRunning) {
-                    encode();
-                }
-                encode();
+                // encoded samples arrive on the driver's thread, nothing to poll here
+                mStopped.await();
+                // if not running anymore, complete stream
+                mCodec.signalEndOfInputStream();
+                mEndOfStream.await(mTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignore) {
             } finally {
                 release();
             }
         }
 
-        void encode() {
-            if (!mRunning) {
-                // if not running anymore, complete stream
-                mCodec.signalEndOfInputStream();
-            }
-            // New api is nicer, see below
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                ByteBuffer[] outputBuffers = mCodec.getOutputBuffers();
-                for (; ; ) {
-                    // MediaCodec is asynchronous, that's why we have a blocking check
-                    // to see if we have something to do
-                    int status = mCodec.dequeueOutputBuffer(mBufferInfo, mTimeoutUsec);
-                    if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        if (!mRunning) break;
-                    } else if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                        outputBuffers = mCodec.getOutputBuffers();
-                    } else if (status >= 0) {
-                        // encoded sample
-                        ByteBuffer data = outputBuffers[status];
-                        data.position(mBufferInfo.offset);
-                        data.limit(mBufferInfo.offset + mBufferInfo.size);
-                        final int endOfStream = mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-                        // pass to whoever listens to
-                        if (endOfStream == 0) onEncodedSample(mBufferInfo, data);
-                        // releasing buffer is important
-                        mCodec.releaseOutputBuffer(status, false);
-                        if (endOfStream == MediaCodec.BUFFER_FLAG_END_OF_STREAM) break;
-                    }
-                }
-            } else {
-                for (; ; ) {
-                    int status = mCodec.dequeueOutputBuffer(mBufferInfo, mTimeoutUsec);
-                    if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        if (!mRunning) break;
-                    } else if (status >= 0) {
-                        // encoded sample
-                        ByteBuffer data = mCodec.getOutputBuffer(status);
-                        if (data != null) {
-                            final int endOfStream = mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-                            // pass to whoever listens to
-                            if (endOfStream == 0) onEncodedSample(mBufferInfo, data);
-                            // releasing buffer is important
-                            mCodec.releaseOutputBuffer(status, false);
-                            if (endOfStream == MediaCodec.BUFFER_FLAG_END_OF_STREAM) break;
-                        }
-                    }
+        @Override
+        public void onOutputBuffer(int index, ByteBuffer data, MediaCodec.BufferInfo info) {
+            final int endOfStream = info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+            // pass to whoever listens to
+            if (endOfStream == 0 && data != null) {
+                if (mSetupStartNs != 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    PipelineMetrics.since(PipelineMetrics.timeToFirstFrameUs, mSetupStartNs);
+                    mSetupStartNs = 0;
                 }
+                onEncodedSample(info, data);
             }
+            // releasing buffer is important
+            mCodec.releaseOutput(index, false);
+            if (endOfStream == MediaCodec.BUFFER_FLAG_END_OF_STREAM) mEndOfStream.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            e.printStackTrace();
+            mEndOfStream.countDown();
         }
 
         void release() {
@@ -137,9 +134,9 @@ public class VideoEncoder {
             // simultaneously
             onSurfaceDestroyed(mSurface);
 
-            mCodec.stop();
             mCodec.release();
-            mSurface.release();
+            // a fake codec has no surface
+            if (mSurface != null) mSurface.release();
         }
 
         void prepare() {
@@ -151,16 +148,22 @@ public class VideoEncoder {
             format.setInteger(MediaFormat.KEY_FRAME_RATE, VIDEO_FRAME_PER_SECOND);
             format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VIDEO_I_FRAME_INTERVAL);
 
+            long createStartNs = System.nanoTime();
+            mSetupStartNs = createStartNs;
             try {
-                mCodec = MediaCodec.createEncoderByType(VIDEO_FORMAT);
+                mCodec = mCodecs.create("video-encoder");
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            PipelineMetrics.since(PipelineMetrics.codecCreateUs, createStartNs);
+            long configureStartNs = System.nanoTime();
+            mCodec.configure(format, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mRateControl = new CodecRateControl(mCodec.codec(), VIDEO_BITRATE);
             // create surface associated with code
             mSurface = mCodec.createInputSurface();
             // notify codec to start watch surface and encode samples
-            mCodec.start();
+            mCodec.start(this);
+            PipelineMetrics.since(PipelineMetrics.codecStartUs, configureStartNs);
 
             onSurfaceCreated(mSurface);
         }
@@ -0,0 +1,233 @@
+package org.yeshen.hevc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Pure java conversion between the 4:2:0 layouts in YuvFormat.
+// Luma is copied exactly once, chroma is swapped/(de)interleaved eight bytes at a time.
+// With an executor the frame is split into horizontal bands converted concurrently,
+// which only pays off for large frames, see parallelMinHeight.
+class YuvConverter {
+
+    private static final long EVEN_BYTES = 0x00FF00FF00FF00FFL;
+
+    private final Executor executor;
+    private final int bands;
+    private final int parallelMinHeight;
+
+    YuvConverter() {
+        this(null, 1, Integer.MAX_VALUE);
+    }
+
+    YuvConverter(Executor executor, int bands, int parallelMinHeight) {
+        if (bands <= 0) throw new IllegalArgumentException("bands must be positive: " + bands);
+        this.executor = executor;
+        this.bands = bands;
+        this.parallelMinHeight = parallelMinHeight;
+    }
+
+    static int convert(byte[] src, YuvFormat srcFormat, byte[] dst, YuvFormat dstFormat, int width, int height) {
+        return convert(ByteBuffer.wrap(src), srcFormat, ByteBuffer.wrap(dst), dstFormat, width, height);
+    }
+
+    // reads from src.position() and writes at dst.position(), neither position is moved;
+    // returns the number of bytes written
+    static int convert(ByteBuffer src, YuvFormat srcFormat, ByteBuffer dst, YuvFormat dstFormat, int width, int height) {
+        check(src, dst, width, height);
+        convertRows(src, srcFormat, dst, dstFormat, width, height, 0, height / 2);
+        return YuvFormat.frameSize(width, height);
+    }
+
+    int convertFrame(byte[] src, YuvFormat srcFormat, byte[] dst, YuvFormat dstFormat, int width, int height) {
+        return convertFrame(ByteBuffer.wrap(src), srcFormat, ByteBuffer.wrap(dst), dstFormat, width, height);
+    }
+
+    int convertFrame(final ByteBuffer src, final YuvFormat srcFormat, final ByteBuffer dst, final YuvFormat dstFormat,
+                     final int width, final int height) {
+        check(src, dst, width, height);
+        final int chromaRows = height / 2;
+        int count = Math.min(bands, chromaRows);
+        if (executor == null || count <= 1 || height < parallelMinHeight) {
+            convertRows(src, srcFormat, dst, dstFormat, width, height, 0, chromaRows);
+            return YuvFormat.frameSize(width, height);
+        }
+        final CountDownLatch done = new CountDownLatch(count - 1);
+        final Throwable[] failure = new Throwable[1];
+        for (int band = 1; band < count; band++) {
+            final int from = chromaRows * band / count;
+            final int to = chromaRows * (band + 1) / count;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        convertRows(src, srcFormat, dst, dstFormat, width, height, from, to);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        convertRows(src, srcFormat, dst, dstFormat, width, height, 0, chromaRows / count);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while converting", e);
+        }
+        synchronized (failure) {
+            if (failure[0] != null) throw new IllegalStateException("band conversion failed", failure[0]);
+        }
+        return YuvFormat.frameSize(width, height);
+    }
+
+    private static void check(ByteBuffer src, ByteBuffer dst, int width, int height) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("bad frame size " + width + "x" + height);
+        }
+        int frameSize = YuvFormat.frameSize(width, height);
+        if (src.remaining() < frameSize || dst.remaining() < frameSize) {
+            throw new IllegalArgumentException("buffer too small for " + width + "x" + height
+                    + ": src=" + src.remaining() + " dst=" + dst.remaining());
+        }
+    }
+
+    // converts luma rows [2 * from, 2 * to) and chroma rows [from, to)
+    private static void convertRows(ByteBuffer src, YuvFormat srcFormat, ByteBuffer dst, YuvFormat dstFormat,
+                                    int width, int height, int from, int to) {
+        // private views so that concurrent bands never share position, limit or byte order
+        ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer out = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int srcBase = src.position();
+        int dstBase = dst.position();
+        int lumaSize = width * height;
+
+        in.limit(srcBase + 2 * to * width).position(srcBase + 2 * from * width);
+        out.position(dstBase + 2 * from * width);
+        out.put(in);
+        in.clear();
+        out.clear();
+
+        int chromaWidth = width / 2;
+        int quarter = lumaSize / 4;
+        if (srcFormat.semiPlanar && dstFormat.semiPlanar) {
+            int srcOffset = srcBase + lumaSize + from * width;
+            int dstOffset = dstBase + lumaSize + from * width;
+            int length = (to - from) * width;
+            if (srcFormat.uFirst == dstFormat.uFirst) {
+                copy(in, srcOffset, out, dstOffset, length);
+            } else {
+                swapPairs(in, srcOffset, out, dstOffset, length);
+            }
+        } else if (srcFormat.semiPlanar) {
+            int srcOffset = srcBase + lumaSize + from * width;
+            int firstOffset = dstBase + lumaSize + from * chromaWidth;
+            int secondOffset = firstOffset + quarter;
+            if (srcFormat.uFirst != dstFormat.uFirst) {
+                int tmp = firstOffset;
+                firstOffset = secondOffset;
+                secondOffset = tmp;
+            }
+            deinterleave(in, srcOffset, out, firstOffset, secondOffset, (to - from) * chromaWidth);
+        } else if (dstFormat.semiPlanar) {
+            int firstOffset = srcBase + lumaSize + from * chromaWidth;
+            int secondOffset = firstOffset + quarter;
+            if (srcFormat.uFirst != dstFormat.uFirst) {
+                int tmp = firstOffset;
+                firstOffset = secondOffset;
+                secondOffset = tmp;
+            }
+            interleave(in, firstOffset, secondOffset, out, dstBase + lumaSize + from * width, (to - from) * chromaWidth);
+        } else {
+            int srcFirst = srcBase + lumaSize + from * chromaWidth;
+            int dstFirst = dstBase + lumaSize + from * chromaWidth;
+            int length = (to - from) * chromaWidth;
+            if (srcFormat.uFirst == dstFormat.uFirst) {
+                copy(in, srcFirst, out, dstFirst, length);
+                copy(in, srcFirst + quarter, out, dstFirst + quarter, length);
+            } else {
+                copy(in, srcFirst, out, dstFirst + quarter, length);
+                copy(in, srcFirst + quarter, out, dstFirst, length);
+            }
+        }
+    }
+
+    private static void copy(ByteBuffer in, int srcOffset, ByteBuffer out, int dstOffset, int length) {
+        in.limit(srcOffset + length).position(srcOffset);
+        out.position(dstOffset);
+        out.put(in);
+        in.clear();
+        out.clear();
+    }
+
+    // VU VU VU VU <-> UV UV UV UV
+    private static void swapPairs(ByteBuffer in, int srcOffset, ByteBuffer out, int dstOffset, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = in.getLong(srcOffset + i);
+            out.putLong(dstOffset + i, ((word & EVEN_BYTES) << 8) | ((word >>> 8) & EVEN_BYTES));
+        }
+        for (; i < length; i += 2) {
+            byte first = in.get(srcOffset + i);
+            out.put(dstOffset + i, in.get(srcOffset + i + 1));
+            out.put(dstOffset + i + 1, first);
+        }
+    }
+
+    // AB AB AB AB -> AAAA BBBB, pairs is the number of AB pairs
+    private static void deinterleave(ByteBuffer in, int srcOffset, ByteBuffer out, int firstOffset, int secondOffset,
+                                     int pairs) {
+        int i = 0;
+        for (; i + 4 <= pairs; i += 4) {
+            long word = in.getLong(srcOffset + 2 * i);
+            out.putInt(firstOffset + i, packEven(word));
+            out.putInt(secondOffset + i, packEven(word >>> 8));
+        }
+        for (; i < pairs; i++) {
+            out.put(firstOffset + i, in.get(srcOffset + 2 * i));
+            out.put(secondOffset + i, in.get(srcOffset + 2 * i + 1));
+        }
+    }
+
+    // AAAA BBBB -> AB AB AB AB
+    private static void interleave(ByteBuffer in, int firstOffset, int secondOffset, ByteBuffer out, int dstOffset,
+                                   int pairs) {
+        int i = 0;
+        for (; i + 4 <= pairs; i += 4) {
+            long first = spread(in.getInt(firstOffset + i));
+            long second = spread(in.getInt(secondOffset + i));
+            out.putLong(dstOffset + 2 * i, first | (second << 8));
+        }
+        for (; i < pairs; i++) {
+            out.put(dstOffset + 2 * i, in.get(firstOffset + i));
+            out.put(dstOffset + 2 * i + 1, in.get(secondOffset + i));
+        }
+    }
+
+    // bytes 0, 2, 4, 6 of a little endian word packed into an int
+    private static int packEven(long word) {
+        long even = word & EVEN_BYTES;
+        even = (even | (even >>> 8)) & 0x0000FFFF0000FFFFL;
+        even = (even | (even >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) even;
+    }
+
+    // inverse of packEven, odd bytes are left zero
+    private static long spread(int packed) {
+        long word = packed & 0xFFFFFFFFL;
+        word = (word | (word << 16)) & 0x0000FFFF0000FFFFL;
+        word = (word | (word << 8)) & EVEN_BYTES;
+        return word;
+    }
+}
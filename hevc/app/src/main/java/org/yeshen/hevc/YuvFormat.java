@@ -0,0 +1,31 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// 4:2:0 layouts with tightly packed planes (stride == width)
+enum YuvFormat {
+    // Y plane followed by interleaved VU, the camera preview default
+    NV21(true, false),
+    // Y plane followed by interleaved UV, COLOR_FormatYUV420SemiPlanar
+    NV12(true, true),
+    // Y, U, V planes, COLOR_FormatYUV420Planar
+    I420(false, true),
+    // Y, V, U planes
+    YV12(false, false);
+
+    final boolean semiPlanar;
+    final boolean uFirst;
+
+    YuvFormat(boolean semiPlanar, boolean uFirst) {
+        this.semiPlanar = semiPlanar;
+        this.uFirst = uFirst;
+    }
+
+    static int frameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+}
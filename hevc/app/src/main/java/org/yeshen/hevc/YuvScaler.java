@@ -0,0 +1,185 @@
+package org.yeshen.hevc;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Bilinear resize of semi-planar 4:2:0 frames (NV21 or NV12, the chroma order is kept).
+// Source positions and 8 bit weights are computed once per size pair and cached, so
+// a frame costs no allocation. Like YuvConverter, an executor splits the destination
+// into bands converted concurrently.
+class YuvScaler {
+
+    private static final class Plan {
+        // luma and chroma source columns/rows with the weight of the second one
+        final int[] lumaX;
+        final int[] lumaXWeight;
+        final int[] lumaY;
+        final int[] lumaYWeight;
+        final int[] chromaX;
+        final int[] chromaXWeight;
+        final int[] chromaY;
+        final int[] chromaYWeight;
+
+        Plan(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+            lumaX = new int[dstWidth];
+            lumaXWeight = new int[dstWidth];
+            lumaY = new int[dstHeight];
+            lumaYWeight = new int[dstHeight];
+            chromaX = new int[dstWidth / 2];
+            chromaXWeight = new int[dstWidth / 2];
+            chromaY = new int[dstHeight / 2];
+            chromaYWeight = new int[dstHeight / 2];
+            map(srcWidth, dstWidth, lumaX, lumaXWeight);
+            map(srcHeight, dstHeight, lumaY, lumaYWeight);
+            map(srcWidth / 2, dstWidth / 2, chromaX, chromaXWeight);
+            map(srcHeight / 2, dstHeight / 2, chromaY, chromaYWeight);
+        }
+
+        // pixel centres of dst mapped onto src
+        private static void map(int src, int dst, int[] position, int[] weight) {
+            for (int i = 0; i < dst; i++) {
+                long fixed = ((2L * i + 1) * src * 256) / (2L * dst) - 128;
+                if (fixed < 0) fixed = 0;
+                int index = (int) (fixed >> 8);
+                if (index >= src - 1) {
+                    position[i] = src - 1;
+                    weight[i] = 0;
+                } else {
+                    position[i] = index;
+                    weight[i] = (int) (fixed & 0xFF);
+                }
+            }
+        }
+    }
+
+    private final Executor executor;
+    private final int bands;
+    private final int parallelMinHeight;
+    private final HashMap<Long, Plan> plans = new HashMap<>();
+
+    YuvScaler() {
+        this(null, 1, Integer.MAX_VALUE);
+    }
+
+    YuvScaler(Executor executor, int bands, int parallelMinHeight) {
+        if (bands <= 0) throw new IllegalArgumentException("bands must be positive: " + bands);
+        this.executor = executor;
+        this.bands = bands;
+        this.parallelMinHeight = parallelMinHeight;
+    }
+
+    private Plan plan(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        long key = ((long) srcWidth << 48) | ((long) srcHeight << 32) | ((long) dstWidth << 16) | dstHeight;
+        synchronized (plans) {
+            Plan plan = plans.get(key);
+            if (plan == null) {
+                plan = new Plan(srcWidth, srcHeight, dstWidth, dstHeight);
+                plans.put(key, plan);
+            }
+            return plan;
+        }
+    }
+
+    // returns the number of bytes written to dst
+    int scale(final byte[] src, final int srcWidth, final int srcHeight,
+              final byte[] dst, final int dstWidth, final int dstHeight) {
+        check(srcWidth, srcHeight, src.length);
+        check(dstWidth, dstHeight, dst.length);
+        if (srcWidth >= 1 << 16 || srcHeight >= 1 << 16 || dstWidth >= 1 << 16 || dstHeight >= 1 << 16) {
+            throw new IllegalArgumentException("frame too large");
+        }
+        final Plan plan = plan(srcWidth, srcHeight, dstWidth, dstHeight);
+        final int chromaRows = dstHeight / 2;
+        int count = Math.min(bands, chromaRows);
+        if (executor == null || count <= 1 || dstHeight < parallelMinHeight) {
+            scaleRows(plan, src, srcWidth, srcHeight, dst, dstWidth, dstHeight, 0, chromaRows);
+            return YuvFormat.frameSize(dstWidth, dstHeight);
+        }
+        final CountDownLatch done = new CountDownLatch(count - 1);
+        final Throwable[] failure = new Throwable[1];
+        for (int band = 1; band < count; band++) {
+            final int from = chromaRows * band / count;
+            final int to = chromaRows * (band + 1) / count;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scaleRows(plan, src, srcWidth, srcHeight, dst, dstWidth, dstHeight, from, to);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        scaleRows(plan, src, srcWidth, srcHeight, dst, dstWidth, dstHeight, 0, chromaRows / count);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while scaling", e);
+        }
+        synchronized (failure) {
+            if (failure[0] != null) throw new IllegalStateException("band scaling failed", failure[0]);
+        }
+        return YuvFormat.frameSize(dstWidth, dstHeight);
+    }
+
+    private static void check(int width, int height, int length) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("bad frame size " + width + "x" + height);
+        }
+        if (length < YuvFormat.frameSize(width, height)) {
+            throw new IllegalArgumentException("buffer too small for " + width + "x" + height + ": " + length);
+        }
+    }
+
+    // scales luma rows [2 * from, 2 * to) and chroma rows [from, to) of dst
+    private static void scaleRows(Plan plan, byte[] src, int srcWidth, int srcHeight,
+                                  byte[] dst, int dstWidth, int dstHeight, int from, int to) {
+        for (int y = 2 * from; y < 2 * to; y++) {
+            int top = plan.lumaY[y] * srcWidth;
+            int bottom = plan.lumaY[y] < srcHeight - 1 ? top + srcWidth : top;
+            int wy = plan.lumaYWeight[y];
+            int out = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int sx = plan.lumaX[x];
+                int wx = plan.lumaXWeight[x];
+                int next = sx < srcWidth - 1 ? 1 : 0;
+                int t = (src[top + sx] & 0xFF) * (256 - wx) + (src[top + sx + next] & 0xFF) * wx;
+                int b = (src[bottom + sx] & 0xFF) * (256 - wx) + (src[bottom + sx + next] & 0xFF) * wx;
+                dst[out + x] = (byte) ((t * (256 - wy) + b * wy + 32768) >> 16);
+            }
+        }
+        int srcChroma = srcWidth * srcHeight;
+        int dstChroma = dstWidth * dstHeight;
+        int srcChromaHeight = srcHeight / 2;
+        int pairs = dstWidth / 2;
+        for (int y = from; y < to; y++) {
+            int top = srcChroma + plan.chromaY[y] * srcWidth;
+            int bottom = plan.chromaY[y] < srcChromaHeight - 1 ? top + srcWidth : top;
+            int wy = plan.chromaYWeight[y];
+            int out = dstChroma + y * dstWidth;
+            for (int x = 0; x < pairs; x++) {
+                int sx = 2 * plan.chromaX[x];
+                int wx = plan.chromaXWeight[x];
+                int next = sx < srcWidth - 2 ? 2 : 0;
+                for (int c = 0; c < 2; c++) {
+                    int t = (src[top + sx + c] & 0xFF) * (256 - wx) + (src[top + sx + next + c] & 0xFF) * wx;
+                    int b = (src[bottom + sx + c] & 0xFF) * (256 - wx) + (src[bottom + sx + next + c] & 0xFF) * wx;
+                    dst[out + 2 * x + c] = (byte) ((t * (256 - wy) + b * wy + 32768) >> 16);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.yeshen.hevc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// AnnexBScanner over byte buffers and files: three and four byte start codes, start codes
+// at every position of the eight byte words the search steps through and across the
+// edges of the mapped windows, trailing zero bytes, and the NAL types KeyframeIndex
+// finds the access units and keyframes of the stream by.
+public class AnnexBScannerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final class Nal {
+        final byte[] payload;
+        final int type;
+        final long streamOffset;
+
+        Nal(byte[] payload, int type, long streamOffset) {
+            this.payload = payload;
+            this.type = type;
+            this.streamOffset = streamOffset;
+        }
+    }
+
+    private static final class Collector implements AnnexBScanner.Listener {
+        final List<Nal> nals = new ArrayList<>();
+
+        @Override
+        public void onNal(ByteBuffer buffer, int offset, int size, int type, long streamOffset) {
+            byte[] payload = new byte[size];
+            for (int i = 0; i < size; i++) payload[i] = buffer.get(offset + i);
+            nals.add(new Nal(payload, type, streamOffset));
+        }
+    }
+
+    // a stream written NAL by NAL, remembering what the scanner should report
+    private static final class Stream {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<Nal> nals = new ArrayList<>();
+
+        // header, then first_slice_segment_in_pic_flag for slices, then bytes without a zero
+        Stream nal(int startCode, int type, int size, boolean firstSlice) {
+            long offset = out.size();
+            // a zero in front of a three byte start code is taken for the zero_byte of a four byte one
+            byte[] written = out.toByteArray();
+            if (startCode == 3 && offset > 0 && written[written.length - 1] == 0) offset--;
+            for (int i = 0; i < startCode - 1; i++) out.write(0);
+            out.write(1);
+            byte[] payload = new byte[size];
+            payload[0] = (byte) (type << 1);
+            payload[1] = 1;
+            for (int i = 2; i < size; i++) payload[i] = (byte) (1 + (offset + i) % 250);
+            if (size > 2) payload[2] = (byte) (firstSlice ? 0x80 : 0x01);
+            out.write(payload, 0, size);
+            nals.add(new Nal(payload, type, offset));
+            return this;
+        }
+
+        Stream nal(int startCode, int type, int size) {
+            return nal(startCode, type, size, true);
+        }
+
+        Stream zeros(int count) {
+            for (int i = 0; i < count; i++) out.write(0);
+            return this;
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+
+    private static void assertNals(List<Nal> expected, List<Nal> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("nal " + i, expected.get(i).payload, actual.get(i).payload);
+            assertEquals("nal " + i, expected.get(i).type, actual.get(i).type);
+            assertEquals("nal " + i, expected.get(i).streamOffset, actual.get(i).streamOffset);
+        }
+    }
+
+    private static List<Nal> scan(byte[] bytes) {
+        Collector collector = new Collector();
+        long count = new AnnexBScanner().scan(ByteBuffer.wrap(bytes), collector);
+        assertEquals(collector.nals.size(), count);
+        return collector.nals;
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static List<Nal> scan(File file, int window) throws IOException {
+        Collector collector = new Collector();
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            long count = new AnnexBScanner(window).scan(channel, collector);
+            assertEquals(collector.nals.size(), count);
+        } finally {
+            channel.close();
+        }
+        return collector.nals;
+    }
+
+    @Test
+    public void threeAndFourByteStartCodes() {
+        Stream stream = new Stream()
+                .nal(4, HevcNal.VPS, 12)
+                .nal(4, HevcNal.SPS, 20)
+                .nal(3, HevcNal.PPS, 6)
+                .nal(3, HevcNal.IDR_W_RADL, 40)
+                .nal(4, HevcNal.TRAIL_R, 30)
+                .nal(3, HevcNal.TRAIL_R, 2);
+        List<Nal> nals = scan(stream.bytes());
+        // a four byte start code begins at its leading zero
+        assertNals(stream.nals, nals);
+
+        // nothing in front of the first start code is a NAL
+        byte[] garbage = {7, 7, 7};
+        byte[] bytes = stream.bytes();
+        byte[] prefixed = new byte[garbage.length + bytes.length];
+        System.arraycopy(garbage, 0, prefixed, 0, garbage.length);
+        System.arraycopy(bytes, 0, prefixed, garbage.length, bytes.length);
+        List<Nal> shifted = scan(prefixed);
+        assertEquals(stream.nals.size(), shifted.size());
+        assertEquals(garbage.length, shifted.get(0).streamOffset);
+    }
+
+    @Test
+    public void startCodesAtEveryWordPosition() {
+        for (int lead = 0; lead < 16; lead++) {
+            for (int startCode = 3; startCode <= 4; startCode++) {
+                Stream stream = new Stream();
+                stream.nal(4, HevcNal.VPS, 4 + lead);
+                stream.nal(startCode, HevcNal.TRAIL_R, 11);
+                stream.nal(startCode, HevcNal.TRAIL_R, 2 + lead);
+                assertNals(stream.nals, scan(stream.bytes()));
+            }
+        }
+        // straddling the first word and the next, and cut short by to
+        byte[] bytes = {5, 5, 5, 5, 5, 5, 0, 0, 1, 5, 5, 5, 5, 5, 5, 5, 5};
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        assertEquals(6, AnnexBScanner.findStartCode(buffer, 0, bytes.length));
+        assertEquals(6, AnnexBScanner.findStartCode(buffer, 6, 9));
+        assertEquals(-1, AnnexBScanner.findStartCode(buffer, 0, 8));
+        assertEquals(-1, AnnexBScanner.findStartCode(buffer, 7, bytes.length));
+        // 00 00 00 is no start code, the 01 after it is
+        byte[] zeros = {0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 5};
+        assertEquals(7, AnnexBScanner.findStartCode(ByteBuffer.wrap(zeros), 0, zeros.length));
+    }
+
+    @Test
+    public void trailingZerosAreNotPartOfTheNal() {
+        Stream stream = new Stream()
+                .nal(4, HevcNal.VPS, 10).zeros(3)
+                .nal(3, HevcNal.SPS, 10).zeros(1)
+                .nal(4, HevcNal.IDR_W_RADL, 30).zeros(5);
+        List<Nal> nals = scan(stream.bytes());
+        assertNals(stream.nals, nals);
+        // nor a NAL of its own when only zeros follow a start code
+        byte[] empty = new Stream().nal(4, HevcNal.VPS, 10).zeros(2).bytes();
+        byte[] bytes = Arrays.copyOf(empty, empty.length + 5);
+        bytes[empty.length + 2] = 1;
+        assertEquals(1, scan(bytes).size());
+    }
+
+    @Test
+    public void fileScanMatchesTheBufferScanWhateverTheWindow() throws IOException {
+        Stream stream = new Stream();
+        for (int i = 0; i < 40; i++) {
+            stream.nal(i % 3 == 0 ? 4 : 3, i % 10 == 0 ? HevcNal.IDR_W_RADL : HevcNal.TRAIL_R, 5 + (i * 7) % 23);
+            if (i % 4 == 1) stream.zeros(i % 3);
+        }
+        // one NAL larger than the windows below, which have to grow for it
+        stream.nal(4, HevcNal.TRAIL_R, 300);
+        stream.nal(3, HevcNal.TRAIL_R, 9);
+        byte[] bytes = stream.bytes();
+        File file = write(bytes);
+        assertNals(stream.nals, scan(bytes));
+        // every start code falls on a window edge with one of these
+        for (int window = 8; window <= 72; window++) {
+            assertNals(stream.nals, scan(file, window));
+        }
+        assertNals(stream.nals, scan(file, AnnexBScanner.DEFAULT_WINDOW));
+    }
+
+    @Test
+    public void typesAndTheKeyframesFoundByThem() throws IOException {
+        // an IDR access unit with its parameter sets, a picture in two slices, a CRA that
+        // has no parameter sets in front of it
+        Stream stream = new Stream()
+                .nal(4, HevcNal.AUD, 3)
+                .nal(4, HevcNal.VPS, 12)
+                .nal(4, HevcNal.SPS, 20)
+                .nal(4, HevcNal.PPS, 6)
+                .nal(4, HevcNal.SEI_PREFIX, 8)
+                .nal(4, HevcNal.IDR_W_RADL, 40)
+                .nal(4, HevcNal.AUD, 3)
+                .nal(4, HevcNal.TRAIL_R, 20)
+                .nal(3, HevcNal.TRAIL_R, 20, false)
+                .nal(4, HevcNal.CRA_NUT, 30)
+                .nal(4, HevcNal.TRAIL_N, 10);
+        List<Nal> nals = scan(stream.bytes());
+        assertNals(stream.nals, nals);
+        int[] types = {HevcNal.AUD, HevcNal.VPS, HevcNal.SPS, HevcNal.PPS, HevcNal.SEI_PREFIX, HevcNal.IDR_W_RADL,
+                HevcNal.AUD, HevcNal.TRAIL_R, HevcNal.TRAIL_R, HevcNal.CRA_NUT, HevcNal.TRAIL_N};
+        for (int i = 0; i < types.length; i++) assertEquals(types[i], nals.get(i).type);
+        assertTrue(HevcNal.isParameterSet(nals.get(1).type));
+        assertTrue(HevcNal.isIdr(nals.get(5).type));
+        assertTrue(HevcNal.isIrap(nals.get(9).type));
+        assertFalse(HevcNal.isIdr(nals.get(9).type));
+        assertFalse(HevcNal.isVcl(nals.get(4).type));
+        assertTrue(HevcNal.isVcl(nals.get(10).type));
+
+        KeyframeIndex index = new KeyframeIndex();
+        FileChannel channel = new RandomAccessFile(write(stream.bytes()), "r").getChannel();
+        try {
+            assertEquals(types.length, new AnnexBScanner(16).scan(channel, index));
+        } finally {
+            channel.close();
+        }
+        // the second slice is part of the picture before it
+        assertEquals(4, index.frameCount());
+        assertEquals(2, index.size());
+        // from the AUD in front of the IDR, from the CRA itself
+        assertEquals(nals.get(0).streamOffset, index.offset(0));
+        assertEquals(0, index.frame(0));
+        assertEquals(nals.get(9).streamOffset, index.offset(1));
+        assertEquals(2, index.frame(1));
+    }
+}
@@ -0,0 +1,101 @@
+package org.yeshen.hevc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// EncodedPacket reused over the same buffers: every reset() sees the bounds it was
+// given, buffers() reuses its views and the pool's copies keep the capture time and
+// go back to the pool.
+public class EncodedPacketTest {
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] out = new byte[buffer.remaining()];
+        buffer.duplicate().get(out);
+        return out;
+    }
+
+    private static ByteBuffer filled(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) buffer.put((byte) i);
+        buffer.clear();
+        return buffer;
+    }
+
+    @Test
+    public void resetOverTheSameBufferTakesItsBounds() {
+        ByteBuffer output = filled(32);
+        EncodedPacket packet = new EncodedPacket();
+        output.limit(10).position(2);
+        packet.reset(null, output, 0, 0, null);
+        assertEquals(8, packet.size());
+        assertArrayEquals(new byte[]{2, 3, 4, 5, 6, 7, 8, 9}, bytes(packet.data()));
+        packet.release();
+
+        output.limit(32).position(28);
+        packet.reset(null, output, 1, 0, null);
+        assertEquals(4, packet.size());
+        assertArrayEquals(new byte[]{28, 29, 30, 31}, bytes(packet.data()));
+        assertTrue(packet.data().isReadOnly());
+        packet.release();
+    }
+
+    @Test
+    public void buffersAreReusedAndKeepTheirBounds() {
+        ByteBuffer header = filled(4);
+        ByteBuffer output = filled(16);
+        EncodedPacket packet = new EncodedPacket();
+        output.limit(6).position(0);
+        packet.reset(header, output, 0, EncodedPacket.FLAG_KEY_FRAME, null);
+        ByteBuffer[] first = packet.buffers();
+        ByteBuffer firstData = first[1];
+        assertEquals(4, first[0].remaining());
+        assertEquals(6, first[1].remaining());
+        // a gathering write moves the positions, the next call starts over
+        first[0].position(first[0].limit());
+        first[1].position(first[1].limit());
+        ByteBuffer[] again = packet.buffers();
+        assertEquals(4, again[0].remaining());
+        assertEquals(6, again[1].remaining());
+        packet.release();
+
+        output.limit(16).position(10);
+        packet.reset(null, output, 1, 0, null);
+        ByteBuffer[] next = packet.buffers();
+        assertSame(firstData, next[1]);
+        assertEquals(0, next[0].remaining());
+        assertEquals(6, next[1].remaining());
+        byte[] joined = new byte[packet.size()];
+        assertEquals(6, packet.copyTo(joined, 0));
+        assertArrayEquals(new byte[]{10, 11, 12, 13, 14, 15}, joined);
+        packet.release();
+    }
+
+    @Test
+    public void poolCopiesGoBack() {
+        EncodedPacketPool pool = new EncodedPacketPool(16, 2);
+        ByteBuffer output = filled(8);
+        EncodedPacket packet = new EncodedPacket();
+        packet.reset(null, output, 0, 12345, 0, null);
+        for (int i = 0; i < 10; i++) {
+            EncodedPacket copy = pool.copyOf(packet);
+            assertArrayEquals(bytes(output), bytes(copy.data()));
+            assertEquals(12345, copy.captureTimeNs());
+            copy.release();
+        }
+        assertEquals(0, pool.outstanding());
+        assertEquals(1, pool.allocationCount());
+        assertEquals(9, pool.reuseCount());
+    }
+}
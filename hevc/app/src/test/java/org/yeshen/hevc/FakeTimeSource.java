@@ -0,0 +1,30 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// A clock the test moves by hand, readable from any thread.
+class FakeTimeSource implements MediaClock.TimeSource {
+
+    private volatile long nowNs;
+
+    FakeTimeSource(long nowNs) {
+        this.nowNs = nowNs;
+    }
+
+    @Override
+    public long nanoTime() {
+        return nowNs;
+    }
+
+    void set(long nowNs) {
+        this.nowNs = nowNs;
+    }
+
+    void advanceMs(long ms) {
+        nowNs += ms * 1000000L;
+    }
+}
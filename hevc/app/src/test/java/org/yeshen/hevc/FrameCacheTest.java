@@ -0,0 +1,291 @@
+package org.yeshen.hevc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// FrameCache: eviction order and budget, reference counted buffers, the gaps firstMissing()
+// reports and the prefetch window following the scrub direction.
+public class FrameCacheTest {
+
+    private static final String FILE = "a.mp4";
+    private static final int SIZE = 100;
+    private static final long FRAME_US = 33333;
+
+    private static ByteBuffer data(int value, int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) value);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static byte[] bytes(FrameCache.Frame frame) {
+        ByteBuffer data = frame.data();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static void put(FrameCache cache, String file, long presentationTimeUs) {
+        assertTrue(cache.put(file, presentationTimeUs, data((int) (presentationTimeUs / FRAME_US), SIZE), 10, 5, 0));
+    }
+
+    private static boolean cached(FrameCache cache, long presentationTimeUs) {
+        return cache.contains(FILE, presentationTimeUs);
+    }
+
+    @Test
+    public void storesACopy() {
+        FrameCache cache = new FrameCache(10 * SIZE);
+        ByteBuffer data = data(7, SIZE);
+        data.position(10);
+        assertTrue(cache.put(FILE, 0, data, 10, 5, 21));
+        // the source is neither moved nor kept
+        assertEquals(10, data.position());
+        data.put(20, (byte) 1);
+
+        FrameCache.Frame frame = cache.get(FILE, 0);
+        assertNotNull(frame);
+        assertEquals(SIZE - 10, frame.size());
+        assertArrayEquals(data(7, SIZE - 10).array(), bytes(frame));
+        assertEquals(10, frame.width);
+        assertEquals(5, frame.height);
+        assertEquals(21, frame.colorFormat);
+        assertTrue(frame.data().isReadOnly());
+        frame.release();
+    }
+
+    @Test
+    public void keepsTheDecoderLayout() {
+        FrameCache cache = new FrameCache(10 * SIZE);
+        assertTrue(cache.put(FILE, 0, data(1, SIZE), 6, 4, 8, 6, 21));
+        FrameCache.Frame frame = cache.get(FILE, 0);
+        assertEquals(6, frame.width);
+        assertEquals(4, frame.height);
+        assertEquals(8, frame.stride);
+        assertEquals(6, frame.sliceHeight);
+        frame.release();
+
+        // tightly packed without one
+        put(cache, FILE, FRAME_US);
+        frame = cache.get(FILE, FRAME_US);
+        assertEquals(10, frame.stride);
+        assertEquals(5, frame.sliceHeight);
+        frame.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void strideBelowTheWidthIsRejected() {
+        new FrameCache(10 * SIZE).put(FILE, 0, data(1, SIZE), 6, 4, 4, 4, 21);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() {
+        FrameCache cache = new FrameCache(3 * SIZE);
+        put(cache, FILE, 0);
+        put(cache, FILE, FRAME_US);
+        put(cache, FILE, 2 * FRAME_US);
+        // a get() makes the first one the most recent
+        cache.get(FILE, 0).release();
+        put(cache, FILE, 3 * FRAME_US);
+        assertTrue(cached(cache, 0));
+        assertFalse(cached(cache, FRAME_US));
+        assertTrue(cached(cache, 2 * FRAME_US));
+        assertTrue(cached(cache, 3 * FRAME_US));
+
+        put(cache, FILE, 4 * FRAME_US);
+        assertFalse(cached(cache, 2 * FRAME_US));
+        assertTrue(cached(cache, 0));
+        assertEquals(2, cache.evictionCount());
+    }
+
+    @Test
+    public void containsDoesNotTouchTheOrder() {
+        FrameCache cache = new FrameCache(2 * SIZE);
+        put(cache, FILE, 0);
+        put(cache, FILE, FRAME_US);
+        assertTrue(cached(cache, 0));
+        put(cache, FILE, 2 * FRAME_US);
+        assertFalse(cached(cache, 0));
+    }
+
+    @Test
+    public void staysWithinTheBudget() {
+        FrameCache cache = new FrameCache(5 * SIZE + SIZE / 2);
+        for (int i = 0; i < 20; i++) {
+            put(cache, FILE, i * FRAME_US);
+            assertTrue(cache.bytes() <= cache.budgetBytes());
+        }
+        assertEquals(5, cache.size());
+        assertEquals(5 * SIZE, cache.bytes());
+        assertEquals(20, cache.insertCount());
+        assertEquals(15, cache.evictionCount());
+        // larger frames push out as many as they need
+        assertTrue(cache.put(FILE, 100 * FRAME_US, data(1, 3 * SIZE), 10, 5, 0));
+        assertTrue(cache.bytes() <= cache.budgetBytes());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void frameLargerThanTheBudgetIsRefused() {
+        FrameCache cache = new FrameCache(SIZE);
+        put(cache, FILE, 0);
+        assertFalse(cache.put(FILE, FRAME_US, data(1, SIZE + 1), 10, 5, 0));
+        // and evicts nothing
+        assertTrue(cached(cache, 0));
+    }
+
+    @Test
+    public void existingFrameIsKept() {
+        FrameCache cache = new FrameCache(10 * SIZE);
+        assertTrue(cache.put(FILE, 0, data(1, SIZE), 10, 5, 0));
+        assertTrue(cache.put(FILE, 0, data(2, SIZE), 10, 5, 0));
+        assertEquals(1, cache.size());
+        FrameCache.Frame frame = cache.get(FILE, 0);
+        assertArrayEquals(data(1, SIZE).array(), bytes(frame));
+        frame.release();
+    }
+
+    @Test
+    public void retainedFrameOutlivesItsEviction() {
+        FrameCache cache = new FrameCache(2 * SIZE);
+        put(cache, FILE, 0);
+        FrameCache.Frame held = cache.get(FILE, 0);
+        put(cache, FILE, FRAME_US);
+        put(cache, FILE, 2 * FRAME_US);
+        assertFalse(cached(cache, 0));
+        // evicted but held, its buffer is not up for reuse
+        assertEquals(0, cache.spareCount());
+        put(cache, FILE, 3 * FRAME_US);
+        assertArrayEquals(data(0, SIZE).array(), bytes(held));
+
+        held.release();
+        // the last release hands the buffer back, the next put() takes it
+        assertEquals(2, cache.spareCount());
+        put(cache, FILE, 4 * FRAME_US);
+        assertEquals(2, cache.spareCount());
+        put(cache, FILE, 5 * FRAME_US);
+        assertEquals(2, cache.spareCount());
+    }
+
+    @Test
+    public void spareBuffersAreReusedUpToTheLimit() {
+        FrameCache cache = new FrameCache(10 * SIZE);
+        for (int i = 0; i < 10; i++) {
+            put(cache, FILE, i * FRAME_US);
+        }
+        cache.invalidate(FILE);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+        assertEquals(FrameCache.MAX_SPARE, cache.spareCount());
+        put(cache, FILE, 0);
+        assertEquals(FrameCache.MAX_SPARE - 1, cache.spareCount());
+        FrameCache.Frame frame = cache.get(FILE, 0);
+        assertArrayEquals(data(0, SIZE).array(), bytes(frame));
+        frame.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasedTooOften() {
+        FrameCache cache = new FrameCache(10 * SIZE);
+        put(cache, FILE, 0);
+        FrameCache.Frame frame = cache.get(FILE, 0);
+        frame.release();
+        cache.clear();
+        frame.release();
+    }
+
+    @Test
+    public void getWithToleranceFindsTheFrameShown() {
+        FrameCache cache = new FrameCache(10 * SIZE);
+        put(cache, FILE, FRAME_US);
+        put(cache, FILE, 2 * FRAME_US);
+        assertNull(cache.get(FILE, FRAME_US + 10));
+        FrameCache.Frame frame = cache.get(FILE, FRAME_US + 10, FRAME_US - 1);
+        assertEquals(FRAME_US, frame.presentationTimeUs);
+        frame.release();
+        // before the first frame and in another file there is none
+        assertNull(cache.get(FILE, FRAME_US - 10, FRAME_US - 1));
+        assertNull(cache.get("b.mp4", FRAME_US, FRAME_US - 1));
+        assertEquals(1, cache.hitCount());
+        assertEquals(3, cache.missCount());
+    }
+
+    @Test
+    public void firstMissingFindsGaps() {
+        FrameCache cache = new FrameCache(100 * SIZE);
+        // nothing of the file
+        assertEquals(0, cache.firstMissing(FILE, 0, 10 * FRAME_US, FRAME_US));
+        for (int i = 0; i < 10; i++) {
+            if (i != 4) put(cache, FILE, i * FRAME_US);
+        }
+        assertEquals(4 * FRAME_US, cache.firstMissing(FILE, 0, 9 * FRAME_US, FRAME_US));
+        assertEquals(4 * FRAME_US, cache.firstMissing(FILE, 3 * FRAME_US + 10, 9 * FRAME_US, FRAME_US));
+        // the gap lies before the range, the range itself is complete
+        assertEquals(-1, cache.firstMissing(FILE, 5 * FRAME_US, 9 * FRAME_US, FRAME_US));
+        // the frame showing at a position between two frames counts
+        assertEquals(-1, cache.firstMissing(FILE, 5 * FRAME_US + 100, 9 * FRAME_US, FRAME_US));
+        // past the last frame
+        assertEquals(10 * FRAME_US, cache.firstMissing(FILE, 5 * FRAME_US, 12 * FRAME_US, FRAME_US));
+        assertEquals(-1, cache.firstMissing(FILE, 5 * FRAME_US, 10 * FRAME_US - 1, FRAME_US));
+    }
+
+    @Test
+    public void firstMissingAllowsRoundedTimestamps() {
+        FrameCache cache = new FrameCache(100 * SIZE);
+        put(cache, FILE, 0);
+        put(cache, FILE, FRAME_US + 1);
+        put(cache, FILE, 2 * FRAME_US - 1);
+        assertEquals(-1, cache.firstMissing(FILE, 0, 2 * FRAME_US, FRAME_US));
+    }
+
+    @Test
+    public void prefetchWindowFollowsTheDirection() {
+        FrameCache cache = new FrameCache(SIZE);
+        // before any move: forward from 0
+        assertEquals(0, cache.direction());
+        assertArrayEquals(new long[]{0, 1000}, cache.prefetchWindow(1000));
+
+        cache.moveTo(5000);
+        assertEquals(0, cache.direction());
+        assertArrayEquals(new long[]{5000, 6000}, cache.prefetchWindow(1000));
+
+        cache.moveTo(4000);
+        assertEquals(-1, cache.direction());
+        assertArrayEquals(new long[]{3000, 4000}, cache.prefetchWindow(1000));
+        // standing still keeps the direction
+        cache.moveTo(4000);
+        assertEquals(-1, cache.direction());
+        // never before the start
+        cache.moveTo(500);
+        assertArrayEquals(new long[]{0, 500}, cache.prefetchWindow(1000));
+
+        cache.moveTo(700);
+        assertEquals(1, cache.direction());
+        assertArrayEquals(new long[]{700, 1700}, cache.prefetchWindow(1000));
+    }
+
+    @Test
+    public void invalidateDropsOneFile() {
+        FrameCache cache = new FrameCache(10 * SIZE);
+        put(cache, FILE, 0);
+        put(cache, "b.mp4", 0);
+        cache.invalidate(FILE);
+        assertFalse(cached(cache, 0));
+        assertTrue(cache.contains("b.mp4", 0));
+        assertEquals(SIZE, cache.bytes());
+    }
+}
@@ -0,0 +1,114 @@
+package org.yeshen.hevc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// FramePacer on a FakeTimeSource, with a sleeper that moves the clock on instead of
+// sleeping: frames land on their slots whatever the draw and sleep times, slots a slow
+// frame overran are skipped, and restart() anchors on the next frame.
+public class FramePacerTest {
+
+    private static final long START_NS = TimeUnit.SECONDS.toNanos(10);
+    // 50 fps
+    private static final long INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final FakeTimeSource time = new FakeTimeSource(START_NS);
+    private final List<Long> sleeps = new ArrayList<>();
+    // how much longer than asked every sleep takes
+    private long oversleepNs;
+
+    private final FramePacer.Sleeper sleeper = new FramePacer.Sleeper() {
+        @Override
+        public void sleep(long ns) {
+            sleeps.add(ns);
+            time.set(time.nanoTime() + ns + oversleepNs);
+        }
+    };
+
+    private final FramePacer pacer = new FramePacer(50, time, sleeper);
+
+    // awaits the next frame and draws it in drawMs, returns its due time
+    private long frame(long drawMs) throws InterruptedException {
+        long dueNs = pacer.awaitFrame();
+        time.advanceMs(drawMs);
+        pacer.frameDrawn();
+        return dueNs;
+    }
+
+    @Test
+    public void framesSleepToTheirSlots() throws InterruptedException {
+        assertEquals(START_NS, frame(5));
+        assertEquals(0, sleeps.size());
+        for (int n = 1; n < 10; n++) {
+            assertEquals(START_NS + n * INTERVAL_NS, frame(5));
+        }
+        assertEquals(9, sleeps.size());
+        for (long ns : sleeps) {
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(15), ns);
+        }
+        assertEquals(10, pacer.framesDrawn());
+        assertEquals(0, pacer.framesSkipped());
+        // from the first frame's start to the last one's end
+        assertEquals(9 * 1e9 / (9 * INTERVAL_NS + TimeUnit.MILLISECONDS.toNanos(5)), pacer.actualFps(), 0.01);
+    }
+
+    @Test
+    public void jitterDoesNotDrift() throws InterruptedException {
+        oversleepNs = TimeUnit.MILLISECONDS.toNanos(3);
+        long[] drawMs = {1, 12, 4, 16, 0, 9};
+        for (int n = 0; n < 60; n++) {
+            assertEquals(START_NS + n * INTERVAL_NS, frame(drawMs[n % drawMs.length]));
+        }
+        assertEquals(0, pacer.framesSkipped());
+    }
+
+    @Test
+    public void slowFrameSkipsTheSlotsItOverran() throws InterruptedException {
+        frame(65);
+        // at 65 ms slot 1 (20) and 2 (40) passed, slot 3 (60) is drawn 5 ms late without sleeping
+        assertEquals(START_NS + 3 * INTERVAL_NS, frame(5));
+        assertEquals(2, pacer.framesSkipped());
+        assertEquals(0, sleeps.size());
+        assertEquals(START_NS + 4 * INTERVAL_NS, frame(5));
+        // done at 70, slot 4 is at 80
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), (long) sleeps.get(0));
+        assertEquals(2, pacer.framesSkipped());
+        assertEquals(3, pacer.framesDrawn());
+    }
+
+    @Test
+    public void lessThanAnIntervalLateIsNotSkipped() throws InterruptedException {
+        frame(39);
+        assertEquals(START_NS + INTERVAL_NS, frame(5));
+        assertEquals(0, pacer.framesSkipped());
+    }
+
+    @Test
+    public void restartAnchorsOnTheNextFrame() throws InterruptedException {
+        frame(5);
+        frame(5);
+        pacer.restart();
+        // a pause of a second, nothing is skipped for it
+        time.advanceMs(1000);
+        long resumedNs = time.nanoTime();
+        assertEquals(resumedNs, frame(5));
+        assertEquals(resumedNs + INTERVAL_NS, frame(5));
+        assertEquals(0, pacer.framesSkipped());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroFrameRateIsRejected() {
+        new FramePacer(0, time, sleeper);
+    }
+}
@@ -0,0 +1,94 @@
+package org.yeshen.hevc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// FramePool: prefilling is not counted as exhaustion, released buffers come back, and
+// buffers still out when the pool is cleared are dropped when they are released.
+public class FramePoolTest {
+
+    private static final int FRAME_SIZE = 24;
+
+    @Test
+    public void prefillIsNotExhaustion() {
+        FramePool pool = new FramePool(FRAME_SIZE, 4);
+        for (int i = 0; i < pool.depth(); i++) {
+            assertNotNull(pool.prefill());
+        }
+        assertNull(pool.prefill());
+        assertEquals(0, pool.exhaustionCount());
+        assertNull(pool.acquire());
+        assertEquals(1, pool.exhaustionCount());
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        FramePool pool = new FramePool(FRAME_SIZE, 2);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        pool.release(first);
+        assertSame(first, pool.acquire());
+        pool.release(second);
+        assertSame(second, pool.acquire());
+        assertEquals(2, pool.reuseCount());
+        assertEquals(0, pool.exhaustionCount());
+    }
+
+    @Test
+    public void recyclerGetsReleasedBuffers() {
+        FramePool pool = new FramePool(FRAME_SIZE, 2);
+        final List<byte[]> recycled = new ArrayList<>();
+        pool.setRecycler(new FramePool.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                recycled.add(buffer);
+            }
+        });
+        byte[] buffer = pool.prefill();
+        pool.checkout(buffer);
+        assertEquals(1, pool.checkedOut());
+        pool.release(buffer);
+        assertEquals(0, pool.checkedOut());
+        assertEquals(1, recycled.size());
+        assertSame(buffer, recycled.get(0));
+    }
+
+    @Test
+    public void lateReleasesAfterClearAreDropped() {
+        FramePool pool = new FramePool(FRAME_SIZE, 2);
+        byte[] old = pool.acquire();
+        pool.acquire();
+        pool.clear();
+        byte[] fresh = pool.acquire();
+        pool.release(old);
+        pool.release(fresh);
+        // only the fresh one came back, the second new one is allocated
+        assertSame(fresh, pool.acquire());
+        byte[] second = pool.acquire();
+        assertNotNull(second);
+        assertNotSame(old, second);
+        assertNull(pool.acquire());
+    }
+
+    @Test
+    public void foreignBuffersAreIgnored() {
+        FramePool pool = new FramePool(FRAME_SIZE, 1);
+        pool.release(new byte[FRAME_SIZE]);
+        assertNotNull(pool.acquire());
+        assertNull(pool.acquire());
+    }
+}
@@ -0,0 +1,203 @@
+package org.yeshen.hevc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// FrameScheduler on a fake clock. The frames are queued before the scheduler starts and
+// the clock is set so that they are all due already, the scheduler never has to wait.
+public class FrameSchedulerTest {
+
+    private static final long MS = 1000000L;
+    private static final long T0 = 1000 * MS;
+
+    private final FakeTimeSource time = new FakeTimeSource(T0);
+    private final MediaClock clock = new MediaClock(time);
+    private final Recorder output = new Recorder();
+    private FrameScheduler scheduler;
+
+    // what the scheduler handed over, in order
+    private static final class Recorder implements FrameScheduler.Output {
+        final List<Integer> rendered = new ArrayList<>();
+        final List<Long> renderTimesNs = new ArrayList<>();
+        final List<Integer> dropped = new ArrayList<>();
+
+        @Override
+        public synchronized void render(int index, long renderTimeNs) {
+            rendered.add(index);
+            renderTimesNs.add(renderTimeNs);
+        }
+
+        @Override
+        public synchronized void drop(int index) {
+            dropped.add(index);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) scheduler.stop();
+    }
+
+    private FrameScheduler scheduler(long leadNs) {
+        scheduler = new FrameScheduler(clock, output, leadNs, FrameScheduler.DEFAULT_LATE_DROP_US,
+                FrameScheduler.DEFAULT_MAX_CONSECUTIVE_DROPS);
+        return scheduler;
+    }
+
+    private void drain() throws InterruptedException {
+        assertTrue("not drained", scheduler.awaitDrained(5000));
+    }
+
+    @Test
+    public void firstFrameStartsTheClockLeadAhead() throws InterruptedException {
+        scheduler(30 * MS);
+        scheduler.submit(0, 2000000);
+        assertTrue(clock.isStarted());
+        assertEquals(2000000, clock.mediaTimeUs(T0 + 30 * MS));
+        scheduler.start();
+        drain();
+        // handed over at once, together with its due time
+        assertEquals(Arrays.asList(0), output.rendered);
+        assertEquals(Arrays.asList(T0 + 30 * MS), output.renderTimesNs);
+        assertEquals(0, scheduler.maxJitterUs());
+    }
+
+    @Test
+    public void rateChangeMovesTheDueTimes() throws InterruptedException {
+        scheduler(0);
+        scheduler.submit(0, 0);
+        scheduler.start();
+        drain();
+
+        scheduler.setRate(2f);
+        // at twice the speed 100 ms of media take 50 ms
+        time.advanceMs(50);
+        scheduler.submit(1, 100000);
+        drain();
+        scheduler.setRate(0.5f);
+        time.advanceMs(200);
+        scheduler.submit(2, 200000);
+        drain();
+
+        assertEquals(Arrays.asList(0, 1, 2), output.rendered);
+        assertEquals(Arrays.asList(T0, T0 + 50 * MS, T0 + 250 * MS), output.renderTimesNs);
+        assertEquals(0, scheduler.droppedCount());
+        assertEquals(0, scheduler.maxJitterUs());
+    }
+
+    @Test
+    public void pausedFramesWaitForResume() throws InterruptedException {
+        scheduler(0);
+        scheduler.submit(0, 0);
+        scheduler.pause();
+        scheduler.start();
+        assertFalse(scheduler.awaitDrained(50));
+        assertEquals(1, scheduler.pendingCount());
+        assertEquals(0, scheduler.renderedCount());
+
+        // a long pause doesn't make the frame late
+        time.advanceMs(1000);
+        scheduler.resume();
+        drain();
+        assertEquals(Arrays.asList(0), output.rendered);
+        assertEquals(0, scheduler.droppedCount());
+    }
+
+    @Test
+    public void resetAnchorsTheClockAtTheNextFrame() throws InterruptedException {
+        scheduler(0);
+        scheduler.submit(0, 0);
+        scheduler.start();
+        drain();
+
+        // a seek far ahead: without the reset 10 s of media would be waited for
+        scheduler.flush();
+        clock.reset();
+        time.advanceMs(40);
+        scheduler.submit(1, 10000000);
+        drain();
+        assertEquals(Arrays.asList(0, 1), output.rendered);
+        assertEquals(Arrays.asList(T0, T0 + 40 * MS), output.renderTimesNs);
+        assertEquals(0, scheduler.droppedCount());
+    }
+
+    @Test
+    public void flushDropsPendingFrames() {
+        scheduler(0);
+        scheduler.submit(0, 0);
+        scheduler.submit(1, 33000);
+        scheduler.flush();
+        assertEquals(0, scheduler.pendingCount());
+        assertEquals(Arrays.asList(0, 1), output.dropped);
+    }
+
+    @Test
+    public void lateFramesAreDroppedButNeverTooManyInARow() throws InterruptedException {
+        scheduler(0);
+        // 10 ms apart, 200 ms behind for the first one and on time for the last
+        for (int i = 0; i <= 20; i++) {
+            scheduler.submit(i, i * 10000L);
+        }
+        time.advanceMs(200);
+        scheduler.start();
+        drain();
+
+        // later than 40 ms is dropped, but every fifth frame in a row is shown anyway
+        assertEquals(Arrays.asList(0, 1, 2, 3, 5, 6, 7, 8, 10, 11, 12, 13, 15), output.dropped);
+        assertEquals(Arrays.asList(4, 9, 14, 16, 17, 18, 19, 20), output.rendered);
+        assertEquals(13, scheduler.droppedCount());
+        assertEquals(8, scheduler.renderedCount());
+        // rendered late is rendered now, not at the missed due time
+        for (long renderTimeNs : output.renderTimesNs) {
+            assertEquals(T0 + 200 * MS, renderTimeNs);
+        }
+    }
+
+    @Test
+    public void jitterStatsCoverRenderedFramesOnly() throws InterruptedException {
+        scheduler(0);
+        for (int i = 0; i <= 20; i++) {
+            scheduler.submit(i, i * 10000L);
+        }
+        time.advanceMs(200);
+        scheduler.start();
+        drain();
+
+        // rendered 160, 110, 60, 40, 30, 20, 10 and 0 ms after their slot
+        assertEquals(53750, scheduler.meanJitterUs());
+        assertEquals(160000, scheduler.maxJitterUs());
+        double mean = 53750;
+        double squares = 0;
+        for (long ms : new long[]{160, 110, 60, 40, 30, 20, 10, 0}) {
+            squares += (ms * 1000.0) * (ms * 1000.0);
+        }
+        assertEquals(Math.sqrt(squares / 8 - mean * mean), scheduler.jitterStdDevUs(), 1);
+    }
+
+    @Test
+    public void noJitterWithoutFrames() {
+        scheduler(0);
+        assertEquals(0, scheduler.meanJitterUs());
+        assertEquals(0, scheduler.maxJitterUs());
+        assertEquals(0, scheduler.jitterStdDevUs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLeadIsRejected() {
+        scheduler(-1);
+    }
+}
@@ -0,0 +1,111 @@
+package org.yeshen.hevc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// MediaClock on a fake time source: media time and due times across rate changes,
+// pause/resume and reset().
+public class MediaClockTest {
+
+    private static final long MS = 1000000L;
+
+    private final FakeTimeSource time = new FakeTimeSource(1000 * MS);
+    private final MediaClock clock = new MediaClock(time);
+
+    @Test
+    public void stoppedClockHasNoDueTimes() {
+        assertFalse(clock.isStarted());
+        assertEquals(Long.MAX_VALUE, clock.nanoTimeOf(0));
+        assertEquals(0, clock.mediaTimeUs());
+    }
+
+    @Test
+    public void runsAtNormalRateFromTheAnchor() {
+        clock.start(5000000, time.nanoTime());
+        time.advanceMs(40);
+        assertEquals(5040000, clock.mediaTimeUs());
+        assertEquals(1000 * MS + 100 * MS, clock.nanoTimeOf(5100000));
+        // due times before the anchor lie in the past
+        assertEquals(1000 * MS - 10 * MS, clock.nanoTimeOf(4990000));
+    }
+
+    @Test
+    public void rateChangeKeepsMediaTimeContinuous() {
+        clock.start(0, time.nanoTime());
+        time.advanceMs(100);
+        clock.setRate(2f);
+        assertEquals(2f, clock.rate(), 0f);
+        // no jump at the change
+        assertEquals(100000, clock.mediaTimeUs());
+        time.advanceMs(100);
+        assertEquals(300000, clock.mediaTimeUs());
+        // 100 ms of media ahead take 50 ms at twice the speed
+        assertEquals(time.nanoTime() + 50 * MS, clock.nanoTimeOf(400000));
+
+        clock.setRate(0.5f);
+        assertEquals(300000, clock.mediaTimeUs());
+        assertEquals(time.nanoTime() + 200 * MS, clock.nanoTimeOf(400000));
+    }
+
+    @Test
+    public void rateSetBeforeStartApplies() {
+        clock.setRate(2f);
+        clock.start(0, time.nanoTime());
+        time.advanceMs(10);
+        assertEquals(20000, clock.mediaTimeUs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroRateIsRejected() {
+        clock.setRate(0f);
+    }
+
+    @Test
+    public void pauseHoldsMediaTimeAndResumeContinuesFromIt() {
+        clock.start(0, time.nanoTime());
+        time.advanceMs(30);
+        clock.pause();
+        assertTrue(clock.isPaused());
+        time.advanceMs(500);
+        assertEquals(30000, clock.mediaTimeUs());
+        assertEquals(Long.MAX_VALUE, clock.nanoTimeOf(40000));
+
+        clock.resume();
+        assertFalse(clock.isPaused());
+        assertEquals(30000, clock.mediaTimeUs());
+        assertEquals(time.nanoTime() + 10 * MS, clock.nanoTimeOf(40000));
+    }
+
+    @Test
+    public void resetNeedsANewStart() {
+        clock.start(0, time.nanoTime());
+        time.advanceMs(20);
+        clock.reset();
+        assertFalse(clock.isStarted());
+        assertEquals(Long.MAX_VALUE, clock.nanoTimeOf(20000));
+
+        // e.g. after a seek to 10 s
+        clock.start(10000000, time.nanoTime());
+        time.advanceMs(20);
+        assertEquals(10020000, clock.mediaTimeUs());
+    }
+
+    @Test
+    public void rateSurvivesReset() {
+        clock.start(0, time.nanoTime());
+        clock.setRate(2f);
+        clock.reset();
+        clock.start(0, time.nanoTime());
+        time.advanceMs(10);
+        assertEquals(20000, clock.mediaTimeUs());
+    }
+}
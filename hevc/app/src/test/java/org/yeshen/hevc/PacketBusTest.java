@@ -0,0 +1,135 @@
+package org.yeshen.hevc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// PacketBus: every pooled copy goes back to the pool, also when a subscriber leaves while
+// the publisher is offering to it, finish() delivers what was queued before it leaves,
+// and consumerLagMs() follows the slowest subscriber.
+public class PacketBusTest {
+
+    private static final long FRAME_US = 33333;
+
+    private final ByteBuffer data = ByteBuffer.allocate(64);
+
+    private EncodedPacket keyframe(long presentationTimeUs) {
+        return EncodedPacket.wrap(null, data, presentationTimeUs, EncodedPacket.FLAG_KEY_FRAME, null);
+    }
+
+    @Test
+    public void unsubscribeRacingPublishLeaksNothing() throws InterruptedException {
+        EncodedPacketPool pool = new EncodedPacketPool(64, 8);
+        final PacketBus bus = new PacketBus(pool);
+        final PacketBus.Listener ignore = new PacketBus.Listener() {
+            @Override
+            public void onPacket(EncodedPacket packet) {
+            }
+        };
+        final AtomicBoolean publishing = new AtomicBoolean(true);
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long pts = 0;
+                while (publishing.get()) {
+                    EncodedPacket packet = keyframe(pts += FRAME_US);
+                    bus.publish(packet);
+                    packet.release();
+                }
+            }
+        });
+        publisher.start();
+        for (int i = 0; i < 1000; i++) {
+            bus.unsubscribe(bus.subscribe("s" + i, 4, PacketBus.LagPolicy.SKIP_TO_KEYFRAME, ignore));
+        }
+        publishing.set(false);
+        publisher.join();
+        bus.close();
+        assertEquals(0, pool.outstanding());
+    }
+
+    @Test
+    public void lagIsTheSlowestSubscribers() throws InterruptedException {
+        EncodedPacketPool pool = new EncodedPacketPool(64, 16);
+        PacketBus bus = new PacketBus(pool);
+        final CountDownLatch taken = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        bus.subscribe("fast", 16, PacketBus.LagPolicy.SKIP_TO_KEYFRAME, new PacketBus.Listener() {
+            @Override
+            public void onPacket(EncodedPacket packet) {
+            }
+        });
+        bus.subscribe("stuck", 16, PacketBus.LagPolicy.SKIP_TO_KEYFRAME, new PacketBus.Listener() {
+            @Override
+            public void onPacket(EncodedPacket packet) {
+                taken.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        assertEquals(0, bus.consumerLagMs());
+        EncodedPacket first = keyframe(0);
+        bus.publish(first);
+        first.release();
+        assertTrue(taken.await(1, TimeUnit.SECONDS));
+        for (int i = 1; i <= 9; i++) {
+            EncodedPacket packet = keyframe(i * FRAME_US);
+            bus.publish(packet);
+            packet.release();
+        }
+        // stuck on the packet at 0 with the one at 9 frames published
+        assertEquals(9 * FRAME_US / 1000, bus.consumerLagMs());
+        resume.countDown();
+        bus.close();
+        assertEquals(0, pool.outstanding());
+    }
+
+    @Test
+    public void finishDeliversWhatIsQueued() throws InterruptedException {
+        EncodedPacketPool pool = new EncodedPacketPool(64, 16);
+        PacketBus bus = new PacketBus(pool);
+        final CountDownLatch taken = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final AtomicLong delivered = new AtomicLong();
+        PacketBus.Subscriber subscriber = bus.subscribe("recorder", 16, PacketBus.LagPolicy.SKIP_TO_KEYFRAME,
+                new PacketBus.Listener() {
+                    @Override
+                    public void onPacket(EncodedPacket packet) {
+                        taken.countDown();
+                        try {
+                            resume.await();
+                        } catch (InterruptedException ignore) {
+                        }
+                        delivered.incrementAndGet();
+                    }
+                });
+        for (int i = 0; i < 10; i++) {
+            EncodedPacket packet = keyframe(i * FRAME_US);
+            bus.publish(packet);
+            packet.release();
+            if (i == 0) assertTrue(taken.await(1, TimeUnit.SECONDS));
+        }
+        assertEquals(9, subscriber.lagPackets());
+        resume.countDown();
+        bus.finish(subscriber);
+        assertEquals(10, delivered.get());
+        assertEquals(10, subscriber.deliveredCount());
+        assertTrue(bus.subscribers().isEmpty());
+        assertEquals(0, pool.outstanding());
+    }
+}
@@ -0,0 +1,168 @@
+package org.yeshen.hevc;
+
+import java.util.Locale;
+import java.util.Random;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Deterministic closed loop for tuning CongestionController off-device: a modelled
+// encoder (frame sizes follow the target bitrate with seeded noise, IDRs cost
+// keyframeCost frames) feeds a consumer draining over a link whose capacity follows
+// a schedule. RateControlSimulatorTest holds the controller to its scenarios.
+class RateControlSimulator {
+
+    static final class Result {
+        long framesSent;
+        long maxLagMs;
+        long lagSumMs;
+        long lagSamples;
+        // sent bits over link capacity
+        double utilization;
+        long keyframes;
+
+        long meanLagMs() {
+            return lagSamples == 0 ? 0 : lagSumMs / lagSamples;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "utilization=%.2f meanLagMs=%d maxLagMs=%d keyframes=%d",
+                    utilization, meanLagMs(), maxLagMs, keyframes);
+        }
+    }
+
+    interface Trace {
+        void onSecond(long nowMs, long capacityBps, int targetBps, long lagMs);
+    }
+
+    // what the controller drives in place of a codec
+    static final class ModelEncoder implements RateControl {
+        private int bitrate;
+        private boolean syncRequested;
+
+        ModelEncoder(int bitrate) {
+            this.bitrate = bitrate;
+        }
+
+        @Override
+        public void setBitrate(int bitsPerSecond) {
+            bitrate = bitsPerSecond;
+        }
+
+        @Override
+        public int bitrate() {
+            return bitrate;
+        }
+
+        @Override
+        public void requestSyncFrame() {
+            syncRequested = true;
+        }
+    }
+
+    int frameRate = 30;
+    int gopFrames = 30;
+    float keyframeCost = 4f;
+    // +- share of frame size noise
+    float noise = 0.2f;
+    long tickMs = 100;
+    long seed = 1;
+
+    // capacity steps: capacityBps[i] from startMs[i] on
+    private final long[] startMs;
+    private final long[] capacityBps;
+
+    RateControlSimulator(long[] startMs, long[] capacityBps) {
+        if (startMs.length != capacityBps.length || startMs.length == 0) {
+            throw new IllegalArgumentException("bad capacity schedule");
+        }
+        this.startMs = startMs;
+        this.capacityBps = capacityBps;
+    }
+
+    long capacityAt(long nowMs) {
+        long capacity = capacityBps[0];
+        for (int i = 0; i < startMs.length; i++) {
+            if (nowMs >= startMs[i]) capacity = capacityBps[i];
+        }
+        return capacity;
+    }
+
+    // controller must be driving encoder
+    Result run(ModelEncoder encoder, CongestionController controller, long durationMs, Trace trace) {
+        Random random = new Random(seed);
+        Result result = new Result();
+        // bytes of each frame still to be sent, oldest first
+        long[] queue = new long[1024];
+        int head = 0;
+        int count = 0;
+        long queuedBytes = 0;
+        long bytesThisTick = 0;
+        long sentBits = 0;
+        long capacityBits = 0;
+        long nextTickMs = tickMs;
+        long nextSecondMs = 1000;
+        long frameIndex = 0;
+        long nowMs = 0;
+        while (nowMs < durationMs) {
+            // encode one frame
+            boolean key = frameIndex % gopFrames == 0 || encoder.syncRequested;
+            encoder.syncRequested = false;
+            double size = encoder.bitrate / 8.0 / frameRate * (1 + noise * (2 * random.nextDouble() - 1));
+            if (key) {
+                size *= keyframeCost;
+                result.keyframes++;
+            }
+            if (count == queue.length) {
+                long[] grown = new long[queue.length * 2];
+                for (int i = 0; i < count; i++) grown[i] = queue[(head + i) % queue.length];
+                queue = grown;
+                head = 0;
+            }
+            queue[(head + count) % queue.length] = (long) size;
+            count++;
+            queuedBytes += (long) size;
+            bytesThisTick += (long) size;
+            frameIndex++;
+
+            // drain one frame interval worth of link capacity
+            long nextMs = frameIndex * 1000 / frameRate;
+            long capacity = capacityAt(nowMs);
+            long budget = capacity * (nextMs - nowMs) / 8000;
+            capacityBits += budget * 8;
+            while (count > 0 && budget > 0) {
+                long sent = Math.min(budget, queue[head]);
+                queue[head] -= sent;
+                budget -= sent;
+                queuedBytes -= sent;
+                sentBits += sent * 8;
+                if (queue[head] == 0) {
+                    head = (head + 1) % queue.length;
+                    count--;
+                    result.framesSent++;
+                }
+            }
+            nowMs = nextMs;
+
+            long lagMs = queuedBytes * 8000 / Math.max(1, capacityAt(nowMs));
+            result.lagSumMs += lagMs;
+            result.lagSamples++;
+            result.maxLagMs = Math.max(result.maxLagMs, lagMs);
+            if (nowMs >= nextTickMs) {
+                controller.onTick(nowMs, bytesThisTick * 8000 / tickMs, count, lagMs);
+                bytesThisTick = 0;
+                nextTickMs += tickMs;
+            }
+            if (trace != null && nowMs >= nextSecondMs) {
+                trace.onSecond(nowMs, capacityAt(nowMs), controller.targetBps(), lagMs);
+                nextSecondMs += 1000;
+            }
+        }
+        result.utilization = capacityBits == 0 ? 0 : (double) sentBits / capacityBits;
+        return result;
+    }
+}
@@ -0,0 +1,113 @@
+package org.yeshen.hevc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// CongestionController in the RateControlSimulator loop: 4 Mbps, a drop to 1 Mbps at
+// 10 s and a partial recovery to 2.5 Mbps at 25 s.
+public class RateControlSimulatorTest {
+
+    private static final int MIN_BPS = 300000;
+    private static final int MAX_BPS = 5000000;
+
+    // one line per simulated second
+    private static final class Recorder implements RateControlSimulator.Trace {
+        final List<long[]> seconds = new ArrayList<>();
+
+        @Override
+        public void onSecond(long nowMs, long capacityBps, int targetBps, long lagMs) {
+            seconds.add(new long[]{nowMs, capacityBps, targetBps, lagMs});
+        }
+
+        long target(int second) {
+            return seconds.get(second - 1)[2];
+        }
+
+        long lag(int second) {
+            return seconds.get(second - 1)[3];
+        }
+    }
+
+    private static RateControlSimulator simulator() {
+        return new RateControlSimulator(new long[]{0, 10000, 25000}, new long[]{4000000, 1000000, 2500000});
+    }
+
+    private final RateControlSimulator.ModelEncoder encoder = new RateControlSimulator.ModelEncoder(3000000);
+    private final CongestionController controller = new CongestionController(encoder, MIN_BPS, MAX_BPS);
+    private final Recorder trace = new Recorder();
+
+    private RateControlSimulator.Result run() {
+        return simulator().run(encoder, controller, 40000, trace);
+    }
+
+    @Test
+    public void backsOffWhenTheLinkDrops() {
+        run();
+        // under the new capacity within three seconds, and the backlog gone two later
+        for (int second = 13; second < 25; second++) {
+            assertTrue(second + " s: " + trace.target(second), trace.target(second) < 1500000);
+        }
+        assertTrue(trace.target(13) <= 1000000);
+        assertTrue(trace.lag(15) < controller.lagHighMs);
+        assertTrue(controller.decreaseCount() > 0);
+    }
+
+    @Test
+    public void resyncsOnceTheLagIsCleared() {
+        run();
+        // the lag passed resyncLagMs after the drop, the consumer gets an IDR to start over
+        long maxLag = 0;
+        for (int second = 10; second <= 13; second++) {
+            maxLag = Math.max(maxLag, trace.lag(second));
+        }
+        assertTrue(maxLag > controller.resyncLagMs);
+        assertTrue(controller.syncRequestCount() > 0);
+    }
+
+    @Test
+    public void probesUpAfterRecovery() {
+        run();
+        long best = 0;
+        for (int second = 26; second <= 40; second++) {
+            best = Math.max(best, trace.target(second));
+        }
+        assertTrue("best " + best, best > 2000000);
+        assertTrue(controller.increaseCount() > 0);
+    }
+
+    @Test
+    public void staysInRange() {
+        RateControlSimulator.Result result = run();
+        for (long[] second : trace.seconds) {
+            assertTrue(second[2] >= MIN_BPS && second[2] <= MAX_BPS);
+        }
+        assertEquals(40, trace.seconds.size());
+        assertTrue(result.toString(), result.utilization > 0.7);
+        assertTrue(result.toString(), result.meanLagMs() < 300);
+    }
+
+    @Test
+    public void sameSeedSameRun() {
+        RateControlSimulator.Result first = run();
+        RateControlSimulator.ModelEncoder otherEncoder = new RateControlSimulator.ModelEncoder(3000000);
+        Recorder other = new Recorder();
+        RateControlSimulator.Result second = simulator().run(otherEncoder,
+                new CongestionController(otherEncoder, MIN_BPS, MAX_BPS), 40000, other);
+        assertEquals(first.toString(), second.toString());
+        for (int i = 0; i < trace.seconds.size(); i++) {
+            assertEquals(trace.seconds.get(i)[2], other.seconds.get(i)[2]);
+            assertEquals(trace.seconds.get(i)[3], other.seconds.get(i)[3]);
+        }
+    }
+}
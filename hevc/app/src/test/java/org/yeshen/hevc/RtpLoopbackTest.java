@@ -0,0 +1,231 @@
+package org.yeshen.hevc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// RtpSender -> 127.0.0.1 -> RtpReceiver -> RtpDepacketizer with synthetic access units.
+// The sender talks to a relay socket owned by the test, which forwards the datagrams to
+// the receiver as they are, or with one of them dropped or moved behind the next.
+public class RtpLoopbackTest {
+
+    private static final int MTU = RtpPacketizer.DEFAULT_MTU;
+    // 25 fps, a whole number of 90 kHz ticks so presentation times survive the round trip
+    private static final long FRAME_US = 40000;
+    private static final long TIMEOUT_MS = 5000;
+    // an aggregation packet with VPS, SPS and PPS, then the IDR slice in three fragments
+    private static final int KEYFRAME_PACKETS = 4;
+    private static final int IDR_SIZE = 3000;
+    // one single NAL unit packet
+    private static final int DELTA_SIZE = 600;
+
+    private static class Unit {
+        byte[] data;
+        long presentationTimeUs;
+        long captureTimeNs;
+        boolean keyframe;
+    }
+
+    private final LinkedBlockingQueue<Unit> units = new LinkedBlockingQueue<>();
+    private final LatencyTracker latency = new LatencyTracker();
+    private DatagramSocket relay;
+    private RtpReceiver receiver;
+    private RtpSender sender;
+    private long startNs;
+
+    @Before
+    public void setUp() throws IOException {
+        startNs = System.nanoTime();
+        relay = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        relay.setSoTimeout((int) TIMEOUT_MS);
+        receiver = new RtpReceiver(0, new RtpDepacketizer.Listener() {
+            @Override
+            public void onAccessUnit(byte[] data, int size, long presentationTimeUs, long captureTimeNs, boolean keyframe) {
+                // rendered straight away, as far as the latency counter can tell
+                latency.onReceived(presentationTimeUs, captureTimeNs);
+                latency.onRendered(presentationTimeUs);
+                Unit unit = new Unit();
+                unit.data = Arrays.copyOf(data, size);
+                unit.presentationTimeUs = presentationTimeUs;
+                unit.captureTimeNs = captureTimeNs;
+                unit.keyframe = keyframe;
+                units.add(unit);
+            }
+        });
+        sender = new RtpSender(new InetSocketAddress("127.0.0.1", relay.getLocalPort()), 0x1234, MTU, 100000000);
+    }
+
+    @After
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+        relay.close();
+    }
+
+    // start code, two byte header with TemporalId 1, then a payload without any zero byte
+    private static void nal(ByteArrayOutputStream out, int type, int size, int seed) {
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(type << 1);
+        out.write(1);
+        for (int i = 2; i < size; i++) out.write(1 + (seed + i) % 250);
+    }
+
+    private static byte[] keyframe(int seed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        nal(out, HevcNal.VPS, 24, seed);
+        nal(out, HevcNal.SPS, 40, seed);
+        nal(out, HevcNal.PPS, 12, seed);
+        nal(out, HevcNal.IDR_W_RADL, IDR_SIZE, seed);
+        return out.toByteArray();
+    }
+
+    private static byte[] delta(int seed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        nal(out, HevcNal.TRAIL_R, DELTA_SIZE, seed);
+        return out.toByteArray();
+    }
+
+    private long captureTimeNs(int frame) {
+        return startNs + frame * 1000L;
+    }
+
+    // frames[i] is sent with presentation time i * FRAME_US
+    private void send(byte[][] frames) {
+        for (int i = 0; i < frames.length; i++) {
+            sender.sendFrame(frames[i], 0, frames[i].length, i * FRAME_US, captureTimeNs(i));
+        }
+    }
+
+    private List<byte[]> collect(int count) throws IOException {
+        List<byte[]> packets = new ArrayList<>();
+        byte[] buffer = new byte[MTU];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        for (int i = 0; i < count; i++) {
+            relay.receive(datagram);
+            packets.add(Arrays.copyOf(buffer, datagram.getLength()));
+        }
+        return packets;
+    }
+
+    private void forward(byte[] packet) throws IOException {
+        relay.send(new DatagramPacket(packet, packet.length,
+                new InetSocketAddress("127.0.0.1", receiver.localPort())));
+    }
+
+    private static int payloadType(byte[] packet) {
+        return HevcNal.type(packet[RtpPacketizer.HEADER_SIZE + RtpPacketizer.EXTENSION_SIZE]);
+    }
+
+    private static int fuHeader(byte[] packet) {
+        return packet[RtpPacketizer.HEADER_SIZE + RtpPacketizer.EXTENSION_SIZE + 2] & 0xFF;
+    }
+
+    private Unit next() throws InterruptedException {
+        Unit unit = units.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("no access unit within " + TIMEOUT_MS + " ms", unit);
+        return unit;
+    }
+
+    private void assertUnit(byte[][] frames, int frame, Unit unit) {
+        assertEquals(frame * FRAME_US, unit.presentationTimeUs);
+        assertEquals(captureTimeNs(frame), unit.captureTimeNs);
+        assertArrayEquals(frames[frame], unit.data);
+    }
+
+    @Test
+    public void everyPacketKindRoundTrips() throws Exception {
+        byte[][] frames = {keyframe(0), delta(1), delta(2), keyframe(3), delta(4)};
+        send(frames);
+        List<byte[]> packets = collect(2 * KEYFRAME_PACKETS + 3);
+        assertEquals(HevcNal.AP, payloadType(packets.get(0)));
+        assertEquals(HevcNal.FU, payloadType(packets.get(1)));
+        assertEquals(0x80 | HevcNal.IDR_W_RADL, fuHeader(packets.get(1)));
+        assertEquals(HevcNal.IDR_W_RADL, fuHeader(packets.get(2)));
+        assertEquals(0x40 | HevcNal.IDR_W_RADL, fuHeader(packets.get(3)));
+        assertEquals(HevcNal.TRAIL_R, payloadType(packets.get(4)));
+        for (byte[] packet : packets) forward(packet);
+
+        for (int i = 0; i < frames.length; i++) {
+            Unit unit = next();
+            assertUnit(frames, i, unit);
+            assertEquals(i % 3 == 0, unit.keyframe);
+        }
+        assertEquals(packets.size(), sender.packetsSent());
+        assertEquals(frames.length, sender.framesSent());
+        assertTrue(sender.packetsPerSecond() > 0);
+        assertEquals(packets.size(), receiver.packetCount());
+        assertEquals(0, receiver.lostCount());
+        assertEquals(0, receiver.discardedCount());
+        assertEquals(frames.length, receiver.unitCount());
+        // capture times are on the same clock, every unit counts
+        assertEquals(frames.length, latency.count());
+        assertTrue(latency.meanUs() > 0);
+        assertTrue(latency.maxUs() >= latency.meanUs());
+    }
+
+    @Test
+    public void droppedPacketDiscardsUntilTheNextKeyframe() throws Exception {
+        byte[][] frames = {keyframe(0), delta(1), delta(2), keyframe(3), delta(4)};
+        send(frames);
+        List<byte[]> packets = collect(2 * KEYFRAME_PACKETS + 3);
+        // frame 1 never arrives, frame 2 follows the gap and cannot be decoded
+        packets.remove(KEYFRAME_PACKETS);
+        for (byte[] packet : packets) forward(packet);
+
+        assertUnit(frames, 0, next());
+        assertUnit(frames, 3, next());
+        assertUnit(frames, 4, next());
+        assertNull(units.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, receiver.lostCount());
+        assertEquals(0, receiver.lateCount());
+        assertEquals(1, receiver.discardedCount());
+        assertEquals(3, receiver.unitCount());
+        assertEquals(3, latency.count());
+    }
+
+    @Test
+    public void reorderedPacketDamagesItsUnit() throws Exception {
+        byte[][] frames = {keyframe(0), delta(1), keyframe(2), delta(3)};
+        send(frames);
+        List<byte[]> packets = collect(2 * KEYFRAME_PACKETS + 2);
+        // the last fragment of the first IDR overtakes the one before it
+        packets.add(2, packets.remove(3));
+        for (byte[] packet : packets) forward(packet);
+
+        assertUnit(frames, 2, next());
+        assertUnit(frames, 3, next());
+        assertNull(units.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(packets.size(), receiver.packetCount());
+        assertEquals(1, receiver.lostCount());
+        assertEquals(1, receiver.lateCount());
+        // the damaged keyframe and the delta frame depending on it
+        assertEquals(2, receiver.discardedCount());
+    }
+}
@@ -0,0 +1,178 @@
+package org.yeshen.hevc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// YuvConverter against a byte at a time reference: every format pair, widths that leave
+// a tail after the eight byte words, buffers starting at odd positions, direct and heap
+// buffers, and frames split into bands on an executor.
+public class YuvConverterTest {
+
+    private static final int[][] SIZES = {{2, 2}, {6, 4}, {8, 2}, {10, 6}, {16, 16}, {18, 10}, {34, 8}, {64, 36}};
+
+    private final Random random = new Random(42);
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void everyFormatPairMatchesReference() {
+        for (int[] size : SIZES) {
+            for (YuvFormat from : YuvFormat.values()) {
+                for (YuvFormat to : YuvFormat.values()) {
+                    byte[] src = frame(size[0], size[1]);
+                    byte[] dst = new byte[src.length];
+                    int written = YuvConverter.convert(src, from, dst, to, size[0], size[1]);
+                    assertEquals(src.length, written);
+                    assertArrayEquals(from + "->" + to + " " + size[0] + "x" + size[1],
+                            reference(src, from, to, size[0], size[1]), dst);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void oddPositionsAreHonouredAndNotMoved() {
+        int width = 18;
+        int height = 10;
+        for (YuvFormat from : YuvFormat.values()) {
+            for (YuvFormat to : YuvFormat.values()) {
+                byte[] frame = frame(width, height);
+                int srcOffset = 3;
+                int dstOffset = 5;
+                ByteBuffer src = ByteBuffer.allocate(frame.length + srcOffset + 7);
+                src.position(srcOffset);
+                src.put(frame).position(srcOffset);
+                ByteBuffer dst = ByteBuffer.allocate(frame.length + dstOffset + 7);
+                byte[] guard = new byte[dst.capacity()];
+                random.nextBytes(guard);
+                dst.put(guard).position(dstOffset);
+
+                YuvConverter.convert(src, from, dst, to, width, height);
+
+                assertEquals(srcOffset, src.position());
+                assertEquals(dstOffset, dst.position());
+                byte[] out = dst.array();
+                byte[] converted = new byte[frame.length];
+                System.arraycopy(out, dstOffset, converted, 0, frame.length);
+                assertArrayEquals(from + "->" + to, reference(frame, from, to, width, height), converted);
+                // nothing written around the frame
+                for (int i = 0; i < dstOffset; i++) assertEquals(guard[i], out[i]);
+                for (int i = dstOffset + frame.length; i < out.length; i++) assertEquals(guard[i], out[i]);
+            }
+        }
+    }
+
+    @Test
+    public void directAndHeapBuffersAgree() {
+        int width = 34;
+        int height = 8;
+        for (YuvFormat from : YuvFormat.values()) {
+            for (YuvFormat to : YuvFormat.values()) {
+                byte[] frame = frame(width, height);
+                byte[] expected = reference(frame, from, to, width, height);
+                for (int mode = 0; mode < 4; mode++) {
+                    ByteBuffer src = (mode & 1) != 0 ? ByteBuffer.allocateDirect(frame.length) : ByteBuffer.allocate(frame.length);
+                    ByteBuffer dst = (mode & 2) != 0 ? ByteBuffer.allocateDirect(frame.length) : ByteBuffer.allocate(frame.length);
+                    src.put(frame).flip();
+                    YuvConverter.convert(src, from, dst, to, width, height);
+                    byte[] converted = new byte[frame.length];
+                    dst.get(converted);
+                    assertArrayEquals(from + "->" + to + " mode " + mode, expected, converted);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bandsMatchReference() {
+        int width = 18;
+        int height = 22;
+        // more bands than chroma rows too
+        for (int bands = 1; bands <= 13; bands++) {
+            YuvConverter converter = new YuvConverter(executor, bands, 0);
+            for (YuvFormat from : YuvFormat.values()) {
+                for (YuvFormat to : YuvFormat.values()) {
+                    byte[] src = frame(width, height);
+                    byte[] dst = new byte[src.length];
+                    converter.convertFrame(src, from, dst, to, width, height);
+                    assertArrayEquals(bands + " bands " + from + "->" + to,
+                            reference(src, from, to, width, height), dst);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void smallFramesStayOnTheCallingThread() {
+        // parallelMinHeight above the frame, an executor that would fail the test if used
+        YuvConverter converter = new YuvConverter(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new AssertionError("band executed for a small frame");
+            }
+        }, 4, 100);
+        byte[] src = frame(16, 16);
+        byte[] dst = new byte[src.length];
+        converter.convertFrame(src, YuvFormat.NV21, dst, YuvFormat.I420, 16, 16);
+        assertArrayEquals(reference(src, YuvFormat.NV21, YuvFormat.I420, 16, 16), dst);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddSizeIsRejected() {
+        YuvConverter.convert(new byte[64], YuvFormat.NV21, new byte[64], YuvFormat.NV12, 5, 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortBufferIsRejected() {
+        YuvConverter.convert(new byte[23], YuvFormat.NV21, new byte[24], YuvFormat.NV12, 4, 4);
+    }
+
+    private byte[] frame(int width, int height) {
+        byte[] frame = new byte[YuvFormat.frameSize(width, height)];
+        random.nextBytes(frame);
+        return frame;
+    }
+
+    // one sample at a time, straight from the layouts YuvFormat describes
+    private static byte[] reference(byte[] src, YuvFormat from, YuvFormat to, int width, int height) {
+        byte[] dst = new byte[src.length];
+        int lumaSize = width * height;
+        System.arraycopy(src, 0, dst, 0, lumaSize);
+        int chroma = lumaSize / 4;
+        for (int i = 0; i < chroma; i++) {
+            dst[uIndex(to, i, lumaSize)] = src[uIndex(from, i, lumaSize)];
+            dst[vIndex(to, i, lumaSize)] = src[vIndex(from, i, lumaSize)];
+        }
+        return dst;
+    }
+
+    // where chroma sample i (row major over the half size planes) of U is stored
+    private static int uIndex(YuvFormat format, int i, int lumaSize) {
+        if (format.semiPlanar) return lumaSize + 2 * i + (format.uFirst ? 0 : 1);
+        return lumaSize + (format.uFirst ? 0 : lumaSize / 4) + i;
+    }
+
+    private static int vIndex(YuvFormat format, int i, int lumaSize) {
+        if (format.semiPlanar) return lumaSize + 2 * i + (format.uFirst ? 1 : 0);
+        return lumaSize + (format.uFirst ? lumaSize / 4 : 0) + i;
+    }
+}
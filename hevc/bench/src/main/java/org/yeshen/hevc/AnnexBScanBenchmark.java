@@ -0,0 +1,102 @@
+package org.yeshen.hevc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// AnnexBScanner over 16 MB of synthetic stream, reported per run so the score
+// divides into a scan rate. nalBytes is the average NAL size: small NAL units
+// mean many start codes, large ones mean long runs of the word-at-a-time search.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnnexBScanBenchmark {
+
+    private static final int STREAM_BYTES = 16 * 1024 * 1024;
+
+    @Param({"256", "16384"})
+    public int nalBytes;
+
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private final AnnexBScanner scanner = new AnnexBScanner();
+
+    @Setup
+    public void setup() {
+        byte[] stream = stream(new Random(1), nalBytes);
+        heap = ByteBuffer.wrap(stream);
+        direct = ByteBuffer.allocateDirect(stream.length);
+        direct.put(stream).flip();
+    }
+
+    // random payloads with emulation prevention applied, so zeros show up as often as
+    // in real slices but never form a start code
+    private static byte[] stream(Random random, int nalBytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(STREAM_BYTES + 1024);
+        while (out.size() < STREAM_BYTES) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(HevcNal.TRAIL_R << 1);
+            out.write(1);
+            int size = 1 + random.nextInt(2 * nalBytes);
+            int zeros = 0;
+            for (int i = 0; i < size; i++) {
+                int b = random.nextInt(256);
+                if (zeros == 2 && b <= 3) {
+                    out.write(3);
+                    zeros = 0;
+                }
+                out.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            // rbsp trailing bits
+            out.write(0x80);
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public long heap(final Blackhole blackhole) {
+        return scanner.scan(heap.duplicate(), new AnnexBScanner.Listener() {
+            @Override
+            public void onNal(ByteBuffer buffer, int offset, int size, int type, long streamOffset) {
+                blackhole.consume(size);
+            }
+        });
+    }
+
+    @Benchmark
+    public long direct(final Blackhole blackhole) {
+        return scanner.scan(direct.duplicate(), new AnnexBScanner.Listener() {
+            @Override
+            public void onNal(ByteBuffer buffer, int offset, int size, int type, long streamOffset) {
+                blackhole.consume(size);
+            }
+        });
+    }
+}
@@ -0,0 +1,67 @@
+package org.yeshen.hevc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Frames handed from a camera-like thread to an encoder-like thread through
+// FrameChannel, the cost of the lock and the wakeups without any work on either side.
+// The score is per side, offers/s for the producer and polls/s for the consumer.
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameHandoffBenchmark {
+
+    // short enough that a side left alone at the end of an iteration gets out quickly
+    private static final long TIMEOUT_US = 10000;
+
+    @Param({"1", "3"})
+    public int capacity;
+
+    // FrameChannel.DropPolicy names
+    @Param({"DROP_OLDEST", "BLOCK"})
+    public String policy;
+
+    private FrameChannel channel;
+    private final byte[] frame = new byte[1];
+
+    @Setup
+    public void setup() {
+        channel = new FrameChannel(capacity, FrameChannel.DropPolicy.valueOf(policy), TIMEOUT_US, null);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean offer() {
+        return channel.offer(frame);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public byte[] poll() {
+        return channel.poll(TIMEOUT_US);
+    }
+}
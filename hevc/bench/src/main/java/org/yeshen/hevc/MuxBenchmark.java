@@ -0,0 +1,125 @@
+package org.yeshen.hevc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Mp4Muxer turning one 30 frame GOP of Annex-B samples into a fragment on disk,
+// scored per sample. The file is started over once it passes SEGMENT_BYTES, the way
+// RecordingWriter rotates segments, so the run does not depend on free disk space.
+// Writes go to the page cache; this measures the muxer, not the storage.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MuxBenchmark {
+
+    private static final int GOP = 30;
+    private static final int FRAME_RATE = 30;
+    private static final long SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    // main profile 1280x720 parameter sets
+    private static final byte[] VPS = {0x40, 0x01, 0x0c, 0x01, (byte) 0xff};
+    private static final byte[] SPS = {
+            0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00, 0x00, 0x03, 0x00, 0x00, 0x03,
+            0x00, 0x5d, (byte) 0xa0, 0x02, (byte) 0x80, (byte) 0x80, 0x2d, 0x17, 0x13, (byte) 0xc0};
+    private static final byte[] PPS = {0x44, 0x01, (byte) 0xc1, 0x72};
+
+    // 0 or the flash page size RecordingWriter pads fragments to
+    @Param({"0", "4096"})
+    public int alignment;
+
+    private final ByteBuffer[] samples = new ByteBuffer[GOP];
+    private ByteBuffer config;
+    private File file;
+    private Mp4Muxer muxer;
+    private RandomAccessFile output;
+    private long presentationTimeUs;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(START_CODE);
+        out.write(VPS);
+        out.write(START_CODE);
+        out.write(SPS);
+        out.write(START_CODE);
+        out.write(PPS);
+        config = ByteBuffer.wrap(out.toByteArray());
+        for (int i = 0; i < GOP; i++) {
+            // ~60 KB IDR, ~6 KB P frames, about 1.6 Mbps
+            samples[i] = sample(random, i == 0 ? HevcNal.IDR_W_RADL : HevcNal.TRAIL_R, i == 0 ? 60000 : 6000);
+        }
+        file = File.createTempFile("mux", ".mp4");
+        open();
+    }
+
+    private static ByteBuffer sample(Random random, int type, int size) {
+        byte[] payload = new byte[size];
+        random.nextBytes(payload);
+        // no zero bytes, so no emulation prevention is needed
+        for (int i = 0; i < size; i++) {
+            if (payload[i] == 0) payload[i] = 1;
+        }
+        ByteBuffer sample = ByteBuffer.allocateDirect(START_CODE.length + 2 + size);
+        sample.put(START_CODE).put((byte) (type << 1)).put((byte) 1).put(payload);
+        sample.flip();
+        return sample;
+    }
+
+    private void open() throws IOException {
+        output = new RandomAccessFile(file, "rw");
+        output.setLength(0);
+        muxer = new Mp4Muxer(output.getChannel(), GOP, FRAME_RATE, false);
+        muxer.setWriteAlignment(alignment);
+        muxer.writeConfig(config.duplicate(), 1280, 720);
+        presentationTimeUs = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GOP)
+    public void gop() throws IOException {
+        for (int i = 0; i < GOP; i++) {
+            muxer.writeSample(samples[i].duplicate(), presentationTimeUs, i == 0);
+            presentationTimeUs += 1000000 / FRAME_RATE;
+        }
+        muxer.flush();
+        if (output.getChannel().position() >= SEGMENT_BYTES) {
+            muxer.close();
+            open();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        muxer.close();
+        if (!file.delete()) file.deleteOnExit();
+    }
+}
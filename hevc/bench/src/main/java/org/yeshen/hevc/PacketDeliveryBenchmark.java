@@ -0,0 +1,75 @@
+package org.yeshen.hevc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// The three ways an encoded frame can reach a consumer: a fresh byte[] per frame
+// (what OnCodeFrame used to do), one copy into an EncodedPacketPool buffer (what
+// PacketBus and RecordingWriter do), and sharing the packet by reference.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketDeliveryBenchmark {
+
+    // a P frame and an IDR at 720p and the encoder's bitrate
+    @Param({"8192", "131072"})
+    public int size;
+
+    private EncodedPacket packet;
+    private final EncodedPacketPool pool = new EncodedPacketPool(4096, EncodedPacketPool.DEFAULT_DEPTH);
+
+    @Setup
+    public void setup() {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(size);
+        direct.put(data).flip();
+        // stands for the codec's output buffer
+        packet = EncodedPacket.wrap(null, direct, 0, EncodedPacket.FLAG_KEY_FRAME, null);
+    }
+
+    @Benchmark
+    public byte[] byteArrayCopy() {
+        byte[] copy = new byte[packet.size()];
+        packet.copyTo(copy, 0);
+        return copy;
+    }
+
+    @Benchmark
+    public int pooledCopy() {
+        EncodedPacket copy = pool.copyOf(packet);
+        int size = copy.size();
+        copy.release();
+        return size;
+    }
+
+    @Benchmark
+    public int shared() {
+        EncodedPacket shared = packet.retain();
+        int size = shared.size();
+        shared.release();
+        return size;
+    }
+}
@@ -0,0 +1,99 @@
+package org.yeshen.hevc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// One camera frame through YuvConverter, heap arrays as the camera hands them over and
+// direct buffers as MediaCodec's input buffers are. banded() splits the direct frame
+// into one band per core (at least two, so the band path is always taken), converted on
+// a pool next to the calling thread as the scaler pool in MainActivity does.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvConvertBenchmark {
+
+    // width x height
+    @Param({"1280x720", "1920x1080", "3840x2160"})
+    public String size;
+
+    // YuvFormat names; the generated benchmark code is outside the package and can't see the enum
+    @Param({"NV12", "I420"})
+    public String format;
+
+    private YuvFormat target;
+    private int width;
+    private int height;
+    private ExecutorService pool;
+    private YuvConverter banded;
+
+    private byte[] src;
+    private byte[] dst;
+    private ByteBuffer directSrc;
+    private ByteBuffer directDst;
+
+    @Setup
+    public void setup() {
+        target = YuvFormat.valueOf(format);
+        String[] dimensions = size.split("x");
+        width = Integer.parseInt(dimensions[0]);
+        height = Integer.parseInt(dimensions[1]);
+        int frameSize = YuvFormat.frameSize(width, height);
+        src = new byte[frameSize];
+        new Random(1).nextBytes(src);
+        dst = new byte[frameSize];
+        directSrc = ByteBuffer.allocateDirect(frameSize);
+        directSrc.put(src).flip();
+        directDst = ByteBuffer.allocateDirect(frameSize);
+        int bands = Math.max(2, Runtime.getRuntime().availableProcessors());
+        pool = Executors.newFixedThreadPool(bands - 1);
+        banded = new YuvConverter(pool, bands, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public byte[] heap() {
+        YuvConverter.convert(src, YuvFormat.NV21, dst, target, width, height);
+        return dst;
+    }
+
+    @Benchmark
+    public ByteBuffer direct() {
+        YuvConverter.convert(directSrc, YuvFormat.NV21, directDst, target, width, height);
+        return directDst;
+    }
+
+    @Benchmark
+    public ByteBuffer banded() {
+        banded.convertFrame(directSrc, YuvFormat.NV21, directDst, target, width, height);
+        return directDst;
+    }
+}
@@ -0,0 +1,35 @@
+package android.app;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.view.View;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Only compiled, the activities don't run here.
+public class Activity extends Context {
+
+    protected void onCreate(Bundle savedInstanceState) {
+    }
+
+    protected void onResume() {
+    }
+
+    protected void onPause() {
+    }
+
+    protected void onDestroy() {
+    }
+
+    public void setContentView(int layoutResID) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public <T extends View> T findViewById(int id) {
+        throw new RuntimeException("Stub!");
+    }
+}
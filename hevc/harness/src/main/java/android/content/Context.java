@@ -0,0 +1,29 @@
+package android.content;
+
+import android.content.res.Resources;
+import java.io.File;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class Context {
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public File getCacheDir() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public File getFilesDir() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public Resources getResources() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,12 @@
+package android.content.res;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class Configuration {
+
+    public float fontScale = 1f;
+}
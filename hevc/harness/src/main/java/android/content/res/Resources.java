@@ -0,0 +1,14 @@
+package android.content.res;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class Resources {
+
+    public Configuration getConfiguration() {
+        return new Configuration();
+    }
+}
@@ -0,0 +1,27 @@
+package android.graphics;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Only compiled, nothing is rasterized here.
+public final class Bitmap {
+
+    public enum Config {
+        ALPHA_8, RGB_565, ARGB_8888
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void eraseColor(int color) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void recycle() {
+        throw new RuntimeException("Stub!");
+    }
+}
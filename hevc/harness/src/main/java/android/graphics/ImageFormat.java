@@ -0,0 +1,16 @@
+package android.graphics;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class ImageFormat {
+
+    public static final int NV21 = 17;
+
+    public static int getBitsPerPixel(int format) {
+        return format == NV21 ? 12 : -1;
+    }
+}
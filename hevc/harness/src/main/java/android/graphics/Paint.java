@@ -0,0 +1,26 @@
+package android.graphics;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class Paint {
+
+    public enum Align {
+        LEFT, CENTER, RIGHT
+    }
+
+    public void setAntiAlias(boolean antiAlias) {
+    }
+
+    public void setColor(int color) {
+    }
+
+    public void setTextSize(float textSize) {
+    }
+
+    public void setTextAlign(Align align) {
+    }
+}
@@ -0,0 +1,16 @@
+package android.graphics;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class SurfaceTexture {
+
+    public SurfaceTexture(int texName) {
+    }
+
+    public void release() {
+    }
+}
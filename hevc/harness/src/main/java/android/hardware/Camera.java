@@ -0,0 +1,71 @@
+package android.hardware;
+
+import android.view.SurfaceHolder;
+import java.io.IOException;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Only compiled, there is no camera here.
+public class Camera {
+
+    public interface PreviewCallback {
+        void onPreviewFrame(byte[] data, Camera camera);
+    }
+
+    public class Parameters {
+
+        public void setPreviewFormat(int format) {
+        }
+
+        public void setPreviewSize(int width, int height) {
+        }
+    }
+
+    public static Camera open(int cameraId) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public Parameters getParameters() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setParameters(Parameters params) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setDisplayOrientation(int degrees) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setPreviewDisplay(SurfaceHolder holder) throws IOException {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setPreviewCallback(PreviewCallback cb) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setPreviewCallbackWithBuffer(PreviewCallback cb) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void addCallbackBuffer(byte[] callbackBuffer) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void startPreview() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void stopPreview() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void release() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,184 @@
+package android.media;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// The constants and BufferInfo are real, the codec itself is FakeCodec's job.
+public class MediaCodec {
+
+    public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+    public static final int BUFFER_FLAG_KEY_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    public static final int CONFIGURE_FLAG_ENCODE = 1;
+
+    public static final String PARAMETER_KEY_VIDEO_BITRATE = "video-bitrate";
+    public static final String PARAMETER_KEY_REQUEST_SYNC_FRAME = "request-sync";
+
+    public static final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+
+    public static class CodecException extends IllegalStateException {
+
+        public CodecException(String message) {
+            super(message);
+        }
+
+        public boolean isTransient() {
+            return false;
+        }
+
+        public boolean isRecoverable() {
+            return false;
+        }
+
+        public String getDiagnosticInfo() {
+            return getMessage();
+        }
+    }
+
+    public abstract static class Callback {
+
+        public abstract void onInputBufferAvailable(MediaCodec codec, int index);
+
+        public abstract void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info);
+
+        public abstract void onError(MediaCodec codec, CodecException e);
+
+        public abstract void onOutputFormatChanged(MediaCodec codec, MediaFormat format);
+    }
+
+    public static MediaCodec createEncoderByType(String type) throws IOException {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static MediaCodec createDecoderByType(String type) throws IOException {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static MediaCodec createByCodecName(String name) throws IOException {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void configure(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setCallback(Callback cb) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setCallback(Callback cb, Handler handler) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public Surface createInputSurface() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void start() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void stop() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void flush() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void reset() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void release() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public ByteBuffer[] getInputBuffers() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public ByteBuffer[] getOutputBuffers() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public ByteBuffer getInputBuffer(int index) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public ByteBuffer getOutputBuffer(int index) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int dequeueInputBuffer(long timeoutUs) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void releaseOutputBuffer(int index, boolean render) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void signalEndOfInputStream() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public MediaFormat getInputFormat() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public MediaFormat getOutputFormat() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setParameters(Bundle params) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public String getName() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public MediaCodecInfo getCodecInfo() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,75 @@
+package android.media;
+
+import android.util.Range;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class MediaCodecInfo {
+
+    public static final class CodecProfileLevel {
+        public static final int HEVCProfileMain = 1;
+
+        public int profile;
+        public int level;
+    }
+
+    public static final class CodecCapabilities {
+        public static final int COLOR_FormatYUV420Planar = 19;
+        public static final int COLOR_FormatYUV420SemiPlanar = 21;
+        public static final int COLOR_FormatSurface = 0x7F000789;
+        public static final int COLOR_FormatYUV420Flexible = 0x7F420888;
+
+        public int[] colorFormats = new int[0];
+        public CodecProfileLevel[] profileLevels = new CodecProfileLevel[0];
+
+        public int getMaxSupportedInstances() {
+            throw new RuntimeException("Stub!");
+        }
+
+        public VideoCapabilities getVideoCapabilities() {
+            throw new RuntimeException("Stub!");
+        }
+
+        public EncoderCapabilities getEncoderCapabilities() {
+            throw new RuntimeException("Stub!");
+        }
+    }
+
+    public static final class VideoCapabilities {
+
+        public Range<Integer> getBitrateRange() {
+            throw new RuntimeException("Stub!");
+        }
+
+        public Range<Integer> getSupportedWidths() {
+            throw new RuntimeException("Stub!");
+        }
+
+        public Range<Integer> getSupportedHeights() {
+            throw new RuntimeException("Stub!");
+        }
+    }
+
+    public static final class EncoderCapabilities {
+    }
+
+    public String getName() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public boolean isEncoder() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public String[] getSupportedTypes() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public CodecCapabilities getCapabilitiesForType(String type) {
+        throw new RuntimeException("Stub!");
+    }
+}
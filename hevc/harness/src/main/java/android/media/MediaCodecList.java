@@ -0,0 +1,29 @@
+package android.media;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// No codecs on a JVM, CodecCatalog.probe() finds an empty list.
+public class MediaCodecList {
+
+    public static final int REGULAR_CODECS = 0;
+    public static final int ALL_CODECS = 1;
+
+    public MediaCodecList(int kind) {
+    }
+
+    public MediaCodecInfo[] getCodecInfos() {
+        return new MediaCodecInfo[0];
+    }
+
+    public static int getCodecCount() {
+        return 0;
+    }
+
+    public static MediaCodecInfo getCodecInfoAt(int index) {
+        throw new IllegalArgumentException();
+    }
+}
@@ -0,0 +1,56 @@
+package android.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Only compiled, Mp4SampleReader reads the files here.
+public class MediaExtractor {
+
+    public static final int SEEK_TO_PREVIOUS_SYNC = 0;
+
+    public void setDataSource(String path) throws IOException {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int getTrackCount() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public MediaFormat getTrackFormat(int index) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void selectTrack(int index) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void seekTo(long timeUs, int mode) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int readSampleData(ByteBuffer byteBuf, int offset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public long getSampleTime() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int getSampleFlags() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public boolean advance() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void release() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,90 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// A map like the real one, FakeCodec hands these around.
+public class MediaFormat {
+
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_COLOR_FORMAT = "color-format";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_BITRATE_MODE = "bitrate-mode";
+    public static final String KEY_FRAME_RATE = "frame-rate";
+    public static final String KEY_I_FRAME_INTERVAL = "i-frame-interval";
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+    public static final String KEY_DURATION = "durationUs";
+    public static final String KEY_PROFILE = "profile";
+    public static final String KEY_LEVEL = "level";
+    public static final String KEY_PRIORITY = "priority";
+    public static final String KEY_OPERATING_RATE = "operating-rate";
+    public static final String KEY_LOW_LATENCY = "low-latency";
+
+    private final Map<String, Object> map = new HashMap<>();
+
+    public static MediaFormat createVideoFormat(String mime, int width, int height) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    public boolean containsKey(String name) {
+        return map.containsKey(name);
+    }
+
+    public int getInteger(String name) {
+        return (Integer) map.get(name);
+    }
+
+    public long getLong(String name) {
+        return (Long) map.get(name);
+    }
+
+    public float getFloat(String name) {
+        return (Float) map.get(name);
+    }
+
+    public String getString(String name) {
+        return (String) map.get(name);
+    }
+
+    public ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) map.get(name);
+    }
+
+    public void setInteger(String name, int value) {
+        map.put(name, value);
+    }
+
+    public void setLong(String name, long value) {
+        map.put(name, value);
+    }
+
+    public void setFloat(String name, float value) {
+        map.put(name, value);
+    }
+
+    public void setString(String name, String value) {
+        map.put(name, value);
+    }
+
+    public void setByteBuffer(String name, ByteBuffer bytes) {
+        map.put(name, bytes);
+    }
+
+    @Override
+    public String toString() {
+        return map.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package android.opengl;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Only compiled, there is no EGL here.
+public class EGL14 {
+
+    public static final int EGL_DEFAULT_DISPLAY = 0;
+    public static EGLDisplay EGL_NO_DISPLAY;
+    public static EGLContext EGL_NO_CONTEXT;
+    public static EGLSurface EGL_NO_SURFACE;
+
+    public static final int EGL_SUCCESS = 0x3000;
+    public static final int EGL_ALPHA_SIZE = 0x3021;
+    public static final int EGL_BLUE_SIZE = 0x3022;
+    public static final int EGL_GREEN_SIZE = 0x3023;
+    public static final int EGL_RED_SIZE = 0x3024;
+    public static final int EGL_HEIGHT = 0x3056;
+    public static final int EGL_WIDTH = 0x3057;
+    public static final int EGL_NONE = 0x3038;
+    public static final int EGL_RENDERABLE_TYPE = 0x3040;
+    public static final int EGL_OPENGL_ES2_BIT = 0x0004;
+    public static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+    public static EGLDisplay eglGetDisplay(int displayId) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean eglInitialize(EGLDisplay dpy, int[] major, int majorOffset, int[] minor, int minorOffset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean eglChooseConfig(EGLDisplay dpy, int[] attribList, int attribListOffset, EGLConfig[] configs,
+                                          int configsOffset, int configSize, int[] numConfig, int numConfigOffset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static EGLContext eglCreateContext(EGLDisplay dpy, EGLConfig config, EGLContext shareContext,
+                                              int[] attribList, int offset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static EGLSurface eglCreateWindowSurface(EGLDisplay dpy, EGLConfig config, Object win,
+                                                    int[] attribList, int offset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean eglQuerySurface(EGLDisplay dpy, EGLSurface surface, int attribute, int[] value, int offset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean eglMakeCurrent(EGLDisplay dpy, EGLSurface draw, EGLSurface read, EGLContext ctx) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean eglSwapBuffers(EGLDisplay dpy, EGLSurface surface) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean eglDestroySurface(EGLDisplay dpy, EGLSurface surface) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean eglDestroyContext(EGLDisplay dpy, EGLContext ctx) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean eglReleaseThread() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean eglTerminate(EGLDisplay dpy) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static int eglGetError() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,16 @@
+package android.opengl;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class EGLExt {
+
+    public static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    public static boolean eglPresentationTimeANDROID(EGLDisplay dpy, EGLSurface sur, long time) {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,134 @@
+package android.opengl;
+
+import java.nio.Buffer;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class GLES20 {
+
+    public static final int GL_ONE = 0x0001;
+    public static final int GL_TRIANGLE_STRIP = 0x0005;
+    public static final int GL_ONE_MINUS_SRC_ALPHA = 0x0303;
+    public static final int GL_BLEND = 0x0BE2;
+    public static final int GL_TEXTURE_2D = 0x0DE1;
+    public static final int GL_FLOAT = 0x1406;
+    public static final int GL_LINEAR = 0x2601;
+    public static final int GL_TEXTURE_MAG_FILTER = 0x2800;
+    public static final int GL_TEXTURE_MIN_FILTER = 0x2801;
+    public static final int GL_TEXTURE_WRAP_S = 0x2802;
+    public static final int GL_TEXTURE_WRAP_T = 0x2803;
+    public static final int GL_COLOR_BUFFER_BIT = 0x4000;
+    public static final int GL_CLAMP_TO_EDGE = 0x812F;
+    public static final int GL_FRAGMENT_SHADER = 0x8B30;
+    public static final int GL_VERTEX_SHADER = 0x8B31;
+    public static final int GL_COMPILE_STATUS = 0x8B81;
+    public static final int GL_LINK_STATUS = 0x8B82;
+
+    public static int glCreateShader(int type) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glShaderSource(int shader, String string) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glCompileShader(int shader) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static String glGetShaderInfoLog(int shader) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glDeleteShader(int shader) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static int glCreateProgram() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glAttachShader(int program, int shader) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glLinkProgram(int program) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static String glGetProgramInfoLog(int program) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glUseProgram(int program) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glDeleteProgram(int program) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static int glGetAttribLocation(int program, String name) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glEnableVertexAttribArray(int index) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride, Buffer ptr) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glGenTextures(int n, int[] textures, int offset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glDeleteTextures(int n, int[] textures, int offset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glBindTexture(int target, int texture) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glTexParameteri(int target, int pname, int param) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glViewport(int x, int y, int width, int height) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glClearColor(float red, float green, float blue, float alpha) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glClear(int mask) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glEnable(int cap) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glBlendFunc(int sfactor, int dfactor) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void glDrawArrays(int mode, int first, int count) {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,20 @@
+package android.opengl;
+
+import android.graphics.Bitmap;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public final class GLUtils {
+
+    public static void texImage2D(int target, int level, Bitmap bitmap, int border) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static void texSubImage2D(int target, int level, int xoffset, int yoffset, Bitmap bitmap) {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,28 @@
+package android.os;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Reports the newest API the app targets, so the code paths of current devices run.
+public class Build {
+
+    public static final String FINGERPRINT = "jvm";
+
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.P;
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN_MR2 = 18;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int LOLLIPOP_MR1 = 22;
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int O = 26;
+        public static final int P = 28;
+    }
+}
@@ -0,0 +1,46 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class Bundle {
+
+    private final Map<String, Object> map = new HashMap<>();
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    public Set<String> keySet() {
+        return map.keySet();
+    }
+
+    public void putInt(String key, int value) {
+        map.put(key, value);
+    }
+
+    public int getInt(String key) {
+        return getInt(key, 0);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Object value = map.get(key);
+        return value == null ? defaultValue : (Integer) value;
+    }
+
+    public void putLong(String key, long value) {
+        map.put(key, value);
+    }
+
+    public long getLong(String key) {
+        Object value = map.get(key);
+        return value == null ? 0 : (Long) value;
+    }
+}
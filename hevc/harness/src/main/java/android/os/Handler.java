@@ -0,0 +1,38 @@
+package android.os;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Posts runnables to a Looper, enough of android.os.Handler for the codec drivers on the JVM.
+public class Handler {
+
+    private final Looper looper;
+
+    public Handler() {
+        this(Looper.myLooper());
+    }
+
+    public Handler(Looper looper) {
+        this.looper = looper;
+    }
+
+    public boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public boolean postDelayed(Runnable r, long delayMillis) {
+        if (looper == null) return false;
+        return looper.enqueue(this, r, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+    }
+
+    public Looper getLooper() {
+        return looper;
+    }
+
+    public void removeCallbacksAndMessages(Object token) {
+        if (looper != null) looper.remove(this);
+    }
+}
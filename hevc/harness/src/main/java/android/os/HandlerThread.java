@@ -0,0 +1,58 @@
+package android.os;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// A thread running a Looper, like android.os.HandlerThread.
+public class HandlerThread extends Thread {
+
+    private Looper looper;
+
+    public HandlerThread(String name) {
+        super(name);
+    }
+
+    public HandlerThread(String name, int priority) {
+        super(name);
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        synchronized (this) {
+            looper = Looper.myLooper();
+            notifyAll();
+        }
+        Looper.loop();
+    }
+
+    public synchronized Looper getLooper() {
+        if (!isAlive()) return null;
+        while (looper == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return looper;
+    }
+
+    public boolean quit() {
+        Looper current = getLooper();
+        if (current == null) return false;
+        current.quit();
+        return true;
+    }
+
+    public boolean quitSafely() {
+        Looper current = getLooper();
+        if (current == null) return false;
+        current.quitSafely();
+        return true;
+    }
+}
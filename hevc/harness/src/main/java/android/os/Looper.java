@@ -0,0 +1,129 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// A message loop on one thread, enough of android.os.Looper for Handler.post on the JVM.
+public final class Looper {
+
+    private static final ThreadLocal<Looper> LOOPERS = new ThreadLocal<>();
+    private static final Looper MAIN = new Looper(null);
+
+    static final class Message {
+        final Handler target;
+        final Runnable runnable;
+        final long whenMs;
+        final long sequence;
+
+        Message(Handler target, Runnable runnable, long whenMs, long sequence) {
+            this.target = target;
+            this.runnable = runnable;
+            this.whenMs = whenMs;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Thread thread;
+    private final List<Message> queue = new ArrayList<>();
+    private long sequence;
+    private boolean quitting;
+    private boolean safely;
+
+    private Looper(Thread thread) {
+        this.thread = thread;
+    }
+
+    public static void prepare() {
+        if (LOOPERS.get() != null) throw new RuntimeException("Only one Looper may be created per thread");
+        LOOPERS.set(new Looper(Thread.currentThread()));
+    }
+
+    public static Looper myLooper() {
+        return LOOPERS.get();
+    }
+
+    public static Looper getMainLooper() {
+        return MAIN;
+    }
+
+    public static void loop() {
+        Looper me = myLooper();
+        if (me == null) throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        while (true) {
+            Message message = me.next();
+            if (message == null) return;
+            message.runnable.run();
+        }
+    }
+
+    public Thread getThread() {
+        return thread;
+    }
+
+    public void quit() {
+        synchronized (queue) {
+            quitting = true;
+            queue.notifyAll();
+        }
+    }
+
+    public void quitSafely() {
+        synchronized (queue) {
+            quitting = true;
+            safely = true;
+            queue.notifyAll();
+        }
+    }
+
+    boolean enqueue(Handler target, Runnable runnable, long whenMs) {
+        synchronized (queue) {
+            if (quitting) return false;
+            queue.add(new Message(target, runnable, whenMs, sequence++));
+            queue.notifyAll();
+            return true;
+        }
+    }
+
+    void remove(Handler target) {
+        synchronized (queue) {
+            for (Iterator<Message> it = queue.iterator(); it.hasNext(); ) {
+                if (it.next().target == target) it.remove();
+            }
+        }
+    }
+
+    private Message next() {
+        synchronized (queue) {
+            while (true) {
+                long now = SystemClock.uptimeMillis();
+                Message due = null;
+                long earliest = Long.MAX_VALUE;
+                for (Message message : queue) {
+                    if (message.whenMs <= now && (due == null || message.whenMs < due.whenMs
+                            || (message.whenMs == due.whenMs && message.sequence < due.sequence))) {
+                        due = message;
+                    }
+                    earliest = Math.min(earliest, message.whenMs);
+                }
+                if (quitting && (!safely || due == null)) return null;
+                if (due != null) {
+                    queue.remove(due);
+                    return due;
+                }
+                try {
+                    if (earliest == Long.MAX_VALUE) queue.wait();
+                    else queue.wait(Math.max(1, earliest - now));
+                } catch (InterruptedException e) {
+                    // a looper thread only ends by quit()
+                }
+            }
+        }
+    }
+}
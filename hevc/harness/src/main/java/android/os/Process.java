@@ -0,0 +1,18 @@
+package android.os;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Thread priorities are left to the JVM.
+public class Process {
+
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    public static final int THREAD_PRIORITY_URGENT_DISPLAY = -8;
+    public static final int THREAD_PRIORITY_VIDEO = -10;
+
+    public static void setThreadPriority(int priority) {
+    }
+}
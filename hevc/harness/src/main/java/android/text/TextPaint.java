@@ -0,0 +1,12 @@
+package android.text;
+
+import android.graphics.Paint;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class TextPaint extends Paint {
+}
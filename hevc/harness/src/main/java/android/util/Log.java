@@ -0,0 +1,45 @@
+package android.util;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Debug and info logging is dropped, errors go to stderr.
+public final class Log {
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return println(tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(tag, msg, tr);
+    }
+
+    private static int println(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg);
+        if (tr != null) tr.printStackTrace();
+        return 0;
+    }
+}
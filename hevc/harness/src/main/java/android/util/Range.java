@@ -0,0 +1,26 @@
+package android.util;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public final class Range<T extends Comparable<? super T>> {
+
+    private final T lower;
+    private final T upper;
+
+    public Range(T lower, T upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    public T getLower() {
+        return lower;
+    }
+
+    public T getUpper() {
+        return upper;
+    }
+}
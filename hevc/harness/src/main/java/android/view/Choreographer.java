@@ -0,0 +1,26 @@
+package android.view;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class Choreographer {
+
+    public interface FrameCallback {
+        void doFrame(long frameTimeNanos);
+    }
+
+    public static Choreographer getInstance() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void postFrameCallback(FrameCallback callback) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void removeFrameCallback(FrameCallback callback) {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,21 @@
+package android.view;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public final class MotionEvent {
+
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+
+    public int getAction() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public float getX() {
+        throw new RuntimeException("Stub!");
+    }
+}
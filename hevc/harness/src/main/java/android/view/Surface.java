@@ -0,0 +1,42 @@
+package android.view;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// A surface nothing shows; FakeCodec connects a decoder's to an encoder's input surface.
+public class Surface {
+
+    private volatile boolean released;
+
+    public Surface() {
+    }
+
+    public Surface(SurfaceTexture surfaceTexture) {
+    }
+
+    public boolean isValid() {
+        return !released;
+    }
+
+    public Canvas lockCanvas(Rect inOutDirty) {
+        return new Canvas();
+    }
+
+    public Canvas lockHardwareCanvas() {
+        return new Canvas();
+    }
+
+    public void unlockCanvasAndPost(Canvas canvas) {
+    }
+
+    public void release() {
+        released = true;
+    }
+}
@@ -0,0 +1,22 @@
+package android.view;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public interface SurfaceHolder {
+
+    interface Callback {
+        void surfaceCreated(SurfaceHolder holder);
+
+        void surfaceChanged(SurfaceHolder holder, int format, int width, int height);
+
+        void surfaceDestroyed(SurfaceHolder holder);
+    }
+
+    void addCallback(Callback callback);
+
+    Surface getSurface();
+}
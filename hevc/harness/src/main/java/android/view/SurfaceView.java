@@ -0,0 +1,14 @@
+package android.view;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class SurfaceView extends View {
+
+    public SurfaceHolder getHolder() {
+        throw new RuntimeException("Stub!");
+    }
+}
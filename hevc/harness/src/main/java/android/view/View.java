@@ -0,0 +1,34 @@
+package android.view;
+
+import android.content.res.Resources;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+public class View {
+
+    public interface OnTouchListener {
+        boolean onTouch(View v, MotionEvent event);
+    }
+
+    public void setOnTouchListener(OnTouchListener listener) {
+    }
+
+    public boolean performClick() {
+        return false;
+    }
+
+    public int getWidth() {
+        return 0;
+    }
+
+    public void bringToFront() {
+    }
+
+    public Resources getResources() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,20 @@
+package org.yeshen.hevc;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// What aapt generates for the app, the ids the activities use; they only compile here.
+public final class R {
+
+    public static final class layout {
+        public static final int activity_main = 0x7f0b0000;
+    }
+
+    public static final class id {
+        public static final int preview = 0x7f080000;
+        public static final int echo_view = 0x7f080001;
+    }
+}
@@ -0,0 +1,301 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Both CodecDriver implementations over a pass-through FakeCodec: samples come out in
+// order, an output buffer stays the callback's until it is released, flush() drops what
+// was in flight and invalidates the indices handed out, and nothing is delivered once
+// release() returned. FakeCodec posts its callbacks to the looper of the thread that
+// created it, so the async driver runs them on its handler thread as on a device.
+@RunWith(Parameterized.class)
+public class CodecDriverTest {
+
+    private static final int BUFFER_COUNT = 4;
+    private static final int BUFFER_SIZE = 1024;
+    private static final long TIMEOUT_US = 1000000;
+    private static final long QUIET_MS = 200;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> drivers() {
+        return Arrays.asList(new Object[]{"polling"}, new Object[]{"async"});
+    }
+
+    private static final class Output {
+        final int index;
+        final long presentationTimeUs;
+        final int flags;
+        // the int the sample starts with, -1 if it is empty
+        final int value;
+
+        Output(int index, long presentationTimeUs, int flags, int value) {
+            this.index = index;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+            this.value = value;
+        }
+    }
+
+    private final class Recorder implements CodecDriver.Callback {
+        final LinkedBlockingQueue<Output> outputs = new LinkedBlockingQueue<>();
+        volatile boolean autoRelease = true;
+        volatile boolean releaseDriver;
+        volatile Exception error;
+        // thrown in a callback, on whatever thread that runs
+        volatile Throwable failure;
+        volatile Thread thread;
+
+        @Override
+        public void onOutputBuffer(int index, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            try {
+                thread = Thread.currentThread();
+                int value = buffer != null && buffer.remaining() >= 4 ? buffer.getInt(buffer.position()) : -1;
+                if (releaseDriver) {
+                    release();
+                } else if (autoRelease) {
+                    driver.releaseOutput(index, false);
+                }
+                outputs.add(new Output(index, info.presentationTimeUs, info.flags, value));
+            } catch (Throwable t) {
+                if (failure == null) failure = t;
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            error = e;
+        }
+
+        Output next() throws InterruptedException {
+            Output output = outputs.poll(TIMEOUT_US, TimeUnit.MICROSECONDS);
+            assertNotNull("no output", output);
+            return output;
+        }
+
+        void assertQuiet() throws InterruptedException {
+            assertNull("unexpected output", outputs.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private final String kind;
+    private final Recorder recorder = new Recorder();
+    private CodecDriver driver;
+    private boolean released;
+
+    public CodecDriverTest(String kind) throws IOException {
+        this.kind = kind;
+        Codec.Factory codecs = FakeCodec.factory("fake-" + kind, BUFFER_COUNT, BUFFER_SIZE);
+        driver = kind.equals("async") ? new AsyncCodecDriver(codecs, "driver-" + kind)
+                : CodecDrivers.polling(codecs.create(), "driver-" + kind);
+    }
+
+    @After
+    public void tearDown() {
+        if (!released) driver.release();
+        assertNull("onError", recorder.error);
+        if (recorder.failure != null) throw new AssertionError("in a callback", recorder.failure);
+    }
+
+    private void start() {
+        driver.configure(MediaFormat.createVideoFormat(EncoderConfig.MIME, 64, 64), null, 0);
+        driver.start(recorder);
+    }
+
+    private void queue(int value, long presentationTimeUs, int flags) {
+        int index = driver.dequeueInput(TIMEOUT_US);
+        assertTrue("no input buffer", index >= 0);
+        ByteBuffer buffer = driver.getInputBuffer(index);
+        int size = 0;
+        if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+            buffer.putInt(value);
+            size = 4;
+        }
+        driver.queueInput(index, 0, size, presentationTimeUs, flags);
+    }
+
+    private void release() {
+        released = true;
+        driver.release();
+    }
+
+    @Test
+    public void samplesComeOutInOrder() throws InterruptedException {
+        start();
+        for (int i = 0; i < 20; i++) {
+            queue(i, i * 1000L, i % 5 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+        queue(0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        for (int i = 0; i < 20; i++) {
+            Output output = recorder.next();
+            assertEquals(i, output.value);
+            assertEquals(i * 1000L, output.presentationTimeUs);
+            assertEquals(i % 5 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0, output.flags);
+        }
+        assertTrue((recorder.next().flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
+        recorder.assertQuiet();
+    }
+
+    @Test
+    public void heldOutputsStallTheCodec() throws InterruptedException {
+        recorder.autoRelease = false;
+        start();
+        // one sample per output buffer, then as many again waiting for one to come free
+        for (int i = 0; i < 2 * BUFFER_COUNT; i++) {
+            queue(i, i * 1000L, 0);
+        }
+        List<Integer> held = new ArrayList<>();
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            Output output = recorder.next();
+            assertEquals(i, output.value);
+            assertFalse("index handed out twice", held.contains(output.index));
+            held.add(output.index);
+        }
+        recorder.assertQuiet();
+
+        // every release lets exactly one more sample through
+        for (int i = BUFFER_COUNT; i < 2 * BUFFER_COUNT; i++) {
+            driver.releaseOutput(held.get(i - BUFFER_COUNT), false);
+            assertEquals(i, recorder.next().value);
+        }
+        recorder.assertQuiet();
+    }
+
+    @Test
+    public void outputIsReleasedOnlyOnce() throws InterruptedException {
+        recorder.autoRelease = false;
+        start();
+        queue(7, 0, 0);
+        Output output = recorder.next();
+        driver.releaseOutput(output.index, false);
+        try {
+            driver.releaseOutput(output.index, false);
+            fail("released twice");
+        } catch (IllegalStateException expected) {
+            // as MediaCodec
+        }
+    }
+
+    @Test
+    public void flushDropsWhatIsInFlight() throws InterruptedException {
+        recorder.autoRelease = false;
+        start();
+        for (int i = 0; i < 2 * BUFFER_COUNT; i++) {
+            queue(i, i * 1000L, 0);
+        }
+        Output held = null;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            held = recorder.next();
+        }
+
+        driver.flush();
+        // the queued samples are gone, and the indices handed out before are invalid
+        recorder.assertQuiet();
+        try {
+            driver.releaseOutput(held.index, false);
+            fail("released an output from before the flush");
+        } catch (IllegalStateException expected) {
+            // as MediaCodec
+        }
+
+        // and the codec takes input again, e.g. from the keyframe sought to
+        recorder.autoRelease = true;
+        for (int i = 0; i < 3; i++) {
+            queue(100 + i, 500000 + i * 1000L, i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            Output output = recorder.next();
+            assertEquals(100 + i, output.value);
+            assertEquals(500000 + i * 1000L, output.presentationTimeUs);
+        }
+    }
+
+    @Test
+    public void flushesOneAfterAnother() throws InterruptedException {
+        start();
+        for (int round = 0; round < 5; round++) {
+            queue(round, round * 1000L, 0);
+            assertEquals(round, recorder.next().value);
+            driver.flush();
+        }
+        recorder.assertQuiet();
+    }
+
+    @Test
+    public void nothingIsDeliveredAfterRelease() throws InterruptedException {
+        start();
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            queue(i, i * 1000L, 0);
+        }
+        release();
+        recorder.outputs.clear();
+        recorder.assertQuiet();
+    }
+
+    @Test
+    public void releaseWithoutStart() {
+        driver.configure(MediaFormat.createVideoFormat(EncoderConfig.MIME, 64, 64), null, 0);
+        release();
+    }
+
+    @Test
+    public void asyncInputsEndWithRelease() {
+        assumeTrue(kind.equals("async"));
+        start();
+        queue(1, 0, 0);
+        release();
+        // the free inputs it was told about are forgotten
+        assertEquals(-1, driver.dequeueInput(10000));
+    }
+
+    @Test
+    public void asyncCallbacksRunOnTheDriverThread() throws InterruptedException {
+        assumeTrue(kind.equals("async"));
+        start();
+        queue(1, 0, 0);
+        recorder.next();
+        assertEquals("driver-async", recorder.thread.getName());
+    }
+
+    @Test
+    public void asyncReleaseFromACallback() throws InterruptedException {
+        assumeTrue(kind.equals("async"));
+        recorder.releaseDriver = true;
+        start();
+        queue(7, 0, 0);
+        // the output releases the driver from its own handler thread
+        assertEquals(7, recorder.next().value);
+        assertEquals(-1, driver.dequeueInput(10000));
+        recorder.assertQuiet();
+    }
+}
@@ -0,0 +1,242 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+import android.view.Surface;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Load test of the codec workers over FakeCodec, unpaced, so it shows whether the
+// pipeline code queues, drops and shuts down as it should:
+//   encode  HevcEncodeThread from a PatternFrameSource into a PacketBus and the recorder
+//   decode  HevcDecodeThread playing that recording back at PLAYBACK_RATE
+//   echo    VideoEncoder (surface input) looped into VideoDecoder, as in RenderActivity
+// Every scenario runs with the polling and the callback driver. Nothing is paced: the
+// source hands out frames as fast as they are recycled, the fake codecs add latency
+// but no frame interval, so the frame rate is what the pipeline code itself sustains.
+// It is printed with the backpressure (how long each stage waited for the next one)
+// and has to stay above a floor well below what a single core manages.
+// The synthetic streams are seeded, runs differ only in timing.
+@RunWith(Parameterized.class)
+public class CodecHarnessTest {
+
+    // small frames, the point is the pipeline and not YUV conversion
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_RATE = 30;
+    private static final int BUFFER_COUNT = 8;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long DURATION_MS = 1000;
+    // the media clock runs that much faster than real time
+    private static final float PLAYBACK_RATE = 1000;
+    private static final long STOP_LIMIT_MS = 2000;
+    // frames per second each scenario must sustain: ten times real time, about a tenth of
+    // what one core of a desktop JVM does; a stage waiting in 10 ms steps falls below it
+    private static final double ENCODE_FLOOR_FPS = 10 * FRAME_RATE;
+    private static final double DECODE_FLOOR_FPS = 10 * FRAME_RATE;
+    private static final double ECHO_FLOOR_FPS = 10 * FRAME_RATE;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> drivers() {
+        return Arrays.asList(new Object[][]{{"polling"}, {"async"}});
+    }
+
+    private final String driver;
+
+    public CodecHarnessTest(String driver) {
+        this.driver = driver;
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakeCodec.Model encoderModel = new FakeCodec.Model();
+    private final FakeCodec.Model decoderModel = new FakeCodec.Model();
+
+    @Before
+    public void setUp() {
+        encoderModel.synthesize = true;
+        encoderModel.frameRate = FRAME_RATE;
+        encoderModel.gopFrames = FRAME_RATE;
+        encoderModel.latencyUs = 2000;
+        encoderModel.burst = 2;
+        decoderModel.latencyUs = 2000;
+        PipelineMetrics.reset();
+    }
+
+    private CodecDriver.Factory codecs(String name, FakeCodec.Model model) {
+        Codec.Factory codecs = FakeCodec.factory(name, BUFFER_COUNT, BUFFER_SIZE, model);
+        return driver.equals("polling") ? CodecDrivers.pollingFactory(codecs) : CodecDrivers.factory(codecs);
+    }
+
+    private double report(String scenario, long frames, long elapsedNs, double floorFps, Object... backpressure) {
+        double fps = frames * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNs;
+        StringBuilder line = new StringBuilder(String.format(Locale.US, "%s/%s: %d frames, %.0f fps (floor %.0f)",
+                scenario, driver, frames, fps, floorFps));
+        for (Object stage : backpressure) line.append("\n    ").append(stage);
+        System.out.println(line);
+        assertTrue(String.format(Locale.US, "%s/%s at %.0f fps, below %.0f", scenario, driver, fps, floorFps),
+                fps >= floorFps);
+        return fps;
+    }
+
+    // the recording in directory
+    private File encode(File directory) throws InterruptedException {
+        PatternFrameSource source = new PatternFrameSource(WIDTH, HEIGHT, 4);
+        EncoderConfig config = new EncoderConfig("harness", WIDTH, HEIGHT, encoderModel.bitRate, FRAME_RATE, 1);
+        HevcEncodeThread encoder = new HevcEncodeThread(source, config, codecs("fake-encoder", encoderModel), directory);
+        EncodedPacketPool pool = new EncodedPacketPool(BUFFER_SIZE / 4, HevcEncodeThread.poolDepth() + 64);
+        PacketBus bus = new PacketBus(pool);
+        final AtomicLong received = new AtomicLong();
+        bus.subscribe("harness", 64, PacketBus.LagPolicy.SKIP_TO_KEYFRAME, new PacketBus.Listener() {
+            @Override
+            public void onPacket(EncodedPacket packet) {
+                received.incrementAndGet();
+            }
+        });
+        encoder.setPacketBus(bus);
+        encoder.setConsumerLag(bus);
+        PipelineMetrics.reset();
+        long startNs = System.nanoTime();
+        encoder.start();
+        Thread.sleep(DURATION_MS);
+        long stopNs = System.nanoTime();
+        long encoded = PipelineMetrics.framesEncoded.sum();
+        encoder.stopThread();
+        encoder.join();
+        long stopMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopNs);
+        bus.close();
+
+        // waiting for a codec input buffer is the codec pushing back, waiting for a
+        // frame is the source
+        report("encode", encoded, stopNs - startNs, ENCODE_FLOOR_FPS,
+                PipelineMetrics.encoderInputWaitUs, PipelineMetrics.cameraQueueWaitUs, PipelineMetrics.encodeUs,
+                "bus received " + received.get() + " of " + PipelineMetrics.framesEncoded.sum());
+        assertTrue("frames in " + source.frameCount(), source.frameCount() > FRAME_RATE);
+        assertTrue("bus received " + received.get(), received.get() > 0);
+        // the recorder takes the bus's copy, nothing else copies a packet
+        assertEquals(bus.publishedCount(), pool.allocationCount() + pool.reuseCount());
+        assertEquals(0, pool.outstanding());
+        assertTrue("stop took " + stopMs + " ms", stopMs < STOP_LIMIT_MS);
+        return new File(directory, "h265-000.mp4");
+    }
+
+    @Test
+    public void encodeRecordsAPlayableFile() throws InterruptedException, IOException {
+        File recording = encode(folder.getRoot());
+        SampleReader reader = SampleReader.open(recording, FRAME_RATE);
+        try {
+            assertNotNull("no codec config", reader.csd);
+            // FakeCodec's parameter sets are always 1280x720
+            assertEquals(1280, reader.width);
+            assertEquals(720, reader.height);
+            SampleReader.Sample sample = new SampleReader.Sample();
+            assertTrue(reader.next(sample));
+            assertTrue("starts without a keyframe", (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            long last = sample.presentationTimeUs;
+            while (reader.next(sample)) {
+                assertTrue(sample.presentationTimeUs > last);
+                last = sample.presentationTimeUs;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void decodePlaysTheRecordingThrough() throws InterruptedException, IOException {
+        File recording = encode(folder.getRoot());
+        long samples = 0;
+        SampleReader reader = SampleReader.open(recording, FRAME_RATE);
+        try {
+            SampleReader.Sample sample = new SampleReader.Sample();
+            while (reader.next(sample)) samples++;
+        } finally {
+            reader.close();
+        }
+        PipelineMetrics.reset();
+
+        HevcDecodeThread decoder = new HevcDecodeThread(null, recording, codecs("fake-decoder", decoderModel));
+        decoder.setPlaybackRate(PLAYBACK_RATE);
+        long startNs = System.nanoTime();
+        decoder.start();
+        decoder.join(TimeUnit.SECONDS.toMillis(30));
+        long elapsedNs = System.nanoTime() - startNs;
+        assertTrue("decoder still running", !decoder.isAlive());
+        report("decode", PipelineMetrics.framesDecoded.sum(), elapsedNs, DECODE_FLOOR_FPS,
+                PipelineMetrics.decoderInputWaitUs, PipelineMetrics.demuxWaitUs, PipelineMetrics.decodeUs,
+                "dropped late " + PipelineMetrics.framesDroppedLate.sum());
+        assertEquals(samples, PipelineMetrics.framesDecoded.sum());
+        // every frame is either shown or dropped as late
+        assertEquals(samples, PipelineMetrics.framesRendered.sum() + PipelineMetrics.framesDroppedLate.sum());
+    }
+
+    @Test
+    public void echoLoopsEncoderIntoDecoder() throws InterruptedException {
+        final AtomicLong rendered = new AtomicLong();
+        final AtomicLong submitted = new AtomicLong();
+        final CountDownLatch destroyed = new CountDownLatch(1);
+        final VideoDecoder decoder = new VideoDecoder(codecs("fake-video-decoder", decoderModel)) {
+            @Override
+            protected void onFrameRendered(long presentationTimeUs) {
+                rendered.incrementAndGet();
+            }
+        };
+        VideoEncoder encoder = new VideoEncoder(WIDTH, HEIGHT, codecs("fake-video-encoder", encoderModel)) {
+            private boolean configured;
+
+            @Override
+            protected void onEncodedSample(MediaCodec.BufferInfo info, ByteBuffer data) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    decoder.configure(null, WIDTH, HEIGHT, data);
+                    configured = true;
+                } else if (configured) {
+                    decoder.decodeSample(data, info.presentationTimeUs, info.flags);
+                    submitted.incrementAndGet();
+                }
+            }
+
+            @Override
+            protected void onSurfaceDestroyed(Surface surface) {
+                destroyed.countDown();
+            }
+        };
+        decoder.start();
+        long startNs = System.nanoTime();
+        encoder.start();
+        Thread.sleep(DURATION_MS);
+        long elapsedNs = System.nanoTime() - startNs;
+        long frames = rendered.get();
+        encoder.stop();
+        assertTrue("encoder surface not destroyed", destroyed.await(STOP_LIMIT_MS, TimeUnit.MILLISECONDS));
+        decoder.stop();
+        // submitted but not yet rendered is what the decoder held back
+        report("echo", frames, elapsedNs, ECHO_FLOOR_FPS, "submitted " + submitted.get() + ", rendered " + frames);
+        assertTrue("frames encoded " + submitted.get(), submitted.get() > 0);
+        assertTrue("frames rendered " + rendered.get(), rendered.get() > 0);
+    }
+}
@@ -0,0 +1,315 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// EncoderFarm and SimulcastLadder over FakeCodec encoders, with both drivers. The codec
+// factory plays a device that runs out of instances at DEVICE_INSTANCES, the way a
+// device before M does without telling anyone.
+@RunWith(Parameterized.class)
+public class EncoderFarmTest {
+
+    private static final int FRAME_RATE = 30;
+    private static final int BUFFER_COUNT = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DEVICE_INSTANCES = 2;
+    private static final int SOURCE_DEPTH = 3;
+    private static final long TIMEOUT_MS = 5000;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> drivers() {
+        return Arrays.asList(new Object[][]{{"polling"}, {"async"}});
+    }
+
+    private final String driver;
+    private final FakeCodec.Model model = new FakeCodec.Model();
+    private final AtomicInteger live = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+    // opened while set, until it is counted down
+    private volatile CountDownLatch createGate;
+    private final List<PatternFrameSource> sources = new ArrayList<>();
+    private EncoderFarm farm;
+
+    public EncoderFarmTest(String driver) {
+        this.driver = driver;
+    }
+
+    @Before
+    public void setUp() {
+        model.synthesize = true;
+        model.frameRate = FRAME_RATE;
+        // only the keyframes the sessions ask for
+        model.gopFrames = Integer.MAX_VALUE;
+        model.latencyUs = 1000;
+    }
+
+    @After
+    public void tearDown() {
+        if (farm != null) farm.shutdown();
+    }
+
+    private CodecDriver.Factory encoders() {
+        Codec.Factory codecs = new Codec.Factory() {
+            @Override
+            public Codec create() throws IOException {
+                CountDownLatch gate = createGate;
+                if (gate != null) {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                if (live.incrementAndGet() > DEVICE_INSTANCES) {
+                    live.decrementAndGet();
+                    throw new IOException("no more encoder instances");
+                }
+                created.incrementAndGet();
+                return new FakeCodec("fake-encoder", BUFFER_COUNT, BUFFER_SIZE, model) {
+                    private boolean released;
+
+                    @Override
+                    public void release() {
+                        super.release();
+                        if (!released) live.decrementAndGet();
+                        released = true;
+                    }
+                };
+            }
+        };
+        return driver.equals("polling") ? CodecDrivers.pollingFactory(codecs) : CodecDrivers.factory(codecs);
+    }
+
+    private static EncoderConfig config(String name, int width, int height) {
+        return new EncoderConfig(name, width, height, 500000, FRAME_RATE, 1);
+    }
+
+    private PatternFrameSource source(EncoderConfig config) {
+        PatternFrameSource source = new PatternFrameSource(config.width, config.height, SOURCE_DEPTH);
+        sources.add(source);
+        return source;
+    }
+
+    private static class CountingSink implements EncoderSession.Sink {
+        final ConcurrentHashMap<EncoderSession, AtomicLong> frames = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<EncoderSession, AtomicLong> keyframes = new ConcurrentHashMap<>();
+        final AtomicInteger misplacedKeyframes = new AtomicInteger();
+        final AtomicInteger configs = new AtomicInteger();
+
+        @Override
+        public void onEncoded(EncoderSession session, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                configs.incrementAndGet();
+                return;
+            }
+            assertEquals(info.size, buffer.remaining());
+            count(frames, session);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                count(keyframes, session);
+                long frame = Math.round(info.presentationTimeUs * (double) FRAME_RATE / 1000000);
+                if (frame % FRAME_RATE != 0) misplacedKeyframes.incrementAndGet();
+            }
+        }
+
+        private static void count(ConcurrentHashMap<EncoderSession, AtomicLong> counts, EncoderSession session) {
+            AtomicLong count = counts.get(session);
+            if (count == null) {
+                counts.putIfAbsent(session, new AtomicLong());
+                count = counts.get(session);
+            }
+            count.incrementAndGet();
+        }
+
+        long frames(EncoderSession session) {
+            AtomicLong count = frames.get(session);
+            return count == null ? 0 : count.get();
+        }
+
+        long keyframes(EncoderSession session) {
+            AtomicLong count = keyframes.get(session);
+            return count == null ? 0 : count.get();
+        }
+
+        void awaitFrames(List<EncoderSession> sessions, long count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            for (EncoderSession session : sessions) {
+                while (frames(session) < count) {
+                    assertTrue(session + " below " + count + " frames", System.currentTimeMillis() < deadline);
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    private void assertAllReleased() {
+        assertEquals(0, live.get());
+        for (PatternFrameSource source : sources) {
+            // every frame went back to its source
+            assertEquals(SOURCE_DEPTH, source.pending());
+        }
+    }
+
+    @Test
+    public void sessionsEncodeFromTheirCallbacks() throws Exception {
+        farm = new EncoderFarm(encoders(), EncoderFarm.UNKNOWN_MAX_INSTANCES);
+        CountingSink sink = new CountingSink();
+        EncoderConfig big = config("big", 64, 48);
+        EncoderConfig small = config("small", 32, 24);
+        EncoderSession first = farm.open(big, source(big), sink);
+        EncoderSession second = farm.open(small, source(small), sink);
+        first.alignSyncFrames(FRAME_RATE);
+        second.alignSyncFrames(FRAME_RATE);
+        List<EncoderSession> sessions = farm.sessions();
+        assertEquals(Arrays.asList(first, second), sessions);
+
+        sink.awaitFrames(sessions, 3 * FRAME_RATE);
+        for (EncoderSession session : sessions) {
+            assertTrue(session.framesIn() >= session.framesOut());
+            assertTrue(sink.keyframes(session) >= 2);
+            assertTrue(farm.report().contains(session.config.name + " fps="));
+        }
+        assertEquals(0, sink.misplacedKeyframes.get());
+        assertEquals(2, sink.configs.get());
+
+        farm.shutdown();
+        assertTrue(farm.sessions().isEmpty());
+        assertTrue(first.isClosed());
+        assertTrue(second.isClosed());
+        assertAllReleased();
+    }
+
+    @Test
+    public void knownLimitRefusesTheSessionBeyondIt() throws Exception {
+        farm = new EncoderFarm(encoders(), 1);
+        CountingSink sink = new CountingSink();
+        EncoderConfig config = config("only", 32, 24);
+        EncoderSession session = farm.open(config, source(config), sink);
+        try {
+            farm.open(config, source(config), sink);
+            fail("opened a session beyond the limit");
+        } catch (IllegalStateException expected) {
+        }
+        // refused before a codec was created
+        assertEquals(1, created.get());
+
+        farm.close(session);
+        assertTrue(farm.sessions().isEmpty());
+        EncoderSession again = farm.open(config, source(config), sink);
+        sink.awaitFrames(Arrays.asList(again), FRAME_RATE);
+        farm.shutdown();
+        assertAllReleased();
+    }
+
+    @Test
+    public void unknownLimitTriesAndSurfacesTheCreateFailure() throws Exception {
+        farm = new EncoderFarm(encoders(), EncoderFarm.UNKNOWN_MAX_INSTANCES);
+        CountingSink sink = new CountingSink();
+        EncoderConfig config = config("rung", 32, 24);
+        for (int i = 0; i < DEVICE_INSTANCES; i++) farm.open(config, source(config), sink);
+        try {
+            farm.open(config, source(config), sink);
+            fail("the device has no instance left");
+        } catch (IOException expected) {
+        }
+        // the sessions already running are not affected
+        assertEquals(DEVICE_INSTANCES, farm.sessions().size());
+        sink.awaitFrames(farm.sessions(), FRAME_RATE);
+        farm.shutdown();
+        assertAllReleased();
+    }
+
+    @Test
+    public void openCreatesTheCodecOutsideTheFarmLock() throws Exception {
+        farm = new EncoderFarm(encoders(), EncoderFarm.UNKNOWN_MAX_INSTANCES);
+        final CountingSink sink = new CountingSink();
+        final EncoderConfig config = config("slow", 32, 24);
+        final PatternFrameSource slowSource = source(config);
+        EncoderSession running = farm.open(config, source(config), sink);
+        final CountDownLatch gate = new CountDownLatch(1);
+        createGate = gate;
+        final EncoderSession[] opened = new EncoderSession[1];
+        ExecutorService opener = Executors.newSingleThreadExecutor();
+        try {
+            opener.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        opened[0] = farm.open(config, slowSource, sink);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            // while that codec is being created the farm answers and the other session encodes
+            long before = sink.frames(running);
+            assertEquals(Arrays.asList(running), farm.sessions());
+            sink.awaitFrames(Arrays.asList(running), before + FRAME_RATE);
+            gate.countDown();
+            createGate = null;
+            opener.shutdown();
+            assertTrue(opener.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            gate.countDown();
+            opener.shutdownNow();
+        }
+        assertEquals(2, farm.sessions().size());
+        sink.awaitFrames(Arrays.asList(opened[0]), FRAME_RATE);
+        farm.shutdown();
+        assertAllReleased();
+    }
+
+    @Test
+    public void ladderRunsWithTheRungsTheDeviceHas() throws Exception {
+        farm = new EncoderFarm(encoders(), EncoderFarm.UNKNOWN_MAX_INSTANCES);
+        CountingSink sink = new CountingSink();
+        PatternFrameSource capture = new PatternFrameSource(64, 48, SOURCE_DEPTH);
+        sources.add(capture);
+        SimulcastLadder ladder = new SimulcastLadder(capture, 64, 48,
+                Arrays.asList(config("48p", 64, 48), config("24p", 32, 24), config("12p", 16, 12)),
+                farm, new YuvScaler());
+        ladder.start(sink);
+        try {
+            List<EncoderSession> sessions = ladder.sessions();
+            assertEquals(DEVICE_INSTANCES, sessions.size());
+            assertEquals("48p", sessions.get(0).config.name);
+            assertEquals("24p", sessions.get(1).config.name);
+            sink.awaitFrames(sessions, 2 * FRAME_RATE);
+            assertTrue(ladder.fannedOutCount() > 0);
+            assertEquals(0, sink.misplacedKeyframes.get());
+        } finally {
+            ladder.stop();
+        }
+        assertTrue(farm.sessions().isEmpty());
+        farm.shutdown();
+        assertAllReleased();
+    }
+}
@@ -0,0 +1,653 @@
+package org.yeshen.hevc;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// In-JVM stand-in for MediaCodec: every queued input sample is copied to an output
+// buffer by a processing thread, flags and timestamps are passed through unchanged.
+// Follows the MediaCodec buffer ownership rules, so a pipeline that starves or leaks
+// buffers stalls here the same way it would on a device.
+// A Model adds what a real codec does to the timing: each sample comes out latencyUs
+// after it went in, outputs can be handed out in bursts, and an encoder can emit a
+// synthetic HEVC stream (parameter sets, then one IDR or TRAIL slice per frame) whose
+// frame sizes follow the bitrate. With a seed, two runs produce the same bytes.
+// A fake decoder configured with a fake encoder's input surface feeds it every frame
+// it renders, so surface to surface pipelines can run as well.
+// In callback mode the callbacks are posted to the Looper of the thread that created the
+// codec, as MediaCodec does, or to a thread of the codec's own if that thread has none.
+// A posted callback looks at the codec's state only when it runs, so after a flush or
+// stop nothing from before reaches the callback.
+class FakeCodec implements Codec {
+
+    // shared by every codec of a factory, not to be changed once a codec is started
+    static final class Model {
+        // from queueInputBuffer until the output can be dequeued; samples are in flight at
+        // the same time, so this only costs throughput once every output buffer is taken
+        long latencyUs;
+        // outputs are held back until this many are ready (or input ends), like an encoder
+        // reordering B frames; capped at the buffer count
+        int burst = 1;
+        // replace the input with synthetic HEVC as an encoder would
+        boolean synthesize;
+        int bitRate = 2000000;
+        int frameRate = 30;
+        int gopFrames = 30;
+        // an IDR is this many times a P frame
+        int keyframeCost = 5;
+        // +- relative noise on the frame size
+        double noise = 0.2;
+        long seed = 1;
+        // surface input: a frame appears every surfaceFrameIntervalUs, 0 means whenever
+        // an output buffer is free
+        long surfaceFrameIntervalUs;
+        // the BUFFER_FLAG_CODEC_CONFIG output of a synthesizing codec
+        byte[] parameterSets = PARAMETER_SETS;
+    }
+
+    // main profile 1280x720 parameter sets, enough for Mp4Muxer and HevcSps
+    static final byte[] PARAMETER_SETS = {
+            0, 0, 0, 1, 0x40, 0x01, 0x0c, 0x01, (byte) 0xff,
+            0, 0, 0, 1, 0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00, 0x00, 0x03,
+            0x00, 0x00, 0x03, 0x00, 0x5d, (byte) 0xa0, 0x02, (byte) 0x80, (byte) 0x80, 0x2d, 0x17, 0x13, (byte) 0xc0,
+            0, 0, 0, 1, 0x44, 0x01, (byte) 0xc1, 0x72};
+    // start code and NAL header
+    private static final int SLICE_HEADER_SIZE = 6;
+
+    // input surfaces of fake encoders, for fake decoders configured to render into one
+    private static final Map<Surface, FakeCodec> SURFACES =
+            Collections.synchronizedMap(new WeakHashMap<Surface, FakeCodec>());
+
+    private static final class Sample {
+        final int index;
+        final int offset;
+        final int size;
+        final long presentationTimeUs;
+        final int flags;
+        final long queuedNs;
+
+        Sample(int index, int offset, int size, long presentationTimeUs, int flags, long queuedNs) {
+            this.index = index;
+            this.offset = offset;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+            this.queuedNs = queuedNs;
+        }
+    }
+
+    private final String mName;
+    private final Model mModel;
+    private final int mBurst;
+    private final ByteBuffer[] mInputBuffers;
+    private final ByteBuffer[] mOutputBuffers;
+    private final MediaCodec.BufferInfo[] mOutputInfos;
+    // System.nanoTime() each output may be dequeued at
+    private final long[] mReadyAtNs;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+    private final ArrayDeque<Sample> mQueuedInputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mReadyOutputs = new ArrayDeque<>();
+    // processor thread only: finished outputs waiting for the rest of their burst
+    private final ArrayDeque<Integer> mHeldOutputs = new ArrayDeque<>();
+    // presentation times of the frames released with render, in order
+    private final ArrayList<Long> mRendered = new ArrayList<>();
+    private Callback mCallback;
+    private Thread mProcessor;
+    // the creating thread's looper, null if it has none
+    private final Looper mLooper;
+    private HandlerThread mCallbackThread;
+    private Handler mHandler;
+    // when the earliest dispatch() posted is due, Long.MAX_VALUE if there is none
+    private long mDispatchDueNs = Long.MAX_VALUE;
+    private boolean mStarted;
+    private boolean mInputEnded;
+    private boolean mSyncRequested;
+    private boolean mSurfaceInput;
+    // the synthetic stream carries on after a flush instead of starting over
+    private boolean mFlushed;
+    // the input surface is fed by a fake decoder instead of producing frames itself
+    private boolean mSurfaceFed;
+    // decoders: the fake encoder rendered frames go to
+    private FakeCodec mRenderTarget;
+
+    // processor thread only, synthetic stream state
+    private Random mRandom;
+    private byte[] mPayload;
+    private boolean mConfigSent;
+    private long mFrameIndex;
+    private long mSurfaceFrames;
+    private long mNextSurfaceFrameNs;
+
+    FakeCodec(String name, int bufferCount, int bufferSize) {
+        this(name, bufferCount, bufferSize, new Model());
+    }
+
+    FakeCodec(String name, int bufferCount, int bufferSize, Model model) {
+        mName = name;
+        mModel = model;
+        mBurst = Math.max(1, Math.min(model.burst, bufferCount));
+        mInputBuffers = new ByteBuffer[bufferCount];
+        mOutputBuffers = new ByteBuffer[bufferCount];
+        mOutputInfos = new MediaCodec.BufferInfo[bufferCount];
+        mReadyAtNs = new long[bufferCount];
+        mLooper = Looper.myLooper();
+        for (int i = 0; i < bufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(bufferSize);
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(bufferSize);
+            mOutputInfos[i] = new MediaCodec.BufferInfo();
+        }
+    }
+
+    static Codec.Factory factory(final String name, final int bufferCount, final int bufferSize) {
+        return factory(name, bufferCount, bufferSize, new Model());
+    }
+
+    static Codec.Factory factory(final String name, final int bufferCount, final int bufferSize, final Model model) {
+        return new Codec.Factory() {
+            @Override
+            public Codec create() {
+                return new FakeCodec(name, bufferCount, bufferSize, model);
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public boolean supportsCallback() {
+        return true;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+        Looper looper = mLooper;
+        if (looper == null) {
+            mCallbackThread = new HandlerThread(mName + "-callback");
+            mCallbackThread.start();
+            looper = mCallbackThread.getLooper();
+        }
+        mHandler = new Handler(looper);
+    }
+
+    @Override
+    public void configure(MediaFormat format, Surface surface, int flags) {
+        mRenderTarget = surface == null ? null : SURFACES.get(surface);
+        if (mRenderTarget != null) mRenderTarget.feedSurface();
+    }
+
+    // nothing can draw into it off-device: unless a fake decoder renders into it, frames
+    // appear on their own
+    @Override
+    public Surface createInputSurface() {
+        mSurfaceInput = true;
+        Surface surface = new Surface(new SurfaceTexture(0));
+        SURFACES.put(surface, this);
+        return surface;
+    }
+
+    private void feedSurface() {
+        mLock.lock();
+        try {
+            mSurfaceFed = true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // a frame a fake decoder rendered into the input surface
+    private void onSurfaceFrame(long presentationTimeUs) {
+        mLock.lock();
+        try {
+            if (!mStarted || mInputEnded) return;
+            int flags = 0;
+            if (mSyncRequested) {
+                mSyncRequested = false;
+                flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            }
+            mQueuedInputs.add(new Sample(-1, 0, 0, presentationTimeUs, flags, System.nanoTime()));
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void start() {
+        mLock.lock();
+        try {
+            if (mStarted) throw new IllegalStateException("already started");
+            mStarted = true;
+            mFreeInputs.clear();
+            mFreeOutputs.clear();
+            for (int i = 0; i < mInputBuffers.length; i++) {
+                // a surface codec has no input buffers to hand out
+                if (!mSurfaceInput) mFreeInputs.add(i);
+                mFreeOutputs.add(i);
+            }
+            scheduleDispatch(0);
+        } finally {
+            mLock.unlock();
+        }
+        if (mFlushed) {
+            mFlushed = false;
+        } else {
+            resetStream();
+        }
+        mProcessor = new Thread(mName + "-process") {
+            @Override
+            public void run() {
+                process();
+            }
+        };
+        mProcessor.start();
+    }
+
+    private void resetStream() {
+        mRandom = new Random(mModel.seed);
+        mConfigSent = false;
+        mFrameIndex = 0;
+        mSurfaceFrames = 0;
+        mNextSurfaceFrameNs = System.nanoTime();
+        if (mModel.synthesize) {
+            // slices are cut from this, no zero bytes so no emulation prevention is needed
+            mPayload = new byte[mOutputBuffers[0].capacity()];
+            mRandom.nextBytes(mPayload);
+            for (int i = 0; i < mPayload.length; i++) {
+                if (mPayload[i] == 0) mPayload[i] = 1;
+            }
+        }
+    }
+
+    // moves queued input samples into free output buffers
+    private void process() {
+        while (true) {
+            Sample sample;
+            int output;
+            boolean config;
+            mLock.lock();
+            try {
+                while (mStarted && (!hasInput() || mFreeOutputs.isEmpty())) {
+                    if (mSurfaceInput && !mSurfaceFed && !mInputEnded && mQueuedInputs.isEmpty()
+                            && !mFreeOutputs.isEmpty()) {
+                        // the next surface frame is only due later
+                        mChanged.awaitNanos(mNextSurfaceFrameNs - System.nanoTime());
+                    } else {
+                        mChanged.awaitUninterruptibly();
+                    }
+                }
+                if (!mStarted) return;
+                config = mModel.synthesize && !mConfigSent;
+                sample = config ? null : nextInput();
+                output = mFreeOutputs.poll();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                mLock.unlock();
+            }
+            MediaCodec.BufferInfo info = mOutputInfos[output];
+            ByteBuffer dst = mOutputBuffers[output];
+            dst.clear();
+            if (config) {
+                dst.put(mModel.parameterSets);
+                info.presentationTimeUs = 0;
+                info.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+                mConfigSent = true;
+            } else if (mModel.synthesize && (sample.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+                info.flags = slice(dst, (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                info.presentationTimeUs = sample.presentationTimeUs;
+            } else {
+                if (sample.index >= 0) {
+                    ByteBuffer src = mInputBuffers[sample.index].duplicate();
+                    src.limit(sample.offset + sample.size).position(sample.offset);
+                    dst.put(src);
+                }
+                info.presentationTimeUs = sample.presentationTimeUs;
+                info.flags = sample.flags;
+            }
+            dst.flip();
+            info.offset = 0;
+            info.size = dst.remaining();
+            boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            long readyAtNs = config ? System.nanoTime()
+                    : sample.queuedNs + TimeUnit.MICROSECONDS.toNanos(mModel.latencyUs);
+            mHeldOutputs.add(output);
+            mLock.lock();
+            try {
+                if (!mStarted) return;
+                if (sample != null && sample.index >= 0) mFreeInputs.add(sample.index);
+                // parameter sets go out at once, frames once their burst is complete
+                if (config || endOfStream || mHeldOutputs.size() >= mBurst) {
+                    for (int held : mHeldOutputs) {
+                        mReadyAtNs[held] = readyAtNs;
+                    }
+                    mReadyOutputs.addAll(mHeldOutputs);
+                    mHeldOutputs.clear();
+                }
+                scheduleDispatch(0);
+                mChanged.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    // under the lock: how long until the next output may be dequeued, Long.MAX_VALUE if there is none
+    private long outputDelayNs() {
+        Integer next = mReadyOutputs.peek();
+        return next == null ? Long.MAX_VALUE : mReadyAtNs[next] - System.nanoTime();
+    }
+
+    // under the lock
+    private boolean hasInput() {
+        if (mModel.synthesize && !mConfigSent) return true;
+        if (!mQueuedInputs.isEmpty()) return true;
+        return mSurfaceInput && !mSurfaceFed && !mInputEnded && System.nanoTime() >= mNextSurfaceFrameNs;
+    }
+
+    // under the lock
+    private Sample nextInput() {
+        Sample sample = mQueuedInputs.poll();
+        if (sample != null) return sample;
+        // a frame drawn into the input surface
+        long now = System.nanoTime();
+        mNextSurfaceFrameNs = Math.max(mNextSurfaceFrameNs, now - TimeUnit.MICROSECONDS.toNanos(mModel.surfaceFrameIntervalUs))
+                + TimeUnit.MICROSECONDS.toNanos(mModel.surfaceFrameIntervalUs);
+        int flags = 0;
+        if (mSyncRequested) {
+            mSyncRequested = false;
+            flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        }
+        long presentationTimeUs = mSurfaceFrames++ * 1000000 / Math.max(1, mModel.frameRate);
+        return new Sample(-1, 0, 0, presentationTimeUs, flags, now);
+    }
+
+    // one synthetic access unit into dst, returns its flags
+    private int slice(ByteBuffer dst, boolean syncRequested) {
+        Model model = mModel;
+        boolean key = syncRequested || mFrameIndex % Math.max(1, model.gopFrames) == 0;
+        mFrameIndex++;
+        double size = model.bitRate / 8.0 / Math.max(1, model.frameRate)
+                * (1 + model.noise * (2 * mRandom.nextDouble() - 1));
+        if (key) size *= model.keyframeCost;
+        int payload = (int) Math.max(1, Math.min(size, dst.remaining() - SLICE_HEADER_SIZE));
+        dst.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+        dst.put((byte) ((key ? HevcNal.IDR_W_RADL : HevcNal.TRAIL_R) << 1)).put((byte) 1);
+        dst.put(mPayload, mRandom.nextInt(mPayload.length - payload + 1), payload);
+        return key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+    }
+
+    // under the lock: posts a dispatch() to the callback's looper unless one is due by then
+    private void scheduleDispatch(long delayNs) {
+        long dueNs = System.nanoTime() + delayNs;
+        if (mHandler == null || dueNs >= mDispatchDueNs) return;
+        mDispatchDueNs = dueNs;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, TimeUnit.NANOSECONDS.toMillis(delayNs + 999999));
+    }
+
+    // callback mode, on the looper: hands the free inputs and ready outputs there are now to
+    // the callback in order, then posts itself again for an output that is due later
+    private void dispatch() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (true) {
+            int input = -1;
+            int output = -1;
+            mLock.lock();
+            try {
+                long delayNs = outputDelayNs();
+                if (!mStarted || (mFreeInputs.isEmpty() && delayNs > 0)) {
+                    mDispatchDueNs = Long.MAX_VALUE;
+                    if (mStarted && delayNs != Long.MAX_VALUE) scheduleDispatch(delayNs);
+                    return;
+                }
+                if (delayNs <= 0) {
+                    output = mReadyOutputs.poll();
+                    copy(mOutputInfos[output], info);
+                } else {
+                    input = mFreeInputs.poll();
+                }
+            } finally {
+                mLock.unlock();
+            }
+            if (input >= 0) {
+                mCallback.onInputBufferAvailable(input);
+            } else {
+                mCallback.onOutputBufferAvailable(output, info);
+            }
+        }
+    }
+
+    private static void copy(MediaCodec.BufferInfo from, MediaCodec.BufferInfo to) {
+        to.offset = from.offset;
+        to.size = from.size;
+        to.presentationTimeUs = from.presentationTimeUs;
+        to.flags = from.flags;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        mLock.lock();
+        try {
+            long waitNs = TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+            while (mFreeInputs.isEmpty()) {
+                if (!mStarted) throw new IllegalStateException("not started");
+                if (timeoutUs >= 0 && waitNs <= 0) return MediaCodec.INFO_TRY_AGAIN_LATER;
+                if (timeoutUs < 0) {
+                    mChanged.awaitUninterruptibly();
+                } else {
+                    waitNs = mChanged.awaitNanos(waitNs);
+                }
+            }
+            return mFreeInputs.poll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mLock.lock();
+        try {
+            if (!mStarted) throw new IllegalStateException("not started");
+            if (mInputEnded) throw new IllegalStateException("input already ended");
+            mInputEnded = (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            if (mSyncRequested && index >= 0) {
+                mSyncRequested = false;
+                flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            }
+            mQueuedInputs.add(new Sample(index, offset, size, presentationTimeUs, flags, System.nanoTime()));
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        mLock.lock();
+        try {
+            long waitNs = TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+            long delayNs;
+            while ((delayNs = outputDelayNs()) > 0) {
+                if (!mStarted) throw new IllegalStateException("not started");
+                if (timeoutUs >= 0 && waitNs <= 0) return MediaCodec.INFO_TRY_AGAIN_LATER;
+                if (timeoutUs < 0 && delayNs == Long.MAX_VALUE) {
+                    mChanged.awaitUninterruptibly();
+                } else if (timeoutUs < 0) {
+                    mChanged.awaitNanos(delayNs);
+                } else {
+                    long slept = Math.min(waitNs, delayNs);
+                    waitNs -= slept - mChanged.awaitNanos(slept);
+                }
+            }
+            int index = mReadyOutputs.poll();
+            copy(mOutputInfos[index], info);
+            return index;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index].duplicate();
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return null;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        releaseOutputBuffer(index, render, mOutputInfos[index].presentationTimeUs);
+    }
+
+    private void releaseOutputBuffer(int index, boolean render, long presentationTimeUs) {
+        boolean frame = mOutputInfos[index].size > 0;
+        mLock.lock();
+        try {
+            if (!mStarted) throw new IllegalStateException("not started");
+            // e.g. one dequeued before a flush
+            if (mFreeOutputs.contains(index) || mReadyOutputs.contains(index)) {
+                throw new IllegalStateException("output buffer " + index + " is not dequeued");
+            }
+            if (render && frame) mRendered.add(mOutputInfos[index].presentationTimeUs);
+            mFreeOutputs.add(index);
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        if (render && mRenderTarget != null && frame) mRenderTarget.onSurfaceFrame(presentationTimeUs);
+    }
+
+    // the presentation times of every frame rendered so far
+    long[] renderedTimesUs() {
+        mLock.lock();
+        try {
+            long[] times = new long[mRendered.size()];
+            for (int i = 0; i < times.length; i++) times[i] = mRendered.get(i);
+            return times;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        // the render time becomes the timestamp of the surface frame, as on a device
+        releaseOutputBuffer(index, true, renderTimestampNs / 1000);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        // surface input: no input buffer carries the flag, so queue an empty EOS sample directly
+        queueInputBuffer(-1, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+        if (params.containsKey(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME)) {
+            mLock.lock();
+            try {
+                // the next queued sample comes out flagged as a key frame
+                mSyncRequested = true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    // as MediaCodec: in callback mode the codec waits for start(), otherwise it runs on
+    @Override
+    public void flush() {
+        stop();
+        mFlushed = true;
+        if (mCallback == null) start();
+    }
+
+    @Override
+    public void stop() {
+        mLock.lock();
+        try {
+            mStarted = false;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        // the processor is done before its buffers are forgotten, so it can't put one back
+        join(mProcessor);
+        mLock.lock();
+        try {
+            mInputEnded = false;
+            mFreeInputs.clear();
+            mQueuedInputs.clear();
+            mFreeOutputs.clear();
+            mReadyOutputs.clear();
+            mHeldOutputs.clear();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null || thread == Thread.currentThread()) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+        if (mCallbackThread != null) mCallbackThread.quit();
+    }
+}
@@ -0,0 +1,151 @@
+package org.yeshen.hevc;
+
+import android.view.Surface;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// HevcDecodeThread's seek path over FakeCodec: playback continues at the seek target,
+// the frames from its keyframe up to it are decoded but not shown, and a seek that comes
+// after the last input went in restarts playback instead of being lost.
+public class HevcDecodeThreadTest {
+
+    private static final int FRAMES = 60;
+    private static final int GOP_FRAMES = 10;
+    private static final int BUFFER_COUNT = 4;
+    private static final int BUFFER_SIZE = 4096;
+    // fast enough to keep the test short, slow enough that no frame is late
+    private static final float PLAYBACK_RATE = 2;
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private volatile FakeCodec codec;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFile("seek.h265");
+        SyntheticStream.writeAnnexB(file, FRAMES, GOP_FRAMES);
+        PipelineMetrics.reset();
+    }
+
+    private HevcDecodeThread player() {
+        HevcDecodeThread player = new HevcDecodeThread(new Surface(), file, CodecDrivers.factory(new Codec.Factory() {
+            @Override
+            public Codec create() {
+                codec = new FakeCodec("fake-decoder", BUFFER_COUNT, BUFFER_SIZE);
+                return codec;
+            }
+        }));
+        player.setPlaybackRate(PLAYBACK_RATE);
+        return player;
+    }
+
+    private static long time(int frame) {
+        return frame * SyntheticStream.FRAME_US;
+    }
+
+    private long[] rendered() {
+        FakeCodec current = codec;
+        return current == null ? new long[0] : current.renderedTimesUs();
+    }
+
+    private void awaitRendered(int frame) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (true) {
+            long[] times = rendered();
+            if (times.length > 0 && times[times.length - 1] >= time(frame)) return;
+            assertTrue("frame " + frame + " not rendered", System.nanoTime() < deadlineNs);
+            Thread.sleep(5);
+        }
+    }
+
+    private void finish(HevcDecodeThread player) throws InterruptedException {
+        player.join(TIMEOUT_MS);
+        assertFalse("still playing", player.isAlive());
+    }
+
+    // where playback went on after the seek, the first frame not after the one before it
+    private static int restart(long[] times) {
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] <= times[i - 1]) return i;
+        }
+        return -1;
+    }
+
+    private static void assertPlaysOnFrom(long[] times, int from, long startUs) {
+        assertTrue("nothing after the seek", from >= 0 && from < times.length);
+        assertEquals(startUs, times[from]);
+        for (int i = from + 1; i < times.length; i++) {
+            assertTrue("out of order at " + i, times[i] > times[i - 1]);
+        }
+    }
+
+    @Test
+    public void seekBeforeTheFirstFrame() throws InterruptedException {
+        HevcDecodeThread player = player();
+        player.seekTo(time(45));
+        player.start();
+        finish(player);
+        long[] times = rendered();
+        assertPlaysOnFrom(times, 0, time(45));
+        // decoded from the keyframe at 40
+        assertEquals(5, PipelineMetrics.framesDiscardedSeeking.sum());
+        assertTrue(KeyframeIndex.sidecar(file).exists());
+    }
+
+    @Test
+    public void seekBackDuringPlayback() throws InterruptedException {
+        HevcDecodeThread player = player();
+        player.start();
+        awaitRendered(20);
+        player.seekTo(time(12));
+        finish(player);
+        long[] times = rendered();
+        int restart = restart(times);
+        assertPlaysOnFrom(times, restart, time(12));
+        assertEquals(2, PipelineMetrics.framesDiscardedSeeking.sum());
+        assertEquals(time(FRAMES - 1), times[times.length - 1]);
+    }
+
+    @Test
+    public void seekAfterTheLastInputRestarts() throws InterruptedException {
+        HevcDecodeThread player = player();
+        player.start();
+        // the end of stream is in the decoder by now, the thread waits for its output
+        awaitRendered(FRAMES - 5);
+        player.seekTo(0);
+        finish(player);
+        long[] times = rendered();
+        assertPlaysOnFrom(times, restart(times), 0);
+        assertEquals(time(FRAMES - 1), times[times.length - 1]);
+    }
+
+    @Test
+    public void endsOnItsOwn() throws InterruptedException {
+        HevcDecodeThread player = player();
+        player.setPlaybackRate(PLAYBACK_RATE * 4);
+        player.start();
+        finish(player);
+        assertEquals(FRAMES, PipelineMetrics.framesDecoded.sum());
+        assertEquals(FRAMES, PipelineMetrics.framesRendered.sum() + PipelineMetrics.framesDroppedLate.sum());
+    }
+}
@@ -0,0 +1,154 @@
+package org.yeshen.hevc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// KeyframeIndex: the table build() makes from a reader, the .kfi sidecar load() keeps next
+// to the file and drops once the file changed, and the floor lookups a seek starts from.
+public class KeyframeIndexTest {
+
+    private static final int FRAMES = 60;
+    private static final int GOP_FRAMES = 10;
+    private static final int FRAME_RATE = 30;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static KeyframeIndex build(File file) throws IOException {
+        SampleReader reader = SampleReader.open(file, FRAME_RATE);
+        try {
+            return KeyframeIndex.build(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void assertSameIndex(KeyframeIndex expected, KeyframeIndex actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.frameCount(), actual.frameCount());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.offset(i), actual.offset(i));
+            assertEquals(expected.frame(i), actual.frame(i));
+            assertEquals(expected.presentationTimeUs(i), actual.presentationTimeUs(i));
+        }
+    }
+
+    @Test
+    public void buildFindsEveryKeyframe() throws IOException {
+        File file = folder.newFile("stream.h265");
+        long[] offsets = SyntheticStream.writeAnnexB(file, FRAMES, GOP_FRAMES);
+        KeyframeIndex index = build(file);
+        assertEquals(FRAMES / GOP_FRAMES, index.size());
+        assertEquals(FRAMES, index.frameCount());
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals(offsets[i * GOP_FRAMES], index.offset(i));
+            assertEquals(i * GOP_FRAMES, index.frame(i));
+            assertEquals(i * GOP_FRAMES * SyntheticStream.FRAME_US, index.presentationTimeUs(i));
+        }
+    }
+
+    @Test
+    public void loadKeepsASidecarAndUsesIt() throws IOException {
+        File file = folder.newFile("stream.h265");
+        SyntheticStream.writeAnnexB(file, FRAMES, GOP_FRAMES);
+        File sidecar = KeyframeIndex.sidecar(file);
+        KeyframeIndex built = KeyframeIndex.load(file, FRAME_RATE);
+        assertTrue(sidecar.exists());
+        assertSameIndex(built, KeyframeIndex.read(sidecar, file));
+
+        // a sidecar that is current is taken as it is, the file is not walked again
+        KeyframeIndex made = new KeyframeIndex();
+        made.add(1234, 7, 5678);
+        made.write(sidecar, file);
+        assertSameIndex(made, KeyframeIndex.load(file, FRAME_RATE));
+    }
+
+    @Test
+    public void sidecarOfAnotherVersionIsRebuilt() throws IOException {
+        File file = folder.newFile("stream.h265");
+        SyntheticStream.writeAnnexB(file, FRAMES, GOP_FRAMES);
+        File sidecar = KeyframeIndex.sidecar(file);
+        KeyframeIndex.load(file, FRAME_RATE);
+
+        // same length, touched
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        assertNull(KeyframeIndex.read(sidecar, file));
+
+        // rewritten with more frames
+        SyntheticStream.writeAnnexB(file, FRAMES * 2, GOP_FRAMES);
+        assertNull(KeyframeIndex.read(sidecar, file));
+        KeyframeIndex index = KeyframeIndex.load(file, FRAME_RATE);
+        assertEquals(FRAMES * 2 / GOP_FRAMES, index.size());
+        assertEquals(FRAMES * 2, index.frameCount());
+        // and saved again for the new version
+        assertSameIndex(index, KeyframeIndex.read(sidecar, file));
+    }
+
+    @Test
+    public void damagedSidecarIsRebuilt() throws IOException {
+        File file = folder.newFile("stream.h265");
+        SyntheticStream.writeAnnexB(file, FRAMES, GOP_FRAMES);
+        File sidecar = KeyframeIndex.sidecar(file);
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(sidecar));
+        out.writeInt(0x12345678);
+        out.close();
+        assertNull(KeyframeIndex.read(sidecar, file));
+
+        // current header, cut off in the middle of the table
+        KeyframeIndex.load(file, FRAME_RATE);
+        long length = sidecar.length();
+        RandomAccessFile truncate = new RandomAccessFile(sidecar, "rw");
+        truncate.setLength(length - 4);
+        truncate.close();
+        try {
+            KeyframeIndex.read(sidecar, file);
+            fail("read a truncated sidecar");
+        } catch (IOException expected) {
+        }
+        KeyframeIndex index = KeyframeIndex.load(file, FRAME_RATE);
+        assertEquals(FRAMES / GOP_FRAMES, index.size());
+        assertNotNull(KeyframeIndex.read(sidecar, file));
+    }
+
+    @Test
+    public void floorLookups() {
+        KeyframeIndex index = new KeyframeIndex();
+        index.add(100, 3, 100000);
+        index.add(200, 13, 433333);
+        // two keyframes presented at the same time, e.g. an IDR after a CRA
+        index.add(300, 23, 766666);
+        index.add(400, 24, 766666);
+
+        assertEquals(-1, index.floorTime(0));
+        assertEquals(0, index.floorTime(100000));
+        assertEquals(0, index.floorTime(433332));
+        assertEquals(1, index.floorTime(433333));
+        assertEquals(3, index.floorTime(766666));
+        assertEquals(3, index.floorTime(Long.MAX_VALUE));
+
+        assertEquals(-1, index.floor(2));
+        assertEquals(0, index.floor(3));
+        assertEquals(1, index.floor(22));
+        assertEquals(3, index.floor(1000));
+    }
+}
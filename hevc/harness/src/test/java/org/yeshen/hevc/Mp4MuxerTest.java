@@ -0,0 +1,271 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Mp4Muxer -> Mp4SampleReader with SyntheticStream access units: the hvcC made from
+// FakeCodec's parameter sets, the trun data offsets, durations and sample flags, the tfdt
+// of every fragment and the free boxes of write alignment. Frames are 40 ms apart, a whole
+// number of ticks, with gaps inside a fragment and in front of one, as dropped frames leave.
+public class Mp4MuxerTest {
+
+    private static final long FRAME_US = 40000;
+    private static final int FRAME_RATE = 25;
+    private static final int FRAMES = 25;
+    private static final int GOP_FRAMES = 10;
+    private static final int FRAGMENT_FRAMES = 4;
+    // frames 6 and 14 come after a gap; 14 starts a fragment, 6 does not
+    private static final int[] GAPS_BEFORE = {6, 14};
+    private static final int GAP_FRAMES = 3;
+    private static final long FIRST_US = 1000000;
+    private static final int ALIGNMENT = 4096;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static long presentationTimeUs(int frame) {
+        long timeUs = FIRST_US + frame * FRAME_US;
+        for (int gap : GAPS_BEFORE) {
+            if (frame >= gap) timeUs += GAP_FRAMES * FRAME_US;
+        }
+        return timeUs;
+    }
+
+    private static HevcSps write(File file, boolean inBand, int alignment) throws IOException {
+        Mp4Muxer muxer = new Mp4Muxer(new RandomAccessFile(file, "rw").getChannel(), FRAGMENT_FRAMES, FRAME_RATE, inBand);
+        try {
+            muxer.setWriteAlignment(alignment);
+            muxer.writeConfig(ByteBuffer.wrap(FakeCodec.PARAMETER_SETS), 0, 0);
+            for (int i = 0; i < FRAMES; i++) {
+                boolean key = i % GOP_FRAMES == 0;
+                muxer.writeSample(ByteBuffer.wrap(SyntheticStream.accessUnit(i, key)), presentationTimeUs(i), key);
+            }
+            return muxer.sps();
+        } finally {
+            muxer.close();
+        }
+    }
+
+    // what the reader gives back: the access unit, without the parameter sets in an hvc1 track
+    private static byte[] expected(int frame, boolean inBand) {
+        boolean key = frame % GOP_FRAMES == 0;
+        byte[] unit = SyntheticStream.accessUnit(frame, key);
+        if (!key || inBand) return unit;
+        return Arrays.copyOfRange(unit, FakeCodec.PARAMETER_SETS.length, unit.length);
+    }
+
+    private static void assertRoundTrip(File file, boolean inBand) throws IOException {
+        SampleReader reader = SampleReader.open(file, FRAME_RATE);
+        try {
+            assertTrue(reader instanceof Mp4SampleReader);
+            assertArrayEquals(FakeCodec.PARAMETER_SETS, reader.csd);
+            assertEquals(1280, reader.width);
+            assertEquals(720, reader.height);
+            SampleReader.Sample sample = new SampleReader.Sample();
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            for (int i = 0; i < FRAMES; i++) {
+                assertTrue("frame " + i, reader.next(sample));
+                // rebased to the first sample
+                assertEquals("frame " + i, presentationTimeUs(i) - FIRST_US, sample.presentationTimeUs);
+                assertEquals("frame " + i, i % GOP_FRAMES == 0, (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                assertTrue(reader.annexBSize(sample) >= sample.size);
+                buffer.clear();
+                int size = reader.read(sample, buffer);
+                assertArrayEquals("frame " + i, expected(i, inBand), Arrays.copyOf(buffer.array(), size));
+            }
+            assertTrue(!reader.next(sample));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static final class Box {
+        final int offset;
+        final int size;
+        final String type;
+
+        Box(int offset, int size, String type) {
+            this.offset = offset;
+            this.size = size;
+            this.type = type;
+        }
+    }
+
+    // the boxes of data between start and end, not descending into them
+    private static List<Box> boxes(ByteBuffer data, int start, int end) {
+        List<Box> boxes = new ArrayList<>();
+        for (int offset = start; offset < end; ) {
+            int size = data.getInt(offset);
+            byte[] type = new byte[4];
+            for (int i = 0; i < 4; i++) type[i] = data.get(offset + 4 + i);
+            assertTrue("box at " + offset, size >= 8 && offset + size <= end);
+            boxes.add(new Box(offset, size, new String(type)));
+            offset += size;
+        }
+        return boxes;
+    }
+
+    private static Box child(ByteBuffer data, Box parent, int header, String type) {
+        for (Box box : boxes(data, parent.offset + header, parent.offset + parent.size)) {
+            if (box.type.equals(type)) return box;
+        }
+        throw new AssertionError("no " + type + " in " + parent.type);
+    }
+
+    private static List<Box> topLevel(ByteBuffer data, String type) {
+        List<Box> found = new ArrayList<>();
+        for (Box box : boxes(data, 0, data.limit())) {
+            if (box.type.equals(type)) found.add(box);
+        }
+        return found;
+    }
+
+    @Test
+    public void samplesRoundTripWithTheirTimesAndFlags() throws IOException {
+        File file = folder.newFile("out.mp4");
+        write(file, false, 0);
+        assertRoundTrip(file, false);
+
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<Box> moofs = topLevel(data, "moof");
+        List<Box> mdats = topLevel(data, "mdat");
+        // cut at every keyframe and after FRAGMENT_FRAMES samples
+        int[] fragmentStarts = {0, 4, 8, 10, 14, 18, 20, 24};
+        assertEquals(fragmentStarts.length, moofs.size());
+        assertEquals(moofs.size(), mdats.size());
+        for (int f = 0; f < moofs.size(); f++) {
+            Box moof = moofs.get(f);
+            Box traf = child(data, moof, 8, "traf");
+            Box tfdt = child(data, traf, 8, "tfdt");
+            Box trun = child(data, traf, 8, "trun");
+            int start = fragmentStarts[f];
+            int samples = (f + 1 < fragmentStarts.length ? fragmentStarts[f + 1] : FRAMES) - start;
+            assertEquals(1, data.get(tfdt.offset + 8));
+            assertEquals((presentationTimeUs(start) - FIRST_US) * Mp4Muxer.TIMESCALE / 1000000, data.getLong(tfdt.offset + 12));
+            assertEquals(samples, data.getInt(trun.offset + 12));
+            // the data offset is from the moof and points past the header of the mdat that follows
+            Box mdat = mdats.get(f);
+            assertEquals(moof.offset + moof.size, mdat.offset);
+            assertEquals(mdat.offset + 8 - moof.offset, data.getInt(trun.offset + 16));
+            int sizes = 0;
+            for (int i = 0; i < samples; i++) {
+                int entry = trun.offset + 20 + 12 * i;
+                int frame = start + i;
+                // the last sample of a fragment gets the frame rate's duration, the real
+                // time of the next one is in its tfdt
+                long durationUs = i + 1 < samples ? presentationTimeUs(frame + 1) - presentationTimeUs(frame) : FRAME_US;
+                assertEquals("frame " + frame, durationUs * Mp4Muxer.TIMESCALE / 1000000, data.getInt(entry));
+                // 4 byte NAL lengths instead of start codes
+                assertEquals("frame " + frame, expected(frame, false).length, data.getInt(entry + 4));
+                boolean key = frame % GOP_FRAMES == 0;
+                assertEquals("frame " + frame, key ? 0x02000000 : 0x01010000, data.getInt(entry + 8));
+                sizes += data.getInt(entry + 4);
+            }
+            assertEquals(mdat.size - 8, sizes);
+        }
+    }
+
+    @Test
+    public void hvcCCarriesTheParsedSps() throws IOException {
+        File file = folder.newFile("out.mp4");
+        HevcSps sps = write(file, false, 0);
+        assertEquals(1280, sps.width);
+        assertEquals(720, sps.height);
+        assertEquals(1, sps.generalProfileIdc);
+        assertEquals(0, sps.generalTierFlag);
+        assertEquals(93, sps.generalLevelIdc);
+        assertEquals(1, sps.chromaFormatIdc);
+        assertEquals(0, sps.bitDepthLumaMinus8);
+        assertEquals(0, sps.bitDepthChromaMinus8);
+
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        Box moov = topLevel(data, "moov").get(0);
+        Box stsd = child(data, child(data, child(data, child(data, child(data, moov, 8, "trak"),
+                8, "mdia"), 8, "minf"), 8, "stbl"), 8, "stsd");
+        Box entry = child(data, stsd, 16, "hvc1");
+        assertEquals(1280, data.getShort(entry.offset + 32));
+        assertEquals(720, data.getShort(entry.offset + 34));
+        Box hvcC = child(data, entry, 8 + 78, "hvcC");
+        int record = hvcC.offset + 8;
+        assertEquals(1, data.get(record));
+        assertEquals(sps.generalProfileIdc, data.get(record + 1) & 0x1F);
+        assertEquals(sps.generalProfileCompatibilityFlags, data.getInt(record + 2) & 0xFFFFFFFFL);
+        assertEquals(sps.generalLevelIdc, data.get(record + 12) & 0xFF);
+        assertEquals(sps.chromaFormatIdc, data.get(record + 16) & 0x03);
+        // 4 byte NAL lengths
+        assertEquals(3, data.get(record + 21) & 0x03);
+        // VPS, SPS and PPS, one of each
+        assertEquals(3, data.get(record + 22));
+        int position = record + 23;
+        for (int type : new int[]{HevcNal.VPS, HevcNal.SPS, HevcNal.PPS}) {
+            assertEquals(0x80 | type, data.get(position) & 0xFF);
+            assertEquals(1, data.getShort(position + 1));
+            assertEquals(type, HevcNal.type(data.get(position + 5)));
+            position += 5 + data.getShort(position + 3);
+        }
+        assertEquals(hvcC.offset + hvcC.size, position);
+    }
+
+    @Test
+    public void inBandParameterSetsStayInTheSamples() throws IOException {
+        File file = folder.newFile("out.mp4");
+        write(file, true, 0);
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        Box moov = topLevel(data, "moov").get(0);
+        Box stsd = child(data, child(data, child(data, child(data, child(data, moov, 8, "trak"),
+                8, "mdia"), 8, "minf"), 8, "stbl"), 8, "stsd");
+        child(data, stsd, 16, "hev1");
+        assertRoundTrip(file, true);
+    }
+
+    @Test
+    public void alignedFragmentsEndOnTheBoundary() throws IOException {
+        File file = folder.newFile("out.mp4");
+        write(file, false, ALIGNMENT);
+        assertEquals(0, file.length() % ALIGNMENT);
+        // the reader steps over the free boxes
+        assertRoundTrip(file, false);
+
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<Box> boxes = boxes(data, 0, data.limit());
+        int fragments = 0;
+        for (int i = 0; i < boxes.size(); i++) {
+            Box box = boxes.get(i);
+            if (!box.type.equals("mdat")) continue;
+            fragments++;
+            // each fragment write is moof + mdat + free and ends on the boundary
+            Box free = boxes.get(i + 1);
+            assertEquals("free", free.type);
+            assertTrue(free.size >= 8 && free.size < ALIGNMENT + 8);
+            assertEquals(0, (free.offset + free.size) % ALIGNMENT);
+        }
+        assertEquals(8, fragments);
+        // the header is written on its own, so only the first moof may start off the boundary
+        List<Box> moofs = topLevel(data, "moof");
+        for (int f = 1; f < moofs.size(); f++) {
+            assertEquals(0, moofs.get(f).offset % ALIGNMENT);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// ParallelTranscoder over a SyntheticStream of GOPS keyframe intervals on WORKERS workers,
+// so that every GOP becomes a segment of its own. The FakeCodec encoders only make their
+// first frame a keyframe, the keyframes of the target are where the segments start.
+// Every part begins at 0 on its own timeline; stitched, the target runs on as the source did.
+public class ParallelTranscoderTest {
+
+    private static final int WORKERS = 2;
+    private static final int GOPS = WORKERS * ParallelTranscoder.SEGMENTS_PER_WORKER;
+    private static final int GOP_FRAMES = 30;
+    private static final int FRAMES = GOPS * GOP_FRAMES;
+    private static final int BUFFER_COUNT = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // the parameter sets of another encoder, only the PPS differs
+    private static final byte[] OTHER_PARAMETER_SETS = FakeCodec.PARAMETER_SETS.clone();
+
+    static {
+        OTHER_PARAMETER_SETS[OTHER_PARAMETER_SETS.length - 1] ^= 0x01;
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakeCodec.Model decoderModel = new FakeCodec.Model();
+    private final FakeCodec.Model encoderModel = new FakeCodec.Model();
+    private final FakeCodec.Model otherEncoderModel = new FakeCodec.Model();
+    private final AtomicInteger encodersCreated = new AtomicInteger();
+    private File source;
+    private File target;
+
+    @Before
+    public void setUp() throws IOException {
+        decoderModel.latencyUs = 1000;
+        for (FakeCodec.Model model : Arrays.asList(encoderModel, otherEncoderModel)) {
+            model.synthesize = true;
+            model.frameRate = Transcoder.FRAME_RATE;
+            model.gopFrames = Integer.MAX_VALUE;
+            model.latencyUs = 2000;
+        }
+        otherEncoderModel.parameterSets = OTHER_PARAMETER_SETS;
+        source = folder.newFile("long.h265");
+        SyntheticStream.writeAnnexB(source, FRAMES, GOP_FRAMES);
+        target = new File(folder.getRoot(), "long.mp4");
+    }
+
+    // with mixed, every other encoder created has the other parameter sets
+    private ParallelTranscoder transcoder(final boolean mixed) {
+        Codec.Factory encoders = new Codec.Factory() {
+            @Override
+            public Codec create() {
+                boolean other = mixed && encodersCreated.getAndIncrement() % 2 == 1;
+                return new FakeCodec("fake-encoder", BUFFER_COUNT, BUFFER_SIZE,
+                        other ? otherEncoderModel : encoderModel);
+            }
+        };
+        return new ParallelTranscoder(source, target, 1000000, 0, 0, WORKERS,
+                CodecDrivers.factory(FakeCodec.factory("fake-decoder", BUFFER_COUNT, BUFFER_SIZE, decoderModel)),
+                CodecDrivers.factory(encoders));
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        return data.length >= prefix.length && Arrays.equals(Arrays.copyOf(data, prefix.length), prefix);
+    }
+
+    private static boolean contains(byte[] data, String fourcc) {
+        return new String(data, StandardCharsets.ISO_8859_1).contains(fourcc);
+    }
+
+    // every frame of the source once, each presented where it was in the source, a keyframe
+    // exactly where a segment starts; returns the access units of the segment starts
+    private byte[][] assertStitched() throws IOException {
+        byte[][] starts = new byte[GOPS][];
+        SampleReader reader = SampleReader.open(target, Transcoder.FRAME_RATE);
+        try {
+            SampleReader.Sample sample = new SampleReader.Sample();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            int frame = 0;
+            long last = -1;
+            while (reader.next(sample)) {
+                assertTrue("frame " + frame + " at " + sample.presentationTimeUs + " after " + last,
+                        sample.presentationTimeUs > last);
+                // in 90 kHz ticks, so within a tick or two of the source
+                assertEquals(frame * SyntheticStream.FRAME_US, sample.presentationTimeUs, 100);
+                boolean key = (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+                assertEquals("keyframe flag of frame " + frame, frame % GOP_FRAMES == 0, key);
+                if (key) {
+                    buffer.clear();
+                    reader.read(sample, buffer);
+                    buffer.flip();
+                    starts[frame / GOP_FRAMES] = new byte[buffer.remaining()];
+                    buffer.get(starts[frame / GOP_FRAMES]);
+                }
+                last = sample.presentationTimeUs;
+                frame++;
+            }
+            assertEquals(FRAMES, frame);
+        } finally {
+            reader.close();
+        }
+        return starts;
+    }
+
+    private void assertCleanedUp(ParallelTranscoder transcoder) {
+        for (int i = 0; i < transcoder.segmentCount(); i++) {
+            assertFalse(new File(target.getPath() + ".part" + i).exists());
+        }
+    }
+
+    @Test
+    public void segmentsOnEveryWorkerStitchIntoOneTimeline() throws Exception {
+        ParallelTranscoder transcoder = transcoder(false);
+        transcoder.transcode();
+
+        assertEquals(GOPS, transcoder.segmentCount());
+        assertEquals(FRAMES, transcoder.framesEncoded());
+        assertEquals(FRAMES, transcoder.framesStitched());
+        assertEquals(1f, transcoder.progressFraction(), 0f);
+        for (int i = 0; i < WORKERS; i++) {
+            assertTrue(transcoder.report(), transcoder.utilization(i) > 0);
+        }
+        assertCleanedUp(transcoder);
+
+        // one encoder's parameter sets, out of band in an hvc1 track
+        byte[] file = Files.readAllBytes(target.toPath());
+        assertTrue(contains(file, "hvc1"));
+        assertFalse(contains(file, "hev1"));
+        SampleReader reader = SampleReader.open(target, Transcoder.FRAME_RATE);
+        try {
+            assertArrayEquals(FakeCodec.PARAMETER_SETS, reader.csd);
+        } finally {
+            reader.close();
+        }
+        for (byte[] start : assertStitched()) {
+            assertEquals(HevcNal.IDR_W_RADL, HevcNal.type(start[4]));
+        }
+    }
+
+    @Test
+    public void differentParameterSetsGoInBand() throws Exception {
+        ParallelTranscoder transcoder = transcoder(true);
+        transcoder.transcode();
+
+        assertEquals(GOPS, encodersCreated.get());
+        assertEquals(FRAMES, transcoder.framesStitched());
+        assertCleanedUp(transcoder);
+
+        byte[] file = Files.readAllBytes(target.toPath());
+        assertTrue(contains(file, "hev1"));
+        assertFalse(contains(file, "hvc1"));
+        // every segment repeats the parameter sets its encoder made in front of its IDR
+        int others = 0;
+        for (byte[] start : assertStitched()) {
+            boolean other = startsWith(start, OTHER_PARAMETER_SETS);
+            assertTrue(other || startsWith(start, FakeCodec.PARAMETER_SETS));
+            int length = FakeCodec.PARAMETER_SETS.length;
+            assertEquals(HevcNal.IDR_W_RADL, HevcNal.type(start[length + 4]));
+            if (other) others++;
+        }
+        assertEquals(GOPS / 2, others);
+    }
+}
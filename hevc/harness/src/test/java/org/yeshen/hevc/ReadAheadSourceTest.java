@@ -0,0 +1,286 @@
+package org.yeshen.hevc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// ReadAheadSource over an AnnexBSampleReader and an Mp4SampleReader of the same synthetic
+// frames: it hands out what the reader returns, in order, never more than depth ahead; the
+// stalls land on the side that waits; a seek gets through to a demux thread that is blocked
+// on a full ring or parked at the end of stream; close() stops it in either place.
+@RunWith(Parameterized.class)
+public class ReadAheadSourceTest {
+
+    private static final int FRAMES = 60;
+    private static final int GOP_FRAMES = 10;
+    private static final int FRAME_RATE = 30;
+    private static final int DEPTH = 4;
+    private static final long READ_DELAY_MS = 2;
+    private static final long POLL_TIMEOUT_US = 1000000;
+    private static final long TIMEOUT_MS = 5000;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> formats() {
+        return Arrays.asList(new Object[][]{{"h265"}, {"mp4"}});
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final String format;
+    private File file;
+    private KeyframeIndex index;
+    private final List<Expected> expected = new ArrayList<>();
+    private ReadAheadSource source;
+
+    public ReadAheadSourceTest(String format) {
+        this.format = format;
+    }
+
+    private static final class Expected {
+        final byte[] data;
+        final long presentationTimeUs;
+        final int flags;
+
+        Expected(byte[] data, long presentationTimeUs, int flags) {
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    // the reader the source runs, slowed down on request; remembers being closed
+    private static final class TestReader extends SampleReader {
+        final SampleReader reader;
+        volatile long delayMs;
+        volatile boolean closed;
+
+        TestReader(SampleReader reader) {
+            this.reader = reader;
+            csd = reader.csd;
+            width = reader.width;
+            height = reader.height;
+            durationUs = reader.durationUs;
+        }
+
+        @Override
+        boolean next(Sample sample) throws IOException {
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return reader.next(sample);
+        }
+
+        @Override
+        int annexBSize(Sample sample) {
+            return reader.annexBSize(sample);
+        }
+
+        @Override
+        int read(Sample sample, ByteBuffer dst) throws IOException {
+            return reader.read(sample, dst);
+        }
+
+        @Override
+        void seek(long offset, long presentationTimeUs) throws IOException {
+            reader.seek(offset, presentationTimeUs);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            reader.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFile("stream." + format);
+        if (format.equals("h265")) {
+            SyntheticStream.writeAnnexB(file, FRAMES, GOP_FRAMES);
+        } else {
+            Mp4Muxer muxer = new Mp4Muxer(new RandomAccessFile(file, "rw").getChannel(), GOP_FRAMES, FRAME_RATE, false);
+            try {
+                muxer.writeConfig(ByteBuffer.wrap(FakeCodec.PARAMETER_SETS), 0, 0);
+                for (int i = 0; i < FRAMES; i++) {
+                    boolean key = i % GOP_FRAMES == 0;
+                    muxer.writeSample(ByteBuffer.wrap(SyntheticStream.accessUnit(i, key)), i * SyntheticStream.FRAME_US, key);
+                }
+            } finally {
+                muxer.close();
+            }
+        }
+        index = KeyframeIndex.load(file, FRAME_RATE);
+        assertEquals(FRAMES / GOP_FRAMES, index.size());
+        SampleReader reader = SampleReader.open(file, FRAME_RATE);
+        try {
+            SampleReader.Sample sample = new SampleReader.Sample();
+            while (reader.next(sample)) {
+                ByteBuffer buffer = ByteBuffer.allocate(reader.annexBSize(sample));
+                reader.read(sample, buffer);
+                expected.add(new Expected(Arrays.copyOf(buffer.array(), buffer.position()),
+                        sample.presentationTimeUs, sample.flags));
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(FRAMES, expected.size());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (source != null) source.close();
+    }
+
+    private TestReader start() throws IOException {
+        return start(0);
+    }
+
+    private TestReader start(long delayMs) throws IOException {
+        TestReader reader = new TestReader(SampleReader.open(file, FRAME_RATE));
+        reader.delayMs = delayMs;
+        source = new ReadAheadSource(reader, DEPTH);
+        source.start();
+        return reader;
+    }
+
+    private ReadAheadSource.Unit poll() throws IOException {
+        // units read before a seek are dropped, the caller asks again
+        for (int i = 0; i <= DEPTH; i++) {
+            ReadAheadSource.Unit unit = source.poll(POLL_TIMEOUT_US);
+            if (unit != null) return unit;
+        }
+        throw new AssertionError("no unit within " + (DEPTH + 1) * POLL_TIMEOUT_US / 1000 + " ms");
+    }
+
+    private void assertUnit(int frame, ReadAheadSource.Unit unit) {
+        assertFalse("frame " + frame, unit.endOfStream);
+        Expected sample = expected.get(frame);
+        assertEquals("frame " + frame, sample.presentationTimeUs, unit.presentationTimeUs);
+        assertEquals("frame " + frame, sample.flags, unit.flags);
+        byte[] data = new byte[unit.data.remaining()];
+        unit.data.duplicate().get(data);
+        assertArrayEquals("frame " + frame, sample.data, data);
+    }
+
+    // takes and recycles frames from..FRAMES, then the end of stream
+    private void assertRest(int from) throws IOException {
+        for (int frame = from; frame < FRAMES; frame++) {
+            ReadAheadSource.Unit unit = poll();
+            assertUnit(frame, unit);
+            source.recycle(unit);
+        }
+        ReadAheadSource.Unit end = poll();
+        assertTrue(end.endOfStream);
+        assertEquals(0, end.data == null ? 0 : end.data.remaining());
+        source.recycle(end);
+    }
+
+    // until the demux thread has filled every free slot and waits for another one
+    private void awaitFull(int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (source.depth() < depth) {
+            assertTrue("depth " + source.depth(), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void readsAheadUpToItsDepth() throws Exception {
+        start();
+        awaitFull(DEPTH);
+        // blocked on the full ring, nothing read beyond it
+        Thread.sleep(20);
+        assertEquals(DEPTH, source.depth());
+        assertEquals(DEPTH, source.unitsRead());
+
+        assertRest(0);
+        assertEquals(FRAMES, source.unitsRead());
+        assertEquals(DEPTH, source.maxDepth());
+        // the demux thread waited on the consumer, which found the ring full at first
+        assertTrue(source.producerWaitNs() >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void aSlowReaderStallsTheConsumer() throws Exception {
+        start(READ_DELAY_MS);
+        long startNs = System.nanoTime();
+        assertRest(0);
+        long elapsedNs = System.nanoTime() - startNs;
+
+        // most of the time went into waiting for the reader
+        long stallNs = source.consumerStallNs();
+        assertTrue(stallNs + " of " + elapsedNs, stallNs >= elapsedNs / 2);
+        assertTrue(stallNs <= elapsedNs);
+        assertTrue(source.producerWaitNs() < stallNs);
+        assertTrue(source.maxDepth() < DEPTH);
+    }
+
+    @Test
+    public void seekReachesTheBlockedProducer() throws Exception {
+        start();
+        // one unit taken and kept across the seek, the rest of the ring is full
+        ReadAheadSource.Unit held = poll();
+        assertUnit(0, held);
+        awaitFull(DEPTH - 1);
+        int keyframe = 3;
+        int frame = (int) index.frame(keyframe);
+        source.seek(index.offset(keyframe), index.presentationTimeUs(keyframe));
+        source.recycle(held);
+        assertRest(frame);
+
+        // parked at the end of stream until this seek
+        Thread.sleep(20);
+        source.seek(index.offset(0), index.presentationTimeUs(0));
+        assertRest(0);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void closeStopsTheProducerOnAFullRing() throws Exception {
+        TestReader reader = start();
+        awaitFull(DEPTH);
+        source.close();
+        assertTrue(reader.closed);
+        source = null;
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void closeStopsTheProducerAtTheEnd() throws Exception {
+        TestReader reader = start();
+        assertRest(0);
+        // the demux thread is parked, waiting for a seek
+        Thread.sleep(20);
+        source.close();
+        assertTrue(reader.closed);
+        source = null;
+    }
+}
@@ -0,0 +1,243 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// RecordingWriter fed SyntheticStream access units the way a PacketBus feeds it: segments
+// rotate at keyframes, live as .part until they are finished, continue the numbering of
+// what is already in the directory, and a full queue drops frames up to the next keyframe.
+// To fill the queue the writer thread is held in data() of the packet it writes first.
+public class RecordingWriterTest {
+
+    private static final int GOP_FRAMES = 10;
+    private static final int FRAME_RATE = 30;
+    private static final int QUEUE_DEPTH = 120;
+    private static final long TIMEOUT_MS = 5000;
+    private static final String PREFIX = "rec";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // the writer thread waits in data() of a gated packet until gate is opened
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final CountDownLatch gated = new CountDownLatch(1);
+    private File directory;
+    private RecordingWriter writer;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("recordings");
+    }
+
+    @After
+    public void tearDown() {
+        gate.countDown();
+        if (writer != null) writer.stop();
+    }
+
+    private RecordingWriter start(int queueDepth, long segmentDurationUs) {
+        writer = new RecordingWriter(directory, PREFIX, 1280, 720, FRAME_RATE, GOP_FRAMES, queueDepth);
+        writer.segmentDurationUs = segmentDurationUs;
+        writer.alignment = 0;
+        writer.flushIntervalMs = 10;
+        writer.setConfig(ByteBuffer.wrap(FakeCodec.PARAMETER_SETS));
+        writer.start();
+        return writer;
+    }
+
+    private static long presentationTimeUs(int frame) {
+        return frame * SyntheticStream.FRAME_US;
+    }
+
+    // as a PacketBus would: the writer keeps a reference, the publisher lets go of its own
+    private void publish(int frame, boolean gated) {
+        boolean key = frame % GOP_FRAMES == 0;
+        EncodedPacket packet = gated ? new EncodedPacket() {
+            @Override
+            ByteBuffer data() {
+                RecordingWriterTest.this.gated.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.data();
+            }
+        } : new EncodedPacket();
+        packet.reset(null, ByteBuffer.wrap(SyntheticStream.accessUnit(frame, key)), presentationTimeUs(frame),
+                key ? EncodedPacket.FLAG_KEY_FRAME : 0, null);
+        writer.onPacket(packet);
+        packet.release();
+    }
+
+    private void publish(int frame) {
+        publish(frame, false);
+    }
+
+    private void publish(int from, int to) {
+        for (int frame = from; frame < to; frame++) publish(frame);
+    }
+
+    private void awaitWritten() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (writer.queueDepth() > 0) {
+            assertTrue("queue at " + writer.queueDepth(), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    // until the writer has flushed something into file
+    private void awaitFlushed(File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (file.length() == 0) {
+            assertTrue("no " + file, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private File segment(int index) {
+        return new File(directory, String.format("%s-%03d.mp4", PREFIX, index));
+    }
+
+    private static File part(File segment) {
+        return new File(segment.getPath() + ".part");
+    }
+
+    // the source frame numbers in segment, which has to start with a keyframe
+    private static List<Integer> frames(File segment, int firstFrame) throws IOException {
+        List<Integer> frames = new ArrayList<>();
+        SampleReader reader = SampleReader.open(segment, FRAME_RATE);
+        try {
+            SampleReader.Sample sample = new SampleReader.Sample();
+            while (reader.next(sample)) {
+                if (frames.isEmpty()) {
+                    assertTrue(segment + " starts without a keyframe", (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                }
+                // every segment starts at 0 on its own timeline
+                frames.add(firstFrame + (int) Math.round(sample.presentationTimeUs / (double) SyntheticStream.FRAME_US));
+            }
+        } finally {
+            reader.close();
+        }
+        return frames;
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> frames = new ArrayList<>();
+        for (int frame = from; frame < to; frame++) frames.add(frame);
+        return frames;
+    }
+
+    @Test
+    public void rotatesAtTheFirstKeyframePastTheDuration() throws Exception {
+        start(QUEUE_DEPTH, presentationTimeUs(2 * GOP_FRAMES) - SyntheticStream.FRAME_US / 2);
+        publish(0, 6 * GOP_FRAMES);
+        writer.stop();
+
+        assertEquals(3, writer.segmentCount());
+        assertEquals(0, writer.droppedCount());
+        assertEquals(0, writer.errorCount());
+        for (int i = 0; i < 3; i++) {
+            int first = i * 2 * GOP_FRAMES;
+            assertEquals(range(first, first + 2 * GOP_FRAMES), frames(segment(i), first));
+            assertFalse(part(segment(i)).exists());
+        }
+        assertEquals(3, directory.list().length);
+    }
+
+    @Test
+    public void aSegmentIsRenamedOnceItIsFinished() throws Exception {
+        start(QUEUE_DEPTH, 0);
+        publish(0, 2 * GOP_FRAMES);
+        awaitWritten();
+        // being written: only the .part
+        awaitFlushed(part(segment(0)));
+        assertFalse(segment(0).exists());
+
+        writer.stop();
+        assertFalse(part(segment(0)).exists());
+        assertEquals(range(0, 2 * GOP_FRAMES), frames(segment(0), 0));
+    }
+
+    @Test
+    public void numberingContinuesAfterTheSegmentsThere() throws Exception {
+        start(QUEUE_DEPTH, presentationTimeUs(GOP_FRAMES));
+        publish(0, 2 * GOP_FRAMES);
+        writer.stop();
+        assertTrue(segment(0).exists());
+        assertTrue(segment(1).exists());
+        // left behind by a process that was killed, and files of other names
+        byte[] killed = {1, 2, 3};
+        Files.write(part(segment(2)).toPath(), killed);
+        Files.write(new File(directory, "other-007.mp4").toPath(), killed);
+        Files.write(new File(directory, PREFIX + "-x.mp4").toPath(), killed);
+        byte[] first = Files.readAllBytes(segment(0).toPath());
+        assertEquals(3, RecordingWriter.nextSegmentIndex(directory, PREFIX));
+
+        start(QUEUE_DEPTH, 0);
+        publish(0, GOP_FRAMES);
+        writer.stop();
+        assertEquals(range(0, GOP_FRAMES), frames(segment(3), 0));
+        // nothing there before was touched
+        assertArrayEquals(first, Files.readAllBytes(segment(0).toPath()));
+        assertArrayEquals(killed, Files.readAllBytes(part(segment(2)).toPath()));
+        assertEquals(4, RecordingWriter.nextSegmentIndex(directory, PREFIX));
+        assertEquals(0, RecordingWriter.nextSegmentIndex(directory, "other-00"));
+        assertEquals(0, RecordingWriter.nextSegmentIndex(new File(directory, "missing"), PREFIX));
+    }
+
+    @Test
+    public void aFullQueueDropsToTheNextKeyframe() throws Exception {
+        int depth = 4;
+        start(depth, 0);
+        publish(0, true);
+        // the writer took frame 0 and is held writing it, frames 1..4 fill the queue
+        gated.await();
+        publish(1, 1 + depth);
+        assertEquals(depth, writer.queueDepth());
+        // dropped for the full queue: the rest of the GOP and the next keyframe with it
+        publish(1 + depth, GOP_FRAMES + 5);
+        assertEquals(GOP_FRAMES + 5 - 1 - depth, writer.droppedCount());
+
+        gate.countDown();
+        awaitWritten();
+        // room again, but frames that depend on a dropped one stay out until a keyframe
+        for (int frame = GOP_FRAMES + 5; frame < 3 * GOP_FRAMES; frame++) {
+            publish(frame);
+            awaitWritten();
+        }
+        writer.stop();
+
+        assertEquals(2 * GOP_FRAMES - 1 - depth, writer.droppedCount());
+        assertEquals(1 + depth + GOP_FRAMES, writer.queuedCount());
+        List<Integer> expected = range(0, 1 + depth);
+        expected.addAll(range(2 * GOP_FRAMES, 3 * GOP_FRAMES));
+        assertEquals(expected, frames(segment(0), 0));
+        assertEquals(Arrays.asList(PREFIX + "-000.mp4"), Arrays.asList(directory.list()));
+    }
+}
@@ -0,0 +1,61 @@
+package org.yeshen.hevc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Small Annex-B HEVC files for the tests: every keyframe is FakeCodec's parameter sets and
+// an IDR_W_RADL slice, every other frame one TRAIL_R slice. Slices have
+// first_slice_segment_in_pic_flag set and no zero byte in the payload, so both the
+// readers and the scanner split them into one access unit per frame.
+final class SyntheticStream {
+
+    // the timing AnnexBSampleReader makes up at 30 fps
+    static final long FRAME_US = 1000000 / 30;
+    static final int KEYFRAME_SLICE_SIZE = 800;
+    static final int SLICE_SIZE = 200;
+
+    private SyntheticStream() {
+    }
+
+    // frame in Annex-B, a keyframe with its parameter sets in front
+    static byte[] accessUnit(int frame, boolean key) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (key) out.write(FakeCodec.PARAMETER_SETS, 0, FakeCodec.PARAMETER_SETS.length);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write((key ? HevcNal.IDR_W_RADL : HevcNal.TRAIL_R) << 1);
+        out.write(1);
+        out.write(0x80);
+        int size = key ? KEYFRAME_SLICE_SIZE : SLICE_SIZE;
+        for (int i = 3; i < size; i++) out.write(1 + (frame + i) % 255);
+        return out.toByteArray();
+    }
+
+    // frames access units with a keyframe every gopFrames; returns the offset of each
+    static long[] writeAnnexB(File file, int frames, int gopFrames) throws IOException {
+        long[] offsets = new long[frames];
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            long offset = 0;
+            for (int i = 0; i < frames; i++) {
+                byte[] unit = accessUnit(i, i % gopFrames == 0);
+                offsets[i] = offset;
+                out.write(unit);
+                offset += unit.length;
+            }
+        } finally {
+            out.close();
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,95 @@
+package org.yeshen.hevc;
+
+import android.media.MediaFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// ThumbnailExtractor over FakeCodec, which hands every input back unchanged: only the
+// picked keyframes go in, each comes out as one thumbnail, in file order.
+public class ThumbnailExtractorTest {
+
+    private static final int FRAMES = 60;
+    private static final int GOP_FRAMES = 10;
+    private static final int BUFFER_COUNT = 4;
+    private static final int BUFFER_SIZE = 4096;
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Long> times = new ArrayList<>();
+
+    private int extract(File file, int count) throws IOException {
+        ThumbnailExtractor extractor = new ThumbnailExtractor(
+                CodecDrivers.factory(FakeCodec.factory("fake-thumbnail-decoder", BUFFER_COUNT, BUFFER_SIZE)));
+        return extractor.extract(file, count, new ThumbnailExtractor.Listener() {
+            @Override
+            public void onThumbnail(int number, long presentationTimeUs, ByteBuffer frame, MediaFormat format) {
+                assertEquals(times.size(), number);
+                // the keyframe's access unit, parameter sets first
+                assertEquals(HevcNal.VPS, HevcNal.type(frame.get(frame.position() + 4)));
+                times.add(presentationTimeUs);
+            }
+        }, TIMEOUT_MS);
+    }
+
+    @Test
+    public void evenlySpacedKeyframes() throws IOException {
+        File file = folder.newFile("stream.h265");
+        SyntheticStream.writeAnnexB(file, FRAMES, GOP_FRAMES);
+        assertEquals(3, extract(file, 3));
+        assertEquals(3, times.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i * FRAMES / 3 * SyntheticStream.FRAME_US, (long) times.get(i));
+        }
+        // the index is kept for the next call
+        assertTrue(KeyframeIndex.sidecar(file).exists());
+    }
+
+    @Test
+    public void noMoreThumbnailsThanKeyframes() throws IOException {
+        File file = folder.newFile("stream.h265");
+        SyntheticStream.writeAnnexB(file, FRAMES, GOP_FRAMES);
+        assertEquals(FRAMES / GOP_FRAMES, extract(file, 10));
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals(i * GOP_FRAMES * SyntheticStream.FRAME_US, (long) times.get(i));
+        }
+    }
+
+    @Test
+    public void longGopsMapToTheSameKeyframeOnce() throws IOException {
+        File file = folder.newFile("stream.h265");
+        SyntheticStream.writeAnnexB(file, FRAMES, FRAMES / 2);
+        KeyframeIndex index = KeyframeIndex.load(file, 30);
+        // positions 0, 15, 30 and 45 fall on the keyframes 0, 0, 30 and 30
+        int[] picked = ThumbnailExtractor.pick(index, 4);
+        assertEquals(2, picked.length);
+        assertEquals(0, picked[0]);
+        assertEquals(1, picked[1]);
+        assertEquals(2, extract(file, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noThumbnailsIsABadRequest() throws IOException {
+        File file = folder.newFile("stream.h265");
+        SyntheticStream.writeAnnexB(file, FRAMES, GOP_FRAMES);
+        extract(file, 0);
+    }
+}
@@ -0,0 +1,235 @@
+package org.yeshen.hevc;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*********************************************************************
+ * This file is part of hevc project
+ * Created by hello@yeshen.org on 2019/07/11.
+ * Copyright (c) 2019 Yeshen.org, Inc. - All Rights Reserved
+ *********************************************************************/
+
+// Transcoder and TranscodeQueue over a SyntheticStream, a FakeCodec decoder rendering
+// into a FakeCodec encoder's input surface. The encoder takes ENCODE_LATENCY_US per
+// frame, so a job lasts long enough to be cancelled and to report progress more than once.
+public class TranscoderTest {
+
+    private static final int FRAME_RATE = Transcoder.FRAME_RATE;
+    private static final int BUFFER_COUNT = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long ENCODE_LATENCY_US = 40000;
+    private static final long TIMEOUT_S = 20;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakeCodec.Model decoderModel = new FakeCodec.Model();
+    private final FakeCodec.Model encoderModel = new FakeCodec.Model();
+    private final AtomicInteger liveDecoders = new AtomicInteger();
+    private final AtomicInteger maxLiveDecoders = new AtomicInteger();
+    private TranscodeQueue queue;
+
+    @Before
+    public void setUp() {
+        decoderModel.latencyUs = 1000;
+        encoderModel.synthesize = true;
+        encoderModel.frameRate = FRAME_RATE;
+        encoderModel.gopFrames = FRAME_RATE;
+        encoderModel.latencyUs = ENCODE_LATENCY_US;
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) queue.shutdown();
+    }
+
+    private TranscodeQueue queue(int concurrent) {
+        Codec.Factory decoders = new Codec.Factory() {
+            @Override
+            public Codec create() {
+                int live = liveDecoders.incrementAndGet();
+                while (true) {
+                    int max = maxLiveDecoders.get();
+                    if (live <= max || maxLiveDecoders.compareAndSet(max, live)) break;
+                }
+                return new FakeCodec("fake-decoder", BUFFER_COUNT, BUFFER_SIZE, decoderModel) {
+                    private boolean released;
+
+                    @Override
+                    public void release() {
+                        super.release();
+                        if (!released) liveDecoders.decrementAndGet();
+                        released = true;
+                    }
+                };
+            }
+        };
+        queue = new TranscodeQueue(concurrent, CodecDrivers.factory(decoders), CodecDrivers.factory(
+                FakeCodec.factory("fake-encoder", BUFFER_COUNT, BUFFER_SIZE, encoderModel)));
+        return queue;
+    }
+
+    private static class Progress implements Transcoder.Listener {
+        final List<Float> fractions = Collections.synchronizedList(new ArrayList<Float>());
+        final List<Double> fps = Collections.synchronizedList(new ArrayList<Double>());
+        final CountDownLatch finished = new CountDownLatch(1);
+        final CountDownLatch reported = new CountDownLatch(2);
+        volatile Exception error;
+        volatile TranscodeQueue queue;
+        volatile double queueFps;
+
+        @Override
+        public void onProgress(Transcoder transcoder) {
+            fractions.add(transcoder.progressFraction());
+            fps.add(transcoder.framesPerSecond());
+            if (queue != null) queueFps = Math.max(queueFps, queue.framesPerSecond());
+            reported.countDown();
+        }
+
+        @Override
+        public void onFinished(Transcoder transcoder, Exception error) {
+            this.error = error;
+            finished.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("not finished within " + TIMEOUT_S + " s", finished.await(TIMEOUT_S, TimeUnit.SECONDS));
+        }
+    }
+
+    private File source(String name, int frames) throws IOException {
+        File file = folder.newFile(name);
+        SyntheticStream.writeAnnexB(file, frames, FRAME_RATE);
+        return file;
+    }
+
+    // frames in the target, which has to start with a keyframe and run forward
+    private static int assertPlayable(File target) throws IOException {
+        SampleReader reader = SampleReader.open(target, FRAME_RATE);
+        try {
+            assertNotNull("no codec config", reader.csd);
+            SampleReader.Sample sample = new SampleReader.Sample();
+            assertTrue(reader.next(sample));
+            assertTrue("starts without a keyframe", (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            int frames = 1;
+            long last = sample.presentationTimeUs;
+            while (reader.next(sample)) {
+                assertTrue(sample.presentationTimeUs > last);
+                last = sample.presentationTimeUs;
+                frames++;
+            }
+            return frames;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void wholeFileReportsProgressAndFps() throws Exception {
+        // longer than a progress interval even at the encoder's fastest pace
+        int frames = 5 * FRAME_RATE;
+        File target = new File(folder.getRoot(), "out.mp4");
+        Progress progress = new Progress();
+        Transcoder job = queue(1).submit(source("in.h265", frames), target, 1000000, 0, 0, progress);
+        progress.await();
+
+        assertNull(progress.error);
+        assertTrue(job.isFinished());
+        assertEquals(frames, job.framesDecoded());
+        assertEquals(frames, job.framesEncoded());
+        assertTrue(job.bytesEncoded() > 0);
+        assertEquals(1f, job.progressFraction(), 0f);
+        assertEquals(frames, assertPlayable(target));
+        // the first report comes at once, the next a second later; by the bytes fed, as an
+        // Annex-B file has no duration
+        assertTrue("reports " + progress.fractions, progress.fractions.size() >= 2);
+        float last = 0;
+        for (float fraction : progress.fractions) {
+            assertTrue(progress.fractions.toString(), fraction >= last && fraction <= 1f);
+            last = fraction;
+        }
+        assertTrue(progress.fractions.toString(), last > 0);
+        assertTrue(progress.fps.toString(), progress.fps.get(progress.fps.size() - 1) > 0);
+        // at most the encoder's pace, with ENCODE_LATENCY_US per frame and maxInFlight in it
+        double fps = job.framesPerSecond();
+        assertTrue("fps " + fps, fps > 0 && fps <= Transcoder.DEFAULT_MAX_IN_FLIGHT * 1e6 / ENCODE_LATENCY_US + 1);
+        assertTrue(queue.report().contains("in.h265 -> out.mp4, 100%"));
+        assertEquals(0, liveDecoders.get());
+    }
+
+    @Test
+    public void cancelStopsTheJob() throws Exception {
+        int frames = 20 * FRAME_RATE;
+        Progress progress = new Progress();
+        Transcoder job = queue(1).submit(source("long.h265", frames), new File(folder.getRoot(), "long.mp4"),
+                1000000, 0, 0, progress);
+        assertTrue(progress.reported.await(TIMEOUT_S, TimeUnit.SECONDS));
+        long cancelNs = System.nanoTime();
+        job.cancel();
+        progress.await();
+        long stopMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cancelNs);
+
+        assertNotNull(progress.error);
+        assertEquals("cancelled", progress.error.getMessage());
+        assertTrue(job.isFinished());
+        assertTrue(job.framesEncoded() > 0 && job.framesEncoded() < frames);
+        assertTrue(job.progressFraction() < 1f);
+        assertTrue("cancel took " + stopMs + " ms", stopMs < 1000);
+        assertTrue(queue.awaitTermination(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(0, liveDecoders.get());
+    }
+
+    @Test
+    public void twoJobsRunSideBySide() throws Exception {
+        int frames = 2 * FRAME_RATE;
+        TranscodeQueue queue = queue(2);
+        Progress first = new Progress();
+        Progress second = new Progress();
+        first.queue = queue;
+        second.queue = queue;
+        File firstTarget = new File(folder.getRoot(), "a.mp4");
+        File secondTarget = new File(folder.getRoot(), "b.mp4");
+        long startNs = System.nanoTime();
+        Transcoder a = queue.submit(source("a.h265", frames), firstTarget, 1000000, 0, 0, first);
+        Transcoder b = queue.submit(source("b.h265", 2 * frames), secondTarget, 1000000, 0, 0, second);
+        assertEquals(2, queue.jobs().size());
+        first.await();
+        second.await();
+        long elapsedNs = System.nanoTime() - startNs;
+
+        assertNull(first.error);
+        assertNull(second.error);
+        assertEquals(2, maxLiveDecoders.get());
+        assertEquals(frames, assertPlayable(firstTarget));
+        assertEquals(2 * frames, assertPlayable(secondTarget));
+        assertEquals(frames, a.framesEncoded());
+        assertEquals(2 * frames, b.framesEncoded());
+        // the queue adds up the jobs still running
+        assertTrue(first.queueFps + second.queueFps > 0);
+        assertEquals(0, queue.framesPerSecond(), 0);
+        // side by side, the queue was faster than the two jobs one after the other
+        double serialSeconds = a.framesEncoded() / a.framesPerSecond() + b.framesEncoded() / b.framesPerSecond();
+        assertTrue(elapsedNs / 1e9 + " s for " + serialSeconds + " s of jobs", elapsedNs / 1e9 < serialSeconds);
+        assertTrue(queue.awaitTermination(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(0, liveDecoders.get());
+    }
+}